@@ -22,7 +22,12 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import se.mejsla.camp.mazela.network.client.grizzly.GrizzlyNetworkClient;
+import se.mejsla.camp.mazela.network.client.ClientConfiguration;
+import se.mejsla.camp.mazela.network.client.NetworkClient;
+import se.mejsla.camp.mazela.network.client.NetworkClients;
+import se.mejsla.camp.mazela.network.common.CompressionSettings;
+import se.mejsla.camp.mazela.network.common.ProtocolDictionary;
+import se.mejsla.camp.mazela.network.common.grizzly.BufferPool;
 
 /**
  *
@@ -30,9 +35,15 @@ import se.mejsla.camp.mazela.network.client.grizzly.GrizzlyNetworkClient;
  */
 public class MonkeyClient extends SimpleApplication {
 
+    /**
+     * The system property that picks the network transport, see
+     * {@link NetworkClients}.
+     */
+    public static final String TRANSPORT_PROPERTY = "mazela.network.transport";
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    private GrizzlyNetworkClient networkClient;
+    private NetworkClient networkClient;
     private ProtobufAppState networkAppstate;
     private GameboardAppstate gameboardAppstate;
     private KeyboardInputAppState keyboardInputAppState;
@@ -69,7 +80,16 @@ public class MonkeyClient extends SimpleApplication {
     }
 
     private void initializeNetwork() {
-        this.networkClient = new GrizzlyNetworkClient(100, threadFactory);
+        final ClientConfiguration configuration = ClientConfiguration.builder()
+                .setMaxOutgoingMessages(100)
+                .setBufferPool(BufferPool.pooled(true))
+                .setCompression(CompressionSettings.withDictionary(ProtocolDictionary.gameboardUpdates()))
+                .setTransport(System.getProperty(
+                        TRANSPORT_PROPERTY,
+                        ClientConfiguration.DEFAULT_TRANSPORT
+                ))
+                .build();
+        this.networkClient = NetworkClients.create(configuration, threadFactory);
         this.networkClient.startAsync();
     }
 
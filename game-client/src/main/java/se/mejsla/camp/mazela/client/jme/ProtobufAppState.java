@@ -37,11 +37,17 @@ import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol;
  */
 public class ProtobufAppState extends AbstractAppState {
 
+    /**
+     * How long to wait before connecting again when the server was full.
+     */
+    private static final long SERVER_FULL_RETRY_MILLIS = 2000;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private final NetworkClient networkClient;
     private boolean authenticated = false;
     private boolean awaitingAuthentication = false;
+    private long lastConnectMillis;
     private final GameboardAppstate gameboardAppstate;
 
     public ProtobufAppState(
@@ -64,6 +70,13 @@ public class ProtobufAppState extends AbstractAppState {
 
     private void handleNetwork() throws InvalidProtocolBufferException, OutgoingQueueFullException, NotConnectedException {
         if (!networkClient.isConnected()) {
+            final long now = System.currentTimeMillis();
+            if (this.networkClient.isServerFull()
+                    && now - this.lastConnectMillis < SERVER_FULL_RETRY_MILLIS) {
+                // Back off instead of adding to a reconnect storm
+                return;
+            }
+            this.lastConnectMillis = now;
             // Pretend that we got this from the user
             log.debug("Connecting to the server");
             this.networkClient.connect("127.0.0.1", 1666);
@@ -122,6 +135,8 @@ public class ProtobufAppState extends AbstractAppState {
                             protocolUuid.getLeastSignificantID()
                     );
                     log.debug("Authentication success: {}", uuid);
+                    // Game state updates may now be sent as datagrams
+                    this.networkClient.enableDatagrams(uuid);
                     // Pretend we have some lobby and that the user chooses to join a game.
                     log.debug("Trying to join the game");
                     final byte[] message = MazelaProtocol.Envelope
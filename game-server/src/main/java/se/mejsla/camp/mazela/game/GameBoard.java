@@ -18,10 +18,7 @@ package se.mejsla.camp.mazela.game;
 import com.google.common.base.Preconditions;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.Collectors;
 import nu.zoom.corridors.math.XORShiftRandom;
 import org.dyn4j.dynamics.Body;
 import org.dyn4j.dynamics.BodyFixture;
@@ -33,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.mejsla.camp.mazela.game.physics.PhysicsSpace;
 import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.SlotTable;
 import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol;
 
 /**
@@ -51,8 +49,7 @@ public class GameBoard {
     private final XORShiftRandom fastRandom = new XORShiftRandom(System.currentTimeMillis());
     private final PhysicsSpace physicsSpace = new PhysicsSpace(WORLD_BOUNDS_WIDTH, WORLD_BOUNDS_HEIGHT);
 
-    private final ConcurrentHashMap<ConnectionID, Player> players
-            = new ConcurrentHashMap<>();
+    private final SlotTable<Player> players = new SlotTable<>();
 
     private final CopyOnWriteArrayList<ConnectionID> pendingPlayerAdds;
     private final CopyOnWriteArrayList<ConnectionID> pendingPlayerDeletes;
@@ -98,46 +95,72 @@ public class GameBoard {
         }
     }
 
-    private void addPendingPlayers() {
-        for (ConnectionID connectionID : this.pendingPlayerAdds) {
-            this.players.computeIfAbsent(Preconditions.checkNotNull(connectionID), c -> {
-                log.debug("Adding player {} to the board", connectionID);
-                final Body body = new Body();
-                final BodyFixture bodyFixture = new BodyFixture(new Circle(1.0));
-                bodyFixture.setRestitution(BOUNCYNESS);
-                body.addFixture(bodyFixture);
-                body.setMass(MassType.NORMAL);
-                double initialX = this.fastRandom.unitRandom() * PLAYER_INITAL_AREA_WIDTH - (PLAYER_INITAL_AREA_WIDTH / 2);
-                double initialY = (PLAYER_INITAL_AREA_HEIGHT / 2) - 1.0;
-                body.getTransform().translate(initialX, initialY);
-                this.physicsSpace.getWorld().addBody(body);
-                return new Player(body);
-            });
+    private void addPendingPlayers(final List<ConnectionID> adds) {
+        for (ConnectionID connectionID : adds) {
+            if (this.players.contains(Preconditions.checkNotNull(connectionID))) {
+                continue;
+            }
+            log.debug("Adding player {} to the board", connectionID);
+            final Body body = new Body();
+            final BodyFixture bodyFixture = new BodyFixture(new Circle(1.0));
+            bodyFixture.setRestitution(BOUNCYNESS);
+            body.addFixture(bodyFixture);
+            body.setMass(MassType.NORMAL);
+            double initialX = this.fastRandom.unitRandom() * PLAYER_INITAL_AREA_WIDTH - (PLAYER_INITAL_AREA_WIDTH / 2);
+            double initialY = (PLAYER_INITAL_AREA_HEIGHT / 2) - 1.0;
+            body.getTransform().translate(initialX, initialY);
+            this.physicsSpace.getWorld().addBody(body);
+            final Player evicted = this.players.put(connectionID, new Player(body));
+            if (evicted != null) {
+                // Left by a connection that had the slot before, its drop
+                // can no longer find it
+                removeFromWorld(evicted);
+            }
         }
-        this.pendingPlayerAdds.clear();
     }
 
-    private void removePendingPlayers() {
-        for (ConnectionID connectionID : this.pendingPlayerDeletes) {
+    private void removePendingPlayers(final List<ConnectionID> deletes) {
+        for (ConnectionID connectionID : deletes) {
             final Player remove
                     = this.players.remove(Preconditions.checkNotNull(connectionID));
-            Body physicsBody = remove.getPhysicsBody();
-            if (physicsBody != null) {
-                this.physicsSpace.getWorld().removeBody(physicsBody);
+            if (remove != null) {
+                removeFromWorld(remove);
             }
         }
-        this.pendingPlayerDeletes.clear();
+    }
+
+    private void removeFromWorld(final Player player) {
+        Body physicsBody = player.getPhysicsBody();
+        if (physicsBody != null) {
+            this.physicsSpace.getWorld().removeBody(physicsBody);
+        }
+    }
+
+    /**
+     * Take the IDs queued so far, leaving those queued meanwhile for the next
+     * tick.
+     */
+    private static List<ConnectionID> takePending(
+            final CopyOnWriteArrayList<ConnectionID> pending) {
+        final List<ConnectionID> taken = new ArrayList<>(pending);
+        pending.removeAll(taken);
+        return taken;
     }
 
     public void tick(final float tpf) {
-        addPendingPlayers();
-        removePendingPlayers();
+        // The adds are taken first, so a drop that follows a join is taken in
+        // the same tick or a later one, never before the join
+        final List<ConnectionID> adds = takePending(this.pendingPlayerAdds);
+        final List<ConnectionID> deletes = takePending(this.pendingPlayerDeletes);
+        // A player that joined and dropped since the last tick is never added
+        adds.removeAll(deletes);
+        // A slot freed by a dropped player may already belong to a new one
+        removePendingPlayers(deletes);
+        addPendingPlayers(adds);
         // Update physics engine
         this.physicsSpace.tick(tpf);
 
-        for (Player p : players.values()) {
-            p.update(tpf);
-        }
+        players.forEach((id, player) -> player.update(tpf));
     }
 
     public List<EntityUpdate> snapshotGamestate() {
@@ -155,12 +178,8 @@ public class GameBoard {
         return result;
     }
 
-    public Set<ConnectionID> getPlayers() {
-        return this.players
-                .entrySet()
-                .stream()
-                .map(e -> e.getKey())
-                .collect(Collectors.toSet());
+    public List<ConnectionID> getPlayers() {
+        return this.players.keys();
     }
 
     public void playerInput(
@@ -23,7 +23,18 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import se.mejsla.camp.mazela.network.server.grizzly.GrizzlyNetworkServer;
+import se.mejsla.camp.mazela.network.common.CompressionSettings;
+import se.mejsla.camp.mazela.network.common.HeartbeatSettings;
+import se.mejsla.camp.mazela.network.common.ProtocolDictionary;
+import se.mejsla.camp.mazela.network.common.grizzly.BufferPool;
+import se.mejsla.camp.mazela.network.common.simulation.NetworkConditions;
+import se.mejsla.camp.mazela.network.server.IOStrategyType;
+import se.mejsla.camp.mazela.network.server.MessagePriority;
+import se.mejsla.camp.mazela.network.server.NetworkServer;
+import se.mejsla.camp.mazela.network.server.RateLimitAction;
+import se.mejsla.camp.mazela.network.server.NetworkServers;
+import se.mejsla.camp.mazela.network.server.ServerConfiguration;
+import se.mejsla.camp.mazela.network.server.simulation.ImpairedNetworkServer;
 
 /**
  *
@@ -45,17 +56,73 @@ public class Server {
             return t;
         }
     };
-    private GrizzlyNetworkServer grizzlyNetworkServer;
+    /**
+     * The server on the configured transport.
+     */
+    private NetworkServer transportServer;
+    /**
+     * The server the game talks to, the transport server or a simulation
+     * wrapped around it.
+     */
+    private NetworkServer networkServer;
+    /**
+     * Null unless a bad network is simulated.
+     */
+    private NetworkConditions networkConditions;
 
     private ServerService server;
 
     public static void main(final String[] args) {
         Server server = new Server();
-        server.parseCommandLine(args);
+        try {
+            server.parseCommandLine(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return;
+        }
         server.initialize();
         server.run();
     }
-    private int serverPort;
+
+    /**
+     * Clients authenticate right after connecting, a connection that has not
+     * within this time is closed.
+     */
+    private static final long DEFAULT_AUTHENTICATION_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * A client that has stopped reading is closed before its unwritten
+     * updates take up more memory than this, or when nothing has been
+     * written to it for the stall timeout.
+     */
+    private static final long DEFAULT_MAX_PENDING_WRITE_BYTES = 4 * 1024 * 1024;
+    private static final long DEFAULT_WRITE_STALL_TIMEOUT_MILLIS = 10000;
+
+    private static final String USAGE = "Options: --port=<port>"
+            + " --transport=grizzly|nio|shm|loopback"
+            + " --selector-runners=<threads>"
+            + " --worker-threads=<threads>"
+            + " --io-strategy=same-thread|worker-thread|leader-follower"
+            + " --send-buffer=<bytes>"
+            + " --receive-buffer=<bytes>"
+            + " --accept-backlog=<connections>"
+            + " --max-connections=<connections, 0 for no limit>"
+            + " --accepts-per-second=<connections, 0 for no limit>"
+            + " --authentication-timeout=<millis, 0 for no timeout>"
+            + " --max-pending-write-bytes=<bytes, 0 for no limit>"
+            + " --write-stall-timeout=<millis, 0 for no timeout>"
+            + " --datagrams=true|false"
+            + " --max-messages-per-second=<messages>"
+            + " --max-bytes-per-second=<bytes>"
+            + " --rate-limit-action=drop|throttle|disconnect"
+            + " --compression=true|false"
+            + " --compression-threshold=<bytes>"
+            + " --heartbeat-interval=<millis, 0 to disable>"
+            + " --heartbeat-timeout=<millis>"
+            + " --network-conditions=perfect|broadband|mobile"
+            + " --network-seed=<seed>";
+    private ServerConfiguration configuration;
 
     private void run() {
         final BufferedReader consoleReader
@@ -85,21 +152,137 @@ public class Server {
 
     private void parseCommandLine(String[] args) {
         log.debug("Parsing command line");
-        this.serverPort = 1666;
+        final ServerConfiguration.Builder builder = ServerConfiguration.builder()
+                .setBufferPool(BufferPool.pooled(true))
+                .setDatagramsEnabled(true)
+                .setAuthenticationTimeoutMillis(DEFAULT_AUTHENTICATION_TIMEOUT_MILLIS)
+                .setMaxPendingWriteBytes(DEFAULT_MAX_PENDING_WRITE_BYTES)
+                .setWriteStallTimeoutMillis(DEFAULT_WRITE_STALL_TIMEOUT_MILLIS);
+        boolean compression = true;
+        int compressionThreshold = CompressionSettings.DEFAULT_THRESHOLD;
+        long heartbeatInterval = HeartbeatSettings.DEFAULT_INTERVAL_MILLIS;
+        long heartbeatTimeout = HeartbeatSettings.DEFAULT_TIMEOUT_MILLIS;
+        long networkSeed = 0;
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            final String name = arg.substring(2, separator);
+            final String value = arg.substring(separator + 1);
+            switch (name) {
+                case "port":
+                    builder.setPort(Integer.parseInt(value));
+                    break;
+                case "transport":
+                    builder.setTransport(NetworkServers.provider(value).getName());
+                    break;
+                case "selector-runners":
+                    builder.setSelectorRunners(Integer.parseInt(value));
+                    break;
+                case "worker-threads":
+                    builder.setWorkerThreads(Integer.parseInt(value));
+                    break;
+                case "io-strategy":
+                    builder.setIoStrategy(IOStrategyType.valueOf(
+                            value.toUpperCase().replace('-', '_')
+                    ));
+                    break;
+                case "send-buffer":
+                    builder.setSendBufferSize(Integer.parseInt(value));
+                    break;
+                case "receive-buffer":
+                    builder.setReceiveBufferSize(Integer.parseInt(value));
+                    break;
+                case "accept-backlog":
+                    builder.setAcceptBacklog(Integer.parseInt(value));
+                    break;
+                case "max-connections":
+                    builder.setMaxConnections(Integer.parseInt(value));
+                    break;
+                case "accepts-per-second":
+                    builder.setAcceptsPerSecond(Integer.parseInt(value));
+                    break;
+                case "authentication-timeout":
+                    builder.setAuthenticationTimeoutMillis(Long.parseLong(value));
+                    break;
+                case "max-pending-write-bytes":
+                    builder.setMaxPendingWriteBytes(Long.parseLong(value));
+                    break;
+                case "write-stall-timeout":
+                    builder.setWriteStallTimeoutMillis(Long.parseLong(value));
+                    break;
+                case "datagrams":
+                    builder.setDatagramsEnabled(Boolean.parseBoolean(value));
+                    break;
+                case "max-messages-per-second":
+                    builder.setInboundMessagesPerSecond(Integer.parseInt(value));
+                    break;
+                case "max-bytes-per-second":
+                    builder.setInboundBytesPerSecond(Integer.parseInt(value));
+                    break;
+                case "rate-limit-action":
+                    builder.setRateLimitAction(RateLimitAction.valueOf(value.toUpperCase()));
+                    break;
+                case "compression":
+                    compression = Boolean.parseBoolean(value);
+                    break;
+                case "compression-threshold":
+                    compressionThreshold = Integer.parseInt(value);
+                    break;
+                case "heartbeat-interval":
+                    heartbeatInterval = Long.parseLong(value);
+                    break;
+                case "heartbeat-timeout":
+                    heartbeatTimeout = Long.parseLong(value);
+                    break;
+                case "network-conditions":
+                    this.networkConditions = NetworkConditions.named(value);
+                    break;
+                case "network-seed":
+                    networkSeed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        builder.setCompression(compression
+                ? CompressionSettings.enabled(
+                        compressionThreshold,
+                        CompressionSettings.DEFAULT_LEVEL,
+                        ProtocolDictionary.gameboardUpdates()
+                )
+                : CompressionSettings.disabled());
+        builder.setHeartbeat(heartbeatInterval > 0
+                ? HeartbeatSettings.enabled(heartbeatInterval, heartbeatTimeout)
+                : HeartbeatSettings.disabled());
+        if (this.networkConditions != null) {
+            this.networkConditions = this.networkConditions.withSeed(networkSeed);
+        }
+        this.configuration = builder.build();
     }
 
     private void initialize() {
-        this.grizzlyNetworkServer = new GrizzlyNetworkServer(
-                100,
-                this.threadFactory,
-                this.serverPort
+        this.transportServer = NetworkServers.create(
+                this.configuration,
+                this.threadFactory
         );
-        log.debug("Starting grizzly network service");
-        this.grizzlyNetworkServer.startAsync();
-        this.grizzlyNetworkServer.awaitRunning();
+        log.debug("Starting {} network service", this.configuration.getTransport());
+        this.transportServer.startAsync();
+        this.transportServer.awaitRunning();
+        if (this.networkConditions != null) {
+            this.networkServer = new ImpairedNetworkServer(
+                    this.transportServer,
+                    this.networkConditions,
+                    this.threadFactory
+            );
+            this.networkServer.startAsync().awaitRunning();
+        } else {
+            this.networkServer = this.transportServer;
+        }
 
         this.server = new ServerService(
-                this.grizzlyNetworkServer,
+                this.networkServer,
                 this.threadFactory
         );
         log.debug("Starting the server service");
@@ -113,11 +296,15 @@ public class Server {
             this.log.info("Waiting for server to shut down");
             this.server.awaitTerminated(30, TimeUnit.SECONDS);
         }
-        if (this.grizzlyNetworkServer != null) {
-            log.debug("Stopping grizzly network service");
-            this.grizzlyNetworkServer.stopAsync();
+        if (this.networkServer != null) {
+            log.debug("Stopping network service");
+            this.networkServer.stopAsync();
             this.log.info("Waiting for networking to shut down");
-            this.grizzlyNetworkServer.awaitTerminated(30, TimeUnit.SECONDS);
+            this.networkServer.awaitTerminated(30, TimeUnit.SECONDS);
+            log.debug("Outgoing buffer pool: {}", this.configuration.getBufferPool().getStatistics());
+            for (MessagePriority priority : MessagePriority.values()) {
+                log.debug("Queue latency {}: {}", priority, this.networkServer.getQueueLatency(priority));
+            }
         }
     }
 }
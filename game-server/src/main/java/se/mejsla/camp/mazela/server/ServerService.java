@@ -19,9 +19,10 @@ import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.AbstractScheduledService;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -35,9 +36,12 @@ import se.mejsla.camp.mazela.game.GameBoard;
 import se.mejsla.camp.mazela.network.common.ConnectionID;
 import se.mejsla.camp.mazela.network.common.NotConnectedException;
 import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.SlotTable;
 import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol;
 import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Uuid;
+import se.mejsla.camp.mazela.network.server.ConnectionEvent;
 import se.mejsla.camp.mazela.network.server.IncomingMessage;
+import se.mejsla.camp.mazela.network.server.MessagePriority;
 import se.mejsla.camp.mazela.network.server.NetworkServer;
 import se.mejsla.camp.mazela.server.proto.Encoder;
 
@@ -47,13 +51,33 @@ import se.mejsla.camp.mazela.server.proto.Encoder;
  */
 public class ServerService extends AbstractScheduledService {
 
+    /**
+     * Limits the time a tick spends on incoming messages, the rest wait for
+     * the next tick.
+     */
+    private static final int MAX_INCOMING_MESSAGES_PER_TICK = 1000;
+    /**
+     * Clients with more than this many bytes not yet taken by the socket are
+     * not sent game state until they have caught up, a newer state will be
+     * sent by then anyway.
+     */
+    private static final long CONGESTED_WRITE_BYTES = 64 * 1024;
     private final Logger log = LoggerFactory.getLogger(getClass());
     private final NetworkServer networkServer;
     private long lastFrameTime = System.nanoTime();
     private final ExecutorService backgroundService;
     private final GameBoard gameBoard;
-    private final CopyOnWriteArrayList<ConnectionID> authenticatedConnections
-            = new CopyOnWriteArrayList<>();
+    /**
+     * The user name of each authenticated connection.
+     */
+    private final SlotTable<String> authenticatedConnections
+            = new SlotTable<>();
+    /**
+     * Connection events from the network server, in order, drained at the
+     * start of each tick so the game board only changes on the tick thread.
+     */
+    private final ConcurrentLinkedQueue<ConnectionEvent> connectionEvents
+            = new ConcurrentLinkedQueue<>();
 
     public ServerService(
             final NetworkServer networkServer,
@@ -64,12 +88,7 @@ public class ServerService extends AbstractScheduledService {
         );
 
         this.gameBoard = new GameBoard();
-        this.networkServer.addConnectionDroppedListener((id) -> {
-            if (id != null) {
-                this.authenticatedConnections.remove(id);
-                this.gameBoard.dropPlayer(id);
-            }
-        });
+        this.networkServer.addConnectionListener(this.connectionEvents::add);
     }
 
     @Override
@@ -81,11 +100,11 @@ public class ServerService extends AbstractScheduledService {
 
     @Override
     protected void runOneIteration() throws Exception {
-        for (IncomingMessage incomingMessage = this.networkServer.getIncomingMessage();
-                incomingMessage != null;
-                incomingMessage = this.networkServer.getIncomingMessage()) {
-            asyncParseMessage(incomingMessage);
-        }
+        drainConnectionEvents();
+        this.networkServer.drainIncoming(
+                this::asyncParseMessage,
+                MAX_INCOMING_MESSAGES_PER_TICK
+        );
 
         final long now = System.nanoTime();
         final long frameTime = now - this.lastFrameTime;
@@ -95,13 +114,15 @@ public class ServerService extends AbstractScheduledService {
         this.gameBoard.tick(tpf);
         final List<EntityUpdate> gameState = this.gameBoard.snapshotGamestate();
         final ByteBuffer payload = Encoder.encodeGameState(gameState);
-        try {
-            for (ConnectionID cID : this.gameBoard.getPlayers()) {
-                this.networkServer.sendMessage(payload, cID);
-            }
-        } catch (OutgoingQueueFullException | NotConnectedException ex) {
-            log.error("Unable to send game state update to all clients", ex);
+        final List<ConnectionID> players = uncongested(this.gameBoard.getPlayers());
+        // Only the newest game state matters, lost or late updates are fine
+        final int queued = this.networkServer.broadcastUnreliable(payload, players);
+        if (queued < players.size()) {
+            log.warn("Game state update queued for {} of {} clients", queued, players.size());
         }
+        // Everything queued this tick, including replies from the message
+        // parsers, goes out in one write per client
+        this.networkServer.flush();
     }
 
     @Override
@@ -111,13 +132,43 @@ public class ServerService extends AbstractScheduledService {
         );
     }
 
+    private List<ConnectionID> uncongested(final List<ConnectionID> players) {
+        final List<ConnectionID> recipients = new ArrayList<>(players.size());
+        for (ConnectionID player : players) {
+            try {
+                if (this.networkServer.getPendingWriteBytes(player) <= CONGESTED_WRITE_BYTES) {
+                    recipients.add(player);
+                }
+            } catch (NotConnectedException ex) {
+                // Dropped, the board forgets the player on the next tick
+            }
+        }
+        return recipients;
+    }
+
+    private void drainConnectionEvents() {
+        ConnectionEvent event;
+        while ((event = this.connectionEvents.poll()) != null) {
+            if (event.getType() == ConnectionEvent.Type.DROPPED) {
+                final ConnectionID id = event.getConnectionID();
+                this.authenticatedConnections.remove(id);
+                this.gameBoard.dropPlayer(id);
+            }
+        }
+    }
+
     private void asyncParseMessage(final IncomingMessage incomingMessage) {
         this.backgroundService.submit(() -> {
             try {
                 final ConnectionID connectionID = incomingMessage.getConnectionID();
                 final ByteBuffer messageData = incomingMessage.getData();
-                final MazelaProtocol.Envelope envelope
-                        = MazelaProtocol.Envelope.parseFrom(messageData);
+                final MazelaProtocol.Envelope envelope;
+                try {
+                    envelope = MazelaProtocol.Envelope.parseFrom(messageData);
+                } finally {
+                    // The envelope holds its own copy of the data
+                    incomingMessage.release();
+                }
                 switch (envelope.getMessageType()) {
                     case AuthenticateRequest: {
                         final MazelaProtocol.AuthenticateRequest req
@@ -138,7 +189,8 @@ public class ServerService extends AbstractScheduledService {
                                             .build()
                             );
                             log.debug("Authentication success for connection: {}", result, connectionID);
-                            this.authenticatedConnections.add(connectionID);
+                            this.authenticatedConnections.put(connectionID, username);
+                            networkServer.markAuthenticated(connectionID);
                         } else {
                             log.debug("Authentication failed for connection: {}", connectionID);
                             replyBuilder.setAuthenticated(false);
@@ -152,7 +204,8 @@ public class ServerService extends AbstractScheduledService {
                                                 .build()
                                                 .toByteArray()
                                 ),
-                                connectionID);
+                                connectionID,
+                                MessagePriority.CONTROL);
 
                         break;
                     }
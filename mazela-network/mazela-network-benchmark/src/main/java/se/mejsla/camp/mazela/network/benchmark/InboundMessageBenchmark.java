@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.glassfish.grizzly.threadpool.GrizzlyExecutorService;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.MpscRingBuffer;
+import se.mejsla.camp.mazela.network.server.IncomingMessage;
+
+/**
+ * Compares the old inbound path, where every payload is copied into a new
+ * {@link ByteBuffer}, with handing the consumer a view of the read buffer.
+ * <p>
+ * The threads are the ones the server uses. Each message is read into a new
+ * buffer from the memory manager of the server's transport, on a grizzly
+ * worker thread with its thread local memory pool, and turned into an
+ * {@link IncomingMessage} there. A plain thread takes the messages from the
+ * incoming ring buffer, consumes and releases them, as the game server's
+ * parse threads do. A copied read buffer goes back to the reading thread's
+ * pool at once, a view is released by the consumer where that pool can not
+ * take it back. Allocations are counted on all threads.
+ * <p>
+ * Run with: {@code java -cp <classpath> se.mejsla.camp.mazela.network.benchmark.InboundMessageBenchmark [payload bytes] [messages] [rounds]}
+ */
+public class InboundMessageBenchmark {
+
+    private static final int INCOMING_CAPACITY = 4096;
+    private static final int DRAIN_BATCH = 256;
+
+    private interface InboundPath {
+
+        IncomingMessage receive(ConnectionID connectionID, Buffer payload);
+    }
+
+    /**
+     * How the server filter used to receive messages.
+     */
+    private static final InboundPath COPY = (connectionID, payload) -> {
+        final ByteBuffer messageData = ByteBuffer.allocate(payload.remaining());
+        payload.get(messageData);
+        messageData.flip();
+        payload.tryDispose();
+        return new IncomingMessage(connectionID, messageData);
+    };
+
+    /**
+     * How the server filter receives messages now.
+     */
+    private static final InboundPath VIEW = (connectionID, payload)
+            -> new IncomingMessage(
+                    connectionID,
+                    payload.toByteBuffer().slice(),
+                    payload::tryDispose
+            );
+
+    /**
+     * The server does not set a memory manager on its transport, so reads
+     * use the default one.
+     */
+    private final MemoryManager memoryManager = MemoryManager.DEFAULT_MEMORY_MANAGER;
+    private final ExecutorService reader = GrizzlyExecutorService.createInstance(
+            ThreadPoolConfig.defaultConfig()
+                    .setPoolName("benchmark-reader")
+                    .setCorePoolSize(1)
+                    .setMaxPoolSize(1)
+                    .setMemoryManager(this.memoryManager)
+    );
+    private final MpscRingBuffer<IncomingMessage> incoming
+            = new MpscRingBuffer<>(INCOMING_CAPACITY);
+    private final ConnectionID connectionID = new ConnectionID();
+    private final int payloadBytes;
+    private final int messages;
+    private long checksum;
+
+    public InboundMessageBenchmark(final int payloadBytes, final int messages) {
+        this.payloadBytes = payloadBytes;
+        this.messages = messages;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int payloadBytes = Measurement.intArgument(args, 0, 256);
+        final int messages = Measurement.intArgument(args, 1, 1_000_000);
+        final int rounds = Measurement.intArgument(args, 2, 5);
+        final InboundMessageBenchmark benchmark
+                = new InboundMessageBenchmark(payloadBytes, messages);
+        System.out.printf("%d messages of %d bytes per round%n", messages, payloadBytes);
+        try {
+            for (int round = 1; round <= rounds; round++) {
+                System.out.printf("Round %d%n", round);
+                benchmark.run("copy", COPY);
+                benchmark.run("view", VIEW);
+            }
+        } finally {
+            benchmark.reader.shutdownNow();
+        }
+        System.out.printf("Checksum %d%n", benchmark.checksum);
+    }
+
+    private void run(final String name, final InboundPath path) throws Exception {
+        final int frameBytes = MessageUtilities.FRAME_HEADER_BYTES + this.payloadBytes;
+        final long allocatedBefore = Measurement.totalAllocatedBytes();
+        final long start = System.nanoTime();
+        final Future<?> reading = this.reader.submit(() -> {
+            for (int i = 0; i < this.messages; i++) {
+                // What the transport reads into and the frame filter passes on
+                final Buffer read = this.memoryManager.allocate(frameBytes);
+                read.put(MessageUtilities.FRAME_HEADER_BYTES, (byte) i);
+                read.position(MessageUtilities.FRAME_HEADER_BYTES);
+
+                final IncomingMessage message = path.receive(this.connectionID, read);
+                // The server drops a message when the ring is full, the
+                // benchmark waits so that every message is counted
+                while (!this.incoming.offer(message)) {
+                    Thread.yield();
+                }
+            }
+        });
+        int consumed = 0;
+        while (consumed < this.messages) {
+            final int drained = this.incoming.drain(message -> {
+                final ByteBuffer data = message.getData();
+                this.checksum += data.get(data.position()) + data.remaining();
+                message.release();
+            }, DRAIN_BATCH);
+            if (drained == 0) {
+                Thread.yield();
+            }
+            consumed += drained;
+        }
+        reading.get();
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = Measurement.totalAllocatedBytes() - allocatedBefore;
+        System.out.printf(
+                "  %s: %8.1f ns/msg %12.0f msg/s %8.1f bytes allocated/msg%n",
+                name,
+                (double) elapsed / this.messages,
+                this.messages * 1e9 / elapsed,
+                (double) allocated / this.messages
+        );
+    }
+}
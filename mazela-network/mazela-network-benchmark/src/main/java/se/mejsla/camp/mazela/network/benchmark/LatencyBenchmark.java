@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+import se.mejsla.camp.mazela.network.client.ClientConfiguration;
+import se.mejsla.camp.mazela.network.client.NetworkClient;
+import se.mejsla.camp.mazela.network.client.NetworkClients;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.NetworkingException;
+import se.mejsla.camp.mazela.network.server.IncomingMessage;
+import se.mejsla.camp.mazela.network.server.NetworkServer;
+import se.mejsla.camp.mazela.network.server.NetworkServers;
+import se.mejsla.camp.mazela.network.server.ServerConfiguration;
+
+/**
+ * Measures the time from a message being handed to the network layer until
+ * it can be taken from the network layer on the other side, over the
+ * loopback interface. One message is in flight at a time so the numbers show
+ * the latency of the send path rather than queuing.
+ * <p>
+ * The transport is picked by name, see {@link NetworkServers}. With the
+ * {@code loopback} transport the in-process loopback server and client are
+ * used, which shows the cost of the network layer itself without the kernel.
+ * The {@code shm} transport goes through shared memory between the server
+ * and client, as it would between processes on the same host.
+ * {@link TransportBenchmark} compares the transports side by side.
+ * <p>
+ * Client to server is measured from {@code sendMessage} on the client, server
+ * to client from {@code sendMessage} and {@code flush} on the server.
+ * <p>
+ * Run with: {@code java -cp <classpath> se.mejsla.camp.mazela.network.benchmark.LatencyBenchmark [messages] [payload bytes] [port] [grizzly|nio|shm|loopback]}
+ */
+public class LatencyBenchmark {
+
+    private interface Send {
+
+        void send(ByteBuffer data) throws NetworkingException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int messages = Measurement.intArgument(args, 0, 10_000);
+        final int payloadBytes = Math.max(Long.BYTES, Measurement.intArgument(args, 1, 64));
+        final int port = Measurement.intArgument(args, 2, 17_700);
+        final String transport = args.length > 3 ? args[3] : ServerConfiguration.DEFAULT_TRANSPORT;
+
+        final ThreadFactory threadFactory = r -> {
+            final Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        };
+        final NetworkServer server = NetworkServers.create(
+                ServerConfiguration.builder()
+                        .setPort(port)
+                        .setTransport(transport)
+                        .build(),
+                threadFactory
+        );
+        server.startAsync().awaitRunning();
+        final NetworkClient client = NetworkClients.create(
+                ClientConfiguration.builder()
+                        .setTransport(transport)
+                        .build(),
+                threadFactory
+        );
+        client.startAsync().awaitRunning();
+        client.connect("127.0.0.1", port);
+        while (!client.isConnected()) {
+            Thread.sleep(10);
+        }
+        client.sendMessage(ByteBuffer.allocate(payloadBytes));
+        final ConnectionID clientID = takeIncoming(server).getConnectionID();
+
+        System.out.printf(
+                "%d messages of %d bytes over %s%n",
+                messages,
+                payloadBytes,
+                transport
+        );
+        // The first round warms up the code paths
+        for (int round = 0; round < 2; round++) {
+            report("client -> server", measure(
+                    messages,
+                    payloadBytes,
+                    client::sendMessage,
+                    () -> {
+                        final IncomingMessage message = takeIncoming(server);
+                        final ByteBuffer data = message.getData();
+                        message.release();
+                        return data;
+                    }
+            ));
+            report("server -> client", measure(
+                    messages,
+                    payloadBytes,
+                    data -> {
+                        server.sendMessage(data, clientID);
+                        server.flush();
+                    },
+                    () -> {
+                        ByteBuffer data;
+                        while ((data = client.getNextMessage()) == null) {
+                            Thread.yield();
+                        }
+                        return data;
+                    }
+            ));
+        }
+
+        client.stopAsync().awaitTerminated();
+        server.stopAsync().awaitTerminated();
+    }
+
+    private static IncomingMessage takeIncoming(final NetworkServer server) {
+        IncomingMessage message;
+        while ((message = server.getIncomingMessage()) == null) {
+            Thread.yield();
+        }
+        return message;
+    }
+
+    /**
+     * @return The latency of each message in nanoseconds, sorted.
+     */
+    private static long[] measure(
+            final int messages,
+            final int payloadBytes,
+            final Send send,
+            final Supplier<ByteBuffer> receive) throws NetworkingException {
+        final long[] latencies = new long[messages];
+        final ByteBuffer payload = ByteBuffer.allocate(payloadBytes);
+        for (int i = 0; i < messages; i++) {
+            payload.clear();
+            payload.putLong(0, System.nanoTime());
+            send.send(payload);
+            final ByteBuffer received = receive.get();
+            latencies[i] = System.nanoTime() - received.getLong(received.position());
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static void report(final String name, final long[] latencies) {
+        System.out.printf(
+                "  %s: p50 %7.1f us  p90 %7.1f us  p99 %7.1f us  max %8.1f us%n",
+                name,
+                Measurement.percentile(latencies, 0.50) / 1e3,
+                Measurement.percentile(latencies, 0.90) / 1e3,
+                Measurement.percentile(latencies, 0.99) / 1e3,
+                latencies[latencies.length - 1] / 1e3
+        );
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measurements shared by the benchmarks.
+ */
+final class Measurement {
+
+    private static final java.lang.management.ThreadMXBean THREADS
+            = ManagementFactory.getThreadMXBean();
+
+    private Measurement() {
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread so far, or
+     * -1 if the JVM does not track allocations per thread.
+     */
+    static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of bytes allocated so far by all live threads, or -1
+     * if the JVM does not track allocations per thread. Bytes allocated by
+     * threads that have ended are not counted.
+     */
+    static long totalAllocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) THREADS)
+                .getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param sorted Sorted samples, may not be empty.
+     * @param fraction The percentile as a fraction, 0.99 for p99.
+     * @return The sample at the percentile.
+     */
+    static double percentile(final long[] sorted, final double fraction) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * fraction))];
+    }
+
+    /**
+     * Parse an optional integer command line argument.
+     */
+    static int intArgument(final String[] args, final int index, final int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+}
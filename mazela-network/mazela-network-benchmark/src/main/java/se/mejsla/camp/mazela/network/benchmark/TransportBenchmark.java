@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import se.mejsla.camp.mazela.network.client.ClientConfiguration;
+import se.mejsla.camp.mazela.network.client.NetworkClient;
+import se.mejsla.camp.mazela.network.client.NetworkClients;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.HeartbeatSettings;
+import se.mejsla.camp.mazela.network.server.IncomingMessage;
+import se.mejsla.camp.mazela.network.server.NetworkServer;
+import se.mejsla.camp.mazela.network.server.NetworkServers;
+import se.mejsla.camp.mazela.network.server.ServerConfiguration;
+
+/**
+ * Runs the same workloads on several transports, to compare the grizzly
+ * filter chain with the plain NIO transport over the loopback interface and
+ * with the shared memory transport that skips the kernel. For each
+ * transport:
+ * <ul>
+ * <li>echo: one message in flight, client to server and back again. Reports
+ * round trip percentiles and the bytes allocated per round trip.</li>
+ * <li>broadcast: the server broadcasts to every client and flushes, then
+ * waits until all clients have the message. Reports delivered messages per
+ * second and the bytes allocated per delivered message.</li>
+ * </ul>
+ * Allocations are summed over every thread in the JVM, so they include the
+ * selector threads of both ends. Heartbeats are disabled so that only the
+ * workload is measured. Each transport gets a warm up round that is not
+ * reported.
+ * <p>
+ * Run with: {@code java -cp <classpath> se.mejsla.camp.mazela.network.benchmark.TransportBenchmark [messages] [payload bytes] [clients] [port] [transport...]}
+ */
+public class TransportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int messages = Measurement.intArgument(args, 0, 10_000);
+        final int payloadBytes = Math.max(Long.BYTES, Measurement.intArgument(args, 1, 64));
+        final int clients = Measurement.intArgument(args, 2, 20);
+        final int port = Measurement.intArgument(args, 3, 17_720);
+        final List<String> transports = args.length > 4
+                ? Arrays.asList(args).subList(4, args.length)
+                : Arrays.asList("grizzly", "nio", "shm");
+
+        System.out.printf(
+                "%d messages of %d bytes, broadcast to %d clients%n",
+                messages,
+                payloadBytes,
+                clients
+        );
+        for (int i = 0; i < transports.size(); i++) {
+            run(transports.get(i), port + i, messages, payloadBytes, clients);
+        }
+    }
+
+    private static void run(
+            final String transport,
+            final int port,
+            final int messages,
+            final int payloadBytes,
+            final int clientCount) throws Exception {
+        final ThreadFactory threadFactory = r -> {
+            final Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        };
+        final NetworkServer server = NetworkServers.create(
+                ServerConfiguration.builder()
+                        .setPort(port)
+                        .setTransport(transport)
+                        .setHeartbeat(HeartbeatSettings.disabled())
+                        .setJmxEnabled(false)
+                        .build(),
+                threadFactory
+        );
+        server.startAsync().awaitRunning();
+        final ClientConfiguration clientConfiguration = ClientConfiguration.builder()
+                .setTransport(transport)
+                .setHeartbeat(HeartbeatSettings.disabled())
+                .build();
+        final List<NetworkClient> clients = new ArrayList<>();
+        final List<ConnectionID> clientIDs = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            final NetworkClient client = NetworkClients.create(clientConfiguration, threadFactory);
+            client.startAsync().awaitRunning();
+            client.connect("127.0.0.1", port);
+            while (!client.isConnected()) {
+                Thread.sleep(10);
+            }
+            // The first message tells us the connection ID of the client
+            client.sendMessage(ByteBuffer.allocate(payloadBytes));
+            final IncomingMessage hello = takeIncoming(server);
+            clientIDs.add(hello.getConnectionID());
+            hello.release();
+            clients.add(client);
+        }
+
+        System.out.printf("%s:%n", transport);
+        for (int round = 0; round < 2; round++) {
+            final boolean report = round > 0;
+            echo(server, clients.get(0), clientIDs.get(0), messages, payloadBytes, report);
+            broadcast(server, clients, clientIDs, messages / clientCount + 1, payloadBytes, report);
+        }
+
+        for (NetworkClient client : clients) {
+            client.stopAsync().awaitTerminated();
+        }
+        server.stopAsync().awaitTerminated();
+    }
+
+    private static void echo(
+            final NetworkServer server,
+            final NetworkClient client,
+            final ConnectionID clientID,
+            final int messages,
+            final int payloadBytes,
+            final boolean report) throws Exception {
+        final long[] latencies = new long[messages];
+        final ByteBuffer payload = ByteBuffer.allocate(payloadBytes);
+        final long allocatedBefore = Measurement.totalAllocatedBytes();
+        for (int i = 0; i < messages; i++) {
+            payload.clear();
+            payload.putLong(0, System.nanoTime());
+            client.sendMessage(payload);
+            final IncomingMessage message = takeIncoming(server);
+            server.sendMessage(message.getData(), clientID);
+            message.release();
+            server.flush();
+            final ByteBuffer echoed = takeNext(client);
+            latencies[i] = System.nanoTime() - echoed.getLong(echoed.position());
+        }
+        final long allocated = Measurement.totalAllocatedBytes() - allocatedBefore;
+        if (report) {
+            Arrays.sort(latencies);
+            System.out.printf(
+                    "  echo:      p50 %7.1f us  p90 %7.1f us  p99 %7.1f us  max %8.1f us  %6d bytes/round trip%n",
+                    Measurement.percentile(latencies, 0.50) / 1e3,
+                    Measurement.percentile(latencies, 0.90) / 1e3,
+                    Measurement.percentile(latencies, 0.99) / 1e3,
+                    latencies[latencies.length - 1] / 1e3,
+                    allocated / messages
+            );
+        }
+    }
+
+    private static void broadcast(
+            final NetworkServer server,
+            final List<NetworkClient> clients,
+            final List<ConnectionID> clientIDs,
+            final int rounds,
+            final int payloadBytes,
+            final boolean report) {
+        final ByteBuffer payload = ByteBuffer.allocate(payloadBytes);
+        final long allocatedBefore = Measurement.totalAllocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            payload.clear();
+            server.broadcast(payload, clientIDs);
+            server.flush();
+            for (NetworkClient client : clients) {
+                takeNext(client);
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = Measurement.totalAllocatedBytes() - allocatedBefore;
+        final long delivered = (long) rounds * clients.size();
+        if (report) {
+            System.out.printf(
+                    "  broadcast: %,10.0f messages/s  %6d bytes/message%n",
+                    delivered * 1e9 / elapsed,
+                    allocated / delivered
+            );
+        }
+    }
+
+    private static IncomingMessage takeIncoming(final NetworkServer server) {
+        IncomingMessage message;
+        while ((message = server.getIncomingMessage()) == null) {
+            Thread.yield();
+        }
+        return message;
+    }
+
+    private static ByteBuffer takeNext(final NetworkClient client) {
+        ByteBuffer data;
+        while ((data = client.getNextMessage()) == null) {
+            Thread.yield();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.client;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import se.mejsla.camp.mazela.network.common.CompressionSettings;
+import se.mejsla.camp.mazela.network.common.HeartbeatSettings;
+import se.mejsla.camp.mazela.network.common.grizzly.BufferPool;
+
+/**
+ * The settings of a network client. Created with a {@link Builder}, every
+ * setting has a default so only the ones that differ have to be set.
+ */
+public final class ClientConfiguration {
+
+    public static final int DEFAULT_MAX_OUTGOING_MESSAGES = 100;
+    /**
+     * The name of the transport used unless another is configured.
+     */
+    public static final String DEFAULT_TRANSPORT = "grizzly";
+
+    private final int maxOutgoingMessages;
+    private final BufferPool bufferPool;
+    private final CompressionSettings compression;
+    private final HeartbeatSettings heartbeat;
+    private final String transport;
+    private final boolean jmxEnabled;
+
+    private ClientConfiguration(final Builder builder) {
+        this.maxOutgoingMessages = builder.maxOutgoingMessages;
+        this.bufferPool = builder.bufferPool;
+        this.compression = builder.compression;
+        this.heartbeat = builder.heartbeat;
+        this.transport = builder.transport;
+        this.jmxEnabled = builder.jmxEnabled;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return The maximum number of outgoing messages that have not been
+     * written to the socket yet.
+     */
+    public int getMaxOutgoingMessages() {
+        return maxOutgoingMessages;
+    }
+
+    /**
+     * @return The memory the grizzly client allocates outgoing messages from.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return How messages are compressed, only used if the server has
+     * compression enabled with the same dictionary.
+     */
+    public CompressionSettings getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return How often the server is pinged and how long it may be silent
+     * before the connection is closed.
+     */
+    public HeartbeatSettings getHeartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * @return The name of the transport {@link NetworkClients} creates the
+     * client with.
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return true if the client metrics are registered as an MBean.
+     */
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("maxOutgoingMessages", maxOutgoingMessages)
+                .add("compression", compression)
+                .add("heartbeat", heartbeat)
+                .add("transport", transport)
+                .add("jmxEnabled", jmxEnabled)
+                .toString();
+    }
+
+    /**
+     * Collects the settings for a {@link ClientConfiguration}.
+     */
+    public static final class Builder {
+
+        private int maxOutgoingMessages = DEFAULT_MAX_OUTGOING_MESSAGES;
+        private BufferPool bufferPool = BufferPool.unpooled();
+        private CompressionSettings compression = CompressionSettings.disabled();
+        private HeartbeatSettings heartbeat = HeartbeatSettings.defaults();
+        private String transport = DEFAULT_TRANSPORT;
+        private boolean jmxEnabled = true;
+
+        private Builder() {
+        }
+
+        /**
+         * @param maxOutgoingMessages Must be larger than 0 and less than 1000.
+         * @return this builder
+         */
+        public Builder setMaxOutgoingMessages(final int maxOutgoingMessages) {
+            this.maxOutgoingMessages = maxOutgoingMessages;
+            return this;
+        }
+
+        public Builder setBufferPool(final BufferPool bufferPool) {
+            this.bufferPool = bufferPool;
+            return this;
+        }
+
+        public Builder setCompression(final CompressionSettings compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder setHeartbeat(final HeartbeatSettings heartbeat) {
+            this.heartbeat = heartbeat;
+            return this;
+        }
+
+        /**
+         * @param transport The name of a transport provider, such as
+         * "grizzly", "nio", "shm" or "loopback".
+         * @return this builder
+         */
+        public Builder setTransport(final String transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder setJmxEnabled(final boolean jmxEnabled) {
+            this.jmxEnabled = jmxEnabled;
+            return this;
+        }
+
+        /**
+         * @return The configuration.
+         * @throws IllegalArgumentException If a setting is out of range.
+         * @throws NullPointerException If a required setting is null.
+         */
+        public ClientConfiguration build() {
+            Preconditions.checkArgument(
+                    maxOutgoingMessages > 0,
+                    "Max outgoing messages must be a positive integer"
+            );
+            Preconditions.checkArgument(
+                    maxOutgoingMessages < 1000,
+                    "Max outgoing messages must be less than 1000"
+            );
+            Preconditions.checkNotNull(bufferPool, "Buffer pool may not be null");
+            Preconditions.checkNotNull(compression, "Compression may not be null");
+            Preconditions.checkNotNull(heartbeat, "Heartbeat may not be null");
+            Preconditions.checkNotNull(transport, "Transport may not be null");
+            return new ClientConfiguration(this);
+        }
+    }
+}
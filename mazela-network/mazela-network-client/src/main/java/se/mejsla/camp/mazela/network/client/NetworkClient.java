@@ -17,8 +17,11 @@ package se.mejsla.camp.mazela.network.client;
 
 import com.google.common.util.concurrent.Service;
 import java.nio.ByteBuffer;
+import java.util.UUID;
+import se.mejsla.camp.mazela.network.common.BulkPayload;
 import se.mejsla.camp.mazela.network.common.NotConnectedException;
 import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
 
 /**
  * Skeleton network client interface. Exposes the network state and methods to
@@ -46,6 +49,16 @@ public interface NetworkClient extends Service {
      */
     boolean isConnected();
 
+    /**
+     * Check if the server refused the latest connection because it was full
+     * or accepting connections too fast. The client should wait a while
+     * before it connects again. Cleared by the next
+     * {@link #connect(String, int)}.
+     *
+     * @return true if the server was full.
+     */
+    boolean isServerFull();
+
     /**
      * Async send a message to the server.
      *
@@ -55,6 +68,19 @@ public interface NetworkClient extends Service {
      */
     void sendMessage(ByteBuffer data) throws OutgoingQueueFullException, NotConnectedException;
 
+    /**
+     * Ask the server to send state updates as datagrams. The client opens a
+     * datagram channel to the same host and port and announces itself with
+     * the session UUID it got from the server. Updates that arrive out of
+     * order are dropped, only the newest is handed to the consumer. Until the
+     * server has bound the datagram address updates keep coming over the
+     * stream connection.
+     *
+     * @param sessionID The UUID the server assigned to this connection.
+     * @throws NotConnectedException
+     */
+    void enableDatagrams(UUID sessionID) throws NotConnectedException;
+
     /**
      * Get the next incoming message from the in-queue. The buffer is no longer
      * tracked by the client after this call and is considered 'owned' by the
@@ -64,4 +90,34 @@ public interface NetworkClient extends Service {
      */
     public ByteBuffer getNextMessage();
 
+    /**
+     * Get the next bulk transfer that has arrived in full. Bulk transfers are
+     * large payloads the server sends in chunks, next to the messages.
+     *
+     * @return The next complete transfer or null if there is none.
+     */
+    BulkPayload getNextBulkTransfer();
+
+    /**
+     * Get how much of a bulk transfer has arrived. What has arrived is kept
+     * when the connection is lost, so the transfer can be resumed on a new
+     * connection: the game tells the server the offset and the server sends
+     * the rest.
+     *
+     * @param transferId The id the server gave the transfer.
+     * @return The number of bytes received from the start of the transfer,
+     * zero if nothing has arrived or the transfer is complete.
+     */
+    int getBulkReceivedBytes(long transferId);
+
+    /**
+     * Get the round trip time to the server, measured by the heartbeats the
+     * network layer sends.
+     *
+     * @return The smoothed round trip time and jitter,
+     * {@link RoundTripTime#UNKNOWN} if not connected or no heartbeat has been
+     * answered yet.
+     */
+    RoundTripTime getRoundTripTime();
+
 }
@@ -19,12 +19,19 @@ import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.AbstractService;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
 import org.glassfish.grizzly.Buffer;
 import org.glassfish.grizzly.Connection;
 import org.glassfish.grizzly.filterchain.BaseFilter;
@@ -32,16 +39,32 @@ import org.glassfish.grizzly.filterchain.FilterChainBuilder;
 import org.glassfish.grizzly.filterchain.FilterChainContext;
 import org.glassfish.grizzly.filterchain.NextAction;
 import org.glassfish.grizzly.filterchain.TransportFilter;
-import org.glassfish.grizzly.memory.HeapMemoryManager;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
-import org.glassfish.grizzly.streams.AbstractStreamWriter;
+import org.glassfish.grizzly.nio.transport.UDPNIOTransport;
+import org.glassfish.grizzly.nio.transport.UDPNIOTransportBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.client.ClientConfiguration;
 import se.mejsla.camp.mazela.network.client.NetworkClient;
+import se.mejsla.camp.mazela.network.common.BulkPayload;
+import se.mejsla.camp.mazela.network.common.BulkReceiver;
+import se.mejsla.camp.mazela.network.common.CompressionSettings;
+import se.mejsla.camp.mazela.network.common.HeartbeatSettings;
+import se.mejsla.camp.mazela.network.common.MBeans;
 import se.mejsla.camp.mazela.network.common.MessageUtilities;
 import se.mejsla.camp.mazela.network.common.NotConnectedException;
 import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.TransportMetrics;
+import se.mejsla.camp.mazela.network.common.TransportMetricsMXBean;
+import se.mejsla.camp.mazela.network.common.grizzly.BufferPool;
+import se.mejsla.camp.mazela.network.common.grizzly.Datagrams;
+import se.mejsla.camp.mazela.network.common.grizzly.FrameCompression;
+import se.mejsla.camp.mazela.network.common.grizzly.FrameFilter;
+import se.mejsla.camp.mazela.network.common.grizzly.Heartbeat;
+import se.mejsla.camp.mazela.network.common.grizzly.InflateFilter;
+import se.mejsla.camp.mazela.network.common.grizzly.ReleaseBufferCompletionHandler;
 
 /**
  *
@@ -49,63 +72,182 @@ import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
  */
 public class GrizzlyNetworkClient extends AbstractService implements NetworkClient {
 
+    /**
+     * How often the hello datagram is resent until the first update arrives.
+     */
+    private static final long HELLO_INTERVAL_MILLIS = 500;
+    /**
+     * Marks that no datagram has been accepted yet, outside the int range of
+     * the sequence numbers.
+     */
+    private static final long NO_SEQUENCE = Long.MIN_VALUE;
+    /**
+     * Numbers the clients in the MBean names.
+     */
+    private static final AtomicInteger CLIENT_NUMBER = new AtomicInteger();
+
     private final AtomicBoolean connected = new AtomicBoolean(false);
+    private volatile boolean serverFull;
     private final Logger log = LoggerFactory.getLogger(getClass());
     private TCPNIOTransport transport;
-    private Connection connection;
-    private final Thread sendThread;
-    private final CountDownLatch sendThreadRunning = new CountDownLatch(1);
+    private volatile Connection connection;
+    /**
+     * The compression state of the connection, null if compression is not
+     * enabled.
+     */
+    private volatile FrameCompression compression;
+    private final CompressionSettings compressionSettings;
 
     /**
      * Holds messages coming in through the network.
      */
     private final ConcurrentLinkedQueue<ByteBuffer> incomingMessageQueue
             = new ConcurrentLinkedQueue<>();
+    /**
+     * Outlives the connections, so that transfers can be resumed.
+     */
+    private final BulkReceiver bulkReceiver = new BulkReceiver();
+
+    /**
+     * The maximum number of messages handed to the network that have not
+     * been written yet.
+     */
+    private final int maxOutgoingMessages;
+    private final AtomicInteger pendingWrites = new AtomicInteger();
 
     /**
-     * Holds messages that are to be sent on the network.
+     * Resends the datagram hello until the server starts sending updates, and
+     * sends heartbeats while connected.
      */
-    private final ArrayBlockingQueue<Buffer> outgoingMessageQueue;
+    private final ScheduledExecutorService scheduledExecutor;
+    private ScheduledFuture<?> helloTask;
+    private ScheduledFuture<?> heartbeatTask;
+    private final HeartbeatSettings heartbeatSettings;
 
-    private final AtomicBoolean shutdown = new AtomicBoolean(false);
     private final AtomicBoolean terminating = new AtomicBoolean(false);
+    private final BufferPool bufferPool;
+
+    private volatile String host;
+    private volatile int port;
+    private UDPNIOTransport datagramTransport;
+    private volatile Connection datagramConnection;
+    private volatile UUID datagramSessionID;
+    /**
+     * Set when the first update datagram arrives, the server has then bound
+     * our address and the hello does not have to be resent.
+     */
+    private final AtomicBoolean datagramReceived = new AtomicBoolean(false);
+    private final AtomicLong latestDatagramSequence = new AtomicLong(NO_SEQUENCE);
+
+    /**
+     * The client has one connection at a time, its counters cover all
+     * connections the client has made. Published as an MBean when JMX is
+     * enabled.
+     */
+    private final TransportMetrics metrics;
+    private final ObjectName mbeanName;
 
     public GrizzlyNetworkClient(final int maxOutgoingMessages, final ThreadFactory threadFactory) {
-        Preconditions.checkArgument(
-                maxOutgoingMessages > 0,
-                "Max outgoing messages must be a positive integer"
+        this(maxOutgoingMessages, threadFactory, BufferPool.unpooled());
+    }
+
+    /**
+     * @param maxOutgoingMessages The maximum number of outgoing messages that
+     * have not been written to the socket yet. Must be larger than 0 and less
+     * than 1000.
+     * @param threadFactory The thread factory to use to produce internal
+     * executor threads. May not be null.
+     * @param bufferPool The memory outgoing messages are allocated from. May
+     * not be null.
+     */
+    public GrizzlyNetworkClient(
+            final int maxOutgoingMessages,
+            final ThreadFactory threadFactory,
+            final BufferPool bufferPool) {
+        this(maxOutgoingMessages, threadFactory, bufferPool, CompressionSettings.disabled());
+    }
+
+    /**
+     * @param maxOutgoingMessages The maximum number of outgoing messages that
+     * have not been written to the socket yet. Must be larger than 0 and less
+     * than 1000.
+     * @param threadFactory The thread factory to use to produce internal
+     * executor threads. May not be null.
+     * @param bufferPool The memory outgoing messages are allocated from. May
+     * not be null.
+     * @param compressionSettings How messages are compressed, only used if the
+     * server has compression enabled with the same dictionary. May not be
+     * null.
+     */
+    public GrizzlyNetworkClient(
+            final int maxOutgoingMessages,
+            final ThreadFactory threadFactory,
+            final BufferPool bufferPool,
+            final CompressionSettings compressionSettings) {
+        this(
+                maxOutgoingMessages,
+                threadFactory,
+                bufferPool,
+                compressionSettings,
+                HeartbeatSettings.defaults()
         );
-        Preconditions.checkArgument(
-                maxOutgoingMessages < 1000,
-                "Max outgoing messages must be less than 1000"
+    }
+
+    /**
+     * @param maxOutgoingMessages The maximum number of outgoing messages that
+     * have not been written to the socket yet. Must be larger than 0 and less
+     * than 1000.
+     * @param threadFactory The thread factory to use to produce internal
+     * executor threads. May not be null.
+     * @param bufferPool The memory outgoing messages are allocated from. May
+     * not be null.
+     * @param compressionSettings How messages are compressed, only used if the
+     * server has compression enabled with the same dictionary. May not be
+     * null.
+     * @param heartbeatSettings How often the server is pinged and how long it
+     * may be silent before the connection is closed. May not be null.
+     */
+    public GrizzlyNetworkClient(
+            final int maxOutgoingMessages,
+            final ThreadFactory threadFactory,
+            final BufferPool bufferPool,
+            final CompressionSettings compressionSettings,
+            final HeartbeatSettings heartbeatSettings) {
+        this(
+                ClientConfiguration.builder()
+                        .setMaxOutgoingMessages(maxOutgoingMessages)
+                        .setBufferPool(bufferPool)
+                        .setCompression(compressionSettings)
+                        .setHeartbeat(heartbeatSettings)
+                        .build(),
+                threadFactory
         );
+    }
 
-        this.outgoingMessageQueue
-                = new ArrayBlockingQueue<>(maxOutgoingMessages, false);
-
-        sendThread = threadFactory.newThread(() -> {
-            while (!this.shutdown.get()) {
-                try {
-                    Buffer messageToSend = this.outgoingMessageQueue
-                            .poll(30, TimeUnit.MILLISECONDS);
-                    while (messageToSend != null) {
-                        this.connection
-                                .write(messageToSend)
-                                .addCompletionHandler(
-                                        new AbstractStreamWriter.DisposeBufferCompletionHandler(messageToSend)
-                                );
-                        messageToSend = this.outgoingMessageQueue.poll();
-                    }
-                } catch (InterruptedException ex) {
-                    log.error("Thread waiting for outgoing messages was interrupted, shutting down network service", ex);
-                    this.shutdown.set(true);
-                    // Preserve interrupt flag
-                    Thread.currentThread().interrupt();
-                }
-            }
-            sendThreadRunning.countDown();
-            terminateService();
-        });
+    /**
+     * @param configuration The client settings, the transport name is not
+     * used. May not be null.
+     * @param threadFactory The thread factory to use to produce internal
+     * executor threads. May not be null.
+     */
+    public GrizzlyNetworkClient(
+            final ClientConfiguration configuration,
+            final ThreadFactory threadFactory) {
+        Preconditions.checkNotNull(configuration);
+        this.maxOutgoingMessages = configuration.getMaxOutgoingMessages();
+        this.bufferPool = configuration.getBufferPool();
+        this.compressionSettings = configuration.getCompression();
+        this.heartbeatSettings = configuration.getHeartbeat();
+        this.metrics = new TransportMetrics(
+                this.pendingWrites::get,
+                this.incomingMessageQueue::size
+        );
+        this.mbeanName = configuration.isJmxEnabled()
+                ? MBeans.name("type=Client,name=client-" + CLIENT_NUMBER.incrementAndGet())
+                : null;
+        this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(
+                Preconditions.checkNotNull(threadFactory)
+        );
     }
 
     @Override
@@ -114,16 +256,25 @@ public class GrizzlyNetworkClient extends AbstractService implements NetworkClie
 
         FilterChainBuilder clientFilterChainBuilder = FilterChainBuilder.stateless();
         clientFilterChainBuilder.add(new TransportFilter());
+        clientFilterChainBuilder.add(new FrameFilter(this.compressionSettings));
+        clientFilterChainBuilder.add(new InflateFilter());
         clientFilterChainBuilder.add(new ClientFilter());
         transport = TCPNIOTransportBuilder.newInstance().setTcpNoDelay(true).build();
         transport.setProcessor(clientFilterChainBuilder.build());
+
+        FilterChainBuilder datagramFilterChainBuilder = FilterChainBuilder.stateless();
+        datagramFilterChainBuilder.add(new TransportFilter());
+        datagramFilterChainBuilder.add(new DatagramClientFilter());
+        datagramTransport = UDPNIOTransportBuilder.newInstance().build();
+        datagramTransport.setProcessor(datagramFilterChainBuilder.build());
         try {
             transport.start();
-            sendThread.start();
+            datagramTransport.start();
+            MBeans.register(this.metrics, this.mbeanName);
             notifyStarted();
         } catch (IOException ex) {
             log.error("unable to start TCP client", ex);
-            this.shutdown.set(true);
+            this.scheduledExecutor.shutdown();
             notifyFailed(ex);
         }
     }
@@ -131,7 +282,6 @@ public class GrizzlyNetworkClient extends AbstractService implements NetworkClie
     @Override
     protected void doStop() {
         log.debug("Stopping network client");
-        this.shutdown.set(true);
         terminateService();
         notifyStopped();
     }
@@ -140,15 +290,11 @@ public class GrizzlyNetworkClient extends AbstractService implements NetworkClie
         if (!this.terminating.get()) {
             this.terminating.set(true);
 
-            try {
-                log.debug("Waiting for send thread to terminate");
-                this.sendThreadRunning.await(2, TimeUnit.SECONDS);
-            } catch (InterruptedException ex) {
-                log.error("Send thread did not terminate on time.", ex);
-            }
-
+            this.scheduledExecutor.shutdownNow();
             log.debug("Shutting down grizzly transport");
             this.transport.shutdown(2, TimeUnit.SECONDS);
+            this.datagramTransport.shutdown(2, TimeUnit.SECONDS);
+            MBeans.unregister(this.mbeanName);
             log.info("Network transport terminated");
         }
     }
@@ -158,42 +304,257 @@ public class GrizzlyNetworkClient extends AbstractService implements NetworkClie
         return this.incomingMessageQueue.poll();
     }
 
+    @Override
+    public BulkPayload getNextBulkTransfer() {
+        return this.bulkReceiver.poll();
+    }
+
+    @Override
+    public int getBulkReceivedBytes(final long transferId) {
+        return this.bulkReceiver.getReceivedBytes(transferId);
+    }
+
     @Override
     public void sendMessage(ByteBuffer data)
             throws OutgoingQueueFullException, NotConnectedException {
-        if (!this.isConnected()) {
+        final Connection currentConnection = this.connection;
+        if (!this.isConnected() || currentConnection == null) {
             throw new NotConnectedException("Client is not connected");
         }
-        final Buffer grizzlyBuffer
-                = HeapMemoryManager.DEFAULT_MEMORY_MANAGER.allocate(data.remaining() + 2 * Integer.BYTES);
-        grizzlyBuffer.putInt(MessageUtilities.getMagicMarker());
-        grizzlyBuffer.put(data);
-        grizzlyBuffer.flip();
-        if (!this.outgoingMessageQueue.offer(grizzlyBuffer)) {
+        if (this.pendingWrites.incrementAndGet() > this.maxOutgoingMessages) {
+            this.pendingWrites.decrementAndGet();
+            this.metrics.queueFull();
             log.error("Unable to enqueue outgoing message, queue is full.");
             throw new OutgoingQueueFullException("Queue is full");
         }
+        final FrameCompression currentCompression = this.compression;
+        if (currentCompression != null
+                && currentCompression.shouldCompress(data.remaining())) {
+            // Compressed frames must be written in the order they were
+            // compressed
+            synchronized (currentCompression) {
+                write(currentConnection, currentCompression.compress(
+                        this.bufferPool.getMemoryManager(),
+                        data
+                ));
+            }
+        } else {
+            write(currentConnection, FrameFilter.encode(
+                    this.bufferPool.getMemoryManager(),
+                    data
+            ));
+        }
+    }
+
+    private void write(final Connection currentConnection, final Buffer frame) {
+        this.metrics.messagesOut(1, frame.remaining());
+        final long writeStart = System.nanoTime();
+        // Written from the calling thread, grizzly only queues the message if
+        // the socket can not take it right away
+        currentConnection.write(
+                frame,
+                new ReleaseBufferCompletionHandler(frame, () -> {
+                    this.pendingWrites.decrementAndGet();
+                    this.metrics.writeDone(System.nanoTime() - writeStart);
+                })
+        );
+    }
+
+    /**
+     * @return The traffic counters of the client.
+     */
+    public TransportMetricsMXBean getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return The compression statistics of the current connection, null if
+     * not connected or compression is not enabled.
+     */
+    public FrameCompression.Statistics getCompressionStatistics() {
+        final FrameCompression currentCompression = this.compression;
+        return currentCompression != null ? currentCompression.getStatistics() : null;
+    }
+
+    @Override
+    public RoundTripTime getRoundTripTime() {
+        final Connection currentConnection = this.connection;
+        final Heartbeat heartbeat
+                = currentConnection != null ? Heartbeat.get(currentConnection) : null;
+        return heartbeat != null ? heartbeat.getRoundTripTime() : RoundTripTime.UNKNOWN;
+    }
+
+    /**
+     * @return The pool outgoing messages are allocated from.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
     }
 
     @Override
     public void connect(final String host, final int port) {
         log.debug("Connecting to {}:{}", host, port);
+        this.host = host;
+        this.port = port;
+        this.serverFull = false;
         this.transport.connect(host, port);
     }
 
+    @Override
+    public void enableDatagrams(final UUID sessionID) throws NotConnectedException {
+        Preconditions.checkNotNull(sessionID);
+        if (!this.isConnected()) {
+            throw new NotConnectedException("Client is not connected");
+        }
+        closeDatagramConnection();
+        try {
+            this.datagramConnection = this.datagramTransport
+                    .connect(this.host, this.port)
+                    .get(2, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IOException | ExecutionException | TimeoutException ex) {
+            log.warn("Unable to open datagram channel, updates stay on the stream connection", ex);
+            return;
+        }
+        this.datagramSessionID = sessionID;
+        log.debug("Datagram channel open for session {}", sessionID);
+        synchronized (this.scheduledExecutor) {
+            this.helloTask = this.scheduledExecutor.scheduleWithFixedDelay(
+                    this::sendHello,
+                    0,
+                    HELLO_INTERVAL_MILLIS,
+                    TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    /**
+     * Send the hello datagram, repeated until the server has started sending
+     * updates.
+     */
+    private void sendHello() {
+        final Connection udp = this.datagramConnection;
+        final UUID sessionID = this.datagramSessionID;
+        if (udp == null || sessionID == null || this.datagramReceived.get()) {
+            cancelHello();
+            return;
+        }
+        final Buffer hello
+                = Datagrams.encodeHello(this.bufferPool.getMemoryManager(), sessionID);
+        udp.write(hello, new ReleaseBufferCompletionHandler(hello));
+    }
+
+    private void cancelHello() {
+        synchronized (this.scheduledExecutor) {
+            if (this.helloTask != null) {
+                this.helloTask.cancel(false);
+                this.helloTask = null;
+            }
+        }
+    }
+
+    private void startHeartbeat() {
+        if (!this.heartbeatSettings.isEnabled()) {
+            return;
+        }
+        synchronized (this.scheduledExecutor) {
+            if (this.heartbeatTask == null && !this.scheduledExecutor.isShutdown()) {
+                this.heartbeatTask = this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::heartbeat,
+                        this.heartbeatSettings.getIntervalMillis(),
+                        this.heartbeatSettings.getIntervalMillis(),
+                        TimeUnit.MILLISECONDS
+                );
+            }
+        }
+    }
+
+    /**
+     * Ping the server, or close the connection if the server has been silent
+     * for longer than the heartbeat timeout.
+     */
+    private void heartbeat() {
+        final Connection currentConnection = this.connection;
+        final Heartbeat heartbeat
+                = currentConnection != null ? Heartbeat.get(currentConnection) : null;
+        if (heartbeat == null) {
+            return;
+        }
+        if (heartbeat.getSilentNanos(System.nanoTime())
+                > this.heartbeatSettings.getTimeoutNanos()) {
+            log.info("No heartbeat from the server, closing connection");
+            currentConnection.closeSilently();
+        } else {
+            heartbeat.ping(currentConnection);
+        }
+    }
+
+    private void cancelHeartbeat() {
+        synchronized (this.scheduledExecutor) {
+            if (this.heartbeatTask != null) {
+                this.heartbeatTask.cancel(false);
+                this.heartbeatTask = null;
+            }
+        }
+    }
+
+    private void closeDatagramConnection() {
+        cancelHello();
+        this.datagramSessionID = null;
+        final Connection udp = this.datagramConnection;
+        this.datagramConnection = null;
+        if (udp != null) {
+            udp.closeSilently();
+        }
+        this.datagramReceived.set(false);
+        this.latestDatagramSequence.set(NO_SEQUENCE);
+    }
+
+    /**
+     * Remember the sequence number if it is newer than anything seen before.
+     *
+     * @return false if the datagram is older than the latest one and should be
+     * dropped.
+     */
+    private boolean acceptSequence(final int sequence) {
+        while (true) {
+            final long latest = this.latestDatagramSequence.get();
+            if (latest != NO_SEQUENCE
+                    && !MessageUtilities.isNewerSequence(sequence, (int) latest)) {
+                return false;
+            }
+            if (this.latestDatagramSequence.compareAndSet(latest, sequence)) {
+                return true;
+            }
+        }
+    }
+
     @Override
     public boolean isConnected() {
         return this.connected.get();
     }
 
+    @Override
+    public boolean isServerFull() {
+        return this.serverFull;
+    }
+
     class ClientFilter extends BaseFilter {
 
         @Override
         public NextAction handleClose(final FilterChainContext ctx)
                 throws IOException {
             log.debug("Connection close");
+            if (FrameFilter.isServerFull(ctx.getConnection())) {
+                serverFull = true;
+            }
             connection = null;
+            compression = null;
             connected.set(false);
+            cancelHeartbeat();
+            closeDatagramConnection();
             return ctx.getInvokeAction();
         }
 
@@ -202,35 +563,54 @@ public class GrizzlyNetworkClient extends AbstractService implements NetworkClie
                 throws IOException {
             log.debug("Connection established");
             connection = ctx.getConnection();
+            compression = FrameCompression.get(connection);
+            FrameFilter.setBulkReceiver(connection, bulkReceiver);
             connected.set(true);
+            startHeartbeat();
             return ctx.getInvokeAction();
         }
 
         @Override
         public NextAction handleRead(final FilterChainContext ctx)
                 throws IOException {
+            // The frame filter has stripped the frame header. Grizzly reads
+            // into a new buffer every time so the consumer can own a view of
+            // it instead of a copy.
             final Buffer buffer = ctx.getMessage();
-            if (buffer.remaining() > 4) {
-                final int magicMarker = buffer.getInt();
-                if (MessageUtilities.isMagicMarker(magicMarker)) {
-                    final int remaining = buffer.remaining();
-                    final ByteBuffer messageData = ByteBuffer.allocate(remaining);
-                    buffer.get(messageData);
-                    messageData.flip();
-                    incomingMessageQueue.offer(messageData);
-                } else {
-                    // Stop processing malformed message
-                    log.info("Message is not prefixed with magic marker");
-                    return ctx.getStopAction();
-                }
-            } else {
-                // Stop processing malformed message
-                log.info("Buffer remaining to small to contain the magic marker and message type");
+            metrics.messageIn(buffer.remaining());
+            incomingMessageQueue.offer(buffer.toByteBuffer().slice());
+            return ctx.getInvokeAction();
+        }
+    }
 
+    class DatagramClientFilter extends BaseFilter {
+
+        @Override
+        public NextAction handleRead(final FilterChainContext ctx)
+                throws IOException {
+            final Buffer datagram = ctx.getMessage();
+            if (datagram.remaining() < MessageUtilities.DATAGRAM_HEADER_BYTES
+                    || !MessageUtilities.isMagicMarker(datagram.getInt())) {
+                log.debug("Ignoring datagram without magic marker");
                 return ctx.getStopAction();
             }
-
-            return ctx.getInvokeAction();
+            final int sequence = datagram.getInt();
+            if (datagramReceived.compareAndSet(false, true)) {
+                cancelHello();
+            }
+            if (!acceptSequence(sequence)) {
+                metrics.droppedIncoming();
+                log.trace("Dropping stale datagram {}", sequence);
+                return ctx.getStopAction();
+            }
+            // Datagrams are read into a buffer of the maximum datagram size,
+            // copy the payload rather than holding on to all of it
+            metrics.messageIn(datagram.remaining());
+            final ByteBuffer messageData = ByteBuffer.allocate(datagram.remaining());
+            datagram.get(messageData);
+            messageData.flip();
+            incomingMessageQueue.offer(messageData);
+            return ctx.getStopAction();
         }
     }
 
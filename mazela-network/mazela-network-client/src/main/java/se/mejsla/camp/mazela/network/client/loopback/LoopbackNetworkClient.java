@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.client.loopback;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AbstractService;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.client.NetworkClient;
+import se.mejsla.camp.mazela.network.common.BulkPayload;
+import se.mejsla.camp.mazela.network.common.BulkReceiver;
+import se.mejsla.camp.mazela.network.common.NotConnectedException;
+import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.loopback.LoopbackNetwork;
+import se.mejsla.camp.mazela.network.common.loopback.LoopbackPeer;
+
+/**
+ * A network client that connects to a
+ * {@code se.mejsla.camp.mazela.network.server.loopback.LoopbackNetworkServer}
+ * in the same JVM. The host is ignored, only the port is used. Connecting
+ * completes before {@link #connect(String, int)} returns.
+ * <p>
+ * Messages are copied and handed to the server's incoming queue on the
+ * calling thread, so nothing is ever pending and the outgoing queue is never
+ * full. Datagrams are not simulated, updates keep coming over the connection.
+ */
+public class LoopbackNetworkClient extends AbstractService implements NetworkClient {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Holds messages coming in from the server.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> incomingMessageQueue
+            = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The current connection, null if not connected.
+     */
+    private final AtomicReference<Connection> connection = new AtomicReference<>();
+    private volatile boolean serverFull;
+    /**
+     * Outlives the connections, so that transfers can be resumed.
+     */
+    private final BulkReceiver bulkReceiver = new BulkReceiver();
+
+    @Override
+    protected void doStart() {
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        disconnect();
+        notifyStopped();
+    }
+
+    @Override
+    public void connect(final String host, final int port) {
+        Preconditions.checkState(isRunning(), "Client is not running");
+        disconnect();
+        log.debug("Connecting to loopback port {}", port);
+        this.serverFull = false;
+        final Connection newConnection = new Connection();
+        final LoopbackPeer server = LoopbackNetwork.connect(port, newConnection);
+        if (server == null) {
+            if (!this.serverFull) {
+                log.warn("Nothing listens on loopback port {}", port);
+            }
+            return;
+        }
+        newConnection.server = server;
+        this.connection.set(newConnection);
+    }
+
+    private void disconnect() {
+        final Connection current = this.connection.getAndSet(null);
+        if (current != null && current.close()) {
+            current.server.disconnected();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return this.connection.get() != null;
+    }
+
+    @Override
+    public boolean isServerFull() {
+        return this.serverFull;
+    }
+
+    @Override
+    public void sendMessage(final ByteBuffer data)
+            throws OutgoingQueueFullException, NotConnectedException {
+        final Connection current = this.connection.get();
+        if (current == null) {
+            throw new NotConnectedException("Client is not connected");
+        }
+        current.server.receive(LoopbackNetwork.copy(data));
+    }
+
+    /**
+     * Does nothing, there are no datagrams on the loopback network.
+     */
+    @Override
+    public void enableDatagrams(final UUID sessionID) throws NotConnectedException {
+        Preconditions.checkNotNull(sessionID);
+        if (!isConnected()) {
+            throw new NotConnectedException("Client is not connected");
+        }
+    }
+
+    @Override
+    public ByteBuffer getNextMessage() {
+        return this.incomingMessageQueue.poll();
+    }
+
+    @Override
+    public BulkPayload getNextBulkTransfer() {
+        return this.bulkReceiver.poll();
+    }
+
+    @Override
+    public int getBulkReceivedBytes(final long transferId) {
+        return this.bulkReceiver.getReceivedBytes(transferId);
+    }
+
+    /**
+     * @return {@link RoundTripTime#UNKNOWN}, the loopback network has no
+     * heartbeats.
+     */
+    @Override
+    public RoundTripTime getRoundTripTime() {
+        return RoundTripTime.UNKNOWN;
+    }
+
+    /**
+     * The client end of one connection. Messages that arrive after the
+     * connection was closed are ignored.
+     */
+    private class Connection implements LoopbackPeer {
+
+        private final AtomicBoolean open = new AtomicBoolean(true);
+        private volatile LoopbackPeer server;
+
+        /**
+         * @return false if the connection was already closed.
+         */
+        boolean close() {
+            return this.open.compareAndSet(true, false);
+        }
+
+        @Override
+        public void receive(final ByteBuffer payload) {
+            if (this.open.get()) {
+                incomingMessageQueue.offer(payload);
+            }
+        }
+
+        @Override
+        public void disconnected() {
+            if (close()) {
+                log.debug("Connection close");
+                connection.compareAndSet(this, null);
+            }
+        }
+
+        @Override
+        public void serverFull() {
+            log.info("Server is full");
+            close();
+            serverFull = true;
+        }
+
+        @Override
+        public void bulkChunk(final ByteBuffer body) {
+            if (this.open.get() && !bulkReceiver.chunk(body)) {
+                log.debug("Ignoring malformed bulk chunk");
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.client.nio;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AbstractService;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.client.ClientConfiguration;
+import se.mejsla.camp.mazela.network.client.NetworkClient;
+import se.mejsla.camp.mazela.network.common.BulkPayload;
+import se.mejsla.camp.mazela.network.common.BulkReceiver;
+import se.mejsla.camp.mazela.network.common.HeartbeatSettings;
+import se.mejsla.camp.mazela.network.common.NotConnectedException;
+import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.nio.NioBufferPool;
+import se.mejsla.camp.mazela.network.common.nio.NioChannel;
+import se.mejsla.camp.mazela.network.common.nio.NioFrame;
+import se.mejsla.camp.mazela.network.common.nio.NioSelectorLoop;
+
+/**
+ * A network client on plain {@code java.nio}, the counterpart of the NIO
+ * server. It speaks the same wire protocol as the grizzly client and can
+ * connect to either server. Messages are framed in pooled buffers and written
+ * from the calling thread, reads happen on a single selector thread.
+ * <p>
+ * Heartbeats are sent as with the grizzly client. Compression is never
+ * offered and datagrams are not supported, updates keep coming over the
+ * stream connection.
+ */
+public class NioNetworkClient extends AbstractService implements NetworkClient {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final ThreadFactory threadFactory;
+    private final NioBufferPool bufferPool = new NioBufferPool();
+    private final HeartbeatSettings heartbeatSettings;
+
+    /**
+     * Holds messages coming in through the network.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> incomingMessageQueue
+            = new ConcurrentLinkedQueue<>();
+    /**
+     * Outlives the connections, so that transfers can be resumed.
+     */
+    private final BulkReceiver bulkReceiver = new BulkReceiver();
+
+    /**
+     * The maximum number of messages handed to the network that have not
+     * been written yet.
+     */
+    private final int maxOutgoingMessages;
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    /**
+     * The established connection, null if not connected.
+     */
+    private final AtomicReference<NioChannel> connection = new AtomicReference<>();
+    private volatile boolean serverFull;
+
+    /**
+     * Sends heartbeats while connected.
+     */
+    private final ScheduledExecutorService scheduledExecutor;
+    private ScheduledFuture<?> heartbeatTask;
+    private NioSelectorLoop loop;
+
+    /**
+     * @param configuration The client settings, the buffer pool and
+     * compression are not used. May not be null.
+     * @param threadFactory Creates the selector and heartbeat threads. May not
+     * be null.
+     */
+    public NioNetworkClient(
+            final ClientConfiguration configuration,
+            final ThreadFactory threadFactory) {
+        Preconditions.checkNotNull(configuration);
+        this.threadFactory = Preconditions.checkNotNull(threadFactory);
+        this.maxOutgoingMessages = configuration.getMaxOutgoingMessages();
+        this.heartbeatSettings = configuration.getHeartbeat();
+        this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    @Override
+    protected void doStart() {
+        log.debug("Starting NIO network client");
+        try {
+            this.loop = new NioSelectorLoop(this.threadFactory);
+            this.loop.start();
+            notifyStarted();
+        } catch (IOException ex) {
+            log.error("unable to start NIO client", ex);
+            this.scheduledExecutor.shutdown();
+            notifyFailed(ex);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        log.debug("Stopping NIO network client");
+        this.scheduledExecutor.shutdownNow();
+        final NioChannel current = this.connection.get();
+        if (current != null) {
+            current.close();
+        }
+        this.loop.stop();
+        notifyStopped();
+        log.info("Network transport terminated");
+    }
+
+    @Override
+    public void connect(final String host, final int port) {
+        Preconditions.checkState(isRunning(), "Client is not running");
+        log.debug("Connecting to {}:{}", host, port);
+        final NioChannel previous = this.connection.get();
+        if (previous != null) {
+            previous.close();
+        }
+        this.serverFull = false;
+        try {
+            final SocketChannel socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
+            socketChannel.socket().setTcpNoDelay(true);
+            socketChannel.connect(new InetSocketAddress(host, port));
+            final NioChannel channel = new NioChannel(
+                    this.loop,
+                    socketChannel,
+                    this.bufferPool,
+                    new ClientListener()
+            );
+            channel.setBulkReceiver(this.bulkReceiver);
+            this.loop.execute(() -> {
+                try {
+                    channel.open();
+                } catch (IOException ex) {
+                    channel.failed(ex);
+                }
+            });
+        } catch (IOException ex) {
+            log.warn("Unable to connect to {}:{}", host, port, ex);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return this.connection.get() != null;
+    }
+
+    @Override
+    public boolean isServerFull() {
+        return this.serverFull;
+    }
+
+    @Override
+    public void sendMessage(final ByteBuffer data)
+            throws OutgoingQueueFullException, NotConnectedException {
+        final NioChannel current = this.connection.get();
+        if (current == null) {
+            throw new NotConnectedException("Client is not connected");
+        }
+        if (this.pendingWrites.incrementAndGet() > this.maxOutgoingMessages) {
+            this.pendingWrites.decrementAndGet();
+            log.error("Unable to enqueue outgoing message, queue is full.");
+            throw new OutgoingQueueFullException("Queue is full");
+        }
+        final NioFrame frame;
+        try {
+            frame = NioFrame.encode(this.bufferPool, data)
+                    .whenDone(this.pendingWrites::decrementAndGet);
+        } catch (IllegalArgumentException ex) {
+            this.pendingWrites.decrementAndGet();
+            throw ex;
+        }
+        current.write(Collections.singletonList(frame));
+    }
+
+    /**
+     * Does nothing, the NIO transport has no datagrams.
+     */
+    @Override
+    public void enableDatagrams(final UUID sessionID) throws NotConnectedException {
+        Preconditions.checkNotNull(sessionID);
+        if (!isConnected()) {
+            throw new NotConnectedException("Client is not connected");
+        }
+    }
+
+    @Override
+    public ByteBuffer getNextMessage() {
+        return this.incomingMessageQueue.poll();
+    }
+
+    @Override
+    public BulkPayload getNextBulkTransfer() {
+        return this.bulkReceiver.poll();
+    }
+
+    @Override
+    public int getBulkReceivedBytes(final long transferId) {
+        return this.bulkReceiver.getReceivedBytes(transferId);
+    }
+
+    @Override
+    public RoundTripTime getRoundTripTime() {
+        final NioChannel current = this.connection.get();
+        return current != null ? current.getRoundTripTime() : RoundTripTime.UNKNOWN;
+    }
+
+    /**
+     * @return The buffers frames are read into and written from.
+     */
+    public NioBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    private void startHeartbeat() {
+        if (!this.heartbeatSettings.isEnabled()) {
+            return;
+        }
+        synchronized (this.scheduledExecutor) {
+            if (this.heartbeatTask == null && !this.scheduledExecutor.isShutdown()) {
+                this.heartbeatTask = this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::heartbeat,
+                        this.heartbeatSettings.getIntervalMillis(),
+                        this.heartbeatSettings.getIntervalMillis(),
+                        TimeUnit.MILLISECONDS
+                );
+            }
+        }
+    }
+
+    /**
+     * Ping the server, or close the connection if the server has been silent
+     * for longer than the heartbeat timeout.
+     */
+    private void heartbeat() {
+        final NioChannel current = this.connection.get();
+        if (current == null) {
+            return;
+        }
+        if (current.getSilentNanos(System.nanoTime())
+                > this.heartbeatSettings.getTimeoutNanos()) {
+            log.info("No heartbeat from the server, closing connection");
+            current.close();
+        } else {
+            current.ping();
+        }
+    }
+
+    private void cancelHeartbeat() {
+        synchronized (this.scheduledExecutor) {
+            if (this.heartbeatTask != null) {
+                this.heartbeatTask.cancel(false);
+                this.heartbeatTask = null;
+            }
+        }
+    }
+
+    private class ClientListener implements NioChannel.Listener {
+
+        @Override
+        public void connected(final NioChannel channel) {
+            log.debug("Connection established");
+            connection.set(channel);
+            startHeartbeat();
+        }
+
+        @Override
+        public void received(final NioChannel channel, final ByteBuffer payload) {
+            // The payload is a view of the read buffer, the consumer owns a
+            // copy
+            final ByteBuffer messageData = ByteBuffer.allocate(payload.remaining());
+            messageData.put(payload);
+            messageData.flip();
+            incomingMessageQueue.offer(messageData);
+        }
+
+        @Override
+        public void closed(final NioChannel channel) {
+            log.debug("Connection close");
+            if (channel.isServerFull()) {
+                serverFull = true;
+            }
+            if (connection.compareAndSet(channel, null)) {
+                cancelHeartbeat();
+            }
+        }
+    }
+}
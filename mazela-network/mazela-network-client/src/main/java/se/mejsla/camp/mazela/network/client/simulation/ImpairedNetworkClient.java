@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.client.simulation;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AbstractService;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.client.NetworkClient;
+import se.mejsla.camp.mazela.network.common.BulkPayload;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.NetworkingException;
+import se.mejsla.camp.mazela.network.common.NotConnectedException;
+import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.loopback.LoopbackNetwork;
+import se.mejsla.camp.mazela.network.common.simulation.NetworkConditions;
+import se.mejsla.camp.mazela.network.common.simulation.SimulatedLink;
+import se.mejsla.camp.mazela.network.common.simulation.TimerWheel;
+
+/**
+ * Wraps a network client and makes its connection worse, see
+ * {@link NetworkConditions}. The client side counterpart of
+ * {@code se.mejsla.camp.mazela.network.server.simulation.ImpairedNetworkServer},
+ * use one of them for a connection, not both, or it is impaired twice.
+ * <p>
+ * The client can not tell datagrams from stream messages once they have been
+ * received, so everything is simulated as reliable: nothing is lost but a
+ * lost message is resent after a retransmission timeout.
+ */
+public class ImpairedNetworkClient extends AbstractService implements NetworkClient {
+
+    private static final long TICK_MILLIS = 1;
+    private static final int WHEEL_SIZE = 4096;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final NetworkClient delegate;
+    private final NetworkConditions conditions;
+    private final TimerWheel timerWheel;
+    private final ConcurrentLinkedQueue<ByteBuffer> incomingMessageQueue
+            = new ConcurrentLinkedQueue<>();
+    /**
+     * Every connection gets new links, messages in flight on an old
+     * connection are dropped.
+     */
+    private final AtomicLong connectionNumber = new AtomicLong();
+    private volatile Links links;
+    private final LongAdder droppedMessages = new LongAdder();
+
+    /**
+     * @param delegate The client to wrap, started and stopped with this
+     * client. May not be null.
+     * @param conditions The conditions of the connection. May not be null.
+     * @param threadFactory Creates the timer wheel thread. May not be null.
+     */
+    public ImpairedNetworkClient(
+            final NetworkClient delegate,
+            final NetworkConditions conditions,
+            final ThreadFactory threadFactory) {
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.conditions = Preconditions.checkNotNull(conditions);
+        this.timerWheel = new TimerWheel(
+                Preconditions.checkNotNull(threadFactory),
+                TICK_MILLIS,
+                WHEEL_SIZE,
+                this::afterTick
+        );
+        this.links = new Links(this.conditions, 0);
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            if (!this.delegate.isRunning()) {
+                this.delegate.startAsync().awaitRunning();
+            }
+            this.timerWheel.start();
+            notifyStarted();
+        } catch (IllegalStateException ex) {
+            notifyFailed(ex);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        this.timerWheel.stop();
+        this.delegate.stopAsync().awaitTerminated();
+        notifyStopped();
+    }
+
+    @Override
+    public void connect(final String host, final int port) {
+        this.links = new Links(this.conditions, this.connectionNumber.incrementAndGet());
+        this.delegate.connect(host, port);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return this.delegate.isConnected();
+    }
+
+    @Override
+    public boolean isServerFull() {
+        return this.delegate.isServerFull();
+    }
+
+    @Override
+    public void sendMessage(final ByteBuffer data)
+            throws OutgoingQueueFullException, NotConnectedException {
+        if (!this.delegate.isConnected()) {
+            throw new NotConnectedException("Client is not connected");
+        }
+        final ByteBuffer copy = LoopbackNetwork.copy(data);
+        final Links current = this.links;
+        final long now = System.nanoTime();
+        final long arrival = current.outgoing.arrival(
+                now,
+                MessageUtilities.FRAME_HEADER_BYTES + copy.remaining(),
+                true
+        );
+        this.timerWheel.schedule(arrival - now, () -> {
+            if (current != this.links) {
+                return;
+            }
+            try {
+                this.delegate.sendMessage(copy);
+            } catch (NetworkingException ex) {
+                this.droppedMessages.increment();
+                log.debug("Simulated message dropped: {}", ex.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void enableDatagrams(final UUID sessionID) throws NotConnectedException {
+        this.delegate.enableDatagrams(sessionID);
+    }
+
+    @Override
+    public ByteBuffer getNextMessage() {
+        return this.incomingMessageQueue.poll();
+    }
+
+    /**
+     * Bulk transfers are taken straight from the wrapped client, they are
+     * not delayed.
+     */
+    @Override
+    public BulkPayload getNextBulkTransfer() {
+        return this.delegate.getNextBulkTransfer();
+    }
+
+    @Override
+    public int getBulkReceivedBytes(final long transferId) {
+        return this.delegate.getBulkReceivedBytes(transferId);
+    }
+
+    /**
+     * Runs on the wheel thread after every tick, starts the trip of the
+     * messages that came in since the last tick.
+     */
+    private void afterTick() {
+        final Links current = this.links;
+        final long now = System.nanoTime();
+        ByteBuffer message;
+        while ((message = this.delegate.getNextMessage()) != null) {
+            final ByteBuffer received = message;
+            final long arrival = current.incoming.arrival(
+                    now,
+                    MessageUtilities.FRAME_HEADER_BYTES + received.remaining(),
+                    true
+            );
+            this.timerWheel.schedule(arrival - now, () -> {
+                if (current == this.links) {
+                    this.incomingMessageQueue.offer(received);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The number of messages the wrapped client would not take when
+     * they arrived.
+     */
+    public long getDroppedMessageCount() {
+        return this.droppedMessages.sum();
+    }
+
+    /**
+     * @return The measured round trip time plus the mean simulated delay
+     * both ways, the heartbeats run below the simulation.
+     */
+    @Override
+    public RoundTripTime getRoundTripTime() {
+        return this.conditions.addTo(this.delegate.getRoundTripTime());
+    }
+
+    private static final class Links {
+
+        private final SimulatedLink outgoing;
+        private final SimulatedLink incoming;
+
+        private Links(final NetworkConditions conditions, final long connection) {
+            this.outgoing = new SimulatedLink(conditions, 2 * connection);
+            this.incoming = new SimulatedLink(conditions, 2 * connection + 1);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.client.spi;
+
+import java.util.concurrent.ThreadFactory;
+import se.mejsla.camp.mazela.network.client.ClientConfiguration;
+import se.mejsla.camp.mazela.network.client.NetworkClient;
+
+/**
+ * Creates network clients on one transport. Providers are found with
+ * {@link java.util.ServiceLoader}, listed in
+ * {@code META-INF/services/se.mejsla.camp.mazela.network.client.spi.NetworkClientProvider},
+ * and picked by the transport name in the {@link ClientConfiguration}.
+ */
+public interface NetworkClientProvider {
+
+    /**
+     * @return The name the transport is configured by, such as "grizzly".
+     */
+    String getName();
+
+    /**
+     * @param configuration The client settings. May not be null.
+     * @param threadFactory Creates the internal threads of the client. May
+     * not be null.
+     * @return A new client that has not been started.
+     */
+    NetworkClient create(ClientConfiguration configuration, ThreadFactory threadFactory);
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+
+/**
+ * A bulk transfer that has been received in full.
+ */
+public final class BulkPayload {
+
+    private final long transferId;
+    private final ByteBuffer data;
+
+    public BulkPayload(final long transferId, final ByteBuffer data) {
+        this.transferId = transferId;
+        this.data = Preconditions.checkNotNull(data);
+    }
+
+    /**
+     * @return The id the sender gave the transfer.
+     */
+    public long getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * @return The payload, owned by the caller.
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "transfer " + transferId + ", " + data.remaining() + " bytes";
+    }
+}
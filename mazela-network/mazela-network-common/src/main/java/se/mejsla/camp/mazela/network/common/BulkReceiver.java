@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Puts bulk transfers back together on the receiving side. A bulk transfer
+ * is a large payload sent as a series of
+ * {@link MessageUtilities#CONTROL_BULK_CHUNK} control frames, in order, each
+ * saying where in the payload it goes.
+ * <p>
+ * Transfers that are not complete are kept when the connection is lost. The
+ * receiver can tell the sender how much it has with
+ * {@link #getReceivedBytes(long)} and the sender resumes from there. A chunk
+ * that overlaps what has already been received is trimmed, a chunk beyond it
+ * is ignored.
+ */
+public class BulkReceiver {
+
+    /**
+     * The largest transfer accepted, the payload is allocated in full when
+     * the first chunk arrives.
+     */
+    public static final int MAX_TRANSFER_BYTES = 64 * 1024 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final HashMap<Long, Partial> partialTransfers = new HashMap<>();
+    private final ConcurrentLinkedQueue<BulkPayload> completed
+            = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Add a chunk to its transfer.
+     *
+     * @param body The body of a bulk chunk control frame, after the control
+     * type. The position is moved to the limit.
+     * @return false if the chunk is malformed.
+     */
+    public synchronized boolean chunk(final ByteBuffer body) {
+        if (body.remaining() < MessageUtilities.BULK_CHUNK_HEADER_BYTES) {
+            return false;
+        }
+        final long transferId = body.getLong();
+        final int totalBytes = body.getInt();
+        final int offset = body.getInt();
+        final int length = body.remaining();
+        if (totalBytes < 0 || totalBytes > MAX_TRANSFER_BYTES
+                || offset < 0 || offset > totalBytes
+                || length > totalBytes - offset) {
+            return false;
+        }
+        Partial partial = this.partialTransfers.get(transferId);
+        if (partial == null || partial.data.length != totalBytes) {
+            if (offset != 0) {
+                log.debug("Chunk at {} of unknown bulk transfer {}, ignored", offset, transferId);
+                body.position(body.limit());
+                return true;
+            }
+            partial = new Partial(totalBytes);
+            this.partialTransfers.put(transferId, partial);
+        }
+        if (offset > partial.received) {
+            log.debug("Chunk at {} of bulk transfer {} leaves a gap after {}, ignored",
+                    offset, transferId, partial.received);
+            body.position(body.limit());
+            return true;
+        }
+        final int alreadyReceived = partial.received - offset;
+        if (length > alreadyReceived) {
+            body.position(body.position() + alreadyReceived);
+            body.get(partial.data, partial.received, length - alreadyReceived);
+            partial.received += length - alreadyReceived;
+        }
+        body.position(body.limit());
+        if (partial.received == totalBytes) {
+            this.partialTransfers.remove(transferId);
+            this.completed.add(new BulkPayload(transferId, ByteBuffer.wrap(partial.data)));
+        }
+        return true;
+    }
+
+    /**
+     * @param transferId The transfer.
+     * @return The number of bytes received from the start of the transfer,
+     * zero if nothing has been received or the transfer is complete.
+     */
+    public synchronized int getReceivedBytes(final long transferId) {
+        final Partial partial = this.partialTransfers.get(transferId);
+        return partial != null ? partial.received : 0;
+    }
+
+    /**
+     * Forget what has been received of a transfer that will not be resumed.
+     *
+     * @param transferId The transfer.
+     */
+    public synchronized void cancel(final long transferId) {
+        this.partialTransfers.remove(transferId);
+    }
+
+    /**
+     * @return The next complete transfer, or null if there is none.
+     */
+    public BulkPayload poll() {
+        return this.completed.poll();
+    }
+
+    private static final class Partial {
+
+        private final byte[] data;
+        private int received;
+
+        Partial(final int totalBytes) {
+            this.data = new byte[totalBytes];
+        }
+    }
+}
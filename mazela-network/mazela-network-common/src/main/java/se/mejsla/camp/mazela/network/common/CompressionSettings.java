@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * How frames are compressed. Both ends of a connection must have compression
+ * enabled with the same preset dictionary for frames to be compressed.
+ * Payloads smaller than the threshold are sent as they are, they seldom
+ * shrink enough to be worth the time.
+ */
+public final class CompressionSettings {
+
+    public static final int DEFAULT_THRESHOLD = 256;
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    private static final CompressionSettings DISABLED
+            = new CompressionSettings(false, DEFAULT_THRESHOLD, DEFAULT_LEVEL, new byte[0]);
+
+    private final boolean enabled;
+    private final int threshold;
+    private final int level;
+    private final byte[] dictionary;
+    private final int dictionaryId;
+
+    private CompressionSettings(
+            final boolean enabled,
+            final int threshold,
+            final int level,
+            final byte[] dictionary) {
+        Preconditions.checkArgument(threshold >= 0, "Threshold may not be negative");
+        Preconditions.checkArgument(
+                level == Deflater.DEFAULT_COMPRESSION
+                || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION),
+                "Compression level must be between 0 and 9"
+        );
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.level = level;
+        this.dictionary = Arrays.copyOf(Preconditions.checkNotNull(dictionary), dictionary.length);
+        final Adler32 adler = new Adler32();
+        adler.update(this.dictionary);
+        this.dictionaryId = (int) adler.getValue();
+    }
+
+    /**
+     * @param threshold The smallest payload that is compressed.
+     * @param level The deflate level, 0-9.
+     * @param dictionary The preset dictionary, may be empty. The content most
+     * likely to appear in payloads should be at the end.
+     * @return Enabled compression.
+     */
+    public static CompressionSettings enabled(
+            final int threshold,
+            final int level,
+            final byte[] dictionary) {
+        return new CompressionSettings(true, threshold, level, dictionary);
+    }
+
+    /**
+     * @param dictionary The preset dictionary, may be empty.
+     * @return Enabled compression with the default threshold and level.
+     */
+    public static CompressionSettings withDictionary(final byte[] dictionary) {
+        return enabled(DEFAULT_THRESHOLD, DEFAULT_LEVEL, dictionary);
+    }
+
+    public static CompressionSettings disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return A copy of the preset dictionary.
+     */
+    public byte[] getDictionary() {
+        return Arrays.copyOf(dictionary, dictionary.length);
+    }
+
+    /**
+     * @return The Adler-32 checksum of the dictionary, the same value zlib
+     * uses to identify it. Peers only compress to each other if their ids
+     * match.
+     */
+    public int getDictionaryId() {
+        return dictionaryId;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("enabled", enabled)
+                .add("threshold", threshold)
+                .add("level", level)
+                .add("dictionaryBytes", dictionary.length)
+                .toString();
+    }
+}
@@ -17,43 +17,125 @@ package se.mejsla.camp.mazela.network.common;
 
 import com.google.common.base.Preconditions;
 import java.io.Serializable;
+import java.security.SecureRandom;
 import java.util.Objects;
 import java.util.UUID;
 
 /**
+ * Identifies a connection. Connections accepted by a server are identified by
+ * a slot and a generation. The slot is a small integer that is reused when
+ * the connection is gone, so that per connection state can be kept in arrays
+ * indexed by slot, see {@link SlotTable}. The generation is bumped every time
+ * the slot is reused so that an old ID never matches a new connection.
+ * <p>
+ * The UUID is the identity given to the client. For a slotted ID it is only
+ * created the first time it is asked for, the slot and generation are in the
+ * most significant bits and the least significant bits are random.
  *
  * @author Johan Maasing <johan@zoom.nu>
  */
 public final class ConnectionID implements Serializable {
 
-    private final UUID uuid;
+    /**
+     * The slot of an ID that was created from a UUID.
+     */
+    public static final int NO_SLOT = -1;
+    private static final SecureRandom UUID_RANDOM = new SecureRandom();
+
+    private final int slot;
+    private final int generation;
+    private volatile UUID uuid;
 
     public ConnectionID(UUID uuid) {
         this.uuid = Preconditions.checkNotNull(uuid);
+        this.slot = NO_SLOT;
+        this.generation = 0;
     }
 
     public ConnectionID(String uuid) {
-        this.uuid = UUID.fromString(Preconditions.checkNotNull(uuid));
+        this(UUID.fromString(Preconditions.checkNotNull(uuid)));
     }
 
     public ConnectionID() {
-        this.uuid = UUID.randomUUID();
+        this(UUID.randomUUID());
+    }
+
+    /**
+     * @param slot The slot of the connection, not negative.
+     * @param generation The number of times the slot has been used.
+     */
+    public ConnectionID(final int slot, final int generation) {
+        Preconditions.checkArgument(slot >= 0, "Slot may not be negative");
+        this.slot = slot;
+        this.generation = generation;
+    }
+
+    private ConnectionID(final int slot, final int generation, final UUID uuid) {
+        this.slot = slot;
+        this.generation = generation;
+        this.uuid = uuid;
+    }
+
+    /**
+     * @return The slot, or {@link #NO_SLOT}.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getGeneration() {
+        return generation;
     }
 
     public UUID getUuid() {
-        return uuid;
+        UUID result = this.uuid;
+        if (result == null) {
+            synchronized (this) {
+                result = this.uuid;
+                if (result == null) {
+                    result = new UUID(
+                            ((long) this.slot << 32) | (this.generation & 0xffffffffL),
+                            UUID_RANDOM.nextLong()
+                    );
+                    this.uuid = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Recreate a slotted ID from its UUID, as sent back by a client. The
+     * random part is not checked, compare the UUID to the UUID of the
+     * connection in the slot before trusting it.
+     *
+     * @param uuid A UUID from {@link #getUuid()}.
+     * @return The ID the UUID claims to be, or null if it can not be a
+     * slotted ID.
+     */
+    public static ConnectionID fromSlottedUuid(final UUID uuid) {
+        final long mostSignificant = Preconditions.checkNotNull(uuid).getMostSignificantBits();
+        final int slot = (int) (mostSignificant >>> 32);
+        if (slot < 0) {
+            return null;
+        }
+        return new ConnectionID(slot, (int) mostSignificant, uuid);
     }
 
     @Override
     public String toString() {
-        return uuid.toString();
+        if (this.slot == NO_SLOT) {
+            return getUuid().toString();
+        }
+        return this.slot + ":" + this.generation;
     }
 
     @Override
     public int hashCode() {
-        int hash = 7;
-        hash = 67 * hash + Objects.hashCode(this.uuid);
-        return hash;
+        if (this.slot == NO_SLOT) {
+            return Objects.hashCode(this.uuid);
+        }
+        return 67 * this.slot + this.generation;
     }
 
     @Override
@@ -68,10 +150,13 @@ public final class ConnectionID implements Serializable {
             return false;
         }
         final ConnectionID other = (ConnectionID) obj;
-        if (!Objects.equals(this.uuid, other.uuid)) {
+        if (this.slot != other.slot) {
             return false;
         }
-        return true;
+        if (this.slot != NO_SLOT) {
+            return this.generation == other.generation;
+        }
+        return Objects.equals(this.uuid, other.uuid);
     }
 
 }
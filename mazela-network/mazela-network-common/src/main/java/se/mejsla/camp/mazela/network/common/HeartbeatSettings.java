@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How often each end pings its peer and how long a peer may stay silent
+ * before the connection is closed. Any frame from the peer counts, not only
+ * pongs, so a busy peer is never dropped because a pong was late.
+ * <p>
+ * Pings from the peer are always answered, even when sending pings is
+ * disabled.
+ */
+public final class HeartbeatSettings {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    private static final HeartbeatSettings DEFAULTS
+            = new HeartbeatSettings(true, DEFAULT_INTERVAL_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+    private static final HeartbeatSettings DISABLED
+            = new HeartbeatSettings(false, DEFAULT_INTERVAL_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+
+    private final boolean enabled;
+    private final long intervalMillis;
+    private final long timeoutMillis;
+
+    private HeartbeatSettings(
+            final boolean enabled,
+            final long intervalMillis,
+            final long timeoutMillis) {
+        Preconditions.checkArgument(intervalMillis > 0, "Interval must be positive");
+        Preconditions.checkArgument(
+                timeoutMillis > intervalMillis,
+                "Timeout must be longer than the interval"
+        );
+        this.enabled = enabled;
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param intervalMillis Time between pings.
+     * @param timeoutMillis How long the peer may be silent before it is
+     * considered dead, must be longer than the interval.
+     * @return Enabled heartbeats.
+     */
+    public static HeartbeatSettings enabled(
+            final long intervalMillis,
+            final long timeoutMillis) {
+        return new HeartbeatSettings(true, intervalMillis, timeoutMillis);
+    }
+
+    /**
+     * @return Pings every {@value #DEFAULT_INTERVAL_MILLIS} ms, a peer that is
+     * silent for {@value #DEFAULT_TIMEOUT_MILLIS} ms is disconnected.
+     */
+    public static HeartbeatSettings defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * @return No pings are sent and silent peers are never disconnected.
+     */
+    public static HeartbeatSettings disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long getTimeoutNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("enabled", enabled)
+                .add("intervalMillis", intervalMillis)
+                .add("timeoutMillis", timeoutMillis)
+                .toString();
+    }
+}
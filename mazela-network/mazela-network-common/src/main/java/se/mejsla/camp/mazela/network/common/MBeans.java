@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the network MBeans with the platform MBean server. Failing to
+ * register is logged and otherwise ignored, the network works the same
+ * without its MBeans.
+ */
+public final class MBeans {
+
+    /**
+     * The JMX domain of all network MBeans.
+     */
+    public static final String DOMAIN = "se.mejsla.camp.mazela.network";
+
+    private static final Logger log = LoggerFactory.getLogger(MBeans.class);
+
+    private MBeans() {
+    }
+
+    /**
+     * @param properties The key properties, e.g. "type=Server,port=1666".
+     * @return The name, or null if the properties are malformed.
+     */
+    public static ObjectName name(final String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties);
+        } catch (JMException ex) {
+            log.warn("Malformed MBean name: {}", properties, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Register an MBean, replacing any MBean already registered with the
+     * name.
+     *
+     * @param mbean The MBean.
+     * @param name The name, nothing is registered if it is null.
+     */
+    public static void register(final Object mbean, final ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+        } catch (JMException ex) {
+            log.warn("Unable to register MBean: {}", name, ex);
+        }
+    }
+
+    /**
+     * @param name The name of the MBean to unregister, may be null.
+     */
+    public static void unregister(final ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ex) {
+            log.debug("Unable to unregister MBean: {}", name, ex);
+        }
+    }
+}
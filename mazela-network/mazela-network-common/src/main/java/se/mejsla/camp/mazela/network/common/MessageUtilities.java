@@ -23,6 +23,100 @@ public class MessageUtilities {
 
     private static final int MAGIC_MARKER = 0xbadbabe;
 
+    /**
+     * Every frame on the wire starts with the magic marker followed by the
+     * length of the payload that follows the header.
+     */
+    public static final int FRAME_HEADER_BYTES = 2 * Integer.BYTES;
+
+    /**
+     * The largest payload a single frame may carry. The length word is 32
+     * bits, the payload length is in the lower 24 bits and the upper 8 bits
+     * are frame flags.
+     */
+    public static final int MAX_FRAME_PAYLOAD = 0x00ffffff;
+
+    /**
+     * Frame flag set when the payload is compressed, see
+     * {@link se.mejsla.camp.mazela.network.common.grizzly.FrameCompression}.
+     */
+    public static final int FRAME_FLAG_COMPRESSED = 0x01000000;
+
+    /**
+     * Frame flag set on control frames. Control frames are handled by the
+     * framing layer and never passed on as messages. The first byte of the
+     * payload is the control type.
+     */
+    public static final int FRAME_FLAG_CONTROL = 0x02000000;
+
+    /**
+     * Frame flag set when the payload is compressed on its own, from the
+     * preset dictionary and without the deflate stream of the connection.
+     * Used for frames that are written to many connections, see
+     * {@link se.mejsla.camp.mazela.network.common.grizzly.FrameCompression.Shared}.
+     * Only sent to peers that accept compressed frames.
+     */
+    public static final int FRAME_FLAG_SHARED_COMPRESSED = 0x04000000;
+
+    private static final int KNOWN_FRAME_FLAGS
+            = FRAME_FLAG_COMPRESSED | FRAME_FLAG_CONTROL | FRAME_FLAG_SHARED_COMPRESSED;
+
+    /**
+     * Control frame sent by a peer that accepts compressed frames, followed by
+     * the id of its preset dictionary.
+     */
+    public static final byte CONTROL_COMPRESSION_OFFER = 1;
+
+    /**
+     * Control frame followed by a serialized {@code Ping}, the peer answers
+     * with a pong.
+     */
+    public static final byte CONTROL_PING = 2;
+
+    /**
+     * Control frame followed by a serialized {@code Pong}.
+     */
+    public static final byte CONTROL_PONG = 3;
+
+    /**
+     * Control frame sent by a server that refuses a new connection because it
+     * is full or accepting too fast, just before it closes the connection.
+     * Has no body.
+     */
+    public static final byte CONTROL_SERVER_FULL = 4;
+
+    /**
+     * Control frame carrying a piece of a bulk transfer, see
+     * {@link BulkReceiver}. The body is the transfer id, the total length of
+     * the transfer and the offset of the piece, followed by the piece.
+     */
+    public static final byte CONTROL_BULK_CHUNK = 5;
+
+    /**
+     * The transfer id, total length and offset that start the body of a bulk
+     * chunk.
+     */
+    public static final int BULK_CHUNK_HEADER_BYTES = Long.BYTES + 2 * Integer.BYTES;
+
+    /**
+     * Datagrams from the server start with the magic marker followed by a
+     * sequence number, newer datagrams have higher numbers.
+     */
+    public static final int DATAGRAM_HEADER_BYTES = 2 * Integer.BYTES;
+
+    /**
+     * The datagram a client sends to bind its address to its session is the
+     * magic marker followed by the session UUID.
+     */
+    public static final int DATAGRAM_HELLO_BYTES = Integer.BYTES + 2 * Long.BYTES;
+
+    /**
+     * The largest payload sent as a datagram. Larger messages go over the
+     * stream connection.
+     */
+    public static final int MAX_DATAGRAM_PAYLOAD
+            = 65507 - DATAGRAM_HEADER_BYTES;
+
     public static final int getMagicMarker() {
         return MAGIC_MARKER;
     }
@@ -31,6 +125,37 @@ public class MessageUtilities {
         return ((in & MAGIC_MARKER) == MAGIC_MARKER);
     }
 
+    public static final boolean isValidPayloadLength(final int length) {
+        return length >= 0 && length <= MAX_FRAME_PAYLOAD;
+    }
+
+    /**
+     * @param lengthWord The second word of the frame header.
+     * @return true if no unknown flags are set.
+     */
+    public static final boolean isValidLengthWord(final int lengthWord) {
+        return (lengthWord & ~(MAX_FRAME_PAYLOAD | KNOWN_FRAME_FLAGS)) == 0;
+    }
+
+    /**
+     * @param lengthWord The second word of the frame header.
+     * @return The payload length without the flags.
+     */
+    public static final int getPayloadLength(final int lengthWord) {
+        return lengthWord & MAX_FRAME_PAYLOAD;
+    }
+
+    /**
+     * Compare datagram sequence numbers, allowing them to wrap around.
+     *
+     * @param sequence The received sequence number.
+     * @param latest The latest sequence number seen.
+     * @return true if sequence is newer than latest.
+     */
+    public static final boolean isNewerSequence(final int sequence, final int latest) {
+        return sequence - latest > 0;
+    }
+
     public interface Attributes {
 
         public String CONNECTION_ID = "ConnectionID";
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded queue for many producer threads and a single consumer thread.
+ * Elements are stored in a fixed array so queuing does not allocate, and the
+ * capacity puts a hard limit on the memory the queue holds on to.
+ * <p>
+ * Producers claim a slot by moving the tail and then publish the element in
+ * the slot. The consumer takes published elements in order and frees their
+ * slots by moving the head once for a whole batch.
+ * @param <E> The element type.
+ */
+public class MpscRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    /**
+     * The next slot a producer claims.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The next slot the consumer takes, only written by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity The maximum number of queued elements, rounded up to a
+     * power of two. Must be positive.
+     */
+    public MpscRingBuffer(final int capacity) {
+        Preconditions.checkArgument(
+                capacity > 0 && capacity <= 1 << 30,
+                "Capacity must be between 1 and 2^30"
+        );
+        final int size = Integer.highestOneBit(capacity) == capacity
+                ? capacity
+                : Integer.highestOneBit(capacity) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Add an element, may be called from any thread.
+     *
+     * @param element The element to add. May not be null.
+     * @return false if the buffer is full.
+     */
+    public boolean offer(final E element) {
+        Preconditions.checkNotNull(element);
+        while (true) {
+            final long claim = this.tail.get();
+            if (claim - this.head.get() >= this.slots.length()) {
+                return false;
+            }
+            if (this.tail.compareAndSet(claim, claim + 1)) {
+                this.slots.lazySet(index(claim), element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take the next element. Must only be called from the consumer thread.
+     *
+     * @return The next element or null if there is none.
+     */
+    public E poll() {
+        final long next = this.head.get();
+        final int index = index(next);
+        final E element = this.slots.get(index);
+        if (element == null) {
+            return null;
+        }
+        this.slots.lazySet(index, null);
+        this.head.lazySet(next + 1);
+        return element;
+    }
+
+    /**
+     * Take up to max elements and hand them to the consumer in order. The
+     * slots are given back to the producers when the whole batch has been
+     * taken. Must only be called from the consumer thread.
+     *
+     * @param consumer Receives the elements. May not be null.
+     * @param max The maximum number of elements to take.
+     * @return The number of elements taken.
+     */
+    public int drain(final Consumer<? super E> consumer, final int max) {
+        Preconditions.checkNotNull(consumer);
+        long next = this.head.get();
+        int taken = 0;
+        try {
+            while (taken < max) {
+                final int index = index(next);
+                final E element = this.slots.get(index);
+                if (element == null) {
+                    // Empty, or a producer has claimed the slot but not yet
+                    // published the element
+                    break;
+                }
+                this.slots.lazySet(index, null);
+                next++;
+                taken++;
+                consumer.accept(element);
+            }
+        } finally {
+            this.head.lazySet(next);
+        }
+        return taken;
+    }
+
+    /**
+     * @return The number of queued elements, including slots that have been
+     * claimed but not yet published.
+     */
+    public int size() {
+        final long size = this.tail.get() - this.head.get();
+        return (int) Math.max(0, Math.min(size, this.slots.length()));
+    }
+
+    public int capacity() {
+        return this.slots.length();
+    }
+
+    private int index(final long sequence) {
+        return (int) sequence & this.mask;
+    }
+}
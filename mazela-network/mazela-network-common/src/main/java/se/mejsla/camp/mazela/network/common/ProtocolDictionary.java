@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol;
+
+/**
+ * Preset compression dictionaries for the mazela protocol. The server and the
+ * clients must build the same dictionary, so it is made from fixed sample
+ * messages.
+ */
+public final class ProtocolDictionary {
+
+    private static final int SAMPLE_ENTITIES = 16;
+
+    private ProtocolDictionary() {
+    }
+
+    /**
+     * A dictionary made from a game board update, the bulk of what the
+     * server sends. It holds the envelope and entity update headers, entity
+     * ids of the form given to connections and coordinates spread over the
+     * board.
+     *
+     * @return The dictionary.
+     */
+    public static byte[] gameboardUpdates() {
+        final MazelaProtocol.GameboardUpdate.Builder gameboardBuilder
+                = MazelaProtocol.GameboardUpdate.newBuilder();
+        for (int i = 0; i < SAMPLE_ENTITIES; i++) {
+            final ConnectionID sample = new ConnectionID(i, 0);
+            gameboardBuilder.addUpdates(
+                    MazelaProtocol.GameboardUpdate.EntityUpdate
+                            .newBuilder()
+                            .setUuid(
+                                    MazelaProtocol.Uuid
+                                            .newBuilder()
+                                            .setMostSignificantID(sample.getUuid().getMostSignificantBits())
+                                            .build()
+                            )
+                            .setCoords(
+                                    MazelaProtocol.GameboardUpdate.Coordinate
+                                            .newBuilder()
+                                            .setX((i % 4) * 5 - 10)
+                                            .setY((i / 4) * 5 - 10)
+                                            .build()
+                            )
+                            .build()
+            );
+        }
+        return MazelaProtocol.Envelope
+                .newBuilder()
+                .setMessageType(MazelaProtocol.Envelope.MessageType.GameboardUpdate)
+                .setGameboardUpdate(gameboardBuilder.build())
+                .build()
+                .toByteArray();
+    }
+}
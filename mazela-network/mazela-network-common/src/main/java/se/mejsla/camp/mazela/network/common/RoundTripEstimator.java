@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+/**
+ * Smooths round trip samples into an estimate the way TCP does in RFC 6298:
+ * the smoothed time moves an eighth of the way towards each sample and the
+ * jitter, the mean deviation, a quarter of the way. A single slow sample does
+ * not swing the estimate much.
+ */
+public class RoundTripEstimator {
+
+    // Updated under the lock of this object and published as an immutable
+    // snapshot
+    private long smoothedNanos;
+    private long jitterNanos;
+    private long samples;
+    private volatile RoundTripTime roundTripTime = RoundTripTime.UNKNOWN;
+
+    /**
+     * @param sampleNanos A measured round trip, negative samples are
+     * ignored.
+     */
+    public synchronized void sample(final long sampleNanos) {
+        if (sampleNanos < 0) {
+            return;
+        }
+        if (this.samples == 0) {
+            this.smoothedNanos = sampleNanos;
+            this.jitterNanos = sampleNanos / 2;
+        } else {
+            this.jitterNanos += (Math.abs(this.smoothedNanos - sampleNanos) - this.jitterNanos) / 4;
+            this.smoothedNanos += (sampleNanos - this.smoothedNanos) / 8;
+        }
+        this.samples++;
+        this.roundTripTime = new RoundTripTime(
+                this.smoothedNanos,
+                this.jitterNanos,
+                sampleNanos,
+                this.samples
+        );
+    }
+
+    /**
+     * @return The latest estimate, {@link RoundTripTime#UNKNOWN} until the
+     * first sample.
+     */
+    public RoundTripTime get() {
+        return this.roundTripTime;
+    }
+}
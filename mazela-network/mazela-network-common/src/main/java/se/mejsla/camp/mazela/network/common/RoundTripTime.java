@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import com.google.common.base.MoreObjects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The round trip time to a peer as measured by heartbeats. The smoothed value
+ * and the jitter, the mean deviation from it, are estimated the way TCP does
+ * in RFC 6298 so a single slow pong does not swing them much.
+ */
+public final class RoundTripTime {
+
+    /**
+     * No pong has been received yet.
+     */
+    public static final RoundTripTime UNKNOWN = new RoundTripTime(0, 0, 0, 0);
+
+    private final long smoothedNanos;
+    private final long jitterNanos;
+    private final long latestNanos;
+    private final long samples;
+
+    public RoundTripTime(
+            final long smoothedNanos,
+            final long jitterNanos,
+            final long latestNanos,
+            final long samples) {
+        this.smoothedNanos = smoothedNanos;
+        this.jitterNanos = jitterNanos;
+        this.latestNanos = latestNanos;
+        this.samples = samples;
+    }
+
+    /**
+     * @return false if no pong has been received, all times are zero then.
+     */
+    public boolean isKnown() {
+        return samples > 0;
+    }
+
+    public long getSmoothedNanos() {
+        return smoothedNanos;
+    }
+
+    public long getJitterNanos() {
+        return jitterNanos;
+    }
+
+    /**
+     * @return The round trip time of the last pong.
+     */
+    public long getLatestNanos() {
+        return latestNanos;
+    }
+
+    /**
+     * @return The number of pongs the estimate is based on.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    public double getSmoothedMillis() {
+        return smoothedNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getJitterMillis() {
+        return jitterNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("smoothedMillis", getSmoothedMillis())
+                .add("jitterMillis", getJitterMillis())
+                .add("samples", samples)
+                .toString();
+    }
+}
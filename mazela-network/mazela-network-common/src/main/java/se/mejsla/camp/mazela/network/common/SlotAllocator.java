@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import java.util.Arrays;
+
+/**
+ * Hands out connection slots. A released slot is handed out again before a
+ * new one is used, so the slots stay dense, and its generation is bumped so
+ * that the IDs of the old and new connection differ. Used together with a
+ * {@link SlotTable} keyed by the allocated IDs.
+ */
+public class SlotAllocator {
+
+    private int[] generations = new int[64];
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+    private int nextUnusedSlot;
+
+    /**
+     * @return An ID with a free slot.
+     */
+    public synchronized ConnectionID allocate() {
+        final int slot;
+        if (this.freeCount > 0) {
+            slot = this.freeSlots[--this.freeCount];
+        } else {
+            slot = this.nextUnusedSlot++;
+            if (slot == this.generations.length) {
+                this.generations = Arrays.copyOf(this.generations, slot * 2);
+            }
+        }
+        return new ConnectionID(slot, this.generations[slot]);
+    }
+
+    /**
+     * Make the slot of an ID free for a new connection. Releasing an ID that
+     * is not the current holder of its slot does nothing.
+     *
+     * @param connectionID An ID from {@link #allocate()}.
+     */
+    public synchronized void release(final ConnectionID connectionID) {
+        final int slot = connectionID.getSlot();
+        if (slot < 0 || slot >= this.nextUnusedSlot
+                || this.generations[slot] != connectionID.getGeneration()) {
+            return;
+        }
+        this.generations[slot]++;
+        if (this.freeCount == this.freeSlots.length) {
+            this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeCount * 2);
+        }
+        this.freeSlots[this.freeCount++] = slot;
+    }
+}
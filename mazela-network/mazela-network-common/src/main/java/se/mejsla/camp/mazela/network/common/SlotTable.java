@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Per connection state kept in an array indexed by the slot of the
+ * {@link ConnectionID}. An entry only matches an ID with the same generation,
+ * so state left behind by a connection that had the slot before is never
+ * returned for a new connection.
+ * <p>
+ * Lookups do not lock. Changes lock the table, so they are best done from one
+ * thread or seldom. The array grows as higher slots are used.
+ * @param <V> The type of the state.
+ */
+public final class SlotTable<V> {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 64;
+
+    private static final class Entry<V> {
+
+        private final ConnectionID connectionID;
+        private final V value;
+
+        private Entry(final ConnectionID connectionID, final V value) {
+            this.connectionID = connectionID;
+            this.value = value;
+        }
+    }
+
+    private volatile AtomicReferenceArray<Entry<V>> entries;
+    private int size;
+
+    public SlotTable() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity The number of slots to start with.
+     */
+    public SlotTable(final int initialCapacity) {
+        Preconditions.checkArgument(initialCapacity > 0, "Initial capacity must be a positive integer");
+        this.entries = new AtomicReferenceArray<>(initialCapacity);
+    }
+
+    /**
+     * @param connectionID The connection, only slotted IDs are found.
+     * @return The state for the connection or null if there is none.
+     */
+    public V get(final ConnectionID connectionID) {
+        final Entry<V> entry = entry(Preconditions.checkNotNull(connectionID));
+        return entry != null ? entry.value : null;
+    }
+
+    public boolean contains(final ConnectionID connectionID) {
+        return entry(Preconditions.checkNotNull(connectionID)) != null;
+    }
+
+    private Entry<V> entry(final ConnectionID connectionID) {
+        final int slot = connectionID.getSlot();
+        final AtomicReferenceArray<Entry<V>> current = this.entries;
+        if (slot < 0 || slot >= current.length()) {
+            return null;
+        }
+        final Entry<V> entry = current.get(slot);
+        if (entry == null
+                || entry.connectionID.getGeneration() != connectionID.getGeneration()) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Set the state for a connection, replacing whatever is in its slot. The
+     * state of a connection that had the slot before is returned as well, it
+     * can no longer be removed by its own ID, so the caller has to clean it
+     * up.
+     *
+     * @param connectionID A slotted ID.
+     * @param value The state, may not be null.
+     * @return The state that was replaced, of this connection or of an
+     * earlier one in the same slot, or null.
+     */
+    public synchronized V put(final ConnectionID connectionID, final V value) {
+        Preconditions.checkNotNull(value, "value may not be null");
+        final int slot = checkSlot(connectionID);
+        final AtomicReferenceArray<Entry<V>> current = ensureCapacity(slot);
+        final Entry<V> previous = current.getAndSet(slot, new Entry<>(connectionID, value));
+        if (previous == null) {
+            this.size++;
+            return null;
+        }
+        return previous.value;
+    }
+
+    /**
+     * Get the state for a connection, creating it if there is none. The state
+     * of another connection in the same slot is never replaced, it has to be
+     * removed first.
+     *
+     * @param connectionID A slotted ID.
+     * @param factory Creates the state, called while the table is locked.
+     * @return The state of the connection, or null if the factory returned
+     * null or the slot holds another connection.
+     */
+    public synchronized V computeIfAbsent(
+            final ConnectionID connectionID,
+            final Function<ConnectionID, V> factory) {
+        final int slot = checkSlot(connectionID);
+        final AtomicReferenceArray<Entry<V>> current = this.entries;
+        final Entry<V> existing = slot < current.length() ? current.get(slot) : null;
+        if (existing != null) {
+            return existing.connectionID.getGeneration() == connectionID.getGeneration()
+                    ? existing.value
+                    : null;
+        }
+        final V value = factory.apply(connectionID);
+        if (value != null) {
+            put(connectionID, value);
+        }
+        return value;
+    }
+
+    /**
+     * @param connectionID The connection to remove the state for.
+     * @return The removed state, or null if the connection had none.
+     */
+    public synchronized V remove(final ConnectionID connectionID) {
+        final Entry<V> entry = entry(Preconditions.checkNotNull(connectionID));
+        if (entry == null) {
+            return null;
+        }
+        this.entries.set(connectionID.getSlot(), null);
+        this.size--;
+        return entry.value;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Visit every entry in slot order. Entries changed while visiting may or
+     * may not be seen.
+     *
+     * @param consumer Gets the ID and state of each connection.
+     */
+    public void forEach(final BiConsumer<ConnectionID, V> consumer) {
+        final AtomicReferenceArray<Entry<V>> current = this.entries;
+        for (int i = 0; i < current.length(); i++) {
+            final Entry<V> entry = current.get(i);
+            if (entry != null) {
+                consumer.accept(entry.connectionID, entry.value);
+            }
+        }
+    }
+
+    /**
+     * @return The IDs of the connections in the table.
+     */
+    public List<ConnectionID> keys() {
+        final ArrayList<ConnectionID> result = new ArrayList<>();
+        forEach((id, value) -> result.add(id));
+        return result;
+    }
+
+    /**
+     * @return The states in the table.
+     */
+    public List<V> values() {
+        final ArrayList<V> result = new ArrayList<>();
+        forEach((id, value) -> result.add(value));
+        return result;
+    }
+
+    private static int checkSlot(final ConnectionID connectionID) {
+        final int slot = Preconditions.checkNotNull(connectionID).getSlot();
+        Preconditions.checkArgument(slot != ConnectionID.NO_SLOT, "Connection ID has no slot: %s", connectionID);
+        return slot;
+    }
+
+    private AtomicReferenceArray<Entry<V>> ensureCapacity(final int slot) {
+        final AtomicReferenceArray<Entry<V>> current = this.entries;
+        if (slot < current.length()) {
+            return current;
+        }
+        int length = current.length();
+        while (length <= slot) {
+            length *= 2;
+        }
+        final AtomicReferenceArray<Entry<V>> grown = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        this.entries = grown;
+        return grown;
+    }
+}
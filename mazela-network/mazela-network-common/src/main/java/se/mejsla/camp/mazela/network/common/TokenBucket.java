@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket. Tokens are added at a fixed rate up to the capacity of the
+ * bucket, and taken for each unit of work. Taking more tokens than there are
+ * puts the bucket in debt, it is then empty until the debt has been refilled.
+ * <p>
+ * Not thread safe, the owner synchronizes if needed.
+ */
+public class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * Create a full bucket.
+     *
+     * @param tokensPerSecond The refill rate. Must be positive.
+     * @param capacity The maximum number of tokens, which is the largest burst
+     * allowed. Must be positive.
+     * @param nowNanos The current {@link System#nanoTime()}.
+     */
+    public TokenBucket(
+            final double tokensPerSecond,
+            final double capacity,
+            final long nowNanos) {
+        Preconditions.checkArgument(tokensPerSecond > 0, "Rate must be positive");
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        this.tokensPerNano = tokensPerSecond / NANOS_PER_SECOND;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillNanos = nowNanos;
+    }
+
+    /**
+     * @param tokens The number of tokens wanted.
+     * @param nowNanos The current {@link System#nanoTime()}.
+     * @return true if the bucket holds at least that many tokens.
+     */
+    public boolean has(final double tokens, final long nowNanos) {
+        refill(nowNanos);
+        return this.tokens >= tokens;
+    }
+
+    /**
+     * Take tokens, going into debt if there are not enough.
+     *
+     * @param tokens The number of tokens to take.
+     * @param nowNanos The current {@link System#nanoTime()}.
+     */
+    public void take(final double tokens, final long nowNanos) {
+        refill(nowNanos);
+        this.tokens -= tokens;
+    }
+
+    /**
+     * @param nowNanos The current {@link System#nanoTime()}.
+     * @return The nanoseconds until the bucket is out of debt, 0 if it is not
+     * in debt.
+     */
+    public long nanosUntilOutOfDebt(final long nowNanos) {
+        refill(nowNanos);
+        if (this.tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-this.tokens / this.tokensPerNano);
+    }
+
+    private void refill(final long nowNanos) {
+        final long elapsed = nowNanos - this.lastRefillNanos;
+        if (elapsed > 0) {
+            this.tokens = Math.min(
+                    this.capacity,
+                    this.tokens + elapsed * this.tokensPerNano
+            );
+            this.lastRefillNanos = nowNanos;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Lock free traffic counters. The counters of a connection also add to the
+ * counters of its transport, so the transport totals include connections
+ * that are gone.
+ */
+public class TransportMetrics implements TransportMetricsMXBean {
+
+    private static final double NANOS_PER_MICRO = 1000.0;
+
+    /**
+     * Null for the transport totals.
+     */
+    private final TransportMetrics parent;
+    private final IntSupplier outgoingQueueDepth;
+    private final IntSupplier incomingQueueDepth;
+
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAccumulator maxWriteNanos = new LongAccumulator(Long::max, 0);
+    private final LongAdder droppedIncomingMessages = new LongAdder();
+    private final LongAdder droppedOutgoingMessages = new LongAdder();
+    private final LongAdder queueFullCount = new LongAdder();
+
+    /**
+     * @param outgoingQueueDepth Reads the outgoing queue depth. May not be
+     * null.
+     * @param incomingQueueDepth Reads the incoming queue depth. May not be
+     * null.
+     */
+    public TransportMetrics(
+            final IntSupplier outgoingQueueDepth,
+            final IntSupplier incomingQueueDepth) {
+        this(null, outgoingQueueDepth, incomingQueueDepth);
+    }
+
+    /**
+     * @param parent The totals to add to, may be null.
+     * @param outgoingQueueDepth Reads the outgoing queue depth. May not be
+     * null.
+     * @param incomingQueueDepth Reads the incoming queue depth. May not be
+     * null.
+     */
+    public TransportMetrics(
+            final TransportMetrics parent,
+            final IntSupplier outgoingQueueDepth,
+            final IntSupplier incomingQueueDepth) {
+        this.parent = parent;
+        this.outgoingQueueDepth = Preconditions.checkNotNull(outgoingQueueDepth);
+        this.incomingQueueDepth = Preconditions.checkNotNull(incomingQueueDepth);
+    }
+
+    public void messageIn(final int bytes) {
+        this.messagesIn.increment();
+        this.bytesIn.add(bytes);
+        if (this.parent != null) {
+            this.parent.messageIn(bytes);
+        }
+    }
+
+    /**
+     * @param messages The number of messages in the write.
+     * @param bytes The number of bytes in the write.
+     */
+    public void messagesOut(final int messages, final long bytes) {
+        this.messagesOut.add(messages);
+        this.bytesOut.add(bytes);
+        if (this.parent != null) {
+            this.parent.messagesOut(messages, bytes);
+        }
+    }
+
+    /**
+     * @param nanos Time from the write being started until it completed or
+     * failed.
+     */
+    public void writeDone(final long nanos) {
+        this.writes.increment();
+        this.writeNanos.add(nanos);
+        this.maxWriteNanos.accumulate(nanos);
+        if (this.parent != null) {
+            this.parent.writeDone(nanos);
+        }
+    }
+
+    public void droppedIncoming() {
+        this.droppedIncomingMessages.increment();
+        if (this.parent != null) {
+            this.parent.droppedIncoming();
+        }
+    }
+
+    public void droppedOutgoing() {
+        this.droppedOutgoingMessages.increment();
+        if (this.parent != null) {
+            this.parent.droppedOutgoing();
+        }
+    }
+
+    public void queueFull() {
+        this.queueFullCount.increment();
+        if (this.parent != null) {
+            this.parent.queueFull();
+        }
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return this.messagesIn.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return this.bytesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return this.messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.bytesOut.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return this.writes.sum();
+    }
+
+    @Override
+    public double getAverageWriteLatencyMicros() {
+        final long count = getWrites();
+        return count == 0 ? 0 : this.writeNanos.sum() / NANOS_PER_MICRO / count;
+    }
+
+    @Override
+    public double getMaxWriteLatencyMicros() {
+        return this.maxWriteNanos.get() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getDroppedIncomingMessages() {
+        return this.droppedIncomingMessages.sum();
+    }
+
+    @Override
+    public long getDroppedOutgoingMessages() {
+        return this.droppedOutgoingMessages.sum();
+    }
+
+    @Override
+    public long getQueueFullCount() {
+        return this.queueFullCount.sum();
+    }
+
+    @Override
+    public int getOutgoingQueueDepth() {
+        return this.outgoingQueueDepth.getAsInt();
+    }
+
+    @Override
+    public int getIncomingQueueDepth() {
+        return this.incomingQueueDepth.getAsInt();
+    }
+
+    @Override
+    public String toString() {
+        return "in=" + getMessagesIn() + "/" + getBytesIn() + "B"
+                + ", out=" + getMessagesOut() + "/" + getBytesOut() + "B"
+                + ", writes=" + getWrites()
+                + ", avgWriteMicros=" + String.format("%.1f", getAverageWriteLatencyMicros())
+                + ", droppedIn=" + getDroppedIncomingMessages()
+                + ", droppedOut=" + getDroppedOutgoingMessages()
+                + ", queueFull=" + getQueueFullCount();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common;
+
+/**
+ * Traffic counters of a transport or of one of its connections, published
+ * over JMX.
+ */
+public interface TransportMetricsMXBean {
+
+    long getMessagesIn();
+
+    /**
+     * @return Payload bytes received, after inflating.
+     */
+    long getBytesIn();
+
+    long getMessagesOut();
+
+    /**
+     * @return Frame bytes handed to the network, after compressing.
+     */
+    long getBytesOut();
+
+    /**
+     * @return The number of completed writes, a write may hold several
+     * messages.
+     */
+    long getWrites();
+
+    /**
+     * @return Average time from a write being started until it has
+     * completed or failed.
+     */
+    double getAverageWriteLatencyMicros();
+
+    double getMaxWriteLatencyMicros();
+
+    /**
+     * @return Incoming messages thrown away because the incoming queue was
+     * full or the message was stale.
+     */
+    long getDroppedIncomingMessages();
+
+    /**
+     * @return Outgoing snapshots thrown away because a newer snapshot
+     * replaced them. Messages that did not fit in the outgoing queue are
+     * counted by {@link #getQueueFullCount()}.
+     */
+    long getDroppedOutgoingMessages();
+
+    /**
+     * @return The number of times a message could not be queued because the
+     * outgoing queue was full.
+     */
+    long getQueueFullCount();
+
+    int getOutgoingQueueDepth();
+
+    /**
+     * @return The depth of the incoming queue, which is shared by all
+     * connections of a server.
+     */
+    int getIncomingQueueDepth();
+}
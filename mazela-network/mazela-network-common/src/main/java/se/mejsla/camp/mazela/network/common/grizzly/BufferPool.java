@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.grizzly;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.LongAdder;
+import org.glassfish.grizzly.memory.HeapMemoryManager;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.glassfish.grizzly.memory.MemoryProbe;
+import org.glassfish.grizzly.memory.PooledMemoryManager;
+
+/**
+ * The memory outgoing frames are allocated from. A pooled buffer pool keeps
+ * slabs of buffers in a few size classes, each class a growth factor larger
+ * than the previous one. Buffers are returned to the pool when their write
+ * completes so that sending does not produce garbage. Direct pools also save
+ * the copy from heap into native memory on the socket write.
+ * <p>
+ * Frames larger than the largest size class are built from several pooled
+ * buffers.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_BASE_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_NUMBER_OF_SIZE_CLASSES = 4;
+    public static final int DEFAULT_GROWTH_FACTOR = 4;
+    public static final float DEFAULT_PERCENT_OF_HEAP = 0.03f;
+
+    private final MemoryManager memoryManager;
+    private final Statistics statistics = new Statistics();
+
+    private BufferPool(final MemoryManager memoryManager) {
+        this.memoryManager = memoryManager;
+    }
+
+    /**
+     * Create a pool with the given size classes.
+     *
+     * @param baseBufferSize The buffer size of the smallest size class, a
+     * power of two.
+     * @param numberOfSizeClasses The number of size classes. Must be positive.
+     * @param growthFactor How many times larger each size class is than the
+     * previous one. Must be larger than 1.
+     * @param percentOfHeap The total size of the pool as a fraction of the max
+     * heap size, between 0 and 1.
+     * @param direct true to allocate direct (off heap) buffers.
+     */
+    public BufferPool(
+            final int baseBufferSize,
+            final int numberOfSizeClasses,
+            final int growthFactor,
+            final float percentOfHeap,
+            final boolean direct) {
+        Preconditions.checkArgument(
+                baseBufferSize > 0 && Integer.bitCount(baseBufferSize) == 1,
+                "Base buffer size must be a power of two"
+        );
+        Preconditions.checkArgument(
+                numberOfSizeClasses > 0,
+                "Number of size classes must be a positive integer"
+        );
+        Preconditions.checkArgument(
+                growthFactor > 1,
+                "Growth factor must be larger than 1"
+        );
+        Preconditions.checkArgument(
+                percentOfHeap > 0 && percentOfHeap < 1,
+                "Percent of heap must be between 0 and 1"
+        );
+        final PooledMemoryManager pooledMemoryManager = new PooledMemoryManager(
+                baseBufferSize,
+                numberOfSizeClasses,
+                growthFactor,
+                Runtime.getRuntime().availableProcessors(),
+                percentOfHeap,
+                0,
+                direct
+        );
+        pooledMemoryManager.getMonitoringConfig().addProbes(this.statistics);
+        this.memoryManager = pooledMemoryManager;
+    }
+
+    /**
+     * A pool with the default size classes.
+     *
+     * @param direct true to allocate direct (off heap) buffers.
+     * @return A new pool.
+     */
+    public static BufferPool pooled(final boolean direct) {
+        return new BufferPool(
+                DEFAULT_BASE_BUFFER_SIZE,
+                DEFAULT_NUMBER_OF_SIZE_CLASSES,
+                DEFAULT_GROWTH_FACTOR,
+                DEFAULT_PERCENT_OF_HEAP,
+                direct
+        );
+    }
+
+    /**
+     * No pooling, every frame is a new heap buffer. Statistics are not
+     * collected.
+     *
+     * @return A new unpooled buffer pool.
+     */
+    public static BufferPool unpooled() {
+        return new BufferPool(HeapMemoryManager.DEFAULT_MEMORY_MANAGER);
+    }
+
+    public MemoryManager getMemoryManager() {
+        return memoryManager;
+    }
+
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Pool hit and miss counters. A hit is a buffer taken from the pool, a
+     * miss is a buffer the pool had to allocate because it was empty.
+     */
+    public static class Statistics implements MemoryProbe {
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder releases = new LongAdder();
+
+        @Override
+        public void onBufferAllocateEvent(final int size) {
+            this.misses.increment();
+        }
+
+        @Override
+        public void onBufferAllocateFromPoolEvent(final int size) {
+            this.hits.increment();
+        }
+
+        @Override
+        public void onBufferReleaseToPoolEvent(final int size) {
+            this.releases.increment();
+        }
+
+        public long getHits() {
+            return this.hits.sum();
+        }
+
+        public long getMisses() {
+            return this.misses.sum();
+        }
+
+        public long getReleases() {
+            return this.releases.sum();
+        }
+
+        /**
+         * @return The fraction of allocations served from the pool, 0 if
+         * nothing has been allocated.
+         */
+        public double getHitRatio() {
+            final long h = getHits();
+            final long total = h + getMisses();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + getHits() + ", misses=" + getMisses() + ", releases=" + getReleases();
+        }
+    }
+}
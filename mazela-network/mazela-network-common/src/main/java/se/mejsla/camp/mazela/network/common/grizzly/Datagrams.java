@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.grizzly;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.memory.MemoryManager;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+
+/**
+ * Encoding of the datagrams used for unreliable state updates. The server
+ * sends sequence numbered updates, the client sends a hello with its session
+ * UUID so that the server knows which address to send the updates to.
+ */
+public abstract class Datagrams {
+
+    /**
+     * Encode an update datagram.
+     *
+     * @param memoryManager The memory manager to allocate from. May not be
+     * null.
+     * @param sequence The sequence number of the update.
+     * @param payload The payload, from position to limit. The position of the
+     * payload is moved to the limit.
+     * @return The datagram, flipped for reading. Grizzly is not allowed to
+     * dispose it, see {@link ReleaseBufferCompletionHandler}.
+     */
+    public static Buffer encodeUpdate(
+            final MemoryManager memoryManager,
+            final int sequence,
+            final ByteBuffer payload) {
+        Preconditions.checkArgument(
+                payload.remaining() <= MessageUtilities.MAX_DATAGRAM_PAYLOAD,
+                "Payload is too large to fit in a datagram: %s bytes", payload.remaining()
+        );
+        final Buffer datagram = memoryManager.allocate(
+                MessageUtilities.DATAGRAM_HEADER_BYTES + payload.remaining()
+        );
+        datagram.putInt(MessageUtilities.getMagicMarker());
+        datagram.putInt(sequence);
+        datagram.put(payload);
+        datagram.flip();
+        datagram.allowBufferDispose(false);
+        return datagram;
+    }
+
+    /**
+     * Encode a hello datagram.
+     *
+     * @param memoryManager The memory manager to allocate from. May not be
+     * null.
+     * @param sessionID The UUID the server assigned to the stream connection.
+     * @return The datagram, flipped for reading. Grizzly is not allowed to
+     * dispose it, see {@link ReleaseBufferCompletionHandler}.
+     */
+    public static Buffer encodeHello(
+            final MemoryManager memoryManager,
+            final UUID sessionID) {
+        final Buffer datagram
+                = memoryManager.allocate(MessageUtilities.DATAGRAM_HELLO_BYTES);
+        datagram.putInt(MessageUtilities.getMagicMarker());
+        datagram.putLong(sessionID.getMostSignificantBits());
+        datagram.putLong(sessionID.getLeastSignificantBits());
+        datagram.flip();
+        datagram.allowBufferDispose(false);
+        return datagram;
+    }
+
+    /**
+     * Decode a hello datagram.
+     *
+     * @param datagram The received datagram.
+     * @return The session UUID or null if the datagram is not a hello.
+     */
+    public static UUID decodeHello(final Buffer datagram) {
+        if (datagram.remaining() != MessageUtilities.DATAGRAM_HELLO_BYTES
+                || !MessageUtilities.isMagicMarker(datagram.getInt())) {
+            return null;
+        }
+        final long mostSignificant = datagram.getLong();
+        final long leastSignificant = datagram.getLong();
+        return new UUID(mostSignificant, leastSignificant);
+    }
+}
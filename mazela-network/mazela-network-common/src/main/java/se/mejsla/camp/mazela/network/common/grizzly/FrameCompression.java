@@ -0,0 +1,518 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.grizzly;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+import se.mejsla.camp.mazela.network.common.CompressionSettings;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+
+/**
+ * The compression state of one connection. Each direction is one deflate
+ * stream that lasts as long as the connection, every compressed frame ends
+ * with a sync flush. Later frames can refer back to earlier ones, which
+ * compresses the repetitive game updates much better than compressing each
+ * frame on its own. The stream starts from the preset dictionary.
+ * <p>
+ * Because of this the peer must inflate the compressed frames in the order
+ * they were compressed. Whoever compresses a frame must write it before
+ * another frame is compressed for the same connection, for example by
+ * holding the lock of this object.
+ * <p>
+ * Frames are only compressed after the peer has offered to accept them with
+ * the same dictionary, see {@link FrameFilter}. Such a peer also accepts
+ * frames compressed once for many connections, see {@link Shared}.
+ */
+public class FrameCompression {
+
+    private static final Attribute<FrameCompression> ATTRIBUTE
+            = Grizzly.DEFAULT_ATTRIBUTE_BUILDER
+                    .createAttribute(FrameCompression.class.getName());
+
+    /**
+     * Payloads larger than this are never compressed, deflate may expand
+     * incompressible data slightly and the result must still fit in a frame.
+     */
+    private static final int MAX_COMPRESSIBLE_PAYLOAD
+            = MessageUtilities.MAX_FRAME_PAYLOAD - 4096;
+
+    /**
+     * A compressed payload may inflate to at most this many times its own
+     * size, or {@link #MIN_INFLATE_LIMIT}, whichever is larger. Frames that
+     * inflate to more are refused rather than grown towards the largest
+     * frame, so a few bytes on the wire can not claim megabytes of memory.
+     * The stream refers back to earlier frames, so repeated game updates
+     * compress far better than a single frame would, hence the generous
+     * ratio.
+     */
+    private static final int MAX_INFLATE_RATIO = 256;
+    private static final int MIN_INFLATE_LIMIT = 256 * 1024;
+
+    private final CompressionSettings settings;
+    private final Deflater deflater;
+    private final Inflater inflater;
+    /**
+     * Reset for every frame from {@link Shared}, those do not belong to the
+     * stream. Used under the lock of {@link #inflater}, the two share the
+     * input array.
+     */
+    private final Inflater sharedInflater;
+    private final Statistics statistics = new Statistics();
+    private volatile boolean peerAccepts;
+    /**
+     * Set when the connection is closed and the native zlib memory has been
+     * freed.
+     */
+    private boolean ended;
+
+    private byte[] deflateInput = new byte[0];
+    private byte[] deflateOutput = new byte[0];
+    private byte[] inflateInput = new byte[0];
+
+    FrameCompression(final CompressionSettings settings) {
+        this.settings = Preconditions.checkNotNull(settings);
+        this.deflater = new Deflater(settings.getLevel());
+        final byte[] dictionary = settings.getDictionary();
+        if (dictionary.length > 0) {
+            this.deflater.setDictionary(dictionary);
+        }
+        this.inflater = new Inflater();
+        this.sharedInflater = new Inflater();
+    }
+
+    /**
+     * @param connection The connection.
+     * @return The compression state of the connection, null if compression
+     * is not enabled for it.
+     */
+    public static FrameCompression get(final Connection connection) {
+        return ATTRIBUTE.get(connection);
+    }
+
+    static void set(final Connection connection, final FrameCompression compression) {
+        ATTRIBUTE.set(connection, compression);
+    }
+
+    /**
+     * @param payloadLength The length of a payload to send.
+     * @return true if the payload should be sent compressed.
+     */
+    public boolean shouldCompress(final int payloadLength) {
+        return this.peerAccepts
+                && payloadLength >= this.settings.getThreshold()
+                && payloadLength <= MAX_COMPRESSIBLE_PAYLOAD;
+    }
+
+    /**
+     * @return true if the peer accepts compressed frames.
+     */
+    public boolean isPeerAccepting() {
+        return this.peerAccepts;
+    }
+
+    /**
+     * Called when the peer has offered to accept compressed frames.
+     *
+     * @param dictionaryId The id of the dictionary the peer uses.
+     * @return true if the peer uses our dictionary and frames will be
+     * compressed from now on.
+     */
+    boolean peerOffered(final int dictionaryId) {
+        if (dictionaryId != this.settings.getDictionaryId()) {
+            return false;
+        }
+        this.peerAccepts = true;
+        return true;
+    }
+
+    /**
+     * Compress the payload into a frame. The caller must write the frame
+     * before any other frame is compressed for the connection.
+     *
+     * @param memoryManager The memory manager to allocate the frame from.
+     * @param payload The payload, from position to limit. The position of the
+     * payload is moved to the limit.
+     * @return A frame ready to be written, see {@link FrameFilter#encode}.
+     * The frame is not compressed if the connection has been closed.
+     */
+    public synchronized Buffer compress(
+            final MemoryManager memoryManager,
+            final ByteBuffer payload) {
+        if (this.ended) {
+            return FrameFilter.encode(memoryManager, payload);
+        }
+        final int payloadLength = payload.remaining();
+        final byte[] input;
+        final int inputOffset;
+        if (payload.hasArray()) {
+            input = payload.array();
+            inputOffset = payload.arrayOffset() + payload.position();
+            payload.position(payload.limit());
+        } else {
+            if (this.deflateInput.length < payloadLength) {
+                this.deflateInput = new byte[payloadLength];
+            }
+            payload.get(this.deflateInput, 0, payloadLength);
+            input = this.deflateInput;
+            inputOffset = 0;
+        }
+        final long start = System.nanoTime();
+        this.deflater.setInput(input, inputOffset, payloadLength);
+        if (this.deflateOutput.length < payloadLength / 2 + 64) {
+            this.deflateOutput = new byte[payloadLength / 2 + 64];
+        }
+        int compressedLength = 0;
+        while (true) {
+            compressedLength += this.deflater.deflate(
+                    this.deflateOutput,
+                    compressedLength,
+                    this.deflateOutput.length - compressedLength,
+                    Deflater.SYNC_FLUSH
+            );
+            if (compressedLength < this.deflateOutput.length) {
+                break;
+            }
+            this.deflateOutput = Arrays.copyOf(this.deflateOutput, this.deflateOutput.length * 2);
+        }
+        this.statistics.compressNanos.add(System.nanoTime() - start);
+        this.statistics.compressedFrames.increment();
+        this.statistics.uncompressedBytes.add(payloadLength);
+        this.statistics.compressedBytes.add(compressedLength);
+
+        final Buffer frame = Preconditions.checkNotNull(memoryManager)
+                .allocate(MessageUtilities.FRAME_HEADER_BYTES + compressedLength);
+        frame.putInt(MessageUtilities.getMagicMarker());
+        frame.putInt(compressedLength | MessageUtilities.FRAME_FLAG_COMPRESSED);
+        frame.put(this.deflateOutput, 0, compressedLength);
+        frame.flip();
+        frame.allowBufferDispose(false);
+        return frame;
+    }
+
+    /**
+     * Inflate the payload of a compressed frame.
+     *
+     * @param payload The compressed payload, from position to limit.
+     * @return The inflated payload in a new heap buffer.
+     * @throws DataFormatException If the payload is not part of the peer's
+     * deflate stream or inflates to more than the ratio allows, the
+     * connection can not be used after this.
+     */
+    Buffer inflate(final Buffer payload) throws DataFormatException {
+        synchronized (this.inflater) {
+            return inflate(this.inflater, payload);
+        }
+    }
+
+    /**
+     * Inflate the payload of a frame compressed on its own, see
+     * {@link Shared}. The deflate stream of the connection is not touched.
+     *
+     * @param payload The compressed payload, from position to limit.
+     * @return The inflated payload in a new heap buffer.
+     * @throws DataFormatException If the payload is not a complete deflate
+     * stream from the preset dictionary or inflates to more than the ratio
+     * allows.
+     */
+    Buffer inflateShared(final Buffer payload) throws DataFormatException {
+        synchronized (this.inflater) {
+            if (!this.ended) {
+                this.sharedInflater.reset();
+            }
+            final Buffer inflated = inflate(this.sharedInflater, payload);
+            if (!this.sharedInflater.finished()) {
+                throw new DataFormatException("Shared frame is not a complete deflate stream");
+            }
+            return inflated;
+        }
+    }
+
+    private Buffer inflate(final Inflater inflater, final Buffer payload)
+            throws DataFormatException {
+        if (this.ended) {
+            throw new DataFormatException("Connection is closed");
+        }
+        final int compressedLength = payload.remaining();
+        if (payload.hasArray()) {
+            inflater.setInput(
+                    payload.array(),
+                    payload.arrayOffset() + payload.position(),
+                    compressedLength
+            );
+        } else {
+            if (this.inflateInput.length < compressedLength) {
+                this.inflateInput = new byte[compressedLength];
+            }
+            payload.get(this.inflateInput, 0, compressedLength);
+            inflater.setInput(this.inflateInput, 0, compressedLength);
+        }
+        final int inflateLimit = inflateLimit(compressedLength);
+        final long start = System.nanoTime();
+        byte[] output = new byte[Math.min(inflateLimit, Math.max(256, compressedLength * 4))];
+        int length = 0;
+        while (true) {
+            final int inflated
+                    = inflater.inflate(output, length, output.length - length);
+            length += inflated;
+            if (inflated == 0 && inflater.needsDictionary()) {
+                final byte[] dictionary = this.settings.getDictionary();
+                if (dictionary.length == 0
+                        || inflater.getAdler() != this.settings.getDictionaryId()) {
+                    throw new DataFormatException("Peer compressed with an unknown dictionary");
+                }
+                inflater.setDictionary(dictionary);
+            } else if (length == output.length) {
+                if (output.length >= inflateLimit) {
+                    throw new DataFormatException("Payload of " + compressedLength
+                            + " bytes inflates to more than " + inflateLimit + " bytes");
+                }
+                output = Arrays.copyOf(output, Math.min(output.length * 2, inflateLimit));
+            } else if (inflated == 0 || inflater.needsInput()) {
+                break;
+            }
+        }
+        this.statistics.inflateNanos.add(System.nanoTime() - start);
+        this.statistics.inflatedFrames.increment();
+        return Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, output, 0, length);
+    }
+
+    private static int inflateLimit(final int compressedLength) {
+        final long limit = Math.max(
+                MIN_INFLATE_LIMIT,
+                (long) compressedLength * MAX_INFLATE_RATIO
+        );
+        return (int) Math.min(limit, MessageUtilities.MAX_FRAME_PAYLOAD);
+    }
+
+    /**
+     * Free the native zlib memory, called when the connection is closed.
+     * Frames compressed after this are sent uncompressed.
+     */
+    void end() {
+        synchronized (this) {
+            this.ended = true;
+            this.deflater.end();
+        }
+        synchronized (this.inflater) {
+            this.inflater.end();
+            this.sharedInflater.end();
+        }
+    }
+
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Compresses frames that are written to many connections, such as
+     * broadcast game state. Each frame is deflated once, on its own and from
+     * the preset dictionary, so that any peer that accepts compressed frames
+     * can inflate it whatever else it has been sent. Such a frame does not
+     * refer back to earlier frames and compresses less than the stream of a
+     * connection would, but it costs one deflate however many connections
+     * it is written to.
+     */
+    public static class Shared {
+
+        private final CompressionSettings settings;
+        private final Deflater deflater;
+        private final Statistics statistics = new Statistics();
+        private boolean ended;
+        private byte[] deflateInput = new byte[0];
+        private byte[] deflateOutput = new byte[0];
+
+        /**
+         * @param settings The settings the connections compress with. May
+         * not be null.
+         */
+        public Shared(final CompressionSettings settings) {
+            this.settings = Preconditions.checkNotNull(settings);
+            this.deflater = new Deflater(settings.getLevel());
+        }
+
+        /**
+         * @param payloadLength The length of a payload to send.
+         * @return true if the payload should be compressed.
+         */
+        public boolean shouldCompress(final int payloadLength) {
+            return this.settings.isEnabled()
+                    && payloadLength >= this.settings.getThreshold()
+                    && payloadLength <= MAX_COMPRESSIBLE_PAYLOAD;
+        }
+
+        /**
+         * Compress the payload into a frame flagged with
+         * {@link MessageUtilities#FRAME_FLAG_SHARED_COMPRESSED}.
+         *
+         * @param memoryManager The memory manager to allocate the frame from.
+         * @param payload The payload, from position to limit. Not moved.
+         * @return A frame ready to be written, or null if the payload does
+         * not get smaller or the compressor has been ended.
+         */
+        public synchronized Buffer compress(
+                final MemoryManager memoryManager,
+                final ByteBuffer payload) {
+            if (this.ended) {
+                return null;
+            }
+            final int payloadLength = payload.remaining();
+            final byte[] input;
+            final int inputOffset;
+            if (payload.hasArray()) {
+                input = payload.array();
+                inputOffset = payload.arrayOffset() + payload.position();
+            } else {
+                if (this.deflateInput.length < payloadLength) {
+                    this.deflateInput = new byte[payloadLength];
+                }
+                payload.duplicate().get(this.deflateInput, 0, payloadLength);
+                input = this.deflateInput;
+                inputOffset = 0;
+            }
+            final long start = System.nanoTime();
+            this.deflater.reset();
+            final byte[] dictionary = this.settings.getDictionary();
+            if (dictionary.length > 0) {
+                this.deflater.setDictionary(dictionary);
+            }
+            this.deflater.setInput(input, inputOffset, payloadLength);
+            this.deflater.finish();
+            if (this.deflateOutput.length < payloadLength / 2 + 64) {
+                this.deflateOutput = new byte[payloadLength / 2 + 64];
+            }
+            int compressedLength = 0;
+            while (!this.deflater.finished()) {
+                if (compressedLength == this.deflateOutput.length) {
+                    this.deflateOutput = Arrays.copyOf(this.deflateOutput, this.deflateOutput.length * 2);
+                }
+                compressedLength += this.deflater.deflate(
+                        this.deflateOutput,
+                        compressedLength,
+                        this.deflateOutput.length - compressedLength
+                );
+            }
+            this.statistics.compressNanos.add(System.nanoTime() - start);
+            if (compressedLength >= payloadLength) {
+                return null;
+            }
+            this.statistics.compressedFrames.increment();
+            this.statistics.uncompressedBytes.add(payloadLength);
+            this.statistics.compressedBytes.add(compressedLength);
+
+            final Buffer frame = Preconditions.checkNotNull(memoryManager)
+                    .allocate(MessageUtilities.FRAME_HEADER_BYTES + compressedLength);
+            frame.putInt(MessageUtilities.getMagicMarker());
+            frame.putInt(compressedLength | MessageUtilities.FRAME_FLAG_SHARED_COMPRESSED);
+            frame.put(this.deflateOutput, 0, compressedLength);
+            frame.flip();
+            frame.allowBufferDispose(false);
+            return frame;
+        }
+
+        /**
+         * Free the native zlib memory. Nothing is compressed after this.
+         */
+        public synchronized void end() {
+            this.ended = true;
+            this.deflater.end();
+        }
+
+        /**
+         * @return The counters of the frames compressed here, each counted
+         * once however many connections it was written to.
+         */
+        public Statistics getStatistics() {
+            return statistics;
+        }
+    }
+
+    /**
+     * Compression counters for one connection, or for the frames compressed
+     * by a {@link Shared}. Times are measured on the
+     * thread doing the work, deflate and inflate never block so they are
+     * the CPU time spent.
+     */
+    public static class Statistics {
+
+        private final LongAdder compressedFrames = new LongAdder();
+        private final LongAdder uncompressedBytes = new LongAdder();
+        private final LongAdder compressedBytes = new LongAdder();
+        private final LongAdder compressNanos = new LongAdder();
+        private final LongAdder inflatedFrames = new LongAdder();
+        private final LongAdder inflateNanos = new LongAdder();
+
+        public long getCompressedFrames() {
+            return this.compressedFrames.sum();
+        }
+
+        /**
+         * @return The payload bytes of the compressed frames before
+         * compression.
+         */
+        public long getUncompressedBytes() {
+            return this.uncompressedBytes.sum();
+        }
+
+        /**
+         * @return The payload bytes of the compressed frames after
+         * compression.
+         */
+        public long getCompressedBytes() {
+            return this.compressedBytes.sum();
+        }
+
+        /**
+         * @return Compressed size divided by uncompressed size, 1 if nothing
+         * has been compressed.
+         */
+        public double getCompressionRatio() {
+            final long uncompressed = getUncompressedBytes();
+            return uncompressed == 0 ? 1 : (double) getCompressedBytes() / uncompressed;
+        }
+
+        public long getCompressNanos() {
+            return this.compressNanos.sum();
+        }
+
+        public long getInflatedFrames() {
+            return this.inflatedFrames.sum();
+        }
+
+        public long getInflateNanos() {
+            return this.inflateNanos.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "compressed=" + getCompressedFrames()
+                    + ", ratio=" + String.format("%.3f", getCompressionRatio())
+                    + ", compressNanos=" + getCompressNanos()
+                    + ", inflated=" + getInflatedFrames()
+                    + ", inflateNanos=" + getInflateNanos();
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.grizzly;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.common.BulkReceiver;
+import se.mejsla.camp.mazela.network.common.CompressionSettings;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping;
+import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong;
+
+/**
+ * Splits the TCP byte stream into length prefixed frames. Each frame is the
+ * magic marker, the payload length and flags and then the payload.
+ * <p>
+ * A single read may hold several frames or only a part of one. Complete frames
+ * are passed on to the next filter one at a time, positioned at the start of
+ * the payload. Incomplete frames are kept by grizzly and the next read is
+ * appended to them.
+ * <p>
+ * When compression is enabled each end offers to accept compressed frames as
+ * soon as the connection is established, with a control frame. Compressed
+ * payloads are passed on as they arrived, marked with
+ * {@link #isCompressed(FilterChainContext)}, and inflated by an
+ * {@link InflateFilter} further down the chain. Filters in between, such as
+ * a rate limit, see the bytes that came over the wire.
+ * <p>
+ * Pings from the peer are answered here and pongs update the
+ * {@link Heartbeat} of the connection, neither is passed on. A server full
+ * reply marks the connection, see {@link #isServerFull(Connection)}. Bulk
+ * transfer chunks go to the {@link BulkReceiver} of the connection, see
+ * {@link #setBulkReceiver(Connection, BulkReceiver)}.
+ */
+public class FrameFilter extends BaseFilter {
+
+    private static final Attribute<Boolean> SERVER_FULL_ATTRIBUTE
+            = Grizzly.DEFAULT_ATTRIBUTE_BUILDER
+                    .createAttribute(FrameFilter.class.getName() + ".serverFull");
+    private static final int COMPRESSION_FLAGS
+            = MessageUtilities.FRAME_FLAG_COMPRESSED
+            | MessageUtilities.FRAME_FLAG_SHARED_COMPRESSED;
+    /**
+     * The compression flags of the frame passed on, 0 if it is not
+     * compressed.
+     */
+    private static final Attribute<Integer> COMPRESSION_ATTRIBUTE
+            = Grizzly.DEFAULT_ATTRIBUTE_BUILDER
+                    .createAttribute(FrameFilter.class.getName() + ".compression");
+    private static final Attribute<BulkReceiver> BULK_RECEIVER_ATTRIBUTE
+            = Grizzly.DEFAULT_ATTRIBUTE_BUILDER
+                    .createAttribute(FrameFilter.class.getName() + ".bulkReceiver");
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final CompressionSettings compressionSettings;
+
+    public FrameFilter() {
+        this(CompressionSettings.disabled());
+    }
+
+    /**
+     * @param compressionSettings How to compress frames. May not be null.
+     */
+    public FrameFilter(final CompressionSettings compressionSettings) {
+        this.compressionSettings = Preconditions.checkNotNull(compressionSettings);
+    }
+
+    @Override
+    public NextAction handleAccept(final FilterChainContext ctx) throws IOException {
+        Heartbeat.set(ctx.getConnection(), new Heartbeat());
+        offerCompression(ctx.getConnection());
+        return ctx.getInvokeAction();
+    }
+
+    @Override
+    public NextAction handleConnect(final FilterChainContext ctx) throws IOException {
+        Heartbeat.set(ctx.getConnection(), new Heartbeat());
+        offerCompression(ctx.getConnection());
+        return ctx.getInvokeAction();
+    }
+
+    private void offerCompression(final Connection connection) {
+        if (!this.compressionSettings.isEnabled()) {
+            return;
+        }
+        FrameCompression.set(connection, new FrameCompression(this.compressionSettings));
+        final ByteBuffer dictionaryId = ByteBuffer.allocate(Integer.BYTES);
+        dictionaryId.putInt(0, this.compressionSettings.getDictionaryId());
+        writeControl(connection, MessageUtilities.CONTROL_COMPRESSION_OFFER, dictionaryId.array());
+    }
+
+    /**
+     * Write a control frame.
+     *
+     * @param connection The connection to write to.
+     * @param type The control type.
+     * @param body What follows the type in the payload.
+     */
+    static void writeControl(
+            final Connection connection,
+            final byte type,
+            final byte[] body) {
+        writeControl(connection, type, body, null);
+    }
+
+    /**
+     * Tell a newly accepted client that the server is full and close the
+     * connection once the reply has been written.
+     *
+     * @param connection The connection to refuse.
+     */
+    public static void refuse(final Connection connection) {
+        writeControl(
+                connection,
+                MessageUtilities.CONTROL_SERVER_FULL,
+                new byte[0],
+                connection::closeSilently
+        );
+    }
+
+    /**
+     * @param connection The connection.
+     * @return true if the server refused the connection because it was full.
+     */
+    public static boolean isServerFull(final Connection connection) {
+        return Boolean.TRUE.equals(SERVER_FULL_ATTRIBUTE.get(connection));
+    }
+
+    /**
+     * @param ctx The context of a message passed on by this filter.
+     * @return true if the payload of the message is still compressed.
+     */
+    static boolean isCompressed(final FilterChainContext ctx) {
+        return compressionFlags(ctx) != 0;
+    }
+
+    /**
+     * @param ctx The context of a message passed on by this filter.
+     * @return true if the payload of the message was compressed on its own
+     * rather than as part of the deflate stream of the connection, see
+     * {@link MessageUtilities#FRAME_FLAG_SHARED_COMPRESSED}.
+     */
+    static boolean isSharedCompressed(final FilterChainContext ctx) {
+        return (compressionFlags(ctx) & MessageUtilities.FRAME_FLAG_SHARED_COMPRESSED) != 0;
+    }
+
+    private static int compressionFlags(final FilterChainContext ctx) {
+        final Integer flags = COMPRESSION_ATTRIBUTE.get(ctx);
+        return flags != null ? flags : 0;
+    }
+
+    /**
+     * @param connection The connection.
+     * @param receiver Gets the bulk transfer chunks that arrive on the
+     * connection. Without a receiver they are ignored.
+     */
+    public static void setBulkReceiver(
+            final Connection connection,
+            final BulkReceiver receiver) {
+        BULK_RECEIVER_ATTRIBUTE.set(connection, receiver);
+    }
+
+    /**
+     * @param afterWrite Run when the write has completed or failed, may be
+     * null.
+     */
+    private static void writeControl(
+            final Connection connection,
+            final byte type,
+            final byte[] body,
+            final Runnable afterWrite) {
+        final Buffer frame = encodeControl(
+                MemoryManager.DEFAULT_MEMORY_MANAGER,
+                type,
+                ByteBuffer.wrap(body)
+        );
+        connection.write(frame, new ReleaseBufferCompletionHandler(frame, afterWrite));
+    }
+
+    @Override
+    public NextAction handleClose(final FilterChainContext ctx) throws IOException {
+        final FrameCompression compression = FrameCompression.get(ctx.getConnection());
+        if (compression != null) {
+            compression.end();
+        }
+        return ctx.getInvokeAction();
+    }
+
+    @Override
+    public NextAction handleRead(final FilterChainContext ctx) throws IOException {
+        Buffer input = ctx.getMessage();
+        final Heartbeat heartbeat = Heartbeat.get(ctx.getConnection());
+        if (heartbeat != null) {
+            heartbeat.heard();
+        }
+        // Control frames are consumed here, keep going until a message or an
+        // incomplete frame is found
+        while (true) {
+            if (input.remaining() < MessageUtilities.FRAME_HEADER_BYTES) {
+                return ctx.getStopAction(input);
+            }
+            final int frameStart = input.position();
+            final int magicMarker = input.getInt(frameStart);
+            final int lengthWord = input.getInt(frameStart + Integer.BYTES);
+            if (!MessageUtilities.isMagicMarker(magicMarker)) {
+                // The stream is out of sync, there is no way to find the next frame
+                log.info("Frame is not prefixed with magic marker, closing connection");
+                ctx.getConnection().closeSilently();
+                return ctx.getStopAction();
+            }
+            if (!MessageUtilities.isValidLengthWord(lengthWord)) {
+                log.info("Frame length word {} is not valid, closing connection", Integer.toHexString(lengthWord));
+                ctx.getConnection().closeSilently();
+                return ctx.getStopAction();
+            }
+            final int payloadLength = MessageUtilities.getPayloadLength(lengthWord);
+            final int frameEnd
+                    = frameStart + MessageUtilities.FRAME_HEADER_BYTES + payloadLength;
+            if (input.limit() < frameEnd) {
+                return ctx.getStopAction(input);
+            }
+            final Buffer remainder
+                    = (input.limit() > frameEnd) ? input.split(frameEnd) : null;
+            input.position(frameStart + MessageUtilities.FRAME_HEADER_BYTES);
+            if ((lengthWord & MessageUtilities.FRAME_FLAG_CONTROL) != 0) {
+                handleControl(ctx.getConnection(), input);
+                input.tryDispose();
+                if (remainder == null) {
+                    return ctx.getStopAction();
+                }
+                input = remainder;
+                continue;
+            }
+            // The context is reused for the remainder, always set the mark
+            COMPRESSION_ATTRIBUTE.set(ctx, lengthWord & COMPRESSION_FLAGS);
+            ctx.setMessage(input);
+            return ctx.getInvokeAction(remainder);
+        }
+    }
+
+    private void handleControl(final Connection connection, final Buffer payload) {
+        if (!payload.hasRemaining()) {
+            log.debug("Ignoring empty control frame from: {}", connection.getPeerAddress());
+            return;
+        }
+        final byte type = payload.get();
+        switch (type) {
+            case MessageUtilities.CONTROL_COMPRESSION_OFFER:
+                if (payload.remaining() == Integer.BYTES) {
+                    handleCompressionOffer(connection, payload.getInt());
+                    return;
+                }
+                break;
+            case MessageUtilities.CONTROL_PING:
+                try {
+                    Heartbeat.pong(connection, Ping.parseFrom(remainingBytes(payload)));
+                    return;
+                } catch (InvalidProtocolBufferException ex) {
+                    break;
+                }
+            case MessageUtilities.CONTROL_PONG:
+                try {
+                    final Pong pong = Pong.parseFrom(remainingBytes(payload));
+                    final Heartbeat heartbeat = Heartbeat.get(connection);
+                    if (heartbeat != null) {
+                        heartbeat.pongReceived(pong);
+                    }
+                    return;
+                } catch (InvalidProtocolBufferException ex) {
+                    break;
+                }
+            case MessageUtilities.CONTROL_SERVER_FULL:
+                log.info("Server is full: {}", connection.getPeerAddress());
+                SERVER_FULL_ATTRIBUTE.set(connection, Boolean.TRUE);
+                return;
+            case MessageUtilities.CONTROL_BULK_CHUNK:
+                final BulkReceiver receiver = BULK_RECEIVER_ATTRIBUTE.get(connection);
+                if (receiver == null) {
+                    log.debug("Ignoring bulk chunk, no receiver: {}", connection.getPeerAddress());
+                    return;
+                }
+                if (receiver.chunk(payload.toByteBuffer())) {
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        log.debug("Ignoring unknown control frame from: {}", connection.getPeerAddress());
+    }
+
+    private void handleCompressionOffer(final Connection connection, final int dictionaryId) {
+        final FrameCompression compression = FrameCompression.get(connection);
+        if (compression == null) {
+            log.debug("Peer offered compression but it is not enabled: {}", connection.getPeerAddress());
+        } else if (compression.peerOffered(dictionaryId)) {
+            log.debug("Compressing frames to: {}", connection.getPeerAddress());
+        } else {
+            log.info("Peer offered compression with another dictionary: {}", connection.getPeerAddress());
+        }
+    }
+
+    private static byte[] remainingBytes(final Buffer payload) {
+        final byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Wrap a control message in a frame.
+     *
+     * @param memoryManager The memory manager to allocate the frame from. May
+     * not be null.
+     * @param type The control type.
+     * @param body What follows the type in the payload, from position to
+     * limit. The position is moved to the limit.
+     * @return A frame ready to be written, owned by the caller like the
+     * frames from {@link #encode(MemoryManager, ByteBuffer)}.
+     */
+    public static Buffer encodeControl(
+            final MemoryManager memoryManager,
+            final byte type,
+            final ByteBuffer body) {
+        final int payloadLength = 1 + body.remaining();
+        Preconditions.checkArgument(
+                MessageUtilities.isValidPayloadLength(payloadLength),
+                "Control body is too large to fit in a frame: %s bytes", body.remaining()
+        );
+        final Buffer frame = Preconditions.checkNotNull(memoryManager)
+                .allocate(MessageUtilities.FRAME_HEADER_BYTES + payloadLength);
+        frame.putInt(MessageUtilities.getMagicMarker());
+        frame.putInt(payloadLength | MessageUtilities.FRAME_FLAG_CONTROL);
+        frame.put(type);
+        frame.put(body);
+        frame.flip();
+        frame.allowBufferDispose(false);
+        return frame;
+    }
+
+    /**
+     * Wrap the payload in a frame.
+     *
+     * @param memoryManager The memory manager to allocate the frame from. May
+     * not be null.
+     * @param payload The payload, from position to limit. The position of the
+     * payload is moved to the limit.
+     * @return A frame ready to be written, flipped for reading. Grizzly is
+     * not allowed to dispose the frame, the owner disposes it when the write
+     * has completed. See {@link ReleaseBufferCompletionHandler}.
+     */
+    public static Buffer encode(final MemoryManager memoryManager, final ByteBuffer payload) {
+        final int payloadLength = payload.remaining();
+        Preconditions.checkArgument(
+                MessageUtilities.isValidPayloadLength(payloadLength),
+                "Payload is too large to fit in a frame: %s bytes", payloadLength
+        );
+        final Buffer frame = Preconditions.checkNotNull(memoryManager)
+                .allocate(MessageUtilities.FRAME_HEADER_BYTES + payloadLength);
+        frame.putInt(MessageUtilities.getMagicMarker());
+        frame.putInt(payloadLength);
+        frame.put(payload);
+        frame.flip();
+        frame.allowBufferDispose(false);
+        return frame;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.grizzly;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.RoundTripEstimator;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping;
+import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong;
+
+/**
+ * The heartbeat state of one connection: when the peer was last heard from
+ * and the round trip time measured by ping and pong control frames. Pings
+ * carry the time they were sent on our own clock and the pong echoes it, so
+ * the two ends never have to agree on the time.
+ * <p>
+ * The transport decides when to ping and what to do with a silent peer, the
+ * {@link FrameFilter} answers pings and feeds pongs back here.
+ */
+public class Heartbeat {
+
+    private static final Attribute<Heartbeat> ATTRIBUTE
+            = Grizzly.DEFAULT_ATTRIBUTE_BUILDER
+                    .createAttribute(Heartbeat.class.getName());
+
+    private final AtomicInteger nextSequence = new AtomicInteger();
+    private volatile long lastHeardNanos = System.nanoTime();
+
+    private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator();
+
+    Heartbeat() {
+    }
+
+    /**
+     * @param connection The connection.
+     * @return The heartbeat state of the connection, null if the connection
+     * has not been established through a {@link FrameFilter}.
+     */
+    public static Heartbeat get(final Connection connection) {
+        return ATTRIBUTE.get(connection);
+    }
+
+    static void set(final Connection connection, final Heartbeat heartbeat) {
+        ATTRIBUTE.set(connection, heartbeat);
+    }
+
+    /**
+     * Called for every read from the peer.
+     */
+    void heard() {
+        this.lastHeardNanos = System.nanoTime();
+    }
+
+    /**
+     * @param now The current {@link System#nanoTime()}.
+     * @return How long it is since anything was read from the peer.
+     */
+    public long getSilentNanos(final long now) {
+        return now - this.lastHeardNanos;
+    }
+
+    /**
+     * Send a ping to the peer.
+     *
+     * @param connection The connection this is the heartbeat of.
+     */
+    public void ping(final Connection connection) {
+        final Ping ping = Ping.newBuilder()
+                .setSequence(this.nextSequence.getAndIncrement())
+                .setSendTime(System.nanoTime())
+                .build();
+        FrameFilter.writeControl(connection, MessageUtilities.CONTROL_PING, ping.toByteArray());
+    }
+
+    /**
+     * Answer a ping from the peer.
+     */
+    static void pong(final Connection connection, final Ping ping) {
+        final Pong pong = Pong.newBuilder()
+                .setSequence(ping.getSequence())
+                .setPingSendTime(ping.getSendTime())
+                .build();
+        FrameFilter.writeControl(connection, MessageUtilities.CONTROL_PONG, pong.toByteArray());
+    }
+
+    /**
+     * Update the estimate with the round trip of a pong.
+     */
+    void pongReceived(final Pong pong) {
+        this.roundTripEstimator.sample(System.nanoTime() - pong.getPingSendTime());
+    }
+
+    /**
+     * @return The latest estimate, {@link RoundTripTime#UNKNOWN} until the
+     * first pong.
+     */
+    public RoundTripTime getRoundTripTime() {
+        return this.roundTripEstimator.get();
+    }
+}
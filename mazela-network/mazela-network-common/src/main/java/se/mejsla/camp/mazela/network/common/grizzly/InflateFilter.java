@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.grizzly;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inflates the payloads the {@link FrameFilter} marked as compressed, so the
+ * next filter always gets the plain payload. Kept apart from the frame
+ * filter so that a rate limit can sit between them and count the compressed
+ * bytes: a frame over the limit is refused before it is inflated. Frames
+ * compressed once for many connections are inflated on their own, the others
+ * as part of the deflate stream of the connection. A payload that inflates
+ * to more than {@link FrameCompression} allows closes the connection.
+ */
+public class InflateFilter extends BaseFilter {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Override
+    public NextAction handleRead(final FilterChainContext ctx) throws IOException {
+        if (!FrameFilter.isCompressed(ctx)) {
+            return ctx.getInvokeAction();
+        }
+        final Connection connection = ctx.getConnection();
+        final Buffer payload = ctx.getMessage();
+        final FrameCompression compression = FrameCompression.get(connection);
+        if (compression == null) {
+            log.info("Compressed frame but compression was never offered, closing connection");
+            payload.tryDispose();
+            connection.closeSilently();
+            return ctx.getStopAction();
+        }
+        final Buffer inflated;
+        try {
+            inflated = FrameFilter.isSharedCompressed(ctx)
+                    ? compression.inflateShared(payload)
+                    : compression.inflate(payload);
+        } catch (DataFormatException ex) {
+            log.info("Unable to inflate frame from {}, closing connection", connection.getPeerAddress(), ex);
+            connection.closeSilently();
+            return ctx.getStopAction();
+        } finally {
+            payload.tryDispose();
+        }
+        ctx.setMessage(inflated);
+        return ctx.getInvokeAction();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.grizzly;
+
+import com.google.common.base.Preconditions;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+
+/**
+ * Disposes a written buffer once the write has completed, failed or been
+ * cancelled. For pooled buffers this returns the memory to the pool.
+ * <p>
+ * The buffer must not allow grizzly to dispose it, see
+ * {@link Buffer#allowBufferDispose(boolean)}, or it would be disposed twice.
+ */
+public class ReleaseBufferCompletionHandler extends EmptyCompletionHandler {
+
+    private final Buffer buffer;
+    private final Runnable afterRelease;
+
+    public ReleaseBufferCompletionHandler(final Buffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * @param buffer The buffer to dispose. May not be null.
+     * @param afterRelease Run after the buffer has been disposed. May be null.
+     */
+    public ReleaseBufferCompletionHandler(final Buffer buffer, final Runnable afterRelease) {
+        this.buffer = Preconditions.checkNotNull(buffer);
+        this.afterRelease = afterRelease;
+    }
+
+    @Override
+    public void completed(final Object result) {
+        release();
+    }
+
+    @Override
+    public void failed(final Throwable throwable) {
+        release();
+    }
+
+    @Override
+    public void cancelled() {
+        release();
+    }
+
+    private void release() {
+        this.buffer.dispose();
+        if (this.afterRelease != null) {
+            this.afterRelease.run();
+        }
+    }
+}
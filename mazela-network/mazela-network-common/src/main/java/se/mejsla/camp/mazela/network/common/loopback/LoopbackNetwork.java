@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.loopback;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+
+/**
+ * The in-process network that loopback servers listen on and loopback
+ * clients connect through. Ports only exist inside this JVM, they never
+ * clash with real sockets.
+ * <p>
+ * Messages obey the same rules as over the wire: a payload must fit in a
+ * frame and is copied when it is sent, so the sender may reuse its buffer
+ * and the receiver owns what it gets.
+ */
+public final class LoopbackNetwork {
+
+    private static final ConcurrentMap<Integer, Function<LoopbackPeer, LoopbackPeer>> LISTENERS
+            = new ConcurrentHashMap<>();
+
+    private LoopbackNetwork() {
+    }
+
+    /**
+     * Start accepting connections on a port.
+     *
+     * @param port The port.
+     * @param acceptor Called with the client end of every new connection,
+     * returns the server end. May not be null.
+     * @throws IllegalStateException If something already listens on the
+     * port.
+     */
+    public static void listen(
+            final int port,
+            final Function<LoopbackPeer, LoopbackPeer> acceptor) {
+        Preconditions.checkNotNull(acceptor);
+        if (LISTENERS.putIfAbsent(port, acceptor) != null) {
+            throw new IllegalStateException("Loopback port already in use: " + port);
+        }
+    }
+
+    /**
+     * Stop accepting connections, connections already made are not affected.
+     *
+     * @param port The port.
+     * @param acceptor The acceptor that listens on the port.
+     */
+    public static void close(
+            final int port,
+            final Function<LoopbackPeer, LoopbackPeer> acceptor) {
+        LISTENERS.remove(port, acceptor);
+    }
+
+    /**
+     * Connect to a port.
+     *
+     * @param port The port.
+     * @param client The client end of the connection. May not be null.
+     * @return The server end, null if nothing listens on the port or the
+     * server refused the connection.
+     */
+    public static LoopbackPeer connect(final int port, final LoopbackPeer client) {
+        Preconditions.checkNotNull(client);
+        final Function<LoopbackPeer, LoopbackPeer> acceptor = LISTENERS.get(port);
+        return acceptor != null ? acceptor.apply(client) : null;
+    }
+
+    /**
+     * Copy a payload the way framing does.
+     *
+     * @param data The payload, from position to limit. The position is moved
+     * to the limit.
+     * @return A copy the receiver can own.
+     * @throws IllegalArgumentException If the payload does not fit in a frame.
+     */
+    public static ByteBuffer copy(final ByteBuffer data) {
+        final int payloadLength = data.remaining();
+        Preconditions.checkArgument(
+                MessageUtilities.isValidPayloadLength(payloadLength),
+                "Payload is too large to fit in a frame: %s bytes", payloadLength
+        );
+        final ByteBuffer copy = ByteBuffer.allocate(payloadLength);
+        copy.put(data);
+        copy.flip();
+        return copy;
+    }
+}
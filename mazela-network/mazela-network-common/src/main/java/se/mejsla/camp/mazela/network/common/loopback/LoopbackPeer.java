@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.loopback;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One end of an in-process connection. Each end holds the peer of the other
+ * end and hands messages straight to it, on the sending thread.
+ */
+public interface LoopbackPeer {
+
+    /**
+     * Take a message from the other end. The receiver owns the buffer, the
+     * sender never touches it again.
+     *
+     * @param payload The message, positioned at the payload.
+     */
+    void receive(ByteBuffer payload);
+
+    /**
+     * The other end has closed the connection. Called at most once.
+     */
+    void disconnected();
+
+    /**
+     * The server refused the connection because it is full, called on the
+     * client end instead of connecting.
+     */
+    void serverFull();
+
+    /**
+     * Take a piece of a bulk transfer from the server, called on the client
+     * end. See {@link se.mejsla.camp.mazela.network.common.BulkReceiver}.
+     *
+     * @param body The chunk as in a bulk chunk control frame, after the
+     * control type. Only valid during the call.
+     */
+    void bulkChunk(ByteBuffer body);
+}
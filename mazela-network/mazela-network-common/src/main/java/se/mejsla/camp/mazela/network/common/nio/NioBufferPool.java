@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.nio;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The buffers the plain NIO transport reads into and writes from. Buffers
+ * come in power of two size classes and are kept in a lock free free list per
+ * class when they are released. Direct buffers are used so that socket
+ * writes do not copy through a temporary native buffer.
+ * <p>
+ * Requests larger than the largest class get a new heap buffer that is not
+ * pooled.
+ */
+public class NioBufferPool {
+
+    public static final int DEFAULT_SMALLEST_BUFFER = 256;
+    public static final int DEFAULT_LARGEST_BUFFER = 64 * 1024;
+    public static final int DEFAULT_BUFFERS_PER_CLASS = 1024;
+
+    private final int smallestShift;
+    private final int largestBuffer;
+    private final int buffersPerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] freeLists;
+    private final AtomicInteger[] freeCounts;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+
+    /**
+     * @param smallestBuffer The smallest size class, a power of two.
+     * @param largestBuffer The largest size class, a power of two.
+     * @param buffersPerClass The most free buffers kept in each class.
+     */
+    @SuppressWarnings("unchecked")
+    public NioBufferPool(
+            final int smallestBuffer,
+            final int largestBuffer,
+            final int buffersPerClass) {
+        Preconditions.checkArgument(
+                Integer.bitCount(smallestBuffer) == 1 && Integer.bitCount(largestBuffer) == 1,
+                "Buffer sizes must be powers of two"
+        );
+        Preconditions.checkArgument(
+                smallestBuffer <= largestBuffer,
+                "The smallest buffer may not be larger than the largest"
+        );
+        Preconditions.checkArgument(buffersPerClass >= 0, "Buffers per class may not be negative");
+        this.smallestShift = Integer.numberOfTrailingZeros(smallestBuffer);
+        this.largestBuffer = largestBuffer;
+        this.buffersPerClass = buffersPerClass;
+        final int classes = Integer.numberOfTrailingZeros(largestBuffer) - this.smallestShift + 1;
+        this.freeLists = new ConcurrentLinkedQueue[classes];
+        this.freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            this.freeLists[i] = new ConcurrentLinkedQueue<>();
+            this.freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    public NioBufferPool() {
+        this(DEFAULT_SMALLEST_BUFFER, DEFAULT_LARGEST_BUFFER, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param size The number of bytes needed.
+     * @return A cleared buffer with the limit set to the size. Its capacity
+     * may be larger.
+     */
+    public ByteBuffer acquire(final int size) {
+        if (size > this.largestBuffer) {
+            this.unpooled.increment();
+            return ByteBuffer.allocate(size);
+        }
+        final int sizeClass = sizeClass(size);
+        ByteBuffer buffer = this.freeLists[sizeClass].poll();
+        if (buffer != null) {
+            this.freeCounts[sizeClass].decrementAndGet();
+            this.hits.increment();
+        } else {
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + this.smallestShift));
+            this.misses.increment();
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. The caller must not use it again.
+     * Buffers that did not come from the pool are left to the garbage
+     * collector.
+     *
+     * @param buffer The buffer, may be null.
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        final int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1
+                || capacity > this.largestBuffer
+                || capacity < 1 << this.smallestShift) {
+            return;
+        }
+        final int sizeClass = sizeClass(capacity);
+        if (this.freeCounts[sizeClass].incrementAndGet() > this.buffersPerClass) {
+            this.freeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        this.freeLists[sizeClass].offer(buffer);
+    }
+
+    private int sizeClass(final int size) {
+        final int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+        return Math.max(0, shift - this.smallestShift);
+    }
+
+    /**
+     * @return Buffers taken from a free list.
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return Pooled buffers that had to be allocated because the free list
+     * was empty.
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return Requests too large for the pool.
+     */
+    public long getUnpooled() {
+        return this.unpooled.sum();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("hits", getHits())
+                .add("misses", getMisses())
+                .add("unpooled", getUnpooled())
+                .toString();
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.nio;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.common.BulkReceiver;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.RoundTripEstimator;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping;
+import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong;
+
+/**
+ * A framed stream connection on plain NIO, the same wire format as the
+ * grizzly frame filter without a filter chain in between.
+ * <p>
+ * Reads happen on the selector thread into one buffer per connection, a
+ * frame is handed to the listener as a view of that buffer and is only valid
+ * during the call. Control frames are handled here: pings are answered,
+ * pongs update the round trip time, a server full reply is remembered and
+ * bulk transfer chunks go to the {@link BulkReceiver}, if one is set.
+ * Compression is never offered, so a peer
+ * must not send compressed frames.
+ * <p>
+ * Writes happen on the calling thread with one gathering write. Whatever the
+ * socket can not take right away is left pending and written by the selector
+ * thread when the socket becomes writable.
+ */
+public class NioChannel implements NioSelectorLoop.Handler {
+
+    /**
+     * Called on the selector thread, except {@link #closed(NioChannel)}
+     * which is called on the thread that closed the channel.
+     */
+    public interface Listener {
+
+        /**
+         * The connection is established and can be written to.
+         *
+         * @param channel The channel.
+         */
+        void connected(NioChannel channel);
+
+        /**
+         * A message frame has arrived.
+         *
+         * @param channel The channel.
+         * @param payload The payload, only valid during the call.
+         */
+        void received(NioChannel channel, ByteBuffer payload);
+
+        /**
+         * The channel was closed, called once.
+         *
+         * @param channel The channel.
+         */
+        void closed(NioChannel channel);
+    }
+
+    /**
+     * The size of the read buffer, it grows for larger frames and shrinks
+     * back when they have been read.
+     */
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+    /**
+     * The most frames handed to one gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final NioSelectorLoop loop;
+    private final SocketChannel channel;
+    private final NioBufferPool pool;
+    private final Listener listener;
+    private volatile SelectionKey key;
+    private volatile SocketAddress peerAddress;
+
+    /**
+     * Only used on the selector thread. Kept ready for reading, the position
+     * is where the next read goes.
+     */
+    private ByteBuffer readBuffer;
+    /**
+     * A view of the read buffer that is moved over each frame, so that
+     * handing a frame to the listener allocates nothing.
+     */
+    private ByteBuffer payloadView;
+
+    /**
+     * Frames that have not been fully written, guarded by its own lock.
+     */
+    private final ArrayDeque<NioFrame> pending = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private boolean waitingForWritable;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private volatile long lastHeardNanos = System.nanoTime();
+    private final AtomicInteger nextPingSequence = new AtomicInteger();
+    private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator();
+    private volatile boolean serverFull;
+    private volatile BulkReceiver bulkReceiver;
+
+    /**
+     * Tell a newly accepted client that the server is full and close the
+     * socket. The reply is only a few bytes and is written without waiting,
+     * if the socket can not take it the client just sees the close.
+     *
+     * @param socket The accepted socket, not registered with a selector.
+     */
+    public static void refuse(final SocketChannel socket) {
+        final ByteBuffer frame = ByteBuffer.allocate(MessageUtilities.FRAME_HEADER_BYTES + 1);
+        frame.putInt(MessageUtilities.getMagicMarker());
+        frame.putInt(1 | MessageUtilities.FRAME_FLAG_CONTROL);
+        frame.put(MessageUtilities.CONTROL_SERVER_FULL);
+        frame.flip();
+        try {
+            socket.write(frame);
+        } catch (IOException ex) {
+            // The client sees the close instead
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Nothing more to do
+            }
+        }
+    }
+
+    /**
+     * @param loop The selector loop the channel is registered with. May not
+     * be null.
+     * @param channel A connected channel, or one with a connection pending.
+     * May not be null.
+     * @param pool The buffers are taken from this pool. May not be null.
+     * @param listener Gets the frames and events of the channel. May not be
+     * null.
+     */
+    public NioChannel(
+            final NioSelectorLoop loop,
+            final SocketChannel channel,
+            final NioBufferPool pool,
+            final Listener listener) {
+        this.loop = Preconditions.checkNotNull(loop);
+        this.channel = Preconditions.checkNotNull(channel);
+        this.pool = Preconditions.checkNotNull(pool);
+        this.listener = Preconditions.checkNotNull(listener);
+    }
+
+    /**
+     * Register the channel with the selector, must be called on the selector
+     * thread. The listener is told when the connection is established, at
+     * once if it already is. Socket options are left to the caller.
+     *
+     * @throws IOException If the channel could not be registered.
+     */
+    public void open() throws IOException {
+        if (this.channel.isConnectionPending()) {
+            this.key = this.loop.register(this.channel, SelectionKey.OP_CONNECT, this);
+        } else {
+            this.key = this.loop.register(this.channel, SelectionKey.OP_READ, this);
+            established();
+        }
+    }
+
+    private void established() {
+        this.peerAddress = this.channel.socket().getRemoteSocketAddress();
+        this.readBuffer = this.pool.acquire(READ_BUFFER_BYTES);
+        this.readBuffer.clear();
+        this.payloadView = this.readBuffer.duplicate();
+        this.lastHeardNanos = System.nanoTime();
+        this.listener.connected(this);
+    }
+
+    @Override
+    public void ready(final SelectionKey selectionKey) throws IOException {
+        if (selectionKey.isConnectable()) {
+            this.channel.finishConnect();
+            selectionKey.interestOps(SelectionKey.OP_READ);
+            established();
+            return;
+        }
+        if (selectionKey.isWritable()) {
+            writable();
+        }
+        if (selectionKey.isValid() && selectionKey.isReadable()) {
+            read();
+        }
+    }
+
+    @Override
+    public void failed(final IOException ex) {
+        log.debug("Channel to {} failed: {}", this.peerAddress, ex.toString());
+        close();
+    }
+
+    private void read() throws IOException {
+        final int read = this.channel.read(this.readBuffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        if (read == 0) {
+            return;
+        }
+        this.lastHeardNanos = System.nanoTime();
+        final ByteBuffer input = this.readBuffer;
+        input.flip();
+        while (input.remaining() >= MessageUtilities.FRAME_HEADER_BYTES) {
+            final int start = input.position();
+            final int lengthWord = input.getInt(start + Integer.BYTES);
+            if (!MessageUtilities.isMagicMarker(input.getInt(start))
+                    || !MessageUtilities.isValidLengthWord(lengthWord)) {
+                log.info("Frame without magic marker from {}, closing connection", this.peerAddress);
+                close();
+                return;
+            }
+            final int frameLength = MessageUtilities.FRAME_HEADER_BYTES
+                    + MessageUtilities.getPayloadLength(lengthWord);
+            if (input.remaining() < frameLength) {
+                if (input.capacity() < frameLength) {
+                    replaceReadBuffer(frameLength);
+                    return;
+                }
+                break;
+            }
+            this.payloadView.limit(start + frameLength);
+            this.payloadView.position(start + MessageUtilities.FRAME_HEADER_BYTES);
+            input.position(start + frameLength);
+            dispatch(lengthWord, this.payloadView);
+            if (this.closed.get()) {
+                return;
+            }
+        }
+        if (!input.hasRemaining() && input.capacity() > READ_BUFFER_BYTES) {
+            replaceReadBuffer(READ_BUFFER_BYTES);
+        } else {
+            input.compact();
+        }
+    }
+
+    /**
+     * Move the unread bytes to a new buffer, larger for a frame that does not
+     * fit or back to the normal size.
+     *
+     * @param capacity The size of the new buffer, the read buffer must be
+     * flipped so that the unread bytes are remaining.
+     */
+    private void replaceReadBuffer(final int capacity) {
+        final ByteBuffer previous = this.readBuffer;
+        final ByteBuffer next = this.pool.acquire(capacity);
+        next.clear();
+        next.put(previous);
+        this.pool.release(previous);
+        this.readBuffer = next;
+        this.payloadView = next.duplicate();
+    }
+
+    private void dispatch(final int lengthWord, final ByteBuffer payload) {
+        if ((lengthWord & MessageUtilities.FRAME_FLAG_CONTROL) != 0) {
+            handleControl(payload);
+        } else if ((lengthWord & (MessageUtilities.FRAME_FLAG_COMPRESSED
+                | MessageUtilities.FRAME_FLAG_SHARED_COMPRESSED)) != 0) {
+            log.info("Compressed frame but compression was never offered, closing connection");
+            close();
+        } else {
+            this.listener.received(this, payload);
+        }
+    }
+
+    private void handleControl(final ByteBuffer payload) {
+        if (!payload.hasRemaining()) {
+            log.debug("Ignoring empty control frame from: {}", this.peerAddress);
+            return;
+        }
+        final byte type = payload.get();
+        try {
+            switch (type) {
+                case MessageUtilities.CONTROL_PING:
+                    final Ping ping = Ping.parseFrom(remainingBytes(payload));
+                    write(Collections.singletonList(NioFrame.control(
+                            this.pool,
+                            MessageUtilities.CONTROL_PONG,
+                            Pong.newBuilder()
+                                    .setSequence(ping.getSequence())
+                                    .setPingSendTime(ping.getSendTime())
+                                    .build()
+                                    .toByteArray()
+                    )));
+                    return;
+                case MessageUtilities.CONTROL_PONG:
+                    final Pong pong = Pong.parseFrom(remainingBytes(payload));
+                    this.roundTripEstimator.sample(System.nanoTime() - pong.getPingSendTime());
+                    return;
+                case MessageUtilities.CONTROL_COMPRESSION_OFFER:
+                    log.debug("Peer offered compression, not supported: {}", this.peerAddress);
+                    return;
+                case MessageUtilities.CONTROL_SERVER_FULL:
+                    log.info("Server is full: {}", this.peerAddress);
+                    this.serverFull = true;
+                    return;
+                case MessageUtilities.CONTROL_BULK_CHUNK:
+                    final BulkReceiver receiver = this.bulkReceiver;
+                    if (receiver == null) {
+                        log.debug("Ignoring bulk chunk, no receiver: {}", this.peerAddress);
+                        return;
+                    }
+                    if (receiver.chunk(payload)) {
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (InvalidProtocolBufferException ex) {
+            // Logged below
+        }
+        log.debug("Ignoring unknown control frame from: {}", this.peerAddress);
+    }
+
+    /**
+     * Control frames are rare and tiny, copy them out of the direct read
+     * buffer rather than have protobuf decode the direct memory.
+     */
+    private static byte[] remainingBytes(final ByteBuffer payload) {
+        final byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write frames in order. As much as the socket takes is written on the
+     * calling thread, the rest by the selector thread. Each frame is done
+     * when it has been written, or at once if the channel is closed.
+     *
+     * @param frames The frames to write. May not be null.
+     * @return false if the channel is closed.
+     */
+    public boolean write(final Collection<NioFrame> frames) {
+        IOException failure = null;
+        synchronized (this.pending) {
+            if (!this.closed.get()) {
+                this.pending.addAll(frames);
+                if (!this.waitingForWritable) {
+                    try {
+                        writePending();
+                    } catch (IOException ex) {
+                        failure = ex;
+                    }
+                }
+            } else {
+                frames.forEach(NioFrame::done);
+                return false;
+            }
+        }
+        if (failure != null) {
+            failed(failure);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the pending frames until they are all written or the socket does
+     * not take more, then wait for the socket to become writable. Called with
+     * the pending lock held.
+     */
+    private void writePending() throws IOException {
+        while (!this.pending.isEmpty()) {
+            int count = 0;
+            final Iterator<NioFrame> frames = this.pending.iterator();
+            while (count < MAX_GATHER && frames.hasNext()) {
+                this.gather[count++] = frames.next().getBuffer();
+            }
+            final long written = this.channel.write(this.gather, 0, count);
+            Arrays.fill(this.gather, 0, count, null);
+            NioFrame head;
+            while ((head = this.pending.peek()) != null && !head.getBuffer().hasRemaining()) {
+                this.pending.poll().done();
+            }
+            if (written == 0 && !this.pending.isEmpty()) {
+                this.waitingForWritable = true;
+                setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    private void writable() throws IOException {
+        synchronized (this.pending) {
+            this.waitingForWritable = false;
+            writePending();
+            if (!this.waitingForWritable) {
+                this.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private void setInterest(final int ops) {
+        if (this.loop.inLoop()) {
+            this.key.interestOps(ops);
+        } else {
+            this.loop.execute(() -> {
+                if (this.key.isValid()) {
+                    synchronized (this.pending) {
+                        if (this.waitingForWritable) {
+                            this.key.interestOps(ops);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The number of frames that have not been fully written.
+     */
+    public int getPendingFrameCount() {
+        synchronized (this.pending) {
+            return this.pending.size();
+        }
+    }
+
+    /**
+     * Send a ping, the pong updates the round trip time.
+     */
+    public void ping() {
+        final Ping ping = Ping.newBuilder()
+                .setSequence(this.nextPingSequence.getAndIncrement())
+                .setSendTime(System.nanoTime())
+                .build();
+        write(Collections.singletonList(
+                NioFrame.control(this.pool, MessageUtilities.CONTROL_PING, ping.toByteArray())
+        ));
+    }
+
+    /**
+     * @param now The current {@link System#nanoTime()}.
+     * @return How long it is since anything was read from the peer.
+     */
+    public long getSilentNanos(final long now) {
+        return now - this.lastHeardNanos;
+    }
+
+    /**
+     * @return The latest estimate, {@link RoundTripTime#UNKNOWN} until the
+     * first pong.
+     */
+    public RoundTripTime getRoundTripTime() {
+        return this.roundTripEstimator.get();
+    }
+
+    /**
+     * @return true if the server refused the connection because it was full.
+     */
+    public boolean isServerFull() {
+        return serverFull;
+    }
+
+    /**
+     * @param bulkReceiver Gets the bulk transfer chunks that arrive on the
+     * channel. Without a receiver they are ignored.
+     */
+    public void setBulkReceiver(final BulkReceiver bulkReceiver) {
+        this.bulkReceiver = bulkReceiver;
+    }
+
+    public SocketAddress getPeerAddress() {
+        return peerAddress;
+    }
+
+    public boolean isOpen() {
+        return !this.closed.get();
+    }
+
+    /**
+     * Close the channel and discard the pending frames. The listener is told
+     * on the calling thread, closing more than once has no effect.
+     */
+    public void close() {
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this.pending) {
+            NioFrame frame;
+            while ((frame = this.pending.poll()) != null) {
+                frame.done();
+            }
+        }
+        try {
+            this.channel.close();
+        } catch (IOException ex) {
+            log.debug("Failed to close channel to {}", this.peerAddress, ex);
+        }
+        // Never while a read is in progress, tasks run between selects
+        this.loop.execute(this::releaseReadBuffer);
+        this.listener.closed(this);
+    }
+
+    private void releaseReadBuffer() {
+        if (this.readBuffer != null) {
+            this.pool.release(this.readBuffer);
+            this.readBuffer = null;
+            this.payloadView = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(this.peerAddress);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.nio;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+
+/**
+ * An encoded frame waiting to be written to a {@link NioChannel}. The frame
+ * owns its buffer until it has been written or discarded, then the done
+ * callback runs once, typically giving the buffer back to the pool.
+ */
+public class NioFrame {
+
+    private final ByteBuffer buffer;
+    private final AtomicReference<Runnable> whenDone;
+
+    /**
+     * @param buffer The frame, from position to limit.
+     * @param whenDone Called once when the frame has been written or
+     * discarded, may be null.
+     */
+    public NioFrame(final ByteBuffer buffer, final Runnable whenDone) {
+        this.buffer = Preconditions.checkNotNull(buffer);
+        this.whenDone = new AtomicReference<>(whenDone);
+    }
+
+    /**
+     * Frame a payload in a buffer from the pool.
+     *
+     * @param pool The pool to take the buffer from, the buffer is released
+     * to it when the frame is done. May not be null.
+     * @param payload The payload, from position to limit. The position is
+     * moved to the limit.
+     * @return The frame.
+     * @throws IllegalArgumentException If the payload does not fit in a frame.
+     */
+    public static NioFrame encode(final NioBufferPool pool, final ByteBuffer payload) {
+        final int payloadLength = payload.remaining();
+        Preconditions.checkArgument(
+                MessageUtilities.isValidPayloadLength(payloadLength),
+                "Payload is too large to fit in a frame: %s bytes", payloadLength
+        );
+        final ByteBuffer frame = pool.acquire(MessageUtilities.FRAME_HEADER_BYTES + payloadLength);
+        frame.putInt(MessageUtilities.getMagicMarker());
+        frame.putInt(payloadLength);
+        frame.put(payload);
+        frame.flip();
+        return new NioFrame(frame, () -> pool.release(frame));
+    }
+
+    /**
+     * Frame a control message.
+     *
+     * @param pool The pool to take the buffer from. May not be null.
+     * @param type The control type.
+     * @param body The bytes following the type.
+     * @return The frame.
+     */
+    public static NioFrame control(final NioBufferPool pool, final byte type, final byte[] body) {
+        return control(pool, type, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Frame a control message.
+     *
+     * @param pool The pool to take the buffer from. May not be null.
+     * @param type The control type.
+     * @param body The bytes following the type, from position to limit. The
+     * position is moved to the limit.
+     * @return The frame.
+     * @throws IllegalArgumentException If the body does not fit in a frame.
+     */
+    public static NioFrame control(final NioBufferPool pool, final byte type, final ByteBuffer body) {
+        final int payloadLength = 1 + body.remaining();
+        Preconditions.checkArgument(
+                MessageUtilities.isValidPayloadLength(payloadLength),
+                "Control body is too large to fit in a frame: %s bytes", body.remaining()
+        );
+        final ByteBuffer frame = pool.acquire(MessageUtilities.FRAME_HEADER_BYTES + payloadLength);
+        frame.putInt(MessageUtilities.getMagicMarker());
+        frame.putInt(payloadLength | MessageUtilities.FRAME_FLAG_CONTROL);
+        frame.put(type);
+        frame.put(body);
+        frame.flip();
+        return new NioFrame(frame, () -> pool.release(frame));
+    }
+
+    /**
+     * @return The frame, the position is moved as it is written. Only the
+     * channel the frame was handed to may move it.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return The bytes left to write.
+     */
+    public int getBytes() {
+        return this.buffer.remaining();
+    }
+
+    /**
+     * Run the done callback, later calls do nothing. Called by the channel
+     * when the frame is written or discarded, and by the owner of a frame
+     * that is never handed to a channel.
+     */
+    public void done() {
+        final Runnable r = this.whenDone.getAndSet(null);
+        if (r != null) {
+            r.run();
+        }
+    }
+
+    /**
+     * @param next Also called when this frame is done.
+     * @return A frame for the same buffer that runs both callbacks. This frame
+     * must not be used after the call.
+     */
+    public NioFrame whenDone(final Runnable next) {
+        final Runnable previous = this.whenDone.getAndSet(null);
+        return new NioFrame(this.buffer, () -> {
+            if (previous != null) {
+                previous.run();
+            }
+            next.run();
+        });
+    }
+
+    /**
+     * A frame written to several channels. Each channel writes its own view
+     * of the same memory and the done callback of the shared frame runs when
+     * the last view is done.
+     */
+    public static class Shared {
+
+        private final NioFrame frame;
+        /**
+         * Starts at one for the reference held by the creator, released by
+         * {@link #release()} when all views have been created.
+         */
+        private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+        public Shared(final NioFrame frame) {
+            this.frame = Preconditions.checkNotNull(frame);
+        }
+
+        /**
+         * @return A frame with its own view of the shared buffer, holding a
+         * reference until it is done.
+         */
+        public NioFrame newView() {
+            this.referenceCount.incrementAndGet();
+            return new NioFrame(this.frame.buffer.duplicate(), this::release);
+        }
+
+        /**
+         * @return The size of the frame in bytes.
+         */
+        public int getBytes() {
+            return this.frame.getBytes();
+        }
+
+        /**
+         * Release one reference, the frame is done when it was the last one.
+         */
+        public void release() {
+            if (this.referenceCount.decrementAndGet() == 0) {
+                this.frame.done();
+            }
+        }
+    }
+}
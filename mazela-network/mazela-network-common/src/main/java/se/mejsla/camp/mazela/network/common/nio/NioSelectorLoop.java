@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.nio;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One thread running a {@link Selector}. Channels are registered with a
+ * {@link Handler} that is called on the selector thread when the channel is
+ * ready. Other threads hand work to the selector thread with
+ * {@link #execute(Runnable)}, the selector is woken up to run it.
+ */
+public class NioSelectorLoop {
+
+    /**
+     * Called on the selector thread.
+     */
+    public interface Handler {
+
+        /**
+         * @param key The key of the channel, with the ready operations set.
+         * @throws IOException The channel is closed by the loop.
+         */
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called when {@link #ready(SelectionKey)} throws, the handler should
+         * close its channel.
+         *
+         * @param ex What was thrown.
+         */
+        void failed(IOException ex);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running;
+
+    /**
+     * @param threadFactory Creates the selector thread. May not be null.
+     * @throws IOException If the selector could not be opened.
+     */
+    public NioSelectorLoop(final ThreadFactory threadFactory) throws IOException {
+        this.selector = Selector.open();
+        this.thread = Preconditions.checkNotNull(threadFactory).newThread(this::run);
+    }
+
+    public void start() {
+        this.running = true;
+        this.thread.start();
+    }
+
+    /**
+     * Stop the loop and wait for the thread to end. The tasks that were
+     * queued are run, the selector is closed.
+     */
+    public void stop() {
+        this.running = false;
+        this.selector.wakeup();
+        if (Thread.currentThread() != this.thread) {
+            try {
+                this.thread.join(2000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return true if called on the selector thread.
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Run a task on the selector thread. A task queued after the loop has
+     * stopped is never run.
+     *
+     * @param task The task. May not be null.
+     */
+    public void execute(final Runnable task) {
+        this.tasks.offer(Preconditions.checkNotNull(task));
+        this.selector.wakeup();
+    }
+
+    /**
+     * Register a channel, must be called on the selector thread or before the
+     * loop is started.
+     *
+     * @param channel The channel, it is made non blocking.
+     * @param ops The interest set.
+     * @param handler Called when the channel is ready.
+     * @return The key of the channel.
+     * @throws IOException If the channel could not be registered.
+     */
+    public SelectionKey register(
+            final SelectableChannel channel,
+            final int ops,
+            final Handler handler) throws IOException {
+        Preconditions.checkState(
+                inLoop() || !this.thread.isAlive(),
+                "Channels are registered on the selector thread"
+        );
+        channel.configureBlocking(false);
+        return channel.register(this.selector, ops, Preconditions.checkNotNull(handler));
+    }
+
+    private void run() {
+        while (this.running) {
+            try {
+                this.selector.select();
+            } catch (IOException ex) {
+                log.error("Selector failed", ex);
+                break;
+            }
+            runTasks();
+            final Iterator<SelectionKey> selected = this.selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                final SelectionKey key = selected.next();
+                selected.remove();
+                final Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.ready(key);
+                    }
+                } catch (IOException ex) {
+                    handler.failed(ex);
+                } catch (RuntimeException ex) {
+                    log.error("Channel handler threw unchecked exception", ex);
+                    handler.failed(new IOException(ex));
+                }
+            }
+        }
+        runTasks();
+        for (SelectionKey key : this.selector.keys()) {
+            ((Handler) key.attachment()).failed(new IOException("Selector loop stopped"));
+        }
+        try {
+            this.selector.close();
+        } catch (IOException ex) {
+            log.debug("Failed to close selector", ex);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                log.error("Selector task threw unchecked exception", ex);
+            }
+        }
+    }
+}
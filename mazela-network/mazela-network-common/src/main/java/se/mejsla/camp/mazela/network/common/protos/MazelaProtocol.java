@@ -6856,6 +6856,1042 @@ public final class MazelaProtocol {
 
   }
 
+  public interface PingOrBuilder extends
+      // @@protoc_insertion_point(interface_extends:se.mejsla.camp.mazela.network.common.protos.Ping)
+      com.google.protobuf.MessageOrBuilder {
+
+    /**
+     * <code>uint32 sequence = 1;</code>
+     */
+    int getSequence();
+
+    /**
+     * <code>fixed64 send_time = 2;</code>
+     */
+    long getSendTime();
+  }
+  /**
+   * <pre>
+   * Heartbeats are sent in control frames and answered by the network layer,
+   * they never reach the game. send_time is the sender's own monotonic clock in
+   * nanoseconds and is only compared with that same clock.
+   * </pre>
+   *
+   * Protobuf type {@code se.mejsla.camp.mazela.network.common.protos.Ping}
+   */
+  public  static final class Ping extends
+      com.google.protobuf.GeneratedMessageV3 implements
+      // @@protoc_insertion_point(message_implements:se.mejsla.camp.mazela.network.common.protos.Ping)
+      PingOrBuilder {
+  private static final long serialVersionUID = 0L;
+    // Use Ping.newBuilder() to construct.
+    private Ping(com.google.protobuf.GeneratedMessageV3.Builder<?> builder) {
+      super(builder);
+    }
+    private Ping() {
+      sequence_ = 0;
+      sendTime_ = 0L;
+    }
+
+    @java.lang.Override
+    public final com.google.protobuf.UnknownFieldSet
+    getUnknownFields() {
+      return this.unknownFields;
+    }
+    private Ping(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      this();
+      int mutable_bitField0_ = 0;
+      com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder();
+      try {
+        boolean done = false;
+        while (!done) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              done = true;
+              break;
+            default: {
+              if (!parseUnknownFieldProto3(
+                  input, unknownFields, extensionRegistry, tag)) {
+                done = true;
+              }
+              break;
+            }
+            case 8: {
+
+              sequence_ = input.readUInt32();
+              break;
+            }
+            case 17: {
+
+              sendTime_ = input.readFixed64();
+              break;
+            }
+          }
+        }
+      } catch (com.google.protobuf.InvalidProtocolBufferException e) {
+        throw e.setUnfinishedMessage(this);
+      } catch (java.io.IOException e) {
+        throw new com.google.protobuf.InvalidProtocolBufferException(
+            e).setUnfinishedMessage(this);
+      } finally {
+        this.unknownFields = unknownFields.build();
+        makeExtensionsImmutable();
+      }
+    }
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.internal_static_se_mejsla_camp_mazela_network_common_protos_Ping_descriptor;
+    }
+
+    protected com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.internal_static_se_mejsla_camp_mazela_network_common_protos_Ping_fieldAccessorTable
+          .ensureFieldAccessorsInitialized(
+              se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping.class, se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping.Builder.class);
+    }
+
+    public static final int SEQUENCE_FIELD_NUMBER = 1;
+    private int sequence_;
+    /**
+     * <code>uint32 sequence = 1;</code>
+     */
+    public int getSequence() {
+      return sequence_;
+    }
+
+    public static final int SEND_TIME_FIELD_NUMBER = 2;
+    private long sendTime_;
+    /**
+     * <code>fixed64 send_time = 2;</code>
+     */
+    public long getSendTime() {
+      return sendTime_;
+    }
+
+    private byte memoizedIsInitialized = -1;
+    public final boolean isInitialized() {
+      byte isInitialized = memoizedIsInitialized;
+      if (isInitialized == 1) return true;
+      if (isInitialized == 0) return false;
+
+      memoizedIsInitialized = 1;
+      return true;
+    }
+
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      if (sequence_ != 0) {
+        output.writeUInt32(1, sequence_);
+      }
+      if (sendTime_ != 0L) {
+        output.writeFixed64(2, sendTime_);
+      }
+      unknownFields.writeTo(output);
+    }
+
+    public int getSerializedSize() {
+      int size = memoizedSize;
+      if (size != -1) return size;
+
+      size = 0;
+      if (sequence_ != 0) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(1, sequence_);
+      }
+      if (sendTime_ != 0L) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeFixed64Size(2, sendTime_);
+      }
+      size += unknownFields.getSerializedSize();
+      memoizedSize = size;
+      return size;
+    }
+
+    @java.lang.Override
+    public boolean equals(final java.lang.Object obj) {
+      if (obj == this) {
+       return true;
+      }
+      if (!(obj instanceof se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping)) {
+        return super.equals(obj);
+      }
+      se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping other = (se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping) obj;
+
+      boolean result = true;
+      result = result && (getSequence()
+          == other.getSequence());
+      result = result && (getSendTime()
+          == other.getSendTime());
+      result = result && unknownFields.equals(other.unknownFields);
+      return result;
+    }
+
+    @java.lang.Override
+    public int hashCode() {
+      if (memoizedHashCode != 0) {
+        return memoizedHashCode;
+      }
+      int hash = 41;
+      hash = (19 * hash) + getDescriptor().hashCode();
+      hash = (37 * hash) + SEQUENCE_FIELD_NUMBER;
+      hash = (53 * hash) + getSequence();
+      hash = (37 * hash) + SEND_TIME_FIELD_NUMBER;
+      hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
+          getSendTime());
+      hash = (29 * hash) + unknownFields.hashCode();
+      memoizedHashCode = hash;
+      return hash;
+    }
+
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseFrom(
+        java.nio.ByteBuffer data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseFrom(
+        java.nio.ByteBuffer data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data, extensionRegistry);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data, extensionRegistry);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data, extensionRegistry);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input, extensionRegistry);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseDelimitedWithIOException(PARSER, input);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseDelimitedWithIOException(PARSER, input, extensionRegistry);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input, extensionRegistry);
+    }
+
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder() {
+      return DEFAULT_INSTANCE.toBuilder();
+    }
+    public static Builder newBuilder(se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping prototype) {
+      return DEFAULT_INSTANCE.toBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() {
+      return this == DEFAULT_INSTANCE
+          ? new Builder() : new Builder().mergeFrom(this);
+    }
+
+    @java.lang.Override
+    protected Builder newBuilderForType(
+        com.google.protobuf.GeneratedMessageV3.BuilderParent parent) {
+      Builder builder = new Builder(parent);
+      return builder;
+    }
+    /**
+     * <pre>
+     * Heartbeats are sent in control frames and answered by the network layer,
+     * they never reach the game. send_time is the sender's own monotonic clock in
+     * nanoseconds and is only compared with that same clock.
+     * </pre>
+     *
+     * Protobuf type {@code se.mejsla.camp.mazela.network.common.protos.Ping}
+     */
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessageV3.Builder<Builder> implements
+        // @@protoc_insertion_point(builder_implements:se.mejsla.camp.mazela.network.common.protos.Ping)
+        se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.PingOrBuilder {
+      public static final com.google.protobuf.Descriptors.Descriptor
+          getDescriptor() {
+        return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.internal_static_se_mejsla_camp_mazela_network_common_protos_Ping_descriptor;
+      }
+
+      protected com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
+          internalGetFieldAccessorTable() {
+        return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.internal_static_se_mejsla_camp_mazela_network_common_protos_Ping_fieldAccessorTable
+            .ensureFieldAccessorsInitialized(
+                se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping.class, se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping.Builder.class);
+      }
+
+      // Construct using se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping.newBuilder()
+      private Builder() {
+        maybeForceBuilderInitialization();
+      }
+
+      private Builder(
+          com.google.protobuf.GeneratedMessageV3.BuilderParent parent) {
+        super(parent);
+        maybeForceBuilderInitialization();
+      }
+      private void maybeForceBuilderInitialization() {
+        if (com.google.protobuf.GeneratedMessageV3
+                .alwaysUseFieldBuilders) {
+        }
+      }
+      public Builder clear() {
+        super.clear();
+        sequence_ = 0;
+
+        sendTime_ = 0L;
+
+        return this;
+      }
+
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.internal_static_se_mejsla_camp_mazela_network_common_protos_Ping_descriptor;
+      }
+
+      public se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping getDefaultInstanceForType() {
+        return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping.getDefaultInstance();
+      }
+
+      public se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping build() {
+        se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping result = buildPartial();
+        if (!result.isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return result;
+      }
+
+      public se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping buildPartial() {
+        se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping result = new se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping(this);
+        result.sequence_ = sequence_;
+        result.sendTime_ = sendTime_;
+        onBuilt();
+        return result;
+      }
+
+      public Builder clone() {
+        return (Builder) super.clone();
+      }
+      public Builder setField(
+          com.google.protobuf.Descriptors.FieldDescriptor field,
+          java.lang.Object value) {
+        return (Builder) super.setField(field, value);
+      }
+      public Builder clearField(
+          com.google.protobuf.Descriptors.FieldDescriptor field) {
+        return (Builder) super.clearField(field);
+      }
+      public Builder clearOneof(
+          com.google.protobuf.Descriptors.OneofDescriptor oneof) {
+        return (Builder) super.clearOneof(oneof);
+      }
+      public Builder setRepeatedField(
+          com.google.protobuf.Descriptors.FieldDescriptor field,
+          int index, java.lang.Object value) {
+        return (Builder) super.setRepeatedField(field, index, value);
+      }
+      public Builder addRepeatedField(
+          com.google.protobuf.Descriptors.FieldDescriptor field,
+          java.lang.Object value) {
+        return (Builder) super.addRepeatedField(field, value);
+      }
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping) {
+          return mergeFrom((se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+
+      public Builder mergeFrom(se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping other) {
+        if (other == se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping.getDefaultInstance()) return this;
+        if (other.getSequence() != 0) {
+          setSequence(other.getSequence());
+        }
+        if (other.getSendTime() != 0L) {
+          setSendTime(other.getSendTime());
+        }
+        this.mergeUnknownFields(other.unknownFields);
+        onChanged();
+        return this;
+      }
+
+      public final boolean isInitialized() {
+        return true;
+      }
+
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping parsedMessage = null;
+        try {
+          parsedMessage = PARSER.parsePartialFrom(input, extensionRegistry);
+        } catch (com.google.protobuf.InvalidProtocolBufferException e) {
+          parsedMessage = (se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping) e.getUnfinishedMessage();
+          throw e.unwrapIOException();
+        } finally {
+          if (parsedMessage != null) {
+            mergeFrom(parsedMessage);
+          }
+        }
+        return this;
+      }
+
+      private int sequence_ ;
+      /**
+       * <code>uint32 sequence = 1;</code>
+       */
+      public int getSequence() {
+        return sequence_;
+      }
+      /**
+       * <code>uint32 sequence = 1;</code>
+       */
+      public Builder setSequence(int value) {
+        
+        sequence_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>uint32 sequence = 1;</code>
+       */
+      public Builder clearSequence() {
+        
+        sequence_ = 0;
+        onChanged();
+        return this;
+      }
+
+      private long sendTime_ ;
+      /**
+       * <code>fixed64 send_time = 2;</code>
+       */
+      public long getSendTime() {
+        return sendTime_;
+      }
+      /**
+       * <code>fixed64 send_time = 2;</code>
+       */
+      public Builder setSendTime(long value) {
+        
+        sendTime_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>fixed64 send_time = 2;</code>
+       */
+      public Builder clearSendTime() {
+        
+        sendTime_ = 0L;
+        onChanged();
+        return this;
+      }
+      public final Builder setUnknownFields(
+          final com.google.protobuf.UnknownFieldSet unknownFields) {
+        return super.setUnknownFieldsProto3(unknownFields);
+      }
+
+      public final Builder mergeUnknownFields(
+          final com.google.protobuf.UnknownFieldSet unknownFields) {
+        return super.mergeUnknownFields(unknownFields);
+      }
+
+
+      // @@protoc_insertion_point(builder_scope:se.mejsla.camp.mazela.network.common.protos.Ping)
+    }
+
+    // @@protoc_insertion_point(class_scope:se.mejsla.camp.mazela.network.common.protos.Ping)
+    private static final se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping DEFAULT_INSTANCE;
+    static {
+      DEFAULT_INSTANCE = new se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping();
+    }
+
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping getDefaultInstance() {
+      return DEFAULT_INSTANCE;
+    }
+
+    private static final com.google.protobuf.Parser<Ping>
+        PARSER = new com.google.protobuf.AbstractParser<Ping>() {
+      public Ping parsePartialFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws com.google.protobuf.InvalidProtocolBufferException {
+          return new Ping(input, extensionRegistry);
+      }
+    };
+
+    public static com.google.protobuf.Parser<Ping> parser() {
+      return PARSER;
+    }
+
+    @java.lang.Override
+    public com.google.protobuf.Parser<Ping> getParserForType() {
+      return PARSER;
+    }
+
+    public se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping getDefaultInstanceForType() {
+      return DEFAULT_INSTANCE;
+    }
+
+  }
+
+  public interface PongOrBuilder extends
+      // @@protoc_insertion_point(interface_extends:se.mejsla.camp.mazela.network.common.protos.Pong)
+      com.google.protobuf.MessageOrBuilder {
+
+    /**
+     * <code>uint32 sequence = 1;</code>
+     */
+    int getSequence();
+
+    /**
+     * <code>fixed64 ping_send_time = 2;</code>
+     */
+    long getPingSendTime();
+  }
+  /**
+   * Protobuf type {@code se.mejsla.camp.mazela.network.common.protos.Pong}
+   */
+  public  static final class Pong extends
+      com.google.protobuf.GeneratedMessageV3 implements
+      // @@protoc_insertion_point(message_implements:se.mejsla.camp.mazela.network.common.protos.Pong)
+      PongOrBuilder {
+  private static final long serialVersionUID = 0L;
+    // Use Pong.newBuilder() to construct.
+    private Pong(com.google.protobuf.GeneratedMessageV3.Builder<?> builder) {
+      super(builder);
+    }
+    private Pong() {
+      sequence_ = 0;
+      pingSendTime_ = 0L;
+    }
+
+    @java.lang.Override
+    public final com.google.protobuf.UnknownFieldSet
+    getUnknownFields() {
+      return this.unknownFields;
+    }
+    private Pong(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      this();
+      int mutable_bitField0_ = 0;
+      com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder();
+      try {
+        boolean done = false;
+        while (!done) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              done = true;
+              break;
+            default: {
+              if (!parseUnknownFieldProto3(
+                  input, unknownFields, extensionRegistry, tag)) {
+                done = true;
+              }
+              break;
+            }
+            case 8: {
+
+              sequence_ = input.readUInt32();
+              break;
+            }
+            case 17: {
+
+              pingSendTime_ = input.readFixed64();
+              break;
+            }
+          }
+        }
+      } catch (com.google.protobuf.InvalidProtocolBufferException e) {
+        throw e.setUnfinishedMessage(this);
+      } catch (java.io.IOException e) {
+        throw new com.google.protobuf.InvalidProtocolBufferException(
+            e).setUnfinishedMessage(this);
+      } finally {
+        this.unknownFields = unknownFields.build();
+        makeExtensionsImmutable();
+      }
+    }
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.internal_static_se_mejsla_camp_mazela_network_common_protos_Pong_descriptor;
+    }
+
+    protected com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.internal_static_se_mejsla_camp_mazela_network_common_protos_Pong_fieldAccessorTable
+          .ensureFieldAccessorsInitialized(
+              se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong.class, se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong.Builder.class);
+    }
+
+    public static final int SEQUENCE_FIELD_NUMBER = 1;
+    private int sequence_;
+    /**
+     * <code>uint32 sequence = 1;</code>
+     */
+    public int getSequence() {
+      return sequence_;
+    }
+
+    public static final int PING_SEND_TIME_FIELD_NUMBER = 2;
+    private long pingSendTime_;
+    /**
+     * <code>fixed64 ping_send_time = 2;</code>
+     */
+    public long getPingSendTime() {
+      return pingSendTime_;
+    }
+
+    private byte memoizedIsInitialized = -1;
+    public final boolean isInitialized() {
+      byte isInitialized = memoizedIsInitialized;
+      if (isInitialized == 1) return true;
+      if (isInitialized == 0) return false;
+
+      memoizedIsInitialized = 1;
+      return true;
+    }
+
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      if (sequence_ != 0) {
+        output.writeUInt32(1, sequence_);
+      }
+      if (pingSendTime_ != 0L) {
+        output.writeFixed64(2, pingSendTime_);
+      }
+      unknownFields.writeTo(output);
+    }
+
+    public int getSerializedSize() {
+      int size = memoizedSize;
+      if (size != -1) return size;
+
+      size = 0;
+      if (sequence_ != 0) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(1, sequence_);
+      }
+      if (pingSendTime_ != 0L) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeFixed64Size(2, pingSendTime_);
+      }
+      size += unknownFields.getSerializedSize();
+      memoizedSize = size;
+      return size;
+    }
+
+    @java.lang.Override
+    public boolean equals(final java.lang.Object obj) {
+      if (obj == this) {
+       return true;
+      }
+      if (!(obj instanceof se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong)) {
+        return super.equals(obj);
+      }
+      se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong other = (se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong) obj;
+
+      boolean result = true;
+      result = result && (getSequence()
+          == other.getSequence());
+      result = result && (getPingSendTime()
+          == other.getPingSendTime());
+      result = result && unknownFields.equals(other.unknownFields);
+      return result;
+    }
+
+    @java.lang.Override
+    public int hashCode() {
+      if (memoizedHashCode != 0) {
+        return memoizedHashCode;
+      }
+      int hash = 41;
+      hash = (19 * hash) + getDescriptor().hashCode();
+      hash = (37 * hash) + SEQUENCE_FIELD_NUMBER;
+      hash = (53 * hash) + getSequence();
+      hash = (37 * hash) + PING_SEND_TIME_FIELD_NUMBER;
+      hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
+          getPingSendTime());
+      hash = (29 * hash) + unknownFields.hashCode();
+      memoizedHashCode = hash;
+      return hash;
+    }
+
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseFrom(
+        java.nio.ByteBuffer data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseFrom(
+        java.nio.ByteBuffer data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data, extensionRegistry);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data, extensionRegistry);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data, extensionRegistry);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input, extensionRegistry);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseDelimitedWithIOException(PARSER, input);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseDelimitedWithIOException(PARSER, input, extensionRegistry);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input);
+    }
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input, extensionRegistry);
+    }
+
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder() {
+      return DEFAULT_INSTANCE.toBuilder();
+    }
+    public static Builder newBuilder(se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong prototype) {
+      return DEFAULT_INSTANCE.toBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() {
+      return this == DEFAULT_INSTANCE
+          ? new Builder() : new Builder().mergeFrom(this);
+    }
+
+    @java.lang.Override
+    protected Builder newBuilderForType(
+        com.google.protobuf.GeneratedMessageV3.BuilderParent parent) {
+      Builder builder = new Builder(parent);
+      return builder;
+    }
+    /**
+     * Protobuf type {@code se.mejsla.camp.mazela.network.common.protos.Pong}
+     */
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessageV3.Builder<Builder> implements
+        // @@protoc_insertion_point(builder_implements:se.mejsla.camp.mazela.network.common.protos.Pong)
+        se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.PongOrBuilder {
+      public static final com.google.protobuf.Descriptors.Descriptor
+          getDescriptor() {
+        return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.internal_static_se_mejsla_camp_mazela_network_common_protos_Pong_descriptor;
+      }
+
+      protected com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
+          internalGetFieldAccessorTable() {
+        return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.internal_static_se_mejsla_camp_mazela_network_common_protos_Pong_fieldAccessorTable
+            .ensureFieldAccessorsInitialized(
+                se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong.class, se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong.Builder.class);
+      }
+
+      // Construct using se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong.newBuilder()
+      private Builder() {
+        maybeForceBuilderInitialization();
+      }
+
+      private Builder(
+          com.google.protobuf.GeneratedMessageV3.BuilderParent parent) {
+        super(parent);
+        maybeForceBuilderInitialization();
+      }
+      private void maybeForceBuilderInitialization() {
+        if (com.google.protobuf.GeneratedMessageV3
+                .alwaysUseFieldBuilders) {
+        }
+      }
+      public Builder clear() {
+        super.clear();
+        sequence_ = 0;
+
+        pingSendTime_ = 0L;
+
+        return this;
+      }
+
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.internal_static_se_mejsla_camp_mazela_network_common_protos_Pong_descriptor;
+      }
+
+      public se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong getDefaultInstanceForType() {
+        return se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong.getDefaultInstance();
+      }
+
+      public se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong build() {
+        se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong result = buildPartial();
+        if (!result.isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return result;
+      }
+
+      public se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong buildPartial() {
+        se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong result = new se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong(this);
+        result.sequence_ = sequence_;
+        result.pingSendTime_ = pingSendTime_;
+        onBuilt();
+        return result;
+      }
+
+      public Builder clone() {
+        return (Builder) super.clone();
+      }
+      public Builder setField(
+          com.google.protobuf.Descriptors.FieldDescriptor field,
+          java.lang.Object value) {
+        return (Builder) super.setField(field, value);
+      }
+      public Builder clearField(
+          com.google.protobuf.Descriptors.FieldDescriptor field) {
+        return (Builder) super.clearField(field);
+      }
+      public Builder clearOneof(
+          com.google.protobuf.Descriptors.OneofDescriptor oneof) {
+        return (Builder) super.clearOneof(oneof);
+      }
+      public Builder setRepeatedField(
+          com.google.protobuf.Descriptors.FieldDescriptor field,
+          int index, java.lang.Object value) {
+        return (Builder) super.setRepeatedField(field, index, value);
+      }
+      public Builder addRepeatedField(
+          com.google.protobuf.Descriptors.FieldDescriptor field,
+          java.lang.Object value) {
+        return (Builder) super.addRepeatedField(field, value);
+      }
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong) {
+          return mergeFrom((se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+
+      public Builder mergeFrom(se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong other) {
+        if (other == se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong.getDefaultInstance()) return this;
+        if (other.getSequence() != 0) {
+          setSequence(other.getSequence());
+        }
+        if (other.getPingSendTime() != 0L) {
+          setPingSendTime(other.getPingSendTime());
+        }
+        this.mergeUnknownFields(other.unknownFields);
+        onChanged();
+        return this;
+      }
+
+      public final boolean isInitialized() {
+        return true;
+      }
+
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong parsedMessage = null;
+        try {
+          parsedMessage = PARSER.parsePartialFrom(input, extensionRegistry);
+        } catch (com.google.protobuf.InvalidProtocolBufferException e) {
+          parsedMessage = (se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong) e.getUnfinishedMessage();
+          throw e.unwrapIOException();
+        } finally {
+          if (parsedMessage != null) {
+            mergeFrom(parsedMessage);
+          }
+        }
+        return this;
+      }
+
+      private int sequence_ ;
+      /**
+       * <code>uint32 sequence = 1;</code>
+       */
+      public int getSequence() {
+        return sequence_;
+      }
+      /**
+       * <code>uint32 sequence = 1;</code>
+       */
+      public Builder setSequence(int value) {
+        
+        sequence_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>uint32 sequence = 1;</code>
+       */
+      public Builder clearSequence() {
+        
+        sequence_ = 0;
+        onChanged();
+        return this;
+      }
+
+      private long pingSendTime_ ;
+      /**
+       * <code>fixed64 ping_send_time = 2;</code>
+       */
+      public long getPingSendTime() {
+        return pingSendTime_;
+      }
+      /**
+       * <code>fixed64 ping_send_time = 2;</code>
+       */
+      public Builder setPingSendTime(long value) {
+        
+        pingSendTime_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>fixed64 ping_send_time = 2;</code>
+       */
+      public Builder clearPingSendTime() {
+        
+        pingSendTime_ = 0L;
+        onChanged();
+        return this;
+      }
+      public final Builder setUnknownFields(
+          final com.google.protobuf.UnknownFieldSet unknownFields) {
+        return super.setUnknownFieldsProto3(unknownFields);
+      }
+
+      public final Builder mergeUnknownFields(
+          final com.google.protobuf.UnknownFieldSet unknownFields) {
+        return super.mergeUnknownFields(unknownFields);
+      }
+
+
+      // @@protoc_insertion_point(builder_scope:se.mejsla.camp.mazela.network.common.protos.Pong)
+    }
+
+    // @@protoc_insertion_point(class_scope:se.mejsla.camp.mazela.network.common.protos.Pong)
+    private static final se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong DEFAULT_INSTANCE;
+    static {
+      DEFAULT_INSTANCE = new se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong();
+    }
+
+    public static se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong getDefaultInstance() {
+      return DEFAULT_INSTANCE;
+    }
+
+    private static final com.google.protobuf.Parser<Pong>
+        PARSER = new com.google.protobuf.AbstractParser<Pong>() {
+      public Pong parsePartialFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws com.google.protobuf.InvalidProtocolBufferException {
+          return new Pong(input, extensionRegistry);
+      }
+    };
+
+    public static com.google.protobuf.Parser<Pong> parser() {
+      return PARSER;
+    }
+
+    @java.lang.Override
+    public com.google.protobuf.Parser<Pong> getParserForType() {
+      return PARSER;
+    }
+
+    public se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong getDefaultInstanceForType() {
+      return DEFAULT_INSTANCE;
+    }
+
+  }
+
   private static final com.google.protobuf.Descriptors.Descriptor
     internal_static_se_mejsla_camp_mazela_network_common_protos_AuthenticateRequest_descriptor;
   private static final 
@@ -6901,6 +7937,16 @@ public final class MazelaProtocol {
   private static final 
     com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
       internal_static_se_mejsla_camp_mazela_network_common_protos_Envelope_fieldAccessorTable;
+  private static final com.google.protobuf.Descriptors.Descriptor
+    internal_static_se_mejsla_camp_mazela_network_common_protos_Ping_descriptor;
+  private static final 
+    com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
+      internal_static_se_mejsla_camp_mazela_network_common_protos_Ping_fieldAccessorTable;
+  private static final com.google.protobuf.Descriptors.Descriptor
+    internal_static_se_mejsla_camp_mazela_network_common_protos_Pong_descriptor;
+  private static final 
+    com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
+      internal_static_se_mejsla_camp_mazela_network_common_protos_Pong_fieldAccessorTable;
 
   public static com.google.protobuf.Descriptors.FileDescriptor
       getDescriptor() {
@@ -6945,7 +7991,9 @@ public final class MazelaProtocol {
       "putH\000\"u\n\013MessageType\022\027\n\023AuthenticateRequ" +
       "est\020\000\022\027\n\023AuthenticationReply\020\001\022\016\n\nJoinPl" +
       "ayer\020\002\022\023\n\017GameboardUpdate\020\003\022\017\n\013ClientInp" +
-      "ut\020\004B\t\n\007contentb\006proto3"
+      "ut\020\004B\t\n\007content\"+\n\004Ping\022\020\n\010sequence\030\001 \001(" +
+      "\r\022\021\n\tsend_time\030\002 \001(\006\"0\n\004Pong\022\020\n\010sequence" +
+      "\030\001 \001(\r\022\026\n\016ping_send_time\030\002 \001(\006b\006proto3"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
         new com.google.protobuf.Descriptors.FileDescriptor.    InternalDescriptorAssigner() {
@@ -7013,6 +8061,18 @@ public final class MazelaProtocol {
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_se_mejsla_camp_mazela_network_common_protos_Envelope_descriptor,
         new java.lang.String[] { "MessageType", "AuthenticationRequest", "AuthenticationReply", "JoinPlayer", "GameboardUpdate", "ClientInput", "Content", });
+    internal_static_se_mejsla_camp_mazela_network_common_protos_Ping_descriptor =
+      getDescriptor().getMessageTypes().get(7);
+    internal_static_se_mejsla_camp_mazela_network_common_protos_Ping_fieldAccessorTable = new
+      com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
+        internal_static_se_mejsla_camp_mazela_network_common_protos_Ping_descriptor,
+        new java.lang.String[] { "Sequence", "SendTime", });
+    internal_static_se_mejsla_camp_mazela_network_common_protos_Pong_descriptor =
+      getDescriptor().getMessageTypes().get(8);
+    internal_static_se_mejsla_camp_mazela_network_common_protos_Pong_fieldAccessorTable = new
+      com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
+        internal_static_se_mejsla_camp_mazela_network_common_protos_Pong_descriptor,
+        new java.lang.String[] { "Sequence", "PingSendTime", });
   }
 
   // @@protoc_insertion_point(outer_class_scope)
@@ -0,0 +1,729 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.shm;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.common.BulkReceiver;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.RoundTripEstimator;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.nio.NioBufferPool;
+import se.mejsla.camp.mazela.network.common.nio.NioFrame;
+import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Ping;
+import se.mejsla.camp.mazela.network.common.protos.MazelaProtocol.Pong;
+
+/**
+ * A framed connection between two processes on the same host through a
+ * memory mapped file, the shared memory counterpart of the NIO channel. The
+ * file holds a {@link ShmRing} in each direction and the frames in them are
+ * in the wire format, so control frames, heartbeats and bulk transfers work
+ * as over a socket.
+ * <p>
+ * A server listens on a directory, see {@link #directory(int)}. A client
+ * connects by creating a file in the directory, the server maps it and
+ * either accepts or refuses the connection by setting the state in the file
+ * header. The file is deleted once the server has taken it, the mapping
+ * stays valid on both sides. Either side closes the connection by setting
+ * its closed flag, the other side sees the flag on its next poll.
+ * <p>
+ * Reads happen on the {@link ShmPoller} thread, a frame is handed to the
+ * listener as a view of the read buffer and is only valid during the call.
+ * Writes are copied into the ring on the calling thread, what does not fit
+ * is left pending and copied by the poller thread as the reader frees
+ * space. Compression is never offered, so a peer must not send compressed
+ * frames.
+ */
+public class ShmChannel {
+
+    /**
+     * Called on the poller thread, except {@link #closed(ShmChannel)} which
+     * is called on the thread that closed the channel and
+     * {@link #connected(ShmChannel)} which the server gets on the thread
+     * that accepted the connection.
+     */
+    public interface Listener {
+
+        /**
+         * The connection is established and can be written to.
+         *
+         * @param channel The channel.
+         */
+        void connected(ShmChannel channel);
+
+        /**
+         * A message frame has arrived.
+         *
+         * @param channel The channel.
+         * @param payload The payload, only valid during the call.
+         */
+        void received(ShmChannel channel, ByteBuffer payload);
+
+        /**
+         * The channel was closed, called once.
+         *
+         * @param channel The channel.
+         */
+        void closed(ShmChannel channel);
+    }
+
+    /**
+     * The data capacity of each ring.
+     */
+    public static final int RING_BYTES = 1024 * 1024;
+    /**
+     * Files offered by clients end with this, the server only looks at
+     * these.
+     */
+    public static final String FILE_SUFFIX = ".ring";
+    /**
+     * The file the listening server holds a lock on.
+     */
+    private static final String LOCK_FILE = "server.lock";
+    /**
+     * A client that has not been accepted within this time gives up.
+     */
+    private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+
+    private static final int VERSION = 1;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    /**
+     * Written by the server, each flag below is written by one side only and
+     * sits on a cache line of its own.
+     */
+    private static final int STATE_OFFSET = 64;
+    private static final int CLIENT_CLOSED_OFFSET = 128;
+    private static final int SERVER_CLOSED_OFFSET = 192;
+    private static final int FILE_HEADER_BYTES = 256;
+
+    private static final int STATE_OFFERED = 0;
+    private static final int STATE_ACCEPTED = 1;
+    private static final int STATE_REFUSED = 2;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final Path file;
+    private final MappedByteBuffer memory;
+    private final boolean serverSide;
+    private final ShmRing in;
+    private final ShmRing out;
+    private final NioBufferPool pool;
+    private final Listener listener;
+    private final long createdNanos = System.nanoTime();
+    private volatile boolean established;
+
+    /**
+     * Only used on the poller thread once established. Kept ready for
+     * reading, the position is where the next read goes.
+     */
+    private ByteBuffer readBuffer;
+    /**
+     * A view of the read buffer that is moved over each frame, so that
+     * handing a frame to the listener allocates nothing.
+     */
+    private ByteBuffer payloadView;
+
+    /**
+     * Frames that have not been fully copied to the ring, guarded by its own
+     * lock. The lock also makes this side the only writer of its ring.
+     */
+    private final ArrayDeque<NioFrame> pending = new ArrayDeque<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private volatile long lastHeardNanos = System.nanoTime();
+    private final AtomicInteger nextPingSequence = new AtomicInteger();
+    private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator();
+    private volatile boolean serverFull;
+    private volatile BulkReceiver bulkReceiver;
+
+    private ShmChannel(
+            final Path file,
+            final MappedByteBuffer memory,
+            final boolean serverSide,
+            final NioBufferPool pool,
+            final Listener listener) {
+        this.file = file;
+        this.memory = memory;
+        this.serverSide = serverSide;
+        final int capacity = memory.getInt(CAPACITY_OFFSET);
+        final ShmRing toServer = new ShmRing(slice(memory, FILE_HEADER_BYTES, ShmRing.bytes(capacity)));
+        final ShmRing toClient = new ShmRing(slice(
+                memory,
+                FILE_HEADER_BYTES + ShmRing.bytes(capacity),
+                ShmRing.bytes(capacity)
+        ));
+        this.in = serverSide ? toServer : toClient;
+        this.out = serverSide ? toClient : toServer;
+        this.pool = Preconditions.checkNotNull(pool);
+        this.listener = Preconditions.checkNotNull(listener);
+    }
+
+    private static ByteBuffer slice(final ByteBuffer memory, final int offset, final int length) {
+        final ByteBuffer view = memory.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    private static int fileBytes(final int capacity) {
+        return FILE_HEADER_BYTES + 2 * ShmRing.bytes(capacity);
+    }
+
+    /**
+     * The directory a server listens on. It is under {@code /dev/shm} when
+     * that exists, so that the files never touch a disk, otherwise under the
+     * temporary directory. The system property {@code mazela.shm.directory}
+     * overrides the parent directory.
+     *
+     * @param port The port of the server, it names the directory.
+     * @return The directory, it may not exist.
+     */
+    public static Path directory(final int port) {
+        final Path devShm = Paths.get("/dev/shm");
+        final String parent = System.getProperty(
+                "mazela.shm.directory",
+                Files.isDirectory(devShm)
+                ? devShm.toString()
+                : System.getProperty("java.io.tmpdir")
+        );
+        return Paths.get(parent, "mazela-" + port);
+    }
+
+    /**
+     * Start listening on a directory. Only one server may listen on a
+     * directory at a time, the lock is held until it is released.
+     *
+     * @param directory The directory, created if it does not exist.
+     * @return The lock that marks the directory as listened on.
+     * @throws IOException If another server listens on the directory or the
+     * lock could not be taken.
+     */
+    public static FileLock listen(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+        final FileChannel lockChannel = FileChannel.open(
+                directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE
+        );
+        FileLock lock = null;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            // Held by this JVM
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Another server listens on " + directory);
+        }
+        return lock;
+    }
+
+    /**
+     * @param directory The directory of a server.
+     * @return true if a server holds the lock on the directory.
+     */
+    private static boolean isListening(final Path directory) throws IOException {
+        final Path lockFile = directory.resolve(LOCK_FILE);
+        if (!Files.exists(lockFile)) {
+            return false;
+        }
+        try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+            final FileLock probe = lockChannel.tryLock();
+            if (probe == null) {
+                return true;
+            }
+            probe.release();
+            return false;
+        } catch (OverlappingFileLockException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Offer a connection to the server listening on a directory. The
+     * listener is told when the server has accepted the connection, the
+     * channel must be registered with a poller for that to happen.
+     *
+     * @param directory The directory of the server.
+     * @param pool The buffers are taken from this pool. May not be null.
+     * @param listener Gets the frames and events of the channel. May not be
+     * null.
+     * @return The channel, not yet connected.
+     * @throws IOException If nothing listens on the directory or the file
+     * could not be created.
+     */
+    public static ShmChannel connect(
+            final Path directory,
+            final NioBufferPool pool,
+            final Listener listener) throws IOException {
+        if (!isListening(directory)) {
+            throw new IOException("Nothing listens on " + directory);
+        }
+        final String name = UUID.randomUUID().toString();
+        final Path offering = directory.resolve(name + FILE_SUFFIX + ".tmp");
+        final Path file = directory.resolve(name + FILE_SUFFIX);
+        final MappedByteBuffer memory = map(offering, fileBytes(RING_BYTES), true);
+        memory.putInt(VERSION_OFFSET, VERSION);
+        memory.putInt(CAPACITY_OFFSET, RING_BYTES);
+        memory.putInt(STATE_OFFSET, STATE_OFFERED);
+        memory.putInt(MAGIC_OFFSET, MessageUtilities.getMagicMarker());
+        ShmRing.fence();
+        // The server only sees the file once it is complete
+        Files.move(offering, file, StandardCopyOption.ATOMIC_MOVE);
+        return new ShmChannel(file, memory, false, pool, listener);
+    }
+
+    /**
+     * Map a file offered by a client, on the server side.
+     *
+     * @param file The file, named with {@link #FILE_SUFFIX}.
+     * @param pool The buffers are taken from this pool. May not be null.
+     * @param listener Gets the frames and events of the channel. May not be
+     * null.
+     * @return The channel, {@link #accept()} or close it.
+     * @throws IOException If the file could not be mapped, is not a channel
+     * file or was already taken.
+     */
+    public static ShmChannel open(
+            final Path file,
+            final NioBufferPool pool,
+            final Listener listener) throws IOException {
+        final long size = Files.size(file);
+        if (size < FILE_HEADER_BYTES) {
+            throw new IOException("Not a channel file: " + file);
+        }
+        final MappedByteBuffer memory = map(file, (int) Math.min(size, Integer.MAX_VALUE), false);
+        final int capacity = memory.getInt(CAPACITY_OFFSET);
+        ShmRing.fence();
+        if (memory.getInt(MAGIC_OFFSET) != MessageUtilities.getMagicMarker()
+                || memory.getInt(VERSION_OFFSET) != VERSION
+                || capacity <= 0
+                || Integer.bitCount(capacity) != 1
+                || size != fileBytes(capacity)) {
+            throw new IOException("Not a channel file: " + file);
+        }
+        if (memory.getInt(STATE_OFFSET) != STATE_OFFERED) {
+            throw new IOException("Channel file was already taken: " + file);
+        }
+        return new ShmChannel(file, memory, true, pool, listener);
+    }
+
+    private static MappedByteBuffer map(
+            final Path file,
+            final int size,
+            final boolean create) throws IOException {
+        try (FileChannel fileChannel = create
+                ? FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping outlives the file channel
+            return fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Accept the connection on the server side. The listener is told on the
+     * calling thread, register the channel with a poller after this call.
+     */
+    public void accept() {
+        Preconditions.checkState(this.serverSide, "Only the server accepts connections");
+        setState(STATE_ACCEPTED);
+        deleteFile();
+        established();
+    }
+
+    /**
+     * Refuse the connection because the server is full, the client sees
+     * {@link #isServerFull()}. The listener is not told.
+     */
+    public void refuse() {
+        Preconditions.checkState(this.serverSide, "Only the server refuses connections");
+        if (this.closed.compareAndSet(false, true)) {
+            setState(STATE_REFUSED);
+            deleteFile();
+        }
+    }
+
+    private void setState(final int state) {
+        ShmRing.fence();
+        this.memory.putInt(STATE_OFFSET, state);
+    }
+
+    private void established() {
+        this.readBuffer = this.pool.acquire(READ_BUFFER_BYTES);
+        this.readBuffer.clear();
+        this.payloadView = this.readBuffer.duplicate();
+        this.lastHeardNanos = System.nanoTime();
+        this.established = true;
+        this.listener.connected(this);
+    }
+
+    /**
+     * Read what has arrived, copy pending writes that now fit in the ring and
+     * notice if the peer has closed. Called on the poller thread.
+     *
+     * @param now The current {@link System#nanoTime()}.
+     * @return true if anything was read or written.
+     */
+    boolean poll(final long now) {
+        if (!this.established) {
+            return pollConnect(now);
+        }
+        final boolean peerClosed = this.memory.getInt(
+                this.serverSide ? CLIENT_CLOSED_OFFSET : SERVER_CLOSED_OFFSET
+        ) != 0;
+        ShmRing.fence();
+        boolean busy = read(now);
+        if (this.closed.get()) {
+            return busy;
+        }
+        synchronized (this.pending) {
+            if (!this.pending.isEmpty() && !this.closed.get()) {
+                busy |= writePending();
+            }
+        }
+        if (peerClosed) {
+            log.debug("Peer closed channel {}", this);
+            close();
+        }
+        return busy;
+    }
+
+    /**
+     * Wait for the server to accept or refuse the connection, on the client
+     * side.
+     */
+    private boolean pollConnect(final long now) {
+        final int state = this.memory.getInt(STATE_OFFSET);
+        ShmRing.fence();
+        switch (state) {
+            case STATE_ACCEPTED:
+                established();
+                return true;
+            case STATE_REFUSED:
+                log.info("Server is full: {}", this);
+                this.serverFull = true;
+                close();
+                return true;
+            default:
+                if (now - this.createdNanos > CONNECT_TIMEOUT_NANOS) {
+                    log.warn("Server did not accept the connection in time: {}", this);
+                    close();
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    private boolean read(final long now) {
+        if (this.in.read(this.readBuffer) == 0) {
+            return false;
+        }
+        this.lastHeardNanos = now;
+        final ByteBuffer input = this.readBuffer;
+        input.flip();
+        while (input.remaining() >= MessageUtilities.FRAME_HEADER_BYTES) {
+            final int start = input.position();
+            final int lengthWord = input.getInt(start + Integer.BYTES);
+            if (!MessageUtilities.isMagicMarker(input.getInt(start))
+                    || !MessageUtilities.isValidLengthWord(lengthWord)) {
+                log.info("Frame without magic marker on {}, closing connection", this);
+                close();
+                return true;
+            }
+            final int frameLength = MessageUtilities.FRAME_HEADER_BYTES
+                    + MessageUtilities.getPayloadLength(lengthWord);
+            if (input.remaining() < frameLength) {
+                if (input.capacity() < frameLength) {
+                    replaceReadBuffer(frameLength);
+                    return true;
+                }
+                break;
+            }
+            this.payloadView.limit(start + frameLength);
+            this.payloadView.position(start + MessageUtilities.FRAME_HEADER_BYTES);
+            input.position(start + frameLength);
+            dispatch(lengthWord, this.payloadView);
+            if (this.closed.get()) {
+                return true;
+            }
+        }
+        if (!input.hasRemaining() && input.capacity() > READ_BUFFER_BYTES) {
+            replaceReadBuffer(READ_BUFFER_BYTES);
+        } else {
+            input.compact();
+        }
+        return true;
+    }
+
+    /**
+     * Move the unread bytes to a new buffer, larger for a frame that does not
+     * fit or back to the normal size.
+     *
+     * @param capacity The size of the new buffer, the read buffer must be
+     * flipped so that the unread bytes are remaining.
+     */
+    private void replaceReadBuffer(final int capacity) {
+        final ByteBuffer previous = this.readBuffer;
+        final ByteBuffer next = this.pool.acquire(capacity);
+        next.clear();
+        next.put(previous);
+        this.pool.release(previous);
+        this.readBuffer = next;
+        this.payloadView = next.duplicate();
+    }
+
+    private void dispatch(final int lengthWord, final ByteBuffer payload) {
+        if ((lengthWord & MessageUtilities.FRAME_FLAG_CONTROL) != 0) {
+            handleControl(payload);
+        } else if ((lengthWord & (MessageUtilities.FRAME_FLAG_COMPRESSED
+                | MessageUtilities.FRAME_FLAG_SHARED_COMPRESSED)) != 0) {
+            log.info("Compressed frame but compression was never offered, closing connection");
+            close();
+        } else {
+            this.listener.received(this, payload);
+        }
+    }
+
+    private void handleControl(final ByteBuffer payload) {
+        if (!payload.hasRemaining()) {
+            log.debug("Ignoring empty control frame on: {}", this);
+            return;
+        }
+        final byte type = payload.get();
+        try {
+            switch (type) {
+                case MessageUtilities.CONTROL_PING:
+                    final Ping ping = Ping.parseFrom(remainingBytes(payload));
+                    write(Collections.singletonList(NioFrame.control(
+                            this.pool,
+                            MessageUtilities.CONTROL_PONG,
+                            Pong.newBuilder()
+                                    .setSequence(ping.getSequence())
+                                    .setPingSendTime(ping.getSendTime())
+                                    .build()
+                                    .toByteArray()
+                    )));
+                    return;
+                case MessageUtilities.CONTROL_PONG:
+                    final Pong pong = Pong.parseFrom(remainingBytes(payload));
+                    this.roundTripEstimator.sample(System.nanoTime() - pong.getPingSendTime());
+                    return;
+                case MessageUtilities.CONTROL_COMPRESSION_OFFER:
+                    log.debug("Peer offered compression, not supported: {}", this);
+                    return;
+                case MessageUtilities.CONTROL_SERVER_FULL:
+                    log.info("Server is full: {}", this);
+                    this.serverFull = true;
+                    return;
+                case MessageUtilities.CONTROL_BULK_CHUNK:
+                    final BulkReceiver receiver = this.bulkReceiver;
+                    if (receiver == null) {
+                        log.debug("Ignoring bulk chunk, no receiver: {}", this);
+                        return;
+                    }
+                    if (receiver.chunk(payload)) {
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (InvalidProtocolBufferException ex) {
+            // Logged below
+        }
+        log.debug("Ignoring unknown control frame on: {}", this);
+    }
+
+    /**
+     * Control frames are rare and tiny, copy them out of the direct read
+     * buffer rather than have protobuf decode the direct memory.
+     */
+    private static byte[] remainingBytes(final ByteBuffer payload) {
+        final byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write frames in order. As much as the ring has room for is copied on
+     * the calling thread, the rest by the poller thread. Each frame is done
+     * when it has been copied, or at once if the channel is closed.
+     *
+     * @param frames The frames to write. May not be null.
+     * @return false if the channel is closed.
+     */
+    public boolean write(final Collection<NioFrame> frames) {
+        synchronized (this.pending) {
+            if (this.closed.get()) {
+                frames.forEach(NioFrame::done);
+                return false;
+            }
+            this.pending.addAll(frames);
+            writePending();
+        }
+        return true;
+    }
+
+    /**
+     * Copy the pending frames until they are all in the ring or the ring is
+     * full, then publish them. Called with the pending lock held.
+     *
+     * @return true if anything was copied.
+     */
+    private boolean writePending() {
+        boolean wrote = false;
+        NioFrame head;
+        while ((head = this.pending.peek()) != null) {
+            final ByteBuffer buffer = head.getBuffer();
+            wrote |= this.out.write(buffer) > 0;
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            this.pending.poll().done();
+        }
+        if (wrote) {
+            this.out.publish();
+        }
+        return wrote;
+    }
+
+    /**
+     * @return The number of frames that have not been fully copied to the
+     * ring.
+     */
+    public int getPendingFrameCount() {
+        synchronized (this.pending) {
+            return this.pending.size();
+        }
+    }
+
+    /**
+     * Send a ping, the pong updates the round trip time.
+     */
+    public void ping() {
+        final Ping ping = Ping.newBuilder()
+                .setSequence(this.nextPingSequence.getAndIncrement())
+                .setSendTime(System.nanoTime())
+                .build();
+        write(Collections.singletonList(
+                NioFrame.control(this.pool, MessageUtilities.CONTROL_PING, ping.toByteArray())
+        ));
+    }
+
+    /**
+     * @param now The current {@link System#nanoTime()}.
+     * @return How long it is since anything was read from the peer.
+     */
+    public long getSilentNanos(final long now) {
+        return now - this.lastHeardNanos;
+    }
+
+    /**
+     * @return The latest estimate, {@link RoundTripTime#UNKNOWN} until the
+     * first pong.
+     */
+    public RoundTripTime getRoundTripTime() {
+        return this.roundTripEstimator.get();
+    }
+
+    /**
+     * @return true if the server refused the connection because it was full.
+     */
+    public boolean isServerFull() {
+        return serverFull;
+    }
+
+    /**
+     * @param bulkReceiver Gets the bulk transfer chunks that arrive on the
+     * channel. Without a receiver they are ignored.
+     */
+    public void setBulkReceiver(final BulkReceiver bulkReceiver) {
+        this.bulkReceiver = bulkReceiver;
+    }
+
+    public boolean isOpen() {
+        return !this.closed.get();
+    }
+
+    /**
+     * Close the channel and discard the pending frames. The peer sees the
+     * close on its next poll. The listener is told on the calling thread,
+     * closing more than once has no effect.
+     */
+    public void close() {
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this.pending) {
+            NioFrame frame;
+            while ((frame = this.pending.poll()) != null) {
+                frame.done();
+            }
+        }
+        ShmRing.fence();
+        this.memory.putInt(this.serverSide ? SERVER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET, 1);
+        this.listener.closed(this);
+    }
+
+    /**
+     * The poller has stopped polling the closed channel, give back the read
+     * buffer and remove the file if the server never took it.
+     */
+    void released() {
+        if (this.readBuffer != null) {
+            this.pool.release(this.readBuffer);
+            this.readBuffer = null;
+            this.payloadView = null;
+        }
+        deleteFile();
+    }
+
+    private void deleteFile() {
+        try {
+            Files.deleteIfExists(this.file);
+        } catch (IOException ex) {
+            log.debug("Failed to delete channel file {}", this.file, ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(this.file.getFileName());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.shm;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One thread that polls the shared memory channels registered with it, the
+ * shared memory counterpart of the NIO selector loop. Shared memory has
+ * nothing to block on, so the thread spins while there is traffic and backs
+ * off when there is none: it spins, then yields, then parks for longer and
+ * longer up to a millisecond. A frame written to an idle channel is
+ * therefore seen within a millisecond, and within a few hundred nanoseconds
+ * while the channels are busy.
+ */
+public class ShmPoller {
+
+    /**
+     * Spinning only helps while the peer runs on another processor, on a
+     * single processor it takes the time the peer needs to write.
+     */
+    private static final int SPINS
+            = Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+    private static final int YIELDS = 100;
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final Thread thread;
+    private final CopyOnWriteArrayList<ShmChannel> channels = new CopyOnWriteArrayList<>();
+    private volatile boolean running;
+
+    /**
+     * Idle polls since the last traffic, only used on the poller thread.
+     */
+    private int idlePolls;
+    private long parkNanos = MIN_PARK_NANOS;
+
+    /**
+     * @param threadFactory Creates the poller thread. May not be null.
+     */
+    public ShmPoller(final ThreadFactory threadFactory) {
+        this.thread = Preconditions.checkNotNull(threadFactory).newThread(this::run);
+    }
+
+    public void start() {
+        this.running = true;
+        this.thread.start();
+    }
+
+    /**
+     * Stop the poller and wait for the thread to end. The channels that are
+     * still registered are closed.
+     */
+    public void stop() {
+        this.running = false;
+        LockSupport.unpark(this.thread);
+        if (Thread.currentThread() != this.thread) {
+            try {
+                this.thread.join(2000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Start polling a channel. It is polled until it is closed.
+     *
+     * @param channel The channel. May not be null.
+     */
+    public void register(final ShmChannel channel) {
+        this.channels.add(Preconditions.checkNotNull(channel));
+        LockSupport.unpark(this.thread);
+    }
+
+    private void run() {
+        while (this.running) {
+            final long now = System.nanoTime();
+            boolean busy = false;
+            for (ShmChannel channel : this.channels) {
+                try {
+                    if (channel.isOpen()) {
+                        busy |= channel.poll(now);
+                    }
+                } catch (RuntimeException ex) {
+                    log.error("Shared memory channel threw unchecked exception", ex);
+                    channel.close();
+                }
+                if (!channel.isOpen()) {
+                    this.channels.remove(channel);
+                    channel.released();
+                }
+            }
+            idle(busy);
+        }
+        for (ShmChannel channel : this.channels) {
+            channel.close();
+            channel.released();
+        }
+        this.channels.clear();
+    }
+
+    private void idle(final boolean busy) {
+        if (busy) {
+            this.idlePolls = 0;
+            this.parkNanos = MIN_PARK_NANOS;
+        } else if (this.idlePolls < SPINS) {
+            this.idlePolls++;
+        } else if (this.idlePolls < SPINS + YIELDS) {
+            this.idlePolls++;
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(this.parkNanos);
+            this.parkNanos = Math.min(this.parkNanos * 2, MAX_PARK_NANOS);
+        }
+    }
+}
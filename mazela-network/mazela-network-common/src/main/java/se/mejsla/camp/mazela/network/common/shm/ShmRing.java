@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.shm;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single producer, single consumer byte ring in shared memory. The
+ * producer and the consumer may be in different processes, each maps the
+ * same file. The ring is a byte stream like a socket, frames are written in
+ * the wire format and a frame may be split over several writes and reads.
+ * <p>
+ * The ring starts with the producer and the consumer position, each on a
+ * cache line of its own, followed by the data. Positions only grow, the
+ * index into the data is the position modulo the capacity. Written bytes are
+ * published by storing the producer position after a barrier, a reader loads
+ * the position and passes a barrier before reading the bytes. The consumer
+ * position is published the same way to free space for the producer. The
+ * positions have to live in the shared memory since the other side is
+ * usually another process, see {@link #fence()} for the barrier.
+ * <p>
+ * An instance is used from one side only: the writing side calls
+ * {@link #write(ByteBuffer)} and {@link #publish()} from one thread at a
+ * time, the reading side calls {@link #read(ByteBuffer)} from one thread.
+ */
+public class ShmRing {
+
+    /**
+     * The producer and consumer positions, a cache line each.
+     */
+    public static final int HEADER_BYTES = 128;
+    private static final int PRODUCER_OFFSET = 0;
+    private static final int CONSUMER_OFFSET = 64;
+
+    /**
+     * The barrier for the rare accesses outside the rings, see
+     * {@link #fence()}.
+     */
+    private static final AtomicLong SHARED_BARRIER = new AtomicLong();
+
+    private final ByteBuffer memory;
+    private final ByteBuffer data;
+    private final int capacity;
+    private final int mask;
+    /**
+     * The barrier of this side of the ring, its own so that the hot path
+     * does not share a cache line with other rings.
+     */
+    private final AtomicLong barrier = new AtomicLong();
+
+    /**
+     * The writing side's own position and the last consumer position it
+     * read, the consumer position is only read again when the ring looks
+     * full.
+     */
+    private long producerPosition;
+    private long consumerLimit;
+    /**
+     * The reading side's own position.
+     */
+    private long consumerPosition;
+
+    /**
+     * @param memory The ring, {@link #bytes(int)} long starting at position
+     * zero. Shared with the other side.
+     */
+    public ShmRing(final ByteBuffer memory) {
+        Preconditions.checkArgument(memory.capacity() > HEADER_BYTES, "Ring memory is too small");
+        this.memory = memory;
+        this.capacity = memory.capacity() - HEADER_BYTES;
+        Preconditions.checkArgument(
+                Integer.bitCount(this.capacity) == 1,
+                "Ring capacity must be a power of two: %s", this.capacity
+        );
+        this.mask = this.capacity - 1;
+        final ByteBuffer dataView = memory.duplicate();
+        dataView.position(HEADER_BYTES);
+        this.data = dataView.slice();
+        this.producerPosition = memory.getLong(PRODUCER_OFFSET);
+        this.consumerPosition = memory.getLong(CONSUMER_OFFSET);
+        this.consumerLimit = this.consumerPosition;
+        this.barrier.getAndIncrement();
+    }
+
+    /**
+     * @param capacity The data capacity, a power of two.
+     * @return The bytes a ring of the capacity takes, header included.
+     */
+    public static int bytes(final int capacity) {
+        return HEADER_BYTES + capacity;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Copy as much of the source as there is room for. The bytes are not
+     * visible to the reader until {@link #publish()}.
+     *
+     * @param source The bytes to write, the position is moved past what was
+     * written.
+     * @return The number of bytes written, zero if the ring is full.
+     */
+    public int write(final ByteBuffer source) {
+        long free = this.capacity - (this.producerPosition - this.consumerLimit);
+        if (free < source.remaining()) {
+            this.consumerLimit = this.memory.getLong(CONSUMER_OFFSET);
+            this.barrier.getAndIncrement();
+            free = this.capacity - (this.producerPosition - this.consumerLimit);
+        }
+        final int length = (int) Math.min(free, source.remaining());
+        if (length == 0) {
+            return 0;
+        }
+        final int index = (int) (this.producerPosition & this.mask);
+        final int first = Math.min(length, this.capacity - index);
+        copyIn(source, index, first);
+        if (first < length) {
+            copyIn(source, 0, length - first);
+        }
+        this.producerPosition += length;
+        return length;
+    }
+
+    private void copyIn(final ByteBuffer source, final int index, final int length) {
+        final int limit = source.limit();
+        source.limit(source.position() + length);
+        this.data.limit(index + length);
+        this.data.position(index);
+        this.data.put(source);
+        source.limit(limit);
+    }
+
+    /**
+     * Make everything written so far visible to the reader.
+     */
+    public void publish() {
+        this.barrier.getAndIncrement();
+        this.memory.putLong(PRODUCER_OFFSET, this.producerPosition);
+    }
+
+    /**
+     * Copy as many readable bytes as the destination has room for, and give
+     * the space back to the writer.
+     *
+     * @param destination Receives the bytes at its position.
+     * @return The number of bytes read, zero if nothing was readable.
+     */
+    public int read(final ByteBuffer destination) {
+        final long available = this.memory.getLong(PRODUCER_OFFSET) - this.consumerPosition;
+        this.barrier.getAndIncrement();
+        final int length = (int) Math.min(available, destination.remaining());
+        if (length <= 0) {
+            return 0;
+        }
+        final int index = (int) (this.consumerPosition & this.mask);
+        final int first = Math.min(length, this.capacity - index);
+        copyOut(destination, index, first);
+        if (first < length) {
+            copyOut(destination, 0, length - first);
+        }
+        this.consumerPosition += length;
+        this.barrier.getAndIncrement();
+        this.memory.putLong(CONSUMER_OFFSET, this.consumerPosition);
+        return length;
+    }
+
+    private void copyOut(final ByteBuffer destination, final int index, final int length) {
+        this.data.limit(index + length);
+        this.data.position(index);
+        destination.put(this.data);
+    }
+
+    /**
+     * Order the accesses to shared memory outside the rings. A read, modify
+     * and write of an atomic is a full barrier: the loads and stores before
+     * it are not moved after it and those after it are not moved before it.
+     * A store to the shared memory before the barrier is therefore visible
+     * to the other side before a store after it, and a load after the
+     * barrier sees at least what the other side published before the value
+     * loaded before it. The same holds for the barrier of each ring.
+     */
+    static void fence() {
+        SHARED_BARRIER.getAndIncrement();
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.simulation;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+
+/**
+ * An impairment profile for one direction of a simulated connection. The
+ * same profile is used for both directions, each with its own random
+ * sequence derived from the seed so runs can be repeated.
+ * <p>
+ * Latency and jitter are one way. Jitter is added as a uniformly distributed
+ * delay between zero and the jitter. The bandwidth cap delays each message by
+ * the time it takes to send its bytes, so a burst queues up behind itself.
+ */
+public final class NetworkConditions {
+
+    public static final int UNLIMITED = 0;
+
+    private static final NetworkConditions PERFECT = builder().build();
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double lossRate;
+    private final double reorderRate;
+    private final int bandwidthBytesPerSecond;
+    private final long seed;
+
+    private NetworkConditions(final Builder builder) {
+        this.latencyMillis = builder.latencyMillis;
+        this.jitterMillis = builder.jitterMillis;
+        this.lossRate = builder.lossRate;
+        this.reorderRate = builder.reorderRate;
+        this.bandwidthBytesPerSecond = builder.bandwidthBytesPerSecond;
+        this.seed = builder.seed;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return No impairment at all.
+     */
+    public static NetworkConditions perfect() {
+        return PERFECT;
+    }
+
+    /**
+     * @return A good wired connection: 15 ms, little jitter and rare loss.
+     */
+    public static NetworkConditions broadband() {
+        return builder()
+                .setLatencyMillis(15)
+                .setJitterMillis(3)
+                .setLossRate(0.001)
+                .build();
+    }
+
+    /**
+     * @return A mobile connection: 60 ms with a lot of jitter, noticeable loss
+     * and reordering and a capped bandwidth.
+     */
+    public static NetworkConditions mobile() {
+        return builder()
+                .setLatencyMillis(60)
+                .setJitterMillis(40)
+                .setLossRate(0.02)
+                .setReorderRate(0.01)
+                .setBandwidthBytesPerSecond(256 * 1024)
+                .build();
+    }
+
+    /**
+     * @param name perfect, broadband or mobile, in any case.
+     * @return The named profile.
+     * @throws IllegalArgumentException If there is no profile by that name.
+     */
+    public static NetworkConditions named(final String name) {
+        switch (name.toLowerCase()) {
+            case "perfect":
+                return perfect();
+            case "broadband":
+                return broadband();
+            case "mobile":
+                return mobile();
+            default:
+                throw new IllegalArgumentException("Unknown network conditions: " + name);
+        }
+    }
+
+    /**
+     * @param seed The seed for the random sequences.
+     * @return The same profile with another seed.
+     */
+    public NetworkConditions withSeed(final long seed) {
+        return toBuilder().setSeed(seed).build();
+    }
+
+    public Builder toBuilder() {
+        return builder()
+                .setLatencyMillis(latencyMillis)
+                .setJitterMillis(jitterMillis)
+                .setLossRate(lossRate)
+                .setReorderRate(reorderRate)
+                .setBandwidthBytesPerSecond(bandwidthBytesPerSecond)
+                .setSeed(seed);
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public long getJitterMillis() {
+        return jitterMillis;
+    }
+
+    /**
+     * @return The probability that a message is lost. Lost reliable messages
+     * are resent after a retransmission timeout instead.
+     */
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    /**
+     * @return The probability that an unreliable message is held back so
+     * that later messages overtake it.
+     */
+    public double getReorderRate() {
+        return reorderRate;
+    }
+
+    /**
+     * @return The bandwidth in each direction, {@link #UNLIMITED} for no cap.
+     */
+    public int getBandwidthBytesPerSecond() {
+        return bandwidthBytesPerSecond;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return true if messages pass without any impairment.
+     */
+    public boolean isPerfect() {
+        return latencyMillis == 0
+                && jitterMillis == 0
+                && lossRate == 0
+                && reorderRate == 0
+                && bandwidthBytesPerSecond == UNLIMITED;
+    }
+
+    /**
+     * Add the simulated delay to a round trip time measured below the
+     * simulation, for example by heartbeats.
+     *
+     * @param measured The measured round trip time.
+     * @return The measured time plus the latency and on average half the
+     * jitter each way, unknown if the measurement is.
+     */
+    public RoundTripTime addTo(final RoundTripTime measured) {
+        if (!measured.isKnown()) {
+            return measured;
+        }
+        final long jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+        final long simulated = 2 * TimeUnit.MILLISECONDS.toNanos(latencyMillis) + jitterNanos;
+        return new RoundTripTime(
+                measured.getSmoothedNanos() + simulated,
+                measured.getJitterNanos() + jitterNanos / 2,
+                measured.getLatestNanos() + simulated,
+                measured.getSamples()
+        );
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("latencyMillis", latencyMillis)
+                .add("jitterMillis", jitterMillis)
+                .add("lossRate", lossRate)
+                .add("reorderRate", reorderRate)
+                .add("bandwidthBytesPerSecond", bandwidthBytesPerSecond)
+                .add("seed", seed)
+                .toString();
+    }
+
+    /**
+     * Collects the settings for {@link NetworkConditions}. Everything
+     * defaults to no impairment.
+     */
+    public static final class Builder {
+
+        private long latencyMillis = 0;
+        private long jitterMillis = 0;
+        private double lossRate = 0;
+        private double reorderRate = 0;
+        private int bandwidthBytesPerSecond = UNLIMITED;
+        private long seed = 0;
+
+        private Builder() {
+        }
+
+        /**
+         * @param latencyMillis The one way delay, may not be negative.
+         * @return this builder
+         */
+        public Builder setLatencyMillis(final long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+
+        /**
+         * @param jitterMillis The largest extra delay, may not be negative.
+         * @return this builder
+         */
+        public Builder setJitterMillis(final long jitterMillis) {
+            this.jitterMillis = jitterMillis;
+            return this;
+        }
+
+        /**
+         * @param lossRate Between 0 and 1.
+         * @return this builder
+         */
+        public Builder setLossRate(final double lossRate) {
+            this.lossRate = lossRate;
+            return this;
+        }
+
+        /**
+         * @param reorderRate Between 0 and 1.
+         * @return this builder
+         */
+        public Builder setReorderRate(final double reorderRate) {
+            this.reorderRate = reorderRate;
+            return this;
+        }
+
+        /**
+         * @param bandwidthBytesPerSecond Positive or {@link #UNLIMITED}.
+         * @return this builder
+         */
+        public Builder setBandwidthBytesPerSecond(final int bandwidthBytesPerSecond) {
+            this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+            return this;
+        }
+
+        public Builder setSeed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @return The profile.
+         * @throws IllegalArgumentException If a setting is out of range.
+         */
+        public NetworkConditions build() {
+            Preconditions.checkArgument(latencyMillis >= 0, "Latency may not be negative");
+            Preconditions.checkArgument(jitterMillis >= 0, "Jitter may not be negative");
+            Preconditions.checkArgument(
+                    lossRate >= 0 && lossRate <= 1,
+                    "Loss rate must be between 0 and 1"
+            );
+            Preconditions.checkArgument(
+                    reorderRate >= 0 && reorderRate <= 1,
+                    "Reorder rate must be between 0 and 1"
+            );
+            Preconditions.checkArgument(
+                    bandwidthBytesPerSecond >= 0,
+                    "Bandwidth must be positive or UNLIMITED"
+            );
+            return new NetworkConditions(this);
+        }
+    }
+}
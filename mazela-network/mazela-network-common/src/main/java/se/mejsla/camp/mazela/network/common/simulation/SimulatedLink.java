@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.simulation;
+
+import com.google.common.base.Preconditions;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One direction of a simulated connection. Decides for each message when it
+ * arrives, or that it is lost.
+ * <p>
+ * Reliable messages model a TCP stream: they arrive in order, and a lost
+ * message is resent after a retransmission timeout with every later message
+ * waiting behind it. Unreliable messages model datagrams: they may be lost,
+ * jitter alone can reorder them, and some are held back on purpose so later
+ * ones overtake them.
+ */
+public class SimulatedLink {
+
+    /**
+     * Returned instead of an arrival time for a lost message.
+     */
+    public static final long LOST = -1;
+
+    /**
+     * The smallest retransmission timeout, the same as the Linux TCP stack.
+     */
+    private static final long MIN_RETRANSMISSION_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    /**
+     * The shortest time a reordered datagram is held back.
+     */
+    private static final long MIN_REORDER_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final NetworkConditions conditions;
+    private final SplittableRandom random;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final long retransmissionNanos;
+    private final double nanosPerByte;
+    /**
+     * When the last message has been sent, later messages queue behind it
+     * when the bandwidth is capped.
+     */
+    private long linkFreeNanos;
+    private long lastReliableArrivalNanos;
+
+    /**
+     * @param conditions The impairment profile. May not be null.
+     * @param stream Picks the random sequence, different links with the same
+     * profile should use different streams.
+     */
+    public SimulatedLink(final NetworkConditions conditions, final long stream) {
+        this.conditions = Preconditions.checkNotNull(conditions);
+        this.random = new SplittableRandom(conditions.getSeed() * 31 + stream);
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(conditions.getLatencyMillis());
+        this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(conditions.getJitterMillis());
+        this.retransmissionNanos = Math.max(
+                MIN_RETRANSMISSION_NANOS,
+                2 * this.latencyNanos + 4 * this.jitterNanos
+        );
+        this.nanosPerByte = conditions.getBandwidthBytesPerSecond() == NetworkConditions.UNLIMITED
+                ? 0
+                : TimeUnit.SECONDS.toNanos(1) / (double) conditions.getBandwidthBytesPerSecond();
+    }
+
+    public NetworkConditions getConditions() {
+        return conditions;
+    }
+
+    /**
+     * @param now The current {@link System#nanoTime()}.
+     * @param bytes The size of the message on the wire.
+     * @param reliable true for stream messages, false for datagrams.
+     * @return The {@link System#nanoTime()} the message arrives at, or
+     * {@link #LOST}.
+     */
+    public synchronized long arrival(final long now, final int bytes, final boolean reliable) {
+        final long sent = Math.max(now, this.linkFreeNanos) + (long) (bytes * this.nanosPerByte);
+        this.linkFreeNanos = sent;
+        long arrival = sent + this.latencyNanos + jitter();
+        final boolean lost = this.random.nextDouble() < this.conditions.getLossRate();
+        if (reliable) {
+            if (lost) {
+                arrival += this.retransmissionNanos;
+            }
+            arrival = Math.max(arrival, this.lastReliableArrivalNanos);
+            this.lastReliableArrivalNanos = arrival;
+            return arrival;
+        }
+        if (lost) {
+            return LOST;
+        }
+        if (this.random.nextDouble() < this.conditions.getReorderRate()) {
+            arrival += Math.max(MIN_REORDER_NANOS, this.latencyNanos + this.jitterNanos);
+        }
+        return arrival;
+    }
+
+    private long jitter() {
+        return this.jitterNanos > 0 ? this.random.nextLong(this.jitterNanos + 1) : 0;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.common.simulation;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel driven by one thread. Scheduling is a lock free
+ * queue insert from any thread, the wheel thread moves new timers into the
+ * bucket of their tick and each tick only looks at one bucket. This keeps
+ * the cost per timer constant with hundreds of thousands of messages in
+ * flight, where a priority queue would cost a logarithm per message.
+ * <p>
+ * Timers fire in the tick after their deadline, so the resolution is one
+ * tick. Timers that expire in the same tick fire in the order they were
+ * scheduled.
+ */
+public class TimerWheel {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final long tickNanos;
+    private final ArrayList<Timer>[] buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timer> newTimers = new ConcurrentLinkedQueue<>();
+    private final Runnable afterTick;
+    private final Thread thread;
+    private volatile boolean running;
+    private volatile long startNanos;
+    private long tick;
+
+    /**
+     * @param threadFactory Creates the wheel thread. May not be null.
+     * @param tickMillis The length of a tick.
+     * @param wheelSize The number of buckets, rounded up to a power of two.
+     * @param afterTick Run on the wheel thread after the timers of each tick
+     * have fired. May be null.
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(
+            final ThreadFactory threadFactory,
+            final long tickMillis,
+            final int wheelSize,
+            final Runnable afterTick) {
+        Preconditions.checkArgument(tickMillis > 0, "Tick must be positive");
+        Preconditions.checkArgument(
+                wheelSize > 0 && wheelSize <= 1 << 20,
+                "Wheel size must be between 1 and 2^20"
+        );
+        final int size = Integer.highestOneBit(wheelSize) == wheelSize
+                ? wheelSize
+                : Integer.highestOneBit(wheelSize) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new ArrayList[size];
+        for (int i = 0; i < size; i++) {
+            this.buckets[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+        this.afterTick = afterTick;
+        this.thread = threadFactory.newThread(this::run);
+    }
+
+    public void start() {
+        this.startNanos = System.nanoTime();
+        this.running = true;
+        this.thread.start();
+    }
+
+    /**
+     * Stop the wheel thread, timers that have not fired are dropped.
+     */
+    public void stop() {
+        this.running = false;
+        this.thread.interrupt();
+        try {
+            this.thread.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run a task after a delay, on the wheel thread. Tasks should be short,
+     * they hold up every later timer.
+     *
+     * @param delayNanos The delay, a delay shorter than a tick fires on the
+     * next tick.
+     * @param task The task. May not be null.
+     */
+    public void schedule(final long delayNanos, final Runnable task) {
+        this.newTimers.add(new Timer(
+                System.nanoTime() + Math.max(0, delayNanos),
+                Preconditions.checkNotNull(task)
+        ));
+    }
+
+    private void run() {
+        while (this.running) {
+            final long tickDeadline = this.startNanos + (this.tick + 1) * this.tickNanos;
+            long wait;
+            while ((wait = tickDeadline - System.nanoTime()) > 0 && this.running) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!this.running) {
+                break;
+            }
+            transferNewTimers();
+            expire(this.buckets[(int) this.tick & this.mask]);
+            if (this.afterTick != null) {
+                try {
+                    this.afterTick.run();
+                } catch (RuntimeException ex) {
+                    log.error("After tick task failed", ex);
+                }
+            }
+            this.tick++;
+        }
+    }
+
+    private void transferNewTimers() {
+        Timer timer;
+        while ((timer = this.newTimers.poll()) != null) {
+            // The tick the timer expires in, never one that has passed
+            final long expiryTick = Math.max(
+                    this.tick,
+                    (timer.deadlineNanos - this.startNanos) / this.tickNanos
+            );
+            timer.rounds = (expiryTick - this.tick) / this.buckets.length;
+            this.buckets[(int) expiryTick & this.mask].add(timer);
+        }
+    }
+
+    private void expire(final ArrayList<Timer> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            final Timer timer = bucket.get(i);
+            if (timer.rounds > 0) {
+                timer.rounds--;
+                bucket.set(kept++, timer);
+                continue;
+            }
+            try {
+                timer.task.run();
+            } catch (RuntimeException ex) {
+                log.error("Timer task failed", ex);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    private static final class Timer {
+
+        private final long deadlineNanos;
+        private final Runnable task;
+        private long rounds;
+
+        private Timer(final long deadlineNanos, final Runnable task) {
+            this.deadlineNanos = deadlineNanos;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import se.mejsla.camp.mazela.network.common.TokenBucket;
+
+/**
+ * Decides if a newly accepted connection may stay, before the server spends
+ * a connection ID or any queues on it. A connection is refused when the
+ * server already has the maximum number of connections, or when connections
+ * arrive faster than the accept rate, as in a reconnect storm after a
+ * restart. The accept rate allows a burst of one second's worth.
+ * <p>
+ * Thread safe, accepts may happen on several selector threads.
+ */
+public class AdmissionControl {
+
+    private final int maxConnections;
+    /**
+     * Null if the accept rate is not limited.
+     */
+    private final TokenBucket acceptBucket;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder refusedConnections = new LongAdder();
+    private final LongAdder authenticationTimeouts = new LongAdder();
+
+    /**
+     * @param configuration The limits. May not be null.
+     */
+    public AdmissionControl(final ServerConfiguration configuration) {
+        Preconditions.checkNotNull(configuration);
+        this.maxConnections = configuration.getMaxConnections();
+        this.acceptBucket = configuration.getAcceptsPerSecond() != ServerConfiguration.UNLIMITED
+                ? new TokenBucket(
+                        configuration.getAcceptsPerSecond(),
+                        configuration.getAcceptsPerSecond(),
+                        System.nanoTime()
+                )
+                : null;
+    }
+
+    /**
+     * Admit a newly accepted connection. An admitted connection must be
+     * released with {@link #release()} when it is gone.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}.
+     * @return false if the connection is refused.
+     */
+    public boolean admit(final long nowNanos) {
+        if (!takeAcceptToken(nowNanos) || !reserveConnection()) {
+            this.refusedConnections.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean takeAcceptToken(final long nowNanos) {
+        if (this.acceptBucket == null) {
+            return true;
+        }
+        synchronized (this.acceptBucket) {
+            if (!this.acceptBucket.has(1, nowNanos)) {
+                return false;
+            }
+            this.acceptBucket.take(1, nowNanos);
+            return true;
+        }
+    }
+
+    private boolean reserveConnection() {
+        while (true) {
+            final int current = this.connections.get();
+            if (this.maxConnections != ServerConfiguration.UNLIMITED
+                    && current >= this.maxConnections) {
+                return false;
+            }
+            if (this.connections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * An admitted connection is gone.
+     */
+    public void release() {
+        this.connections.decrementAndGet();
+    }
+
+    /**
+     * Count a connection that was closed because it did not authenticate in
+     * time.
+     */
+    public void authenticationTimedOut() {
+        this.authenticationTimeouts.increment();
+    }
+
+    /**
+     * @return The number of admitted connections that are not gone yet.
+     */
+    public int getConnectionCount() {
+        return this.connections.get();
+    }
+
+    /**
+     * @return The number of connections refused because the server was full
+     * or accepting too fast.
+     */
+    public long getRefusedConnectionCount() {
+        return this.refusedConnections.sum();
+    }
+
+    /**
+     * @return The number of connections closed because they did not
+     * authenticate in time.
+     */
+    public long getAuthenticationTimeoutCount() {
+        return this.authenticationTimeouts.sum();
+    }
+}
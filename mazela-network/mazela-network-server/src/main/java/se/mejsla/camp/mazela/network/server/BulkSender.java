@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import se.mejsla.camp.mazela.network.common.BulkReceiver;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+
+/**
+ * The bulk transfers queued for one connection, cut into chunks as the
+ * connection has room for them. At most a window of chunk bytes is handed to
+ * the network at a time, a chunk leaves the window when its write has
+ * completed. See {@link NetworkServer#sendBulk}.
+ * <p>
+ * Transfers are queued from any thread. Chunks are only taken by the thread
+ * that writes to the connection, one at a time.
+ */
+public class BulkSender {
+
+    private final int chunkBytes;
+    private final int windowBytes;
+    private final ConcurrentLinkedQueue<Transfer> transfers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlightBytes = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * @param chunkBytes The largest chunk, not counting the chunk header.
+     * @param windowBytes The most chunk bytes handed to the network and not
+     * yet written.
+     */
+    public BulkSender(final int chunkBytes, final int windowBytes) {
+        Preconditions.checkArgument(chunkBytes > 0, "Chunk bytes must be positive");
+        Preconditions.checkArgument(windowBytes >= chunkBytes, "Window must hold a chunk");
+        this.chunkBytes = chunkBytes;
+        this.windowBytes = windowBytes;
+    }
+
+    /**
+     * @param configuration The chunk and window sizes are used.
+     * @return A sender for one connection.
+     */
+    public static BulkSender of(final ServerConfiguration configuration) {
+        return new BulkSender(
+                configuration.getBulkChunkBytes(),
+                configuration.getBulkWindowBytes()
+        );
+    }
+
+    /**
+     * Queue a transfer after those already queued.
+     *
+     * @param data The payload, from position to limit. Not copied.
+     * @param transferId Identifies the transfer to the receiver.
+     * @param fromOffset Where in the payload to start.
+     */
+    public void send(final ByteBuffer data, final long transferId, final int fromOffset) {
+        final ByteBuffer payload = Preconditions.checkNotNull(data, "data may not be null")
+                .asReadOnlyBuffer();
+        Preconditions.checkArgument(
+                payload.remaining() <= BulkReceiver.MAX_TRANSFER_BYTES,
+                "Bulk transfer is too large: %s bytes", payload.remaining()
+        );
+        Preconditions.checkArgument(
+                fromOffset >= 0 && fromOffset <= payload.remaining(),
+                "Offset %s is outside the payload of %s bytes", fromOffset, payload.remaining()
+        );
+        this.transfers.add(new Transfer(transferId, payload.slice(), fromOffset));
+        this.queuedBytes.addAndGet(payload.remaining() - fromOffset);
+    }
+
+    /**
+     * @return true if a chunk can be taken now.
+     */
+    public boolean hasSendableChunk() {
+        final Transfer transfer = this.transfers.peek();
+        return transfer != null && fitsWindow(chunkBodyBytes(transfer));
+    }
+
+    /**
+     * Cut the next chunk, if the window has room for it. The caller must call
+     * {@link #written(int)} with the size of the chunk when its write has
+     * completed, failed or been discarded.
+     *
+     * @return The body of a {@link MessageUtilities#CONTROL_BULK_CHUNK}
+     * control frame, or null if there is nothing to send or the window is
+     * full.
+     */
+    public ByteBuffer nextChunk() {
+        final Transfer transfer = this.transfers.peek();
+        if (transfer == null) {
+            return null;
+        }
+        final int bodyBytes = chunkBodyBytes(transfer);
+        if (!fitsWindow(bodyBytes)) {
+            return null;
+        }
+        final int totalBytes = transfer.data.capacity();
+        final int length = bodyBytes - MessageUtilities.BULK_CHUNK_HEADER_BYTES;
+        final ByteBuffer body = ByteBuffer.allocate(bodyBytes);
+        body.putLong(transfer.transferId);
+        body.putInt(totalBytes);
+        body.putInt(transfer.offset);
+        final ByteBuffer piece = transfer.data.duplicate();
+        piece.position(transfer.offset);
+        piece.limit(transfer.offset + length);
+        body.put(piece);
+        body.flip();
+        transfer.offset += length;
+        if (transfer.offset == totalBytes) {
+            this.transfers.poll();
+        }
+        this.queuedBytes.addAndGet(-length);
+        this.inFlightBytes.addAndGet(bodyBytes);
+        return body;
+    }
+
+    private int chunkBodyBytes(final Transfer transfer) {
+        return MessageUtilities.BULK_CHUNK_HEADER_BYTES
+                + Math.min(this.chunkBytes, transfer.data.capacity() - transfer.offset);
+    }
+
+    /**
+     * A chunk always fits an empty window, even if the header makes it a
+     * little larger than the window.
+     */
+    private boolean fitsWindow(final int bodyBytes) {
+        final int inFlight = this.inFlightBytes.get();
+        return inFlight == 0 || inFlight + bodyBytes <= this.windowBytes;
+    }
+
+    /**
+     * @param bytes The size of a chunk body from {@link #nextChunk()} that
+     * has left the window.
+     */
+    public void written(final int bytes) {
+        this.inFlightBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * @return The payload bytes queued and not yet cut into chunks.
+     */
+    public long getQueuedBytes() {
+        return this.queuedBytes.get();
+    }
+
+    /**
+     * Throw away the queued transfers, used when the connection is dropped.
+     */
+    public void discard() {
+        this.transfers.clear();
+        this.queuedBytes.set(0);
+    }
+
+    private static final class Transfer {
+
+        private final long transferId;
+        private final ByteBuffer data;
+        /**
+         * Only changed by the thread taking chunks.
+         */
+        private int offset;
+
+        Transfer(final long transferId, final ByteBuffer data, final int offset) {
+            this.transferId = transferId;
+            this.data = data;
+            this.offset = offset;
+        }
+    }
+}
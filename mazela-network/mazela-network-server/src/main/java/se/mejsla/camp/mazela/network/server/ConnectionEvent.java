@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+import com.google.common.base.Preconditions;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+
+/**
+ * Something that happened to a connection, see
+ * {@link NetworkServer#addConnectionListener(java.util.function.Consumer)}.
+ */
+public final class ConnectionEvent {
+
+    public enum Type {
+        /**
+         * The connection has been accepted and can be sent to.
+         */
+        CONNECTED,
+        /**
+         * The connection has been marked as authenticated, see
+         * {@link NetworkServer#markAuthenticated(ConnectionID)}.
+         */
+        AUTHENTICATED,
+        /**
+         * The connection is gone, nothing more can be sent to it. Always the
+         * last event of a connection.
+         */
+        DROPPED
+    }
+
+    private final Type type;
+    private final ConnectionID connectionID;
+
+    public ConnectionEvent(final Type type, final ConnectionID connectionID) {
+        this.type = Preconditions.checkNotNull(type);
+        this.connectionID = Preconditions.checkNotNull(connectionID);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public ConnectionID getConnectionID() {
+        return connectionID;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + connectionID;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+
+/**
+ * Delivers the connection events of a server to its listeners, one event at
+ * a time and in the order they were published. Events are queued by the
+ * network threads and delivered by one dispatcher, so a burst of disconnects
+ * is a burst of queued events and not a burst of threads.
+ * <p>
+ * Only one thread delivers at a time. A thread that publishes while another
+ * is delivering leaves the event to that thread, the same way messages are
+ * sent in {@code ClientConnection}.
+ */
+public class ConnectionEventBus {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final CopyOnWriteArrayList<Consumer<ConnectionEvent>> listeners
+            = new CopyOnWriteArrayList<>();
+    /**
+     * True while a thread is delivering events.
+     */
+    private final AtomicBoolean dispatching = new AtomicBoolean(false);
+    /**
+     * Null if events are delivered on the publishing thread.
+     */
+    private final ExecutorService dispatcher;
+
+    /**
+     * Deliver events on a single dispatcher thread, so that the network
+     * threads never run listeners.
+     *
+     * @param threadFactory Creates the dispatcher thread. May not be null.
+     */
+    public ConnectionEventBus(final ThreadFactory threadFactory) {
+        this.dispatcher = Executors.newSingleThreadExecutor(
+                Preconditions.checkNotNull(threadFactory)
+        );
+    }
+
+    /**
+     * Deliver events on the publishing thread, or on the thread already
+     * delivering when events are published from several threads.
+     */
+    public ConnectionEventBus() {
+        this.dispatcher = null;
+    }
+
+    /**
+     * @param l The listener, ignored if null.
+     */
+    public void addListener(final Consumer<ConnectionEvent> l) {
+        if (l != null) {
+            this.listeners.add(l);
+        }
+    }
+
+    /**
+     * @param l Called with the ID of each dropped connection, ignored if
+     * null.
+     */
+    public void addDroppedListener(final Consumer<ConnectionID> l) {
+        if (l != null) {
+            addListener(event -> {
+                if (event.getType() == ConnectionEvent.Type.DROPPED) {
+                    l.accept(event.getConnectionID());
+                }
+            });
+        }
+    }
+
+    /**
+     * @param type What happened.
+     * @param connectionID The connection it happened to. May not be null.
+     */
+    public void publish(final ConnectionEvent.Type type, final ConnectionID connectionID) {
+        publish(type, connectionID, null);
+    }
+
+    /**
+     * @param type What happened.
+     * @param connectionID The connection it happened to. May not be null.
+     * @param afterDelivery Run when every listener has seen the event, may be
+     * null.
+     */
+    public void publish(
+            final ConnectionEvent.Type type,
+            final ConnectionID connectionID,
+            final Runnable afterDelivery) {
+        this.pending.add(new Pending(new ConnectionEvent(type, connectionID), afterDelivery));
+        if (!this.dispatching.compareAndSet(false, true)) {
+            return;
+        }
+        if (this.dispatcher == null) {
+            dispatch();
+            return;
+        }
+        try {
+            this.dispatcher.execute(this::dispatch);
+        } catch (RejectedExecutionException ex) {
+            // Stopped, connections closed during shut down are delivered by
+            // the thread that closed them
+            dispatch();
+        }
+    }
+
+    private void dispatch() {
+        do {
+            try {
+                Pending next;
+                while ((next = this.pending.poll()) != null) {
+                    deliver(next);
+                }
+            } finally {
+                this.dispatching.set(false);
+            }
+            // Events published while we were delivering would otherwise be
+            // left until the next publish, since the publisher saw us
+            // delivering
+        } while (!this.pending.isEmpty() && this.dispatching.compareAndSet(false, true));
+    }
+
+    private void deliver(final Pending next) {
+        for (Consumer<ConnectionEvent> listener : this.listeners) {
+            try {
+                listener.accept(next.event);
+            } catch (Exception e) {
+                log.error("Connection listener is poorly coded and throws unchecked exceptions.", e);
+            }
+        }
+        if (next.afterDelivery != null) {
+            next.afterDelivery.run();
+        }
+    }
+
+    /**
+     * Deliver the events already published and stop the dispatcher. Events
+     * published after this are delivered on the publishing thread.
+     */
+    public void shutdown() {
+        if (this.dispatcher == null) {
+            return;
+        }
+        this.dispatcher.shutdown();
+        try {
+            if (!this.dispatcher.awaitTermination(2, TimeUnit.SECONDS)) {
+                log.warn("Connection events still being delivered after two seconds");
+            }
+        } catch (InterruptedException ex) {
+            log.error("Thread waiting for connection events was interrupted", ex);
+            // Preserve interrupt flag
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Pending {
+
+        private final ConnectionEvent event;
+        private final Runnable afterDelivery;
+
+        Pending(final ConnectionEvent event, final Runnable afterDelivery) {
+            this.event = event;
+            this.afterDelivery = afterDelivery;
+        }
+    }
+}
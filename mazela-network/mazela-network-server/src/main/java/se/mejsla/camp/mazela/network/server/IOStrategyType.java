@@ -0,0 +1,36 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+/**
+ * How the network threads handle the events on a connection.
+ */
+public enum IOStrategyType {
+    /**
+     * Events are handled on the selector thread that detected them. Lowest
+     * latency, but a slow handler holds up every connection on that selector.
+     */
+    SAME_THREAD,
+    /**
+     * Events are handed from the selector thread to a worker pool.
+     */
+    WORKER_THREAD,
+    /**
+     * The selector thread handles the event and a worker takes over the
+     * selector meanwhile.
+     */
+    LEADER_FOLLOWER
+}
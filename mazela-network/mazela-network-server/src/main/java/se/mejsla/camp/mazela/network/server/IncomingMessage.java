@@ -16,9 +16,14 @@
 package se.mejsla.camp.mazela.network.server;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
 import se.mejsla.camp.mazela.network.common.ConnectionID;
 
 /**
+ * A message received from a client. The data may be a view of the buffer the
+ * network read into rather than a copy. The consumer should call
+ * {@link #release()} when it has parsed the data so that the memory can be
+ * reused, the data must not be used after that.
  *
  * @author Johan Maasing <johan@zoom.nu>
  */
@@ -26,10 +31,25 @@ public class IncomingMessage {
 
     private final ConnectionID connectionID;
     private final ByteBuffer data;
+    private final AtomicReference<Runnable> releaser;
 
     public IncomingMessage(final ConnectionID connectionID, final ByteBuffer data) {
+        this(connectionID, data, null);
+    }
+
+    /**
+     * @param connectionID The connection the message came from.
+     * @param data The message data.
+     * @param releaser Called once when the consumer releases the message, may
+     * be null if the data does not have to be released.
+     */
+    public IncomingMessage(
+            final ConnectionID connectionID,
+            final ByteBuffer data,
+            final Runnable releaser) {
         this.connectionID = connectionID;
         this.data = data;
+        this.releaser = new AtomicReference<>(releaser);
     }
 
     public ConnectionID getConnectionID() {
@@ -40,4 +60,16 @@ public class IncomingMessage {
         return data;
     }
 
+    /**
+     * Hand the memory holding the data back to the network layer. Releasing
+     * more than once has no effect. A message that is never released is
+     * reclaimed by the garbage collector instead of being reused.
+     */
+    public void release() {
+        final Runnable r = this.releaser.getAndSet(null);
+        if (r != null) {
+            r.run();
+        }
+    }
+
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+/**
+ * The lane a message is queued in. When a connection is flushed the lanes
+ * are written in the order they are declared, so control traffic such as
+ * authentication replies never waits behind bulk data. Messages keep their
+ * order within a lane, but not across lanes.
+ */
+public enum MessagePriority {
+    /**
+     * Small messages the client is waiting for, authentication replies and
+     * join confirmations.
+     */
+    CONTROL,
+    /**
+     * Ordinary game messages.
+     */
+    NORMAL,
+    /**
+     * Large messages that may wait, such as full game board updates.
+     */
+    BULK
+}
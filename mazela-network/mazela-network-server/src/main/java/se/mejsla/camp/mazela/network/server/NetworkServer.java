@@ -17,10 +17,12 @@ package se.mejsla.camp.mazela.network.server;
 
 import com.google.common.util.concurrent.Service;
 import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.function.Consumer;
 import se.mejsla.camp.mazela.network.common.ConnectionID;
 import se.mejsla.camp.mazela.network.common.NotConnectedException;
 import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
 
 /**
  * Can send messages to other nodes on the network.
@@ -30,7 +32,9 @@ import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
 public interface NetworkServer extends Service {
 
     /**
-     * Send a message to the given recipients.
+     * Queue a message for the given recipient with
+     * {@link MessagePriority#NORMAL} priority. The message is sent on the
+     * next {@link #flush()}.
      *
      * @param data The data to send over the network. May not be null. The
      * buffer must be positioned correctly and have the limit set. After this
@@ -43,20 +47,249 @@ public interface NetworkServer extends Service {
      */
     void sendMessage(ByteBuffer data, ConnectionID recipient) throws OutgoingQueueFullException, NotConnectedException;
 
+    /**
+     * Queue a message for the given recipient in the lane for the given
+     * priority. The message is sent on the next {@link #flush()}. A flush
+     * writes the lanes of a connection in priority order, before any
+     * snapshot. Each lane has its own bound, a full bulk lane does not stop
+     * control messages from being queued.
+     *
+     * @param data The data to send over the network. May not be null. The
+     * buffer must be positioned correctly and have the limit set. After this
+     * call the buffer might have its position changed.
+     * @param recipient The recipients to send to. May not be null or empty.
+     * @param priority The lane to queue the message in. May not be null.
+     * @throws OutgoingQueueFullException If no more messages can be queued in
+     * the lane.
+     * @throws NotConnectedException If the given connection ID is unknown or
+     * not connected.
+     */
+    void sendMessage(ByteBuffer data, ConnectionID recipient, MessagePriority priority) throws OutgoingQueueFullException, NotConnectedException;
+
+    /**
+     * Queue the same message for several recipients, it is sent on the next
+     * {@link #flush()}. The message is framed
+     * once and the same read only buffer is shared by all recipients, instead
+     * of copying the data once per recipient.
+     * <p>
+     * Recipients that are not connected or whose queue is full are skipped,
+     * the message is still queued for the others.
+     *
+     * @param data The data to send over the network. May not be null. The
+     * buffer must be positioned correctly and have the limit set. After this
+     * call the buffer might have its position changed.
+     * @param recipients The recipients to send to. May not be null.
+     * @return The number of recipients the message was queued for.
+     */
+    int broadcast(ByteBuffer data, Collection<ConnectionID> recipients);
+
+    /**
+     * Send the same snapshot to several recipients, typically a game state
+     * where only the latest one matters. Each connection has one slot for
+     * snapshots next to its message queue. The snapshot replaces any snapshot
+     * in the slot that has not been sent yet, and is held while the previous
+     * snapshot is still being written to a slow client. Queued messages are
+     * not affected and are always sent before the snapshot from the same
+     * flush.
+     *
+     * @param data The data to send over the network. May not be null. The
+     * buffer must be positioned correctly and have the limit set. After this
+     * call the buffer might have its position changed.
+     * @param recipients The recipients to send to. May not be null.
+     * @return The number of recipients the snapshot was stored for.
+     */
+    int broadcastLatest(ByteBuffer data, Collection<ConnectionID> recipients);
+
+    /**
+     * Send the same unreliable message to several recipients, typically a
+     * game state snapshot where only the latest one matters. Recipients that
+     * have bound a datagram address get the message as a sequence numbered
+     * datagram right away, the client drops datagrams older than one it has
+     * already received. Recipients without a datagram address, or messages
+     * too large for a datagram, get the message as a snapshot as in
+     * {@link #broadcastLatest(ByteBuffer, Collection)}.
+     *
+     * @param data The data to send over the network. May not be null. The
+     * buffer must be positioned correctly and have the limit set. After this
+     * call the buffer might have its position changed.
+     * @param recipients The recipients to send to. May not be null.
+     * @return The number of recipients the message was sent or queued for.
+     */
+    int broadcastUnreliable(ByteBuffer data, Collection<ConnectionID> recipients);
+
+    /**
+     * Send a large payload, such as a maze layout or a replay, in chunks that
+     * only use what the connection has left after game traffic. Each
+     * {@link #flush()} writes the queued messages and the snapshot first,
+     * then chunks until {@link ServerConfiguration#getBulkWindowBytes()}
+     * bytes wait to be taken by the socket. Later flushes send more as the
+     * socket takes them, so a snapshot never waits behind more than the
+     * window. Transfers to one connection are sent one after the other.
+     * <p>
+     * The client puts the payload back together, see
+     * {@link se.mejsla.camp.mazela.network.common.BulkReceiver}. A client
+     * that loses its connection keeps what it has received, and the transfer
+     * is resumed by sending it again from the offset the client reports.
+     *
+     * @param data The payload, from position to limit. May not be null. The
+     * buffer is not copied and must not be changed while the transfer is
+     * queued, its position is not changed.
+     * @param recipient The recipient. May not be null.
+     * @param transferId Identifies the transfer to the client.
+     * @param fromOffset Where in the payload to start, zero for a new
+     * transfer.
+     * @throws IllegalArgumentException If the offset is outside the payload
+     * or the payload is larger than
+     * {@link se.mejsla.camp.mazela.network.common.BulkReceiver#MAX_TRANSFER_BYTES}.
+     * @throws NotConnectedException If the given connection ID is unknown or
+     * not connected.
+     */
+    void sendBulk(ByteBuffer data, ConnectionID recipient, long transferId, int fromOffset) throws NotConnectedException;
+
+    /**
+     * Get the number of bulk transfer bytes queued for a connection that
+     * have not yet been handed to the network.
+     *
+     * @param connectionID The connection. May not be null.
+     * @return The number of bytes.
+     * @throws NotConnectedException If the given connection ID is unknown or
+     * not connected.
+     */
+    long getQueuedBulkBytes(ConnectionID connectionID) throws NotConnectedException;
+
+    /**
+     * Send everything queued since the last flush. Everything queued for a
+     * connection is written in one gathering write, the game loop should
+     * queue all messages for a tick and then flush once. The writes are
+     * started on the calling thread, there is no hand over to a send thread.
+     */
+    void flush();
+
+    /**
+     * Get the number of messages queued for a connection, including a
+     * waiting snapshot, that have not yet been handed to the network because
+     * they have not been flushed. Each connection has its own queue.
+     *
+     * @param connectionID The connection to check. May not be null.
+     * @return The number of queued messages.
+     * @throws NotConnectedException If the given connection ID is unknown or
+     * not connected.
+     */
+    int getOutgoingQueueDepth(ConnectionID connectionID) throws NotConnectedException;
+
+    /**
+     * Get the number of bytes that have been flushed to a connection but not
+     * yet taken by the socket. The backlog of a client that reads slower than
+     * it is sent to keeps growing, the game loop can skip sending to it until
+     * the backlog has drained. A connection whose backlog goes over
+     * {@link ServerConfiguration#getMaxPendingWriteBytes()} is closed.
+     *
+     * @param connectionID The connection to check. May not be null.
+     * @return The number of bytes.
+     * @throws NotConnectedException If the given connection ID is unknown or
+     * not connected.
+     */
+    long getPendingWriteBytes(ConnectionID connectionID) throws NotConnectedException;
+
+    /**
+     * Get the number of writes that have been flushed to a connection but not
+     * yet completed.
+     *
+     * @param connectionID The connection to check. May not be null.
+     * @return The number of writes.
+     * @throws NotConnectedException If the given connection ID is unknown or
+     * not connected.
+     */
+    int getPendingWrites(ConnectionID connectionID) throws NotConnectedException;
+
+    /**
+     * Get the round trip time to a connection, measured by the heartbeats the
+     * network layer sends.
+     *
+     * @param connectionID The connection to check. May not be null.
+     * @return The smoothed round trip time and jitter,
+     * {@link RoundTripTime#UNKNOWN} until the first heartbeat is answered.
+     * @throws NotConnectedException If the given connection ID is unknown or
+     * not connected.
+     */
+    RoundTripTime getRoundTripTime(ConnectionID connectionID) throws NotConnectedException;
+
+    /**
+     * Get how long messages of one priority wait in the outgoing queues of
+     * all connections before they are handed to the network.
+     *
+     * @param priority The lane to get the latency for. May not be null.
+     * @return The queue latency of the lane.
+     */
+    QueueLatencyMXBean getQueueLatency(MessagePriority priority);
+
+    /**
+     * Mark a connection as authenticated. When the server has an
+     * authentication timeout, connections that are not marked within the
+     * timeout are closed. See
+     * {@link ServerConfiguration#getAuthenticationTimeoutMillis()}.
+     *
+     * @param connectionID The connection. May not be null.
+     * @throws NotConnectedException If the given connection ID is unknown or
+     * not connected.
+     */
+    void markAuthenticated(ConnectionID connectionID) throws NotConnectedException;
+
+    /**
+     * Register a listener for the life of every connection: connected,
+     * authenticated and dropped. Events are delivered one at a time, in the
+     * order they happened, on one dispatcher thread of the server and never
+     * on the network threads. Listeners must not block, a game loop that
+     * wants the events on its own thread should queue them and drain the
+     * queue each tick.
+     * <p>
+     * The slot of a dropped connection is not reused until every listener
+     * has seen the drop, so for any slot the dropped event comes before the
+     * connected event of the next connection.
+     *
+     * @param l The listener for the callback. May not be null.
+     */
+    void addConnectionListener(Consumer<ConnectionEvent> l);
+
     /**
      * Register a listener for dropped connections. A connection is dropped when
      * it is lost from the network or if a client re-authenticates using the
-     * same connection. The callback might happen on any thread.
+     * same connection. Called in order with the other connection events, see
+     * {@link #addConnectionListener(Consumer)}.
      *
      * @param l The listener for the callback. May not be null.
      */
     void addConnectionDroppedListener(Consumer<ConnectionID> l);
 
     /**
-     * Get the next incoming message.
+     * Get the next incoming message. Incoming messages must only be taken by
+     * one thread.
      *
      * @return The next message in the in-queue or null if no messages are
      * queued.
      */
     IncomingMessage getIncomingMessage();
+
+    /**
+     * Take up to max incoming messages and hand them to the consumer in the
+     * order they arrived. The queue slots are freed once for the whole batch.
+     * Incoming messages must only be taken by one thread.
+     *
+     * @param consumer Receives the messages. May not be null.
+     * @param max The maximum number of messages to take.
+     * @return The number of messages taken.
+     */
+    int drainIncoming(Consumer<IncomingMessage> consumer, int max);
+
+    /**
+     * @return The number of incoming messages waiting to be taken.
+     */
+    int getIncomingQueueDepth();
+
+    /**
+     * @return The maximum number of incoming messages that can wait to be
+     * taken, when the queue is full new messages are handled according to the
+     * overflow policy.
+     */
+    int getIncomingQueueCapacity();
 }
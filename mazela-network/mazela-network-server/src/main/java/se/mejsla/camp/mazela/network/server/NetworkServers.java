@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ThreadFactory;
+import se.mejsla.camp.mazela.network.server.spi.NetworkServerProvider;
+
+/**
+ * Creates network servers on the transport named in the configuration, see
+ * {@link NetworkServerProvider}.
+ */
+public final class NetworkServers {
+
+    private NetworkServers() {
+    }
+
+    /**
+     * @param configuration The server settings, the transport picks the
+     * provider. May not be null.
+     * @param threadFactory Creates the internal threads of the server. May
+     * not be null.
+     * @return A new server that has not been started.
+     * @throws IllegalArgumentException If no provider has the configured
+     * transport name.
+     */
+    public static NetworkServer create(
+            final ServerConfiguration configuration,
+            final ThreadFactory threadFactory) {
+        Preconditions.checkNotNull(configuration);
+        Preconditions.checkNotNull(threadFactory);
+        return provider(configuration.getTransport()).create(configuration, threadFactory);
+    }
+
+    /**
+     * @param transport The transport name, case is ignored.
+     * @return The provider of the transport.
+     * @throws IllegalArgumentException If no provider has the name.
+     */
+    public static NetworkServerProvider provider(final String transport) {
+        for (NetworkServerProvider provider : ServiceLoader.load(NetworkServerProvider.class)) {
+            if (provider.getName().equalsIgnoreCase(transport)) {
+                return provider;
+            }
+        }
+        throw new IllegalArgumentException(
+                "No network server transport named: " + transport + ", available: " + names()
+        );
+    }
+
+    /**
+     * @return The names of the transports that can be created.
+     */
+    public static List<String> names() {
+        final List<String> names = new ArrayList<>();
+        for (NetworkServerProvider provider : ServiceLoader.load(NetworkServerProvider.class)) {
+            names.add(provider.getName());
+        }
+        return names;
+    }
+}
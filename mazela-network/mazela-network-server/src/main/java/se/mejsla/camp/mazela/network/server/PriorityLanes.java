@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+import com.google.common.base.Preconditions;
+import java.util.Map;
+import java.util.function.Consumer;
+import se.mejsla.camp.mazela.network.common.MpscRingBuffer;
+
+/**
+ * The outgoing queue of a connection, split in one bounded lane per
+ * {@link MessagePriority}. Any thread may queue, a single thread at a time
+ * takes. Taking empties the lanes in priority order and records how long
+ * each message waited in its lane.
+ * @param <E> The element type.
+ */
+public class PriorityLanes<E> {
+
+    private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+
+    private final MpscRingBuffer<Queued<E>>[] lanes;
+    private final QueueLatency[] latencies;
+
+    /**
+     * @param capacity The maximum number of queued elements in each lane.
+     * Must be positive.
+     * @param latencies The counters to record the queue latency of each lane
+     * in, usually shared by all connections of a server. May not be null and
+     * must have counters for every lane.
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityLanes(
+            final int capacity,
+            final Map<MessagePriority, QueueLatency> latencies) {
+        Preconditions.checkNotNull(latencies, "latencies may not be null");
+        this.lanes = new MpscRingBuffer[PRIORITIES.length];
+        this.latencies = new QueueLatency[PRIORITIES.length];
+        for (MessagePriority priority : PRIORITIES) {
+            this.lanes[priority.ordinal()] = new MpscRingBuffer<>(capacity);
+            this.latencies[priority.ordinal()] = Preconditions.checkNotNull(
+                    latencies.get(priority),
+                    "No latency counters for lane: %s", priority
+            );
+        }
+    }
+
+    /**
+     * Queue an element, may be called from any thread.
+     *
+     * @param priority The lane to queue in. May not be null.
+     * @param element The element to queue. May not be null.
+     * @return false if the lane is full.
+     */
+    public boolean offer(final MessagePriority priority, final E element) {
+        Preconditions.checkNotNull(priority, "priority may not be null");
+        return this.lanes[priority.ordinal()].offer(
+                new Queued<>(element, System.nanoTime())
+        );
+    }
+
+    /**
+     * Take everything queued, the highest priority lane first. Must only be
+     * called by one thread at a time.
+     *
+     * @param consumer Receives the elements. May not be null.
+     * @return The number of elements taken.
+     */
+    public int drain(final Consumer<? super E> consumer) {
+        Preconditions.checkNotNull(consumer);
+        final long now = System.nanoTime();
+        int taken = 0;
+        for (int i = 0; i < this.lanes.length; i++) {
+            final QueueLatency latency = this.latencies[i];
+            taken += this.lanes[i].drain(queued -> {
+                latency.taken(now - queued.queuedAt);
+                consumer.accept(queued.element);
+            }, Integer.MAX_VALUE);
+        }
+        return taken;
+    }
+
+    /**
+     * Take everything queued without recording the queue latency, used when
+     * the elements are thrown away. Must only be called by one thread at a
+     * time.
+     *
+     * @param consumer Receives the elements. May not be null.
+     */
+    public void discard(final Consumer<? super E> consumer) {
+        Preconditions.checkNotNull(consumer);
+        for (MpscRingBuffer<Queued<E>> lane : this.lanes) {
+            lane.drain(queued -> consumer.accept(queued.element), Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * @return The number of queued elements in all lanes.
+     */
+    public int size() {
+        int size = 0;
+        for (MpscRingBuffer<Queued<E>> lane : this.lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (MpscRingBuffer<Queued<E>> lane : this.lanes) {
+            if (lane.size() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Queued<E> {
+
+        private final E element;
+        private final long queuedAt;
+
+        Queued(final E element, final long queuedAt) {
+            this.element = Preconditions.checkNotNull(element);
+            this.queuedAt = queuedAt;
+        }
+    }
+}
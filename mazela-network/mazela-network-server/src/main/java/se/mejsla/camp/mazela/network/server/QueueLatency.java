@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+import java.util.EnumMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free queue latency counters for one priority lane.
+ */
+public class QueueLatency implements QueueLatencyMXBean {
+
+    private static final double NANOS_PER_MICRO = 1000.0;
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final LongAccumulator maxQueueNanos = new LongAccumulator(Long::max, 0);
+
+    /**
+     * @return New counters for every priority lane.
+     */
+    public static EnumMap<MessagePriority, QueueLatency> forEachLane() {
+        final EnumMap<MessagePriority, QueueLatency> lanes
+                = new EnumMap<>(MessagePriority.class);
+        for (MessagePriority priority : MessagePriority.values()) {
+            lanes.put(priority, new QueueLatency());
+        }
+        return lanes;
+    }
+
+    /**
+     * @param nanos Time from a message being queued until it was taken.
+     */
+    public void taken(final long nanos) {
+        this.messages.increment();
+        this.queueNanos.add(nanos);
+        this.maxQueueNanos.accumulate(nanos);
+    }
+
+    @Override
+    public long getMessages() {
+        return this.messages.sum();
+    }
+
+    @Override
+    public double getAverageQueueLatencyMicros() {
+        final long count = getMessages();
+        return count == 0 ? 0 : this.queueNanos.sum() / NANOS_PER_MICRO / count;
+    }
+
+    @Override
+    public double getMaxQueueLatencyMicros() {
+        return this.maxQueueNanos.get() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public String toString() {
+        return "messages=" + getMessages()
+                + ", avgQueueMicros=" + String.format("%.1f", getAverageQueueLatencyMicros())
+                + ", maxQueueMicros=" + String.format("%.1f", getMaxQueueLatencyMicros());
+    }
+}
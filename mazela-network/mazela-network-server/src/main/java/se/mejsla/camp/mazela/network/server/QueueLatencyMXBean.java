@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+/**
+ * How long messages in one priority lane wait in the outgoing queues, from
+ * being queued until they are handed to the network. Published over JMX.
+ */
+public interface QueueLatencyMXBean {
+
+    /**
+     * @return The number of messages taken from the lane.
+     */
+    long getMessages();
+
+    double getAverageQueueLatencyMicros();
+
+    double getMaxQueueLatencyMicros();
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+/**
+ * What the server does with a client that sends more than the inbound rate
+ * limits allow.
+ */
+public enum RateLimitAction {
+    /**
+     * Drop the messages over the limit, the client stays connected.
+     */
+    DROP,
+    /**
+     * Keep the message but stop reading from the client until it is back
+     * within the limits. The client is slowed down by TCP flow control and
+     * no messages are lost.
+     */
+    THROTTLE,
+    /**
+     * Disconnect the client.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,693 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import se.mejsla.camp.mazela.network.common.CompressionSettings;
+import se.mejsla.camp.mazela.network.common.HeartbeatSettings;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.grizzly.BufferPool;
+
+/**
+ * The settings of a network server. Created with a {@link Builder}, every
+ * setting has a default so only the ones that differ have to be set.
+ */
+public final class ServerConfiguration {
+
+    public static final int DEFAULT_PORT = 1666;
+    public static final int DEFAULT_MAX_OUTGOING_MESSAGES = 100;
+    public static final int DEFAULT_INCOMING_CAPACITY = 4096;
+    public static final int DEFAULT_ACCEPT_BACKLOG = 4096;
+    public static final int DEFAULT_BULK_CHUNK_BYTES = 16 * 1024;
+    public static final int DEFAULT_BULK_WINDOW_BYTES = 64 * 1024;
+    /**
+     * Used for the socket buffer sizes to leave them to the operating system.
+     */
+    public static final int SYSTEM_DEFAULT = -1;
+    /**
+     * The name of the transport used unless another is configured.
+     */
+    public static final String DEFAULT_TRANSPORT = "grizzly";
+    /**
+     * Used for the inbound rate limits, the connection limits, the write
+     * backlog limits and the authentication timeout to not limit them.
+     */
+    public static final int UNLIMITED = 0;
+
+    private final int port;
+    private final int maxOutgoingMessages;
+    private final int bulkChunkBytes;
+    private final int bulkWindowBytes;
+    private final BufferPool bufferPool;
+    private final boolean datagramsEnabled;
+    private final int incomingCapacity;
+    private final IncomingOverflowPolicy incomingOverflowPolicy;
+    private final int selectorRunners;
+    private final int workerThreads;
+    private final IOStrategyType ioStrategy;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int acceptBacklog;
+    private final int maxConnections;
+    private final int acceptsPerSecond;
+    private final long authenticationTimeoutMillis;
+    private final long maxPendingWriteBytes;
+    private final long writeStallTimeoutMillis;
+    private final boolean tcpNoDelay;
+    private final int inboundMessagesPerSecond;
+    private final int inboundBytesPerSecond;
+    private final RateLimitAction rateLimitAction;
+    private final CompressionSettings compression;
+    private final HeartbeatSettings heartbeat;
+    private final boolean jmxEnabled;
+    private final String transport;
+
+    private ServerConfiguration(final Builder builder) {
+        this.port = builder.port;
+        this.maxOutgoingMessages = builder.maxOutgoingMessages;
+        this.bulkChunkBytes = builder.bulkChunkBytes;
+        this.bulkWindowBytes = builder.bulkWindowBytes;
+        this.bufferPool = builder.bufferPool;
+        this.datagramsEnabled = builder.datagramsEnabled;
+        this.incomingCapacity = builder.incomingCapacity;
+        this.incomingOverflowPolicy = builder.incomingOverflowPolicy;
+        this.selectorRunners = builder.selectorRunners;
+        this.workerThreads = builder.workerThreads;
+        this.ioStrategy = builder.ioStrategy;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.acceptBacklog = builder.acceptBacklog;
+        this.maxConnections = builder.maxConnections;
+        this.acceptsPerSecond = builder.acceptsPerSecond;
+        this.authenticationTimeoutMillis = builder.authenticationTimeoutMillis;
+        this.maxPendingWriteBytes = builder.maxPendingWriteBytes;
+        this.writeStallTimeoutMillis = builder.writeStallTimeoutMillis;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.inboundMessagesPerSecond = builder.inboundMessagesPerSecond;
+        this.inboundBytesPerSecond = builder.inboundBytesPerSecond;
+        this.rateLimitAction = builder.rateLimitAction;
+        this.compression = builder.compression;
+        this.heartbeat = builder.heartbeat;
+        this.jmxEnabled = builder.jmxEnabled;
+        this.transport = builder.transport;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return The port the server listens to, for both streams and
+     * datagrams.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return The maximum number of outgoing messages queued for each
+     * connection.
+     */
+    public int getMaxOutgoingMessages() {
+        return maxOutgoingMessages;
+    }
+
+    /**
+     * @return The largest piece of a bulk transfer written at a time, see
+     * {@link NetworkServer#sendBulk}.
+     */
+    public int getBulkChunkBytes() {
+        return bulkChunkBytes;
+    }
+
+    /**
+     * @return The most bulk transfer bytes each connection may have written
+     * but not yet taken by the socket. Bounds how long game traffic can wait
+     * behind bulk data.
+     */
+    public int getBulkWindowBytes() {
+        return bulkWindowBytes;
+    }
+
+    /**
+     * @return The memory outgoing messages are allocated from.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return true if unreliable updates are sent as datagrams.
+     */
+    public boolean isDatagramsEnabled() {
+        return datagramsEnabled;
+    }
+
+    /**
+     * @return The maximum number of incoming messages waiting to be taken.
+     */
+    public int getIncomingCapacity() {
+        return incomingCapacity;
+    }
+
+    public IncomingOverflowPolicy getIncomingOverflowPolicy() {
+        return incomingOverflowPolicy;
+    }
+
+    /**
+     * @return The number of selector threads that wait for network events.
+     */
+    public int getSelectorRunners() {
+        return selectorRunners;
+    }
+
+    /**
+     * @return The number of threads in the worker pool, not used with
+     * {@link IOStrategyType#SAME_THREAD}.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public IOStrategyType getIoStrategy() {
+        return ioStrategy;
+    }
+
+    /**
+     * @return SO_SNDBUF for accepted connections, or {@link #SYSTEM_DEFAULT}.
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * @return SO_RCVBUF for accepted connections, or {@link #SYSTEM_DEFAULT}.
+     * Grizzly also reads in chunks of this size, so this is the read buffer
+     * size as well.
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @return The number of pending connections the listen socket holds.
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * @return The maximum number of connections, or {@link #UNLIMITED}. New
+     * connections over the limit get a server full reply and are closed.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return The number of connections accepted per second, or
+     * {@link #UNLIMITED}. A burst of up to one second's worth is accepted at
+     * once, connections over the rate get a server full reply and are closed.
+     */
+    public int getAcceptsPerSecond() {
+        return acceptsPerSecond;
+    }
+
+    /**
+     * @return How long a connection may stay without being marked as
+     * authenticated before it is closed, or {@link #UNLIMITED}. See
+     * {@link NetworkServer#markAuthenticated}.
+     */
+    public long getAuthenticationTimeoutMillis() {
+        return authenticationTimeoutMillis;
+    }
+
+    /**
+     * @return The most bytes a connection may have handed to the network
+     * without them being written, or {@link #UNLIMITED}. A connection over
+     * the limit is closed. See {@link WriteBacklog}.
+     */
+    public long getMaxPendingWriteBytes() {
+        return maxPendingWriteBytes;
+    }
+
+    /**
+     * @return How long a connection may have writes waiting without one of
+     * them completing before it is closed, or {@link #UNLIMITED}.
+     */
+    public long getWriteStallTimeoutMillis() {
+        return writeStallTimeoutMillis;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return The number of messages each client may send per second, or
+     * {@link #UNLIMITED}. A client may send a burst of up to one second's
+     * worth at once.
+     */
+    public int getInboundMessagesPerSecond() {
+        return inboundMessagesPerSecond;
+    }
+
+    /**
+     * @return The number of payload bytes each client may send per second, or
+     * {@link #UNLIMITED}. A client may send a burst of up to one second's
+     * worth at once.
+     */
+    public int getInboundBytesPerSecond() {
+        return inboundBytesPerSecond;
+    }
+
+    /**
+     * @return true if either inbound rate is limited.
+     */
+    public boolean isInboundRateLimited() {
+        return inboundMessagesPerSecond != UNLIMITED
+                || inboundBytesPerSecond != UNLIMITED;
+    }
+
+    /**
+     * @return What to do with a client that exceeds the inbound limits.
+     */
+    public RateLimitAction getRateLimitAction() {
+        return rateLimitAction;
+    }
+
+    /**
+     * @return How frames to and from the clients are compressed.
+     */
+    public CompressionSettings getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return How often clients are pinged and when a silent client is
+     * disconnected.
+     */
+    public HeartbeatSettings getHeartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * @return true if the server and connection metrics are registered as
+     * MBeans.
+     */
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * @return The name of the transport {@link NetworkServers} creates the
+     * server with.
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("port", port)
+                .add("maxOutgoingMessages", maxOutgoingMessages)
+                .add("bulkChunkBytes", bulkChunkBytes)
+                .add("bulkWindowBytes", bulkWindowBytes)
+                .add("datagramsEnabled", datagramsEnabled)
+                .add("incomingCapacity", incomingCapacity)
+                .add("incomingOverflowPolicy", incomingOverflowPolicy)
+                .add("selectorRunners", selectorRunners)
+                .add("workerThreads", workerThreads)
+                .add("ioStrategy", ioStrategy)
+                .add("sendBufferSize", sendBufferSize)
+                .add("receiveBufferSize", receiveBufferSize)
+                .add("acceptBacklog", acceptBacklog)
+                .add("maxConnections", maxConnections)
+                .add("acceptsPerSecond", acceptsPerSecond)
+                .add("authenticationTimeoutMillis", authenticationTimeoutMillis)
+                .add("maxPendingWriteBytes", maxPendingWriteBytes)
+                .add("writeStallTimeoutMillis", writeStallTimeoutMillis)
+                .add("tcpNoDelay", tcpNoDelay)
+                .add("inboundMessagesPerSecond", inboundMessagesPerSecond)
+                .add("inboundBytesPerSecond", inboundBytesPerSecond)
+                .add("rateLimitAction", rateLimitAction)
+                .add("compression", compression)
+                .add("heartbeat", heartbeat)
+                .add("jmxEnabled", jmxEnabled)
+                .add("transport", transport)
+                .toString();
+    }
+
+    /**
+     * Collects the settings for a {@link ServerConfiguration}. The thread
+     * counts default to the number of available processors for the selectors
+     * and twice that for the workers.
+     */
+    public static final class Builder {
+
+        private int port = DEFAULT_PORT;
+        private int maxOutgoingMessages = DEFAULT_MAX_OUTGOING_MESSAGES;
+        private int bulkChunkBytes = DEFAULT_BULK_CHUNK_BYTES;
+        private int bulkWindowBytes = DEFAULT_BULK_WINDOW_BYTES;
+        private BufferPool bufferPool = BufferPool.unpooled();
+        private boolean datagramsEnabled = false;
+        private int incomingCapacity = DEFAULT_INCOMING_CAPACITY;
+        private IncomingOverflowPolicy incomingOverflowPolicy = IncomingOverflowPolicy.DROP;
+        private int selectorRunners = Runtime.getRuntime().availableProcessors();
+        private int workerThreads = 2 * Runtime.getRuntime().availableProcessors();
+        private IOStrategyType ioStrategy = IOStrategyType.WORKER_THREAD;
+        private int sendBufferSize = SYSTEM_DEFAULT;
+        private int receiveBufferSize = SYSTEM_DEFAULT;
+        private int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+        private int maxConnections = UNLIMITED;
+        private int acceptsPerSecond = UNLIMITED;
+        private long authenticationTimeoutMillis = UNLIMITED;
+        private long maxPendingWriteBytes = UNLIMITED;
+        private long writeStallTimeoutMillis = UNLIMITED;
+        private boolean tcpNoDelay = true;
+        private int inboundMessagesPerSecond = UNLIMITED;
+        private int inboundBytesPerSecond = UNLIMITED;
+        private RateLimitAction rateLimitAction = RateLimitAction.THROTTLE;
+        private CompressionSettings compression = CompressionSettings.disabled();
+        private HeartbeatSettings heartbeat = HeartbeatSettings.defaults();
+        private boolean jmxEnabled = true;
+        private String transport = DEFAULT_TRANSPORT;
+
+        private Builder() {
+        }
+
+        /**
+         * @param port Must be larger than 1024.
+         * @return this builder
+         */
+        public Builder setPort(final int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param maxOutgoingMessages Must be larger than 0 and less than 1000.
+         * @return this builder
+         */
+        public Builder setMaxOutgoingMessages(final int maxOutgoingMessages) {
+            this.maxOutgoingMessages = maxOutgoingMessages;
+            return this;
+        }
+
+        /**
+         * @param bulkChunkBytes Positive and small enough to fit in a frame.
+         * @return this builder
+         */
+        public Builder setBulkChunkBytes(final int bulkChunkBytes) {
+            this.bulkChunkBytes = bulkChunkBytes;
+            return this;
+        }
+
+        /**
+         * @param bulkWindowBytes At least the bulk chunk size.
+         * @return this builder
+         */
+        public Builder setBulkWindowBytes(final int bulkWindowBytes) {
+            this.bulkWindowBytes = bulkWindowBytes;
+            return this;
+        }
+
+        public Builder setBufferPool(final BufferPool bufferPool) {
+            this.bufferPool = bufferPool;
+            return this;
+        }
+
+        public Builder setDatagramsEnabled(final boolean datagramsEnabled) {
+            this.datagramsEnabled = datagramsEnabled;
+            return this;
+        }
+
+        /**
+         * @param incomingCapacity Rounded up to a power of two. Must be a
+         * positive integer.
+         * @return this builder
+         */
+        public Builder setIncomingCapacity(final int incomingCapacity) {
+            this.incomingCapacity = incomingCapacity;
+            return this;
+        }
+
+        public Builder setIncomingOverflowPolicy(final IncomingOverflowPolicy incomingOverflowPolicy) {
+            this.incomingOverflowPolicy = incomingOverflowPolicy;
+            return this;
+        }
+
+        public Builder setSelectorRunners(final int selectorRunners) {
+            this.selectorRunners = selectorRunners;
+            return this;
+        }
+
+        public Builder setWorkerThreads(final int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        public Builder setIoStrategy(final IOStrategyType ioStrategy) {
+            this.ioStrategy = ioStrategy;
+            return this;
+        }
+
+        public Builder setSendBufferSize(final int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        public Builder setReceiveBufferSize(final int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        public Builder setAcceptBacklog(final int acceptBacklog) {
+            this.acceptBacklog = acceptBacklog;
+            return this;
+        }
+
+        /**
+         * @param maxConnections Positive, or {@link #UNLIMITED}.
+         * @return this builder
+         */
+        public Builder setMaxConnections(final int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * @param acceptsPerSecond Positive, or {@link #UNLIMITED}.
+         * @return this builder
+         */
+        public Builder setAcceptsPerSecond(final int acceptsPerSecond) {
+            this.acceptsPerSecond = acceptsPerSecond;
+            return this;
+        }
+
+        /**
+         * @param authenticationTimeoutMillis Positive, or {@link #UNLIMITED}
+         * to let connections wait for authentication forever.
+         * @return this builder
+         */
+        public Builder setAuthenticationTimeoutMillis(final long authenticationTimeoutMillis) {
+            this.authenticationTimeoutMillis = authenticationTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * @param maxPendingWriteBytes Positive, or {@link #UNLIMITED} to let
+         * unwritten bytes pile up for as long as the connection is open.
+         * @return this builder
+         */
+        public Builder setMaxPendingWriteBytes(final long maxPendingWriteBytes) {
+            this.maxPendingWriteBytes = maxPendingWriteBytes;
+            return this;
+        }
+
+        /**
+         * @param writeStallTimeoutMillis Positive, or {@link #UNLIMITED}.
+         * @return this builder
+         */
+        public Builder setWriteStallTimeoutMillis(final long writeStallTimeoutMillis) {
+            this.writeStallTimeoutMillis = writeStallTimeoutMillis;
+            return this;
+        }
+
+        public Builder setTcpNoDelay(final boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * @param inboundMessagesPerSecond Positive, or {@link #UNLIMITED}.
+         * @return this builder
+         */
+        public Builder setInboundMessagesPerSecond(final int inboundMessagesPerSecond) {
+            this.inboundMessagesPerSecond = inboundMessagesPerSecond;
+            return this;
+        }
+
+        /**
+         * @param inboundBytesPerSecond Positive, or {@link #UNLIMITED}. A
+         * message larger than the limit is let through once the client has
+         * been quiet for a second.
+         * @return this builder
+         */
+        public Builder setInboundBytesPerSecond(final int inboundBytesPerSecond) {
+            this.inboundBytesPerSecond = inboundBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * @param rateLimitAction What to do with a client over the limits.
+         * @return this builder
+         */
+        public Builder setRateLimitAction(final RateLimitAction rateLimitAction) {
+            this.rateLimitAction = rateLimitAction;
+            return this;
+        }
+
+        /**
+         * @param compression How frames are compressed, only used for clients
+         * that have compression enabled with the same dictionary. Broadcast
+         * frames are compressed once for all recipients, on their own and
+         * from the dictionary. Unreliable updates sent as datagrams are not
+         * compressed.
+         * @return this builder
+         */
+        public Builder setCompression(final CompressionSettings compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * @param heartbeat How often clients are pinged and how long they may
+         * be silent before they are disconnected.
+         * @return this builder
+         */
+        public Builder setHeartbeat(final HeartbeatSettings heartbeat) {
+            this.heartbeat = heartbeat;
+            return this;
+        }
+
+        public Builder setJmxEnabled(final boolean jmxEnabled) {
+            this.jmxEnabled = jmxEnabled;
+            return this;
+        }
+
+        /**
+         * @param transport The name of a transport provider, such as
+         * "grizzly", "nio", "shm" or "loopback".
+         * @return this builder
+         */
+        public Builder setTransport(final String transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * @return The configuration.
+         * @throws IllegalArgumentException If a setting is out of range.
+         * @throws NullPointerException If a required setting is null.
+         */
+        public ServerConfiguration build() {
+            Preconditions.checkArgument(
+                    maxOutgoingMessages > 0,
+                    "Max outgoing messages must be a positive integer"
+            );
+            Preconditions.checkArgument(
+                    maxOutgoingMessages < 1000,
+                    "Max outgoing messages must be less than 1000"
+            );
+            Preconditions.checkArgument(
+                    bulkChunkBytes > 0
+                    && bulkChunkBytes <= MessageUtilities.MAX_FRAME_PAYLOAD - 1 - MessageUtilities.BULK_CHUNK_HEADER_BYTES,
+                    "Bulk chunk bytes must be positive and fit in a frame"
+            );
+            Preconditions.checkArgument(
+                    bulkWindowBytes >= bulkChunkBytes,
+                    "Bulk window bytes must be at least the bulk chunk bytes"
+            );
+            Preconditions.checkArgument(
+                    port > 1024,
+                    "Listen port must be > 1024"
+            );
+            Preconditions.checkNotNull(bufferPool, "Buffer pool may not be null");
+            Preconditions.checkArgument(
+                    incomingCapacity > 0,
+                    "Incoming capacity must be a positive integer"
+            );
+            Preconditions.checkNotNull(incomingOverflowPolicy, "Overflow policy may not be null");
+            Preconditions.checkArgument(
+                    selectorRunners > 0,
+                    "Selector runners must be a positive integer"
+            );
+            Preconditions.checkArgument(
+                    workerThreads > 0,
+                    "Worker threads must be a positive integer"
+            );
+            Preconditions.checkNotNull(ioStrategy, "IO strategy may not be null");
+            Preconditions.checkArgument(
+                    sendBufferSize > 0 || sendBufferSize == SYSTEM_DEFAULT,
+                    "Send buffer size must be positive or SYSTEM_DEFAULT"
+            );
+            Preconditions.checkArgument(
+                    receiveBufferSize > 0 || receiveBufferSize == SYSTEM_DEFAULT,
+                    "Receive buffer size must be positive or SYSTEM_DEFAULT"
+            );
+            Preconditions.checkArgument(
+                    acceptBacklog > 0,
+                    "Accept backlog must be a positive integer"
+            );
+            Preconditions.checkArgument(
+                    maxConnections >= 0,
+                    "Max connections must be positive or UNLIMITED"
+            );
+            Preconditions.checkArgument(
+                    acceptsPerSecond >= 0,
+                    "Accepts per second must be positive or UNLIMITED"
+            );
+            Preconditions.checkArgument(
+                    authenticationTimeoutMillis >= 0,
+                    "Authentication timeout must be positive or UNLIMITED"
+            );
+            Preconditions.checkArgument(
+                    maxPendingWriteBytes >= 0,
+                    "Max pending write bytes must be positive or UNLIMITED"
+            );
+            Preconditions.checkArgument(
+                    writeStallTimeoutMillis >= 0,
+                    "Write stall timeout must be positive or UNLIMITED"
+            );
+            Preconditions.checkArgument(
+                    inboundMessagesPerSecond >= 0,
+                    "Inbound messages per second must be positive or UNLIMITED"
+            );
+            Preconditions.checkArgument(
+                    inboundBytesPerSecond >= 0,
+                    "Inbound bytes per second must be positive or UNLIMITED"
+            );
+            Preconditions.checkNotNull(rateLimitAction, "Rate limit action may not be null");
+            Preconditions.checkNotNull(compression, "Compression may not be null");
+            Preconditions.checkNotNull(heartbeat, "Heartbeat may not be null");
+            Preconditions.checkNotNull(transport, "Transport may not be null");
+            return new ServerConfiguration(this);
+        }
+    }
+}
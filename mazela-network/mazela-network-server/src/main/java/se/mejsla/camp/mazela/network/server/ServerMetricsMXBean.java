@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+import se.mejsla.camp.mazela.network.common.TransportMetricsMXBean;
+
+/**
+ * The traffic totals of a server, with the state of the server that is not
+ * kept per connection.
+ */
+public interface ServerMetricsMXBean extends TransportMetricsMXBean {
+
+    int getConnections();
+
+    int getIncomingQueueCapacity();
+
+    /**
+     * @return Incoming messages that were over the rate limits.
+     */
+    long getRateLimitedMessages();
+
+    /**
+     * @return Connections closed because the client stopped answering
+     * heartbeats.
+     */
+    long getHeartbeatTimeouts();
+
+    /**
+     * @return Connections refused because the server was full or accepting
+     * too fast.
+     */
+    long getRefusedConnections();
+
+    /**
+     * @return Connections closed because they did not authenticate in time.
+     */
+    long getAuthenticationTimeouts();
+
+    /**
+     * @return Connections closed because too much was waiting to be written
+     * to them, or their writes stopped completing.
+     */
+    long getStuckConnections();
+}
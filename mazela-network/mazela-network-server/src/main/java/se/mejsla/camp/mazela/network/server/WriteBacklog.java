@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the writes to one connection that have been handed to the network
+ * but not yet completed. The transports keep writes they can not finish at
+ * once in a queue of their own, a client that stops reading would otherwise
+ * let that queue grow without bound.
+ * <p>
+ * A connection is stuck when more bytes than the limit are waiting, or when
+ * writes are waiting and none has completed within the stall timeout.
+ * Writes are started by the thread that writes to the connection and
+ * completed by the network threads.
+ */
+public class WriteBacklog {
+
+    private final long maxBytes;
+    private final long stallTimeoutNanos;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger writes = new AtomicInteger();
+    /**
+     * When a write last completed, or when the first write was started after
+     * the backlog was empty.
+     */
+    private volatile long lastProgressNanos = System.nanoTime();
+
+    /**
+     * @param maxBytes The most bytes that may be waiting, or
+     * {@link ServerConfiguration#UNLIMITED}.
+     * @param stallTimeoutMillis How long writes may wait without one
+     * completing, or {@link ServerConfiguration#UNLIMITED}.
+     */
+    public WriteBacklog(final long maxBytes, final long stallTimeoutMillis) {
+        this.maxBytes = maxBytes;
+        this.stallTimeoutNanos = stallTimeoutMillis == ServerConfiguration.UNLIMITED
+                ? ServerConfiguration.UNLIMITED
+                : TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+    }
+
+    /**
+     * @param configuration The write backlog limits are used.
+     * @return A backlog for one connection.
+     */
+    public static WriteBacklog of(final ServerConfiguration configuration) {
+        return new WriteBacklog(
+                configuration.getMaxPendingWriteBytes(),
+                configuration.getWriteStallTimeoutMillis()
+        );
+    }
+
+    /**
+     * A write has been handed to the network, {@link #completed(long)} must
+     * be called once when it has completed, failed or been cancelled.
+     *
+     * @param writeBytes The number of bytes written.
+     */
+    public void started(final long writeBytes) {
+        if (this.writes.get() == 0) {
+            this.lastProgressNanos = System.nanoTime();
+        }
+        this.writes.incrementAndGet();
+        this.bytes.addAndGet(writeBytes);
+    }
+
+    /**
+     * @param writeBytes The number of bytes the write was started with.
+     */
+    public void completed(final long writeBytes) {
+        this.bytes.addAndGet(-writeBytes);
+        this.writes.decrementAndGet();
+        this.lastProgressNanos = System.nanoTime();
+    }
+
+    /**
+     * @return The number of bytes handed to the network and not yet written.
+     */
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * @return The number of writes handed to the network and not yet
+     * completed.
+     */
+    public int getWrites() {
+        return this.writes.get();
+    }
+
+    /**
+     * @param now The current {@link System#nanoTime()}.
+     * @return How long writes have waited without one completing, zero if
+     * nothing is waiting.
+     */
+    public long getStalledNanos(final long now) {
+        if (this.writes.get() == 0) {
+            return 0;
+        }
+        return Math.max(0, now - this.lastProgressNanos);
+    }
+
+    /**
+     * @param now The current {@link System#nanoTime()}.
+     * @return true if the connection is over the byte limit or has stalled
+     * for longer than the stall timeout.
+     */
+    public boolean isStuck(final long now) {
+        if (this.maxBytes != ServerConfiguration.UNLIMITED
+                && this.bytes.get() > this.maxBytes) {
+            return true;
+        }
+        return this.stallTimeoutNanos != ServerConfiguration.UNLIMITED
+                && getStalledNanos(now) > this.stallTimeoutNanos;
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.grizzly;
+
+import com.google.common.base.Preconditions;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.memory.MemoryManager;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.TransportMetrics;
+import se.mejsla.camp.mazela.network.common.grizzly.FrameCompression;
+import se.mejsla.camp.mazela.network.common.grizzly.FrameFilter;
+import se.mejsla.camp.mazela.network.common.grizzly.Heartbeat;
+import se.mejsla.camp.mazela.network.server.BulkSender;
+import se.mejsla.camp.mazela.network.server.MessagePriority;
+import se.mejsla.camp.mazela.network.server.PriorityLanes;
+import se.mejsla.camp.mazela.network.server.QueueLatency;
+import se.mejsla.camp.mazela.network.server.WriteBacklog;
+
+/**
+ * A connected client and the messages waiting to be sent to it. Each client
+ * has its own bounded queue so that a slow client only fills up its own queue.
+ * The queue has one lane per message priority, a flush writes the lanes in
+ * priority order. Queued messages are held until the server is flushed, then
+ * written from the flushing thread.
+ * <p>
+ * Besides the queue each client has a slot for the latest snapshot. A new
+ * snapshot replaces one that has not been sent yet, and a snapshot is not
+ * sent while the previous one is still being written. A client that reads
+ * slowly therefore holds at most two snapshots, however far behind it is.
+ * <p>
+ * Bulk transfers are written after the snapshot, a window of chunks at a
+ * time, see {@link BulkSender}.
+ * <p>
+ * Every gathering write is counted in the write backlog until Grizzly
+ * completes it, so that a client that stops reading can be found and closed
+ * before Grizzly's write queue grows without bound.
+ */
+class ClientConnection {
+
+    private final ConnectionID connectionID;
+    private final Connection connection;
+    private final PriorityLanes<OutgoingMessage> outgoingMessageQueue;
+
+    /**
+     * True while a thread is writing the queue to the connection. Makes sure
+     * only one thread at a time takes messages from the queue, so that they
+     * are written in order.
+     */
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+    /**
+     * Set when the connection is dropped. Nothing is queued after that, and
+     * the thread that stops sending throws away what was queued meanwhile.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The newest snapshot that has not been handed to the network yet.
+     */
+    private final AtomicReference<OutgoingMessage> latestSnapshot
+            = new AtomicReference<>();
+    /**
+     * True from when a snapshot is handed to the network until its write has
+     * completed.
+     */
+    private final AtomicBoolean snapshotInFlight = new AtomicBoolean(false);
+
+    /**
+     * The address the client receives datagrams on, null until the client has
+     * sent a hello datagram.
+     */
+    private volatile SocketAddress datagramAddress;
+
+    /**
+     * When the connection was accepted, for the authentication timeout.
+     */
+    private final long acceptedNanos = System.nanoTime();
+    private final AtomicBoolean authenticated = new AtomicBoolean(false);
+
+    /**
+     * Null if inbound traffic is not rate limited.
+     */
+    private final InboundRateLimiter inboundRateLimiter;
+
+    /**
+     * Null if compression is not enabled.
+     */
+    private final FrameCompression compression;
+    private final Heartbeat heartbeat;
+    private final TransportMetrics metrics;
+    private final BulkSender bulkSender;
+    private final WriteBacklog writeBacklog;
+
+    ClientConnection(
+            final ConnectionID connectionID,
+            final Connection connection,
+            final int maxOutgoingMessages,
+            final InboundRateLimiter inboundRateLimiter,
+            final TransportMetrics serverMetrics,
+            final Map<MessagePriority, QueueLatency> queueLatencies,
+            final BulkSender bulkSender,
+            final WriteBacklog writeBacklog) {
+        this.connectionID = Preconditions.checkNotNull(connectionID);
+        this.connection = Preconditions.checkNotNull(connection);
+        this.outgoingMessageQueue
+                = new PriorityLanes<>(maxOutgoingMessages, queueLatencies);
+        this.inboundRateLimiter = inboundRateLimiter;
+        this.compression = FrameCompression.get(connection);
+        this.heartbeat = Preconditions.checkNotNull(
+                Heartbeat.get(connection),
+                "Connection was not established through a FrameFilter"
+        );
+        this.metrics = new TransportMetrics(
+                serverMetrics,
+                this::getQueuedMessageCount,
+                serverMetrics::getIncomingQueueDepth
+        );
+        this.bulkSender = Preconditions.checkNotNull(bulkSender);
+        this.writeBacklog = Preconditions.checkNotNull(writeBacklog);
+    }
+
+    ConnectionID getConnectionID() {
+        return connectionID;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    InboundRateLimiter getInboundRateLimiter() {
+        return inboundRateLimiter;
+    }
+
+    TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    FrameCompression getCompression() {
+        return compression;
+    }
+
+    Heartbeat getHeartbeat() {
+        return heartbeat;
+    }
+
+    BulkSender getBulkSender() {
+        return bulkSender;
+    }
+
+    WriteBacklog getWriteBacklog() {
+        return writeBacklog;
+    }
+
+    SocketAddress getDatagramAddress() {
+        return datagramAddress;
+    }
+
+    void setDatagramAddress(final SocketAddress datagramAddress) {
+        this.datagramAddress = datagramAddress;
+    }
+
+    long getAcceptedNanos() {
+        return acceptedNanos;
+    }
+
+    boolean isAuthenticated() {
+        return authenticated.get();
+    }
+
+    /**
+     * @return true if the connection was not already authenticated.
+     */
+    boolean markAuthenticated() {
+        return this.authenticated.compareAndSet(false, true);
+    }
+
+    /**
+     * Queue a message for this connection.
+     *
+     * @param priority The lane to queue the message in.
+     * @param message The message to queue.
+     * @return false if the lane for this connection is full or the
+     * connection has been dropped.
+     */
+    boolean offer(final MessagePriority priority, final OutgoingMessage message) {
+        if (this.closed
+                || !this.outgoingMessageQueue.offer(priority, message)) {
+            return false;
+        }
+        if (this.closed) {
+            // Dropped while queueing, the discard may have missed it
+            discardLanes();
+        }
+        return true;
+    }
+
+    /**
+     * Put a snapshot in the snapshot slot, replacing any snapshot that has not
+     * been sent yet.
+     *
+     * @param snapshot The snapshot to send.
+     * @return true if an unsent snapshot was replaced.
+     */
+    boolean replaceSnapshot(final OutgoingMessage snapshot) {
+        final OutgoingMessage replaced = this.latestSnapshot.getAndSet(snapshot);
+        if (this.closed) {
+            discardSnapshot();
+        }
+        if (replaced != null) {
+            replaced.discard();
+            this.metrics.droppedOutgoing();
+            return true;
+        }
+        return false;
+    }
+
+    int getQueuedMessageCount() {
+        return this.outgoingMessageQueue.size()
+                + (this.latestSnapshot.get() != null ? 1 : 0);
+    }
+
+    boolean hasQueuedMessages() {
+        return !this.outgoingMessageQueue.isEmpty() || isSnapshotSendable();
+    }
+
+    boolean hasSendableBulk() {
+        return this.bulkSender.hasSendableChunk();
+    }
+
+    private boolean isSnapshotSendable() {
+        return this.latestSnapshot.get() != null && !this.snapshotInFlight.get();
+    }
+
+    /**
+     * Write everything queued for the connection with one gathering write,
+     * the highest priority lane first. The snapshot, if there is one and the previous snapshot has been written,
+     * goes after the lanes. Otherwise it is held until a later flush. Bulk
+     * chunks go last, as many as the bulk window has room for.
+     * <p>
+     * The write is done on the calling thread. If another thread is already
+     * writing to this connection that thread also writes what the caller has
+     * queued, and this call returns at once.
+     *
+     * @param memoryManager The memory manager for the gathering buffer.
+     * @return The number of messages written by this call.
+     */
+    int sendQueued(final MemoryManager memoryManager) {
+        int sent = 0;
+        while (!this.closed && this.sending.compareAndSet(false, true)) {
+            try {
+                final ArrayList<OutgoingMessage> batch
+                        = new ArrayList<>(this.outgoingMessageQueue.size() + 1);
+                this.outgoingMessageQueue.drain(batch::add);
+                final OutgoingMessage snapshot = takeSnapshot();
+                if (snapshot != null) {
+                    batch.add(snapshot);
+                }
+                if (this.compression != null) {
+                    // Only one thread sends at a time, so the frames are
+                    // written in the order they are compressed
+                    batch.replaceAll(message -> message.compress(this.compression, memoryManager));
+                }
+                // Never compressed, compression is for frames that are not
+                // control frames
+                addBulkChunks(batch, memoryManager);
+                if (!batch.isEmpty()) {
+                    long bytes = 0;
+                    for (OutgoingMessage message : batch) {
+                        bytes += message.getFrameBytes();
+                    }
+                    this.metrics.messagesOut(batch.size(), bytes);
+                    final long writeBytes = bytes;
+                    final long writeStart = System.nanoTime();
+                    final int last = batch.size() - 1;
+                    // The batch is one write, it completes when the last
+                    // message does
+                    batch.set(last, batch.get(last).whenDone(() -> {
+                        this.writeBacklog.completed(writeBytes);
+                        this.metrics.writeDone(System.nanoTime() - writeStart);
+                    }));
+                    this.writeBacklog.started(writeBytes);
+                    OutgoingMessage.sendBatch(this.connection, batch, memoryManager);
+                }
+                sent += batch.size();
+            } finally {
+                stopSending();
+            }
+            // Messages queued while we were writing would otherwise wait for
+            // the next flush, since the other thread saw us sending
+            if (!hasQueuedMessages()) {
+                break;
+            }
+        }
+        return sent;
+    }
+
+    private void addBulkChunks(
+            final ArrayList<OutgoingMessage> batch,
+            final MemoryManager memoryManager) {
+        ByteBuffer body;
+        while ((body = this.bulkSender.nextChunk()) != null) {
+            final int bodyBytes = body.remaining();
+            final OutgoingMessage chunk = new OutgoingMessage(
+                    this.connection,
+                    FrameFilter.encodeControl(memoryManager, MessageUtilities.CONTROL_BULK_CHUNK, body)
+            );
+            batch.add(chunk.whenDone(() -> this.bulkSender.written(bodyBytes)));
+        }
+    }
+
+    private OutgoingMessage takeSnapshot() {
+        if (!this.snapshotInFlight.compareAndSet(false, true)) {
+            return null;
+        }
+        final OutgoingMessage snapshot = this.latestSnapshot.getAndSet(null);
+        if (snapshot == null) {
+            this.snapshotInFlight.set(false);
+            return null;
+        }
+        return snapshot.whenDone(() -> this.snapshotInFlight.set(false));
+    }
+
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Throw away everything queued, used when the connection is dropped.
+     * Nothing can be queued afterwards. If a thread is writing at the same
+     * time, that thread throws away the lanes when it stops.
+     */
+    void discardQueued() {
+        this.closed = true;
+        discardLanes();
+        discardSnapshot();
+        this.bulkSender.discard();
+    }
+
+    private void stopSending() {
+        this.sending.set(false);
+        if (this.closed) {
+            discardLanes();
+        }
+    }
+
+    /**
+     * Only the thread that holds the sending flag takes from the lanes. A
+     * thread that finds the flag taken leaves the lanes to the holder, which
+     * comes back here when it stops sending.
+     */
+    private void discardLanes() {
+        while (this.sending.compareAndSet(false, true)) {
+            try {
+                this.outgoingMessageQueue.discard(OutgoingMessage::discard);
+            } finally {
+                this.sending.set(false);
+            }
+            if (this.outgoingMessageQueue.isEmpty()) {
+                break;
+            }
+        }
+    }
+
+    private void discardSnapshot() {
+        final OutgoingMessage snapshot = this.latestSnapshot.getAndSet(null);
+        if (snapshot != null) {
+            snapshot.discard();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return connectionID.toString();
+    }
+}
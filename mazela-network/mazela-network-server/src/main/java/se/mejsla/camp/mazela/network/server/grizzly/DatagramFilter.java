@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.grizzly;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.UUID;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.common.grizzly.Datagrams;
+
+/**
+ * Handles the hello datagrams clients send to bind their datagram address to
+ * their stream connection. Clients never send anything else as datagrams.
+ */
+public class DatagramFilter extends BaseFilter {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final GrizzlyNetworkServer server;
+
+    public DatagramFilter(GrizzlyNetworkServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public NextAction handleRead(FilterChainContext ctx) throws IOException {
+        final Buffer buffer = ctx.getMessage();
+        final SocketAddress sender = (SocketAddress) ctx.getAddress();
+        final UUID sessionID = Datagrams.decodeHello(buffer);
+        if (sessionID == null) {
+            log.debug("Ignoring malformed datagram from: {}", sender);
+        } else {
+            this.server.bindDatagramAddress(sessionID, sender);
+        }
+        return ctx.getStopAction();
+    }
+}
@@ -18,32 +18,66 @@ package se.mejsla.camp.mazela.network.server.grizzly;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.AbstractService;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.UUID;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import javax.management.ObjectName;
 import org.glassfish.grizzly.Buffer;
 import org.glassfish.grizzly.Connection;
 import org.glassfish.grizzly.filterchain.FilterChainBuilder;
 import org.glassfish.grizzly.filterchain.TransportFilter;
-import org.glassfish.grizzly.memory.HeapMemoryManager;
+import org.glassfish.grizzly.memory.MemoryManager;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.nio.transport.UDPNIOTransport;
+import org.glassfish.grizzly.nio.transport.UDPNIOTransportBuilder;
+import org.glassfish.grizzly.strategies.LeaderFollowerNIOStrategy;
+import org.glassfish.grizzly.strategies.SameThreadIOStrategy;
+import org.glassfish.grizzly.strategies.WorkerThreadIOStrategy;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.HeartbeatSettings;
+import se.mejsla.camp.mazela.network.common.MBeans;
 import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.MpscRingBuffer;
 import se.mejsla.camp.mazela.network.common.NotConnectedException;
 import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.SlotAllocator;
+import se.mejsla.camp.mazela.network.common.SlotTable;
+import se.mejsla.camp.mazela.network.common.TransportMetricsMXBean;
+import se.mejsla.camp.mazela.network.common.grizzly.BufferPool;
+import se.mejsla.camp.mazela.network.common.grizzly.Datagrams;
+import se.mejsla.camp.mazela.network.common.grizzly.FrameCompression;
+import se.mejsla.camp.mazela.network.common.grizzly.FrameFilter;
+import se.mejsla.camp.mazela.network.common.grizzly.Heartbeat;
+import se.mejsla.camp.mazela.network.common.grizzly.InflateFilter;
+import se.mejsla.camp.mazela.network.server.AdmissionControl;
+import se.mejsla.camp.mazela.network.server.BulkSender;
+import se.mejsla.camp.mazela.network.server.ConnectionEvent;
+import se.mejsla.camp.mazela.network.server.ConnectionEventBus;
 import se.mejsla.camp.mazela.network.server.IncomingMessage;
+import se.mejsla.camp.mazela.network.server.IncomingOverflowPolicy;
+import se.mejsla.camp.mazela.network.server.MessagePriority;
 import se.mejsla.camp.mazela.network.server.NetworkServer;
+import se.mejsla.camp.mazela.network.server.QueueLatency;
+import se.mejsla.camp.mazela.network.server.QueueLatencyMXBean;
+import se.mejsla.camp.mazela.network.server.ServerConfiguration;
+import se.mejsla.camp.mazela.network.server.ServerMetricsMXBean;
+import se.mejsla.camp.mazela.network.server.WriteBacklog;
 
 /**
  *
@@ -52,39 +86,77 @@ import se.mejsla.camp.mazela.network.server.NetworkServer;
 public class GrizzlyNetworkServer extends AbstractService implements NetworkServer {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
+    private final ServerConfiguration configuration;
     private final int serverPort;
-    private final Thread sendThread;
-    private final CopyOnWriteArrayList<Consumer<ConnectionID>> droppedConnectionListeners
-            = new CopyOnWriteArrayList<>();
+    private final ConnectionEventBus connectionEvents;
 
     /**
-     * Holds messages coming in through the network.
+     * Holds messages coming in through the network. Filled by the grizzly
+     * threads, emptied by the single consumer of the server.
      */
-    private final ConcurrentLinkedQueue<IncomingMessage> incomingMessageQueue
-            = new ConcurrentLinkedQueue<>();
+    private final MpscRingBuffer<IncomingMessage> incomingMessageQueue;
+    private final IncomingOverflowPolicy incomingOverflowPolicy;
+    private final LongAdder droppedIncomingMessages = new LongAdder();
     /**
-     * Holds messages that are to be sent on the network.
+     * The maximum number of messages queued for each connection.
      */
-    private final ArrayBlockingQueue<OutgoingMessage> outgoingMessageQueue;
+    private final int maxOutgoingMessages;
 
     /**
      * Associates the recipient IDs with the grizzly connection to that
-     * recipient.
+     * recipient, indexed by the slot of the ID.
      */
-    private final ConcurrentHashMap<ConnectionID, Connection> knownConnections
-            = new ConcurrentHashMap<>();
+    private final SlotTable<ClientConnection> knownConnections
+            = new SlotTable<>();
+    private final SlotAllocator slotAllocator = new SlotAllocator();
 
-    private final AtomicBoolean shutdown = new AtomicBoolean(false);
+    /**
+     * Totals for all connections, published as an MBean when JMX is enabled
+     * together with the metrics of each connection.
+     */
+    private final ServerMetrics metrics;
+    private final ObjectName mbeanName;
+    /**
+     * Queue latency of each priority lane, for all connections.
+     */
+    private final EnumMap<MessagePriority, QueueLatency> queueLatencies
+            = QueueLatency.forEachLane();
 
-    private final ExecutorService backgroundExecutor;
+    /**
+     * Runs delayed network tasks, such as resuming throttled connections and
+     * sending heartbeats.
+     */
+    private final ScheduledExecutorService scheduledExecutor;
+    /**
+     * Null if inbound traffic is not rate limited.
+     */
+    private InboundRateLimitFilter inboundRateLimitFilter;
+    private final LongAdder heartbeatTimeouts = new LongAdder();
+    private final LongAdder stuckConnections = new LongAdder();
+    private final AdmissionControl admissionControl;
+    private final BufferPool bufferPool;
+    /**
+     * Compresses broadcast frames once for all recipients, null if
+     * compression is not enabled.
+     */
+    private final FrameCompression.Shared sharedCompression;
     private TCPNIOTransport transport;
 
+    /**
+     * Unreliable updates are sent as datagrams when enabled, to the clients
+     * that have bound a datagram address.
+     */
+    private final boolean datagramsEnabled;
+    private final AtomicInteger datagramSequence = new AtomicInteger();
+    private UDPNIOTransport datagramTransport;
+    private volatile Connection datagramConnection;
+
     /**
      * Initialise the server. The server is not usable until it has been
      * started.
      *
      * @param maxOutgoingMessages The maximum number of outgoing messages to
-     * queue. Must be larger than 0 and less than 1000.
+     * queue for each connection. Must be larger than 0 and less than 1000.
      * @param threadFactory The thread factory to use to produce internal
      * executor threads. May not be null.
      * @param serverPort The port number on localhost the server will listen to.
@@ -94,63 +166,48 @@ public class GrizzlyNetworkServer extends AbstractService implements NetworkServ
             final ThreadFactory threadFactory,
             final int serverPort
     ) {
-        Preconditions.checkArgument(
-                maxOutgoingMessages > 0,
-                "Max outgoing messages must be a positive integer"
-        );
-        Preconditions.checkArgument(
-                maxOutgoingMessages < 1000,
-                "Max outgoing messages must be less than 1000"
+        this(
+                ServerConfiguration.builder()
+                        .setMaxOutgoingMessages(maxOutgoingMessages)
+                        .setPort(serverPort)
+                        .build(),
+                threadFactory
         );
+    }
 
-        Preconditions.checkArgument(
-                serverPort > 1024,
-                "Listen port must be > 1024"
+    /**
+     * Initialise the server. The server is not usable until it has been
+     * started.
+     *
+     * @param configuration The server settings. May not be null.
+     * @param threadFactory The thread factory to use to produce internal
+     * executor threads. May not be null.
+     */
+    public GrizzlyNetworkServer(
+            final ServerConfiguration configuration,
+            final ThreadFactory threadFactory
+    ) {
+        this.configuration = Preconditions.checkNotNull(configuration);
+        this.serverPort = configuration.getPort();
+        this.maxOutgoingMessages = configuration.getMaxOutgoingMessages();
+        this.bufferPool = configuration.getBufferPool();
+        this.sharedCompression = configuration.getCompression().isEnabled()
+                ? new FrameCompression.Shared(configuration.getCompression())
+                : null;
+        this.datagramsEnabled = configuration.isDatagramsEnabled();
+        this.incomingMessageQueue
+                = new MpscRingBuffer<>(configuration.getIncomingCapacity());
+        this.incomingOverflowPolicy = configuration.getIncomingOverflowPolicy();
+        this.admissionControl = new AdmissionControl(configuration);
+        this.connectionEvents = new ConnectionEventBus(
+                Preconditions.checkNotNull(threadFactory)
         );
-
-        this.serverPort = serverPort;
-        this.outgoingMessageQueue
-                = new ArrayBlockingQueue<>(maxOutgoingMessages, false);
-        this.backgroundExecutor = Executors.newCachedThreadPool(threadFactory);
-
-        sendThread = Preconditions.checkNotNull(threadFactory).newThread(() -> {
-            notifyStarted();
-            while (!GrizzlyNetworkServer.this.shutdown.get()) {
-                try {
-                    OutgoingMessage msg = outgoingMessageQueue.poll(
-                            300,
-                            TimeUnit.MILLISECONDS
-                    );
-                    while (msg != null) {
-                        // Send the message
-                        msg.send();
-                        msg = outgoingMessageQueue.poll();
-                    }
-                } catch (InterruptedException ex) {
-                    log.error("Thread waiting for outgoing messages was interrupted, shutting down network service", ex);
-                    GrizzlyNetworkServer.this.shutdown.set(true);
-                    // Preserve interrupt flag
-                    Thread.currentThread().interrupt();
-                }
-            }
-
-            log.debug("Shutting down background executor");
-            GrizzlyNetworkServer.this.backgroundExecutor.shutdown();
-            try {
-                backgroundExecutor.awaitTermination(2, TimeUnit.SECONDS);
-            } catch (InterruptedException ex) {
-                log.error("Thread waiting for background executor was interrupted, shutting down executor", ex);
-                backgroundExecutor.shutdownNow();
-                // Preserve interrupt flag
-                Thread.currentThread().interrupt();
-            }
-
-            log.debug("Shutting down grizzly transport");
-            transport.shutdown(2, TimeUnit.SECONDS);
-            notifyStopped();
-
-            log.debug("Network send thread terminated");
-        });
+        this.scheduledExecutor
+                = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.metrics = new ServerMetrics(this);
+        this.mbeanName = configuration.isJmxEnabled()
+                ? MBeans.name("type=Server,port=" + this.serverPort)
+                : null;
     }
 
     @Override
@@ -161,26 +218,223 @@ public class GrizzlyNetworkServer extends AbstractService implements NetworkServ
                     = FilterChainBuilder.stateless();
             serverFilterChainBuilder
                     .add(new TransportFilter())
-                    .add(new ServerFilter(this));
-            transport = TCPNIOTransportBuilder.newInstance().setTcpNoDelay(true).build();
+                    .add(new FrameFilter(this.configuration.getCompression()));
+            if (this.configuration.isInboundRateLimited()) {
+                this.inboundRateLimitFilter = new InboundRateLimitFilter(
+                        this.configuration.getRateLimitAction(),
+                        this.scheduledExecutor
+                );
+                serverFilterChainBuilder.add(this.inboundRateLimitFilter);
+            }
+            // After the rate limit, so that frames over the limit are
+            // refused before they are inflated
+            serverFilterChainBuilder.add(new InflateFilter());
+            serverFilterChainBuilder.add(new ServerFilter(this));
+            transport = buildTransport();
             transport.setProcessor(serverFilterChainBuilder.build());
 
             log.debug("Binding to port: {}", this.serverPort);
             transport.bind(this.serverPort);
             transport.start();
 
-            this.sendThread.start();
+            if (this.datagramsEnabled) {
+                final FilterChainBuilder datagramFilterChainBuilder
+                        = FilterChainBuilder.stateless();
+                datagramFilterChainBuilder
+                        .add(new TransportFilter())
+                        .add(new DatagramFilter(this));
+                datagramTransport = UDPNIOTransportBuilder.newInstance().build();
+                datagramTransport.setProcessor(datagramFilterChainBuilder.build());
+                log.debug("Binding datagrams to port: {}", this.serverPort);
+                this.datagramConnection = datagramTransport.bind(this.serverPort);
+                datagramTransport.start();
+            }
+
+            final HeartbeatSettings heartbeat = this.configuration.getHeartbeat();
+            if (heartbeat.isEnabled()) {
+                this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::heartbeat,
+                        heartbeat.getIntervalMillis(),
+                        heartbeat.getIntervalMillis(),
+                        TimeUnit.MILLISECONDS
+                );
+            }
+            final long authenticationTimeout
+                    = this.configuration.getAuthenticationTimeoutMillis();
+            if (authenticationTimeout != ServerConfiguration.UNLIMITED) {
+                final long sweepInterval = Math.max(1, authenticationTimeout / 4);
+                this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::closeUnauthenticated,
+                        sweepInterval,
+                        sweepInterval,
+                        TimeUnit.MILLISECONDS
+                );
+            }
+            final long writeStallTimeout
+                    = this.configuration.getWriteStallTimeoutMillis();
+            if (writeStallTimeout != ServerConfiguration.UNLIMITED) {
+                final long sweepInterval = Math.max(1, writeStallTimeout / 4);
+                this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::closeStuck,
+                        sweepInterval,
+                        sweepInterval,
+                        TimeUnit.MILLISECONDS
+                );
+            }
+
+            MBeans.register(this.metrics, this.mbeanName);
+            this.queueLatencies.forEach((priority, latency)
+                    -> MBeans.register(latency, laneMBeanName(priority)));
+            notifyStarted();
         } catch (IOException ex) {
             log.error("Unable to start the network server. Unable to bind to port: {}", this.serverPort);
             notifyFailed(ex);
         }
     }
 
+    /**
+     * Ping every client, closing the connections of clients that have been
+     * silent for longer than the heartbeat timeout. Closing the connection
+     * drops it like any other lost connection.
+     */
+    private void heartbeat() {
+        try {
+            final long timeoutNanos = this.configuration.getHeartbeat().getTimeoutNanos();
+            final long now = System.nanoTime();
+            this.knownConnections.forEach((connectionID, clientConnection) -> {
+                final Heartbeat heartbeat = clientConnection.getHeartbeat();
+                if (heartbeat.getSilentNanos(now) > timeoutNanos) {
+                    log.info("No heartbeat from client {}, closing connection", connectionID);
+                    this.heartbeatTimeouts.increment();
+                    clientConnection.getConnection().closeSilently();
+                } else {
+                    heartbeat.ping(clientConnection.getConnection());
+                }
+            });
+        } catch (RuntimeException ex) {
+            // An exception would cancel all later heartbeats
+            log.error("Unable to send heartbeats", ex);
+        }
+    }
+
+    /**
+     * Close the connections that have waited longer than the authentication
+     * timeout without being marked as authenticated.
+     */
+    private void closeUnauthenticated() {
+        try {
+            final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                    this.configuration.getAuthenticationTimeoutMillis()
+            );
+            final long now = System.nanoTime();
+            this.knownConnections.forEach((connectionID, clientConnection) -> {
+                if (!clientConnection.isAuthenticated()
+                        && now - clientConnection.getAcceptedNanos() > timeoutNanos) {
+                    log.info("Client {} did not authenticate in time, closing connection", connectionID);
+                    this.admissionControl.authenticationTimedOut();
+                    clientConnection.getConnection().closeSilently();
+                }
+            });
+        } catch (RuntimeException ex) {
+            // An exception would cancel all later sweeps
+            log.error("Unable to close unauthenticated connections", ex);
+        }
+    }
+
+    /**
+     * Close the connections whose writes have stalled. The byte limit is
+     * also checked on every flush, since only a flush adds to the backlog.
+     */
+    private void closeStuck() {
+        try {
+            final long now = System.nanoTime();
+            this.knownConnections.forEach((connectionID, clientConnection)
+                    -> closeIfStuck(clientConnection, now));
+        } catch (RuntimeException ex) {
+            // An exception would cancel all later sweeps
+            log.error("Unable to close stuck connections", ex);
+        }
+    }
+
+    private void closeIfStuck(final ClientConnection clientConnection, final long now) {
+        final WriteBacklog backlog = clientConnection.getWriteBacklog();
+        if (backlog.isStuck(now) && clientConnection.getConnection().isOpen()) {
+            log.info("Client {} is not taking its writes, {} bytes in {} writes waiting, closing connection",
+                    clientConnection, backlog.getBytes(), backlog.getWrites());
+            this.stuckConnections.increment();
+            // A graceful close would wait for the very writes that are stuck
+            clientConnection.getConnection().terminateSilently();
+        }
+    }
+
+    private TCPNIOTransport buildTransport() {
+        log.debug("Transport configuration: {}", this.configuration);
+        final TCPNIOTransportBuilder builder = TCPNIOTransportBuilder.newInstance()
+                .setTcpNoDelay(this.configuration.isTcpNoDelay())
+                .setServerConnectionBackLog(this.configuration.getAcceptBacklog())
+                .setSelectorRunnersCount(this.configuration.getSelectorRunners());
+        switch (this.configuration.getIoStrategy()) {
+            case SAME_THREAD:
+                // Everything runs on the selector threads, no worker pool
+                builder.setIOStrategy(SameThreadIOStrategy.getInstance())
+                        .setWorkerThreadPoolConfig(null);
+                break;
+            case LEADER_FOLLOWER:
+                builder.setIOStrategy(LeaderFollowerNIOStrategy.getInstance())
+                        .setWorkerThreadPoolConfig(workerThreadPoolConfig());
+                break;
+            case WORKER_THREAD:
+            default:
+                builder.setIOStrategy(WorkerThreadIOStrategy.getInstance())
+                        .setWorkerThreadPoolConfig(workerThreadPoolConfig());
+                break;
+        }
+        if (this.configuration.getSendBufferSize() != ServerConfiguration.SYSTEM_DEFAULT) {
+            builder.setWriteBufferSize(this.configuration.getSendBufferSize());
+        }
+        if (this.configuration.getReceiveBufferSize() != ServerConfiguration.SYSTEM_DEFAULT) {
+            builder.setReadBufferSize(this.configuration.getReceiveBufferSize());
+        }
+        return builder.build();
+    }
+
+    private ThreadPoolConfig workerThreadPoolConfig() {
+        return ThreadPoolConfig.defaultConfig()
+                .setPoolName("mazela-network-worker")
+                .setCorePoolSize(this.configuration.getWorkerThreads())
+                .setMaxPoolSize(this.configuration.getWorkerThreads());
+    }
+
+    /**
+     * @return The settings the server was created with.
+     */
+    public ServerConfiguration getConfiguration() {
+        return configuration;
+    }
+
     @Override
     protected void doStop() {
         log.debug("Stopping network server");
-        this.backgroundExecutor.shutdown();
-        this.shutdown.set(true);
+        this.scheduledExecutor.shutdownNow();
+
+        log.debug("Shutting down grizzly transport");
+        this.transport.shutdown(2, TimeUnit.SECONDS);
+        if (this.datagramTransport != null) {
+            this.datagramTransport.shutdown(2, TimeUnit.SECONDS);
+        }
+        // After the transport, so that connections closed by the shut down
+        // reach the listeners
+        log.debug("Delivering remaining connection events");
+        this.connectionEvents.shutdown();
+        if (this.sharedCompression != null) {
+            this.sharedCompression.end();
+        }
+        MBeans.unregister(this.mbeanName);
+        for (MessagePriority priority : MessagePriority.values()) {
+            MBeans.unregister(laneMBeanName(priority));
+        }
+        notifyStopped();
+        log.debug("Network server stopped");
     }
 
     @Override
@@ -188,26 +442,394 @@ public class GrizzlyNetworkServer extends AbstractService implements NetworkServ
         return this.incomingMessageQueue.poll();
     }
 
+    @Override
+    public int drainIncoming(Consumer<IncomingMessage> consumer, int max) {
+        return this.incomingMessageQueue.drain(consumer, max);
+    }
+
+    @Override
+    public int getIncomingQueueDepth() {
+        return this.incomingMessageQueue.size();
+    }
+
+    @Override
+    public int getIncomingQueueCapacity() {
+        return this.incomingMessageQueue.capacity();
+    }
+
+    /**
+     * @return The traffic totals of the server.
+     */
+    public ServerMetricsMXBean getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @param connectionID The connection to get the metrics for.
+     * @return The traffic counters of the connection.
+     * @throws NotConnectedException If the connection is not known.
+     */
+    public TransportMetricsMXBean getMetrics(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getMetrics();
+    }
+
+    int getConnectionCount() {
+        return this.knownConnections.size();
+    }
+
+    int getTotalOutgoingQueueDepth() {
+        int depth = 0;
+        for (ClientConnection clientConnection : this.knownConnections.values()) {
+            depth += clientConnection.getQueuedMessageCount();
+        }
+        return depth;
+    }
+
+    @Override
+    public QueueLatencyMXBean getQueueLatency(final MessagePriority priority) {
+        return this.queueLatencies.get(
+                Preconditions.checkNotNull(priority, "priority may not be null")
+        );
+    }
+
+    /**
+     * @return The number of incoming messages dropped because the incoming
+     * queue was full.
+     */
+    public long getDroppedIncomingMessageCount() {
+        return this.droppedIncomingMessages.sum();
+    }
+
+    /**
+     * @return The number of incoming messages over the rate limits, on all
+     * connections. Always 0 if inbound traffic is not rate limited.
+     */
+    public long getRateLimitedMessageCount() {
+        final InboundRateLimitFilter filter = this.inboundRateLimitFilter;
+        return filter != null ? filter.getLimitedMessageCount() : 0;
+    }
+
+    /**
+     * @param connectionID The connection to get the count for.
+     * @return The number of incoming messages from the connection that were
+     * over the rate limits.
+     * @throws NotConnectedException If the connection is not known.
+     */
+    public long getRateLimitedMessageCount(final ConnectionID connectionID)
+            throws NotConnectedException {
+        final InboundRateLimiter limiter
+                = getClientConnection(connectionID).getInboundRateLimiter();
+        return limiter != null ? limiter.getLimitedMessageCount() : 0;
+    }
+
+    /**
+     * @param connectionID The connection to get the count for.
+     * @return The payload bytes of the incoming messages from the connection
+     * that were over the rate limits.
+     * @throws NotConnectedException If the connection is not known.
+     */
+    public long getRateLimitedByteCount(final ConnectionID connectionID)
+            throws NotConnectedException {
+        final InboundRateLimiter limiter
+                = getClientConnection(connectionID).getInboundRateLimiter();
+        return limiter != null ? limiter.getLimitedByteCount() : 0;
+    }
+
+    /**
+     * @param connectionID The connection to get the statistics for.
+     * @return The compression statistics of the connection, null if
+     * compression is not enabled. Broadcast frames are compressed once for
+     * all connections and counted in
+     * {@link #getSharedCompressionStatistics()} instead.
+     * @throws NotConnectedException If the connection is not known.
+     */
+    public FrameCompression.Statistics getCompressionStatistics(final ConnectionID connectionID)
+            throws NotConnectedException {
+        final FrameCompression compression
+                = getClientConnection(connectionID).getCompression();
+        return compression != null ? compression.getStatistics() : null;
+    }
+
+    /**
+     * @return The compression statistics of the broadcast frames, each frame
+     * counted once however many connections it was written to. Null if
+     * compression is not enabled.
+     */
+    public FrameCompression.Statistics getSharedCompressionStatistics() {
+        return this.sharedCompression != null
+                ? this.sharedCompression.getStatistics()
+                : null;
+    }
+
+    /**
+     * @return The number of connections closed because the client stopped
+     * answering heartbeats.
+     */
+    public long getHeartbeatTimeoutCount() {
+        return this.heartbeatTimeouts.sum();
+    }
+
+    /**
+     * @return The number of connections refused because the server was full
+     * or accepting too fast.
+     */
+    public long getRefusedConnectionCount() {
+        return this.admissionControl.getRefusedConnectionCount();
+    }
+
+    /**
+     * @return The number of connections closed because they did not
+     * authenticate in time.
+     */
+    public long getAuthenticationTimeoutCount() {
+        return this.admissionControl.getAuthenticationTimeoutCount();
+    }
+
+    /**
+     * @return The number of connections closed because their writes were
+     * stuck.
+     */
+    public long getStuckConnectionCount() {
+        return this.stuckConnections.sum();
+    }
+
+    @Override
+    public void markAuthenticated(final ConnectionID connectionID)
+            throws NotConnectedException {
+        if (getClientConnection(connectionID).markAuthenticated()) {
+            this.connectionEvents.publish(
+                    ConnectionEvent.Type.AUTHENTICATED,
+                    connectionID
+            );
+        }
+    }
+
     @Override
     public void sendMessage(ByteBuffer data, ConnectionID recipient)
             throws NotConnectedException, OutgoingQueueFullException {
-        final Connection connection = this.knownConnections.get(
-                Preconditions.checkNotNull(recipient, "recipients may not be null")
+        sendMessage(data, recipient, MessagePriority.NORMAL);
+    }
+
+    @Override
+    public void sendMessage(ByteBuffer data, ConnectionID recipient, MessagePriority priority)
+            throws NotConnectedException, OutgoingQueueFullException {
+        Preconditions.checkNotNull(priority, "priority may not be null");
+        final ClientConnection clientConnection = getClientConnection(recipient);
+        final Buffer grizzlyBuffer = FrameFilter.encode(
+                this.bufferPool.getMemoryManager(),
+                data
         );
-        if (connection == null) {
-            throw new NotConnectedException("Client with ID: " + recipient + " is not connected");
-        } else {
-            final Buffer grizzlyBuffer
-                    = HeapMemoryManager.DEFAULT_MEMORY_MANAGER.allocate(Integer.BYTES + data.remaining());
-            grizzlyBuffer.putInt(MessageUtilities.getMagicMarker());
-            grizzlyBuffer.put(data);
-            grizzlyBuffer.flip();
-            final OutgoingMessage message
-                    = new OutgoingMessage(connection, grizzlyBuffer);
-            if (!this.outgoingMessageQueue.offer(message)) {
-                throw new OutgoingQueueFullException("Unable to queue outgoing message, queue full");
+        final OutgoingMessage message
+                = new OutgoingMessage(clientConnection.getConnection(), grizzlyBuffer);
+        if (!clientConnection.offer(priority, message)) {
+            message.discard();
+            if (clientConnection.isClosed()) {
+                throw new NotConnectedException("Client with ID: " + recipient + " is not connected");
+            }
+            clientConnection.getMetrics().queueFull();
+            throw new OutgoingQueueFullException("Unable to queue outgoing message, " + priority + " queue full for: " + recipient);
+        }
+    }
+
+    @Override
+    public int broadcast(ByteBuffer data, Collection<ConnectionID> recipients) {
+        Preconditions.checkNotNull(recipients, "recipients may not be null");
+        final SharedFrame frame = encodeShared(data);
+        int queued = 0;
+        try {
+            for (ConnectionID recipient : recipients) {
+                final ClientConnection clientConnection
+                        = this.knownConnections.get(recipient);
+                if (clientConnection == null) {
+                    log.debug("Broadcast recipient: {} is not connected", recipient);
+                    continue;
+                }
+                final OutgoingMessage message
+                        = frame.newMessage(clientConnection.getConnection());
+                if (clientConnection.offer(MessagePriority.NORMAL, message)) {
+                    queued++;
+                } else if (clientConnection.isClosed()) {
+                    log.debug("Broadcast recipient: {} is not connected", recipient);
+                    message.discard();
+                } else {
+                    log.debug("Broadcast queue full for: {}", recipient);
+                    message.discard();
+                    clientConnection.getMetrics().queueFull();
+                }
+            }
+        } finally {
+            frame.release();
+        }
+        return queued;
+    }
+
+    @Override
+    public int broadcastLatest(ByteBuffer data, Collection<ConnectionID> recipients) {
+        Preconditions.checkNotNull(recipients, "recipients may not be null");
+        final SharedFrame frame = encodeShared(data);
+        int queued = 0;
+        try {
+            for (ConnectionID recipient : recipients) {
+                final ClientConnection clientConnection
+                        = this.knownConnections.get(recipient);
+                if (clientConnection == null) {
+                    log.debug("Broadcast recipient: {} is not connected", recipient);
+                    continue;
+                }
+                if (clientConnection.replaceSnapshot(
+                        frame.newMessage(clientConnection.getConnection()))) {
+                    log.trace("Replaced unsent snapshot for: {}", recipient);
+                }
+                queued++;
+            }
+        } finally {
+            frame.release();
+        }
+        return queued;
+    }
+
+    /**
+     * Frame a payload once for all recipients, and compress it once for
+     * those that accept compressed frames.
+     */
+    private SharedFrame encodeShared(final ByteBuffer data) {
+        final MemoryManager memoryManager = this.bufferPool.getMemoryManager();
+        final Buffer compressed = this.sharedCompression != null
+                && this.sharedCompression.shouldCompress(data.remaining())
+                ? this.sharedCompression.compress(memoryManager, data)
+                : null;
+        return new SharedFrame(FrameFilter.encode(memoryManager, data), compressed);
+    }
+
+    @Override
+    public int broadcastUnreliable(ByteBuffer data, Collection<ConnectionID> recipients) {
+        Preconditions.checkNotNull(recipients, "recipients may not be null");
+        final Connection udp = this.datagramConnection;
+        if (udp == null || data.remaining() > MessageUtilities.MAX_DATAGRAM_PAYLOAD) {
+            return broadcastLatest(data, recipients);
+        }
+        final SharedFrame datagram = new SharedFrame(Datagrams.encodeUpdate(
+                this.bufferPool.getMemoryManager(),
+                this.datagramSequence.incrementAndGet(),
+                data.duplicate()
+        ));
+        final ArrayList<ConnectionID> streamRecipients = new ArrayList<>();
+        int sent = 0;
+        try {
+            for (ConnectionID recipient : recipients) {
+                final ClientConnection clientConnection
+                        = this.knownConnections.get(recipient);
+                if (clientConnection == null) {
+                    log.debug("Broadcast recipient: {} is not connected", recipient);
+                    continue;
+                }
+                final SocketAddress address = clientConnection.getDatagramAddress();
+                if (address == null) {
+                    streamRecipients.add(recipient);
+                } else {
+                    datagram.sendDatagram(udp, address);
+                    clientConnection.getMetrics().messagesOut(1, datagram.getBytes());
+                    sent++;
+                }
             }
+        } finally {
+            datagram.release();
         }
+        if (!streamRecipients.isEmpty()) {
+            sent += broadcastLatest(data, streamRecipients);
+        }
+        return sent;
+    }
+
+    @Override
+    public void flush() {
+        final MemoryManager memoryManager = this.bufferPool.getMemoryManager();
+        final long now = System.nanoTime();
+        this.knownConnections.forEach((id, clientConnection) -> {
+            if (clientConnection.hasQueuedMessages() || clientConnection.hasSendableBulk()) {
+                clientConnection.sendQueued(memoryManager);
+                closeIfStuck(clientConnection, now);
+            }
+        });
+    }
+
+    /**
+     * @return The pool outgoing messages are allocated from.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public void sendBulk(
+            final ByteBuffer data,
+            final ConnectionID recipient,
+            final long transferId,
+            final int fromOffset) throws NotConnectedException {
+        getClientConnection(recipient).getBulkSender().send(data, transferId, fromOffset);
+    }
+
+    @Override
+    public long getQueuedBulkBytes(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getBulkSender().getQueuedBytes();
+    }
+
+    @Override
+    public int getOutgoingQueueDepth(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getQueuedMessageCount();
+    }
+
+    @Override
+    public long getPendingWriteBytes(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getWriteBacklog().getBytes();
+    }
+
+    @Override
+    public int getPendingWrites(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getWriteBacklog().getWrites();
+    }
+
+    @Override
+    public RoundTripTime getRoundTripTime(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getHeartbeat().getRoundTripTime();
+    }
+
+    private ClientConnection getClientConnection(final ConnectionID connectionID)
+            throws NotConnectedException {
+        final ClientConnection clientConnection = this.knownConnections.get(
+                Preconditions.checkNotNull(connectionID, "recipients may not be null")
+        );
+        if (clientConnection == null) {
+            throw new NotConnectedException("Client with ID: " + connectionID + " is not connected");
+        }
+        return clientConnection;
+    }
+
+    /**
+     * Callback from the grizzly server filter when a new connection has been
+     * accepted, before it is given an ID. An admitted connection is released
+     * when it is dropped.
+     *
+     * @return false if the connection should be refused.
+     */
+    boolean admitConnection() {
+        return this.admissionControl.admit(System.nanoTime());
+    }
+
+    /**
+     * Callback from the grizzly server filter when a new connection has been
+     * accepted.
+     *
+     * @return An ID with a free slot for the connection.
+     */
+    ConnectionID allocateConnectionID() {
+        return this.slotAllocator.allocate();
     }
 
     /**
@@ -220,11 +842,62 @@ public class GrizzlyNetworkServer extends AbstractService implements NetworkServ
     void registerConnection(ConnectionID id, Connection conn) {
         if (id != null && conn != null) {
             log.debug("Register connection with ID: {}", id);
-            final Connection previousConnection
-                    = this.knownConnections.put(id, conn);
+            InboundRateLimiter limiter = null;
+            if (this.configuration.isInboundRateLimited()) {
+                limiter = new InboundRateLimiter(
+                        this.configuration.getInboundMessagesPerSecond(),
+                        this.configuration.getInboundBytesPerSecond(),
+                        System.nanoTime()
+                );
+                InboundRateLimitFilter.LIMITER_ATTRIBUTE.set(conn, limiter);
+            }
+            final ClientConnection clientConnection = new ClientConnection(
+                    id,
+                    conn,
+                    this.maxOutgoingMessages,
+                    limiter,
+                    this.metrics,
+                    this.queueLatencies,
+                    BulkSender.of(this.configuration),
+                    WriteBacklog.of(this.configuration)
+            );
+            final ClientConnection previousConnection
+                    = this.knownConnections.put(id, clientConnection);
             if (previousConnection != null) {
                 log.error("There was an existing connection for id: {}", id);
             }
+            MBeans.register(clientConnection.getMetrics(), connectionMBeanName(id));
+            this.connectionEvents.publish(ConnectionEvent.Type.CONNECTED, id);
+        }
+    }
+
+    /**
+     * Callback from the datagram filter when a client has sent a hello. The
+     * address is only bound if it is on the same host as the stream
+     * connection for the session.
+     *
+     * @param sessionID The session the client claims.
+     * @param address The address the hello came from.
+     */
+    void bindDatagramAddress(UUID sessionID, SocketAddress address) {
+        final ConnectionID id = ConnectionID.fromSlottedUuid(sessionID);
+        final ClientConnection clientConnection
+                = id != null ? this.knownConnections.get(id) : null;
+        if (clientConnection == null
+                || !sessionID.equals(clientConnection.getConnectionID().getUuid())) {
+            log.debug("Datagram hello for unknown connection: {}", sessionID);
+            return;
+        }
+        final Object peerAddress = clientConnection.getConnection().getPeerAddress();
+        if (!(peerAddress instanceof InetSocketAddress)
+                || !(address instanceof InetSocketAddress)
+                || !((InetSocketAddress) peerAddress).getAddress().equals(((InetSocketAddress) address).getAddress())) {
+            log.info("Datagram hello for: {} from: {} does not match the stream connection", id, address);
+            return;
+        }
+        if (!address.equals(clientConnection.getDatagramAddress())) {
+            log.debug("Binding datagram address: {} to connection: {}", address, id);
+            clientConnection.setDatagramAddress(address);
         }
     }
 
@@ -234,8 +907,29 @@ public class GrizzlyNetworkServer extends AbstractService implements NetworkServ
      * @param incomingMessage
      */
     void addIncomingMessage(IncomingMessage incomingMessage) {
-        if (incomingMessage != null) {
-            this.incomingMessageQueue.add(incomingMessage);
+        if (incomingMessage == null) {
+            return;
+        }
+        final ConnectionID connectionID = incomingMessage.getConnectionID();
+        final ClientConnection clientConnection
+                = this.knownConnections.get(connectionID);
+        if (clientConnection != null) {
+            clientConnection.getMetrics().messageIn(incomingMessage.getData().remaining());
+        }
+        if (!this.incomingMessageQueue.offer(incomingMessage)) {
+            this.droppedIncomingMessages.increment();
+            incomingMessage.release();
+            if (clientConnection != null) {
+                clientConnection.getMetrics().droppedIncoming();
+            }
+            if (this.incomingOverflowPolicy == IncomingOverflowPolicy.DISCONNECT) {
+                log.info("Incoming queue full, disconnecting: {}", connectionID);
+                if (clientConnection != null) {
+                    clientConnection.getConnection().closeSilently();
+                }
+            } else {
+                log.debug("Incoming queue full, dropping message from: {}", connectionID);
+            }
         }
     }
 
@@ -247,25 +941,46 @@ public class GrizzlyNetworkServer extends AbstractService implements NetworkServ
      */
     void dropConnection(final ConnectionID connectionID) {
         if (connectionID != null) {
-            backgroundExecutor.execute(() -> {
-                this.knownConnections.remove(connectionID);
-            });
-            for (Consumer<ConnectionID> consumer : droppedConnectionListeners) {
-                backgroundExecutor.execute(() -> {
-                    try {
-                        consumer.accept(connectionID);
-                    } catch (Exception e) {
-                        log.error("Dropped connection listener is poorly coded and throws unchecked exceptions.", e);
-                    }
-                });
+            final ClientConnection removed
+                    = this.knownConnections.remove(connectionID);
+            if (removed != null) {
+                removed.discardQueued();
+                MBeans.unregister(connectionMBeanName(connectionID));
+                this.admissionControl.release();
             }
+            // The listeners have seen the drop before the slot can be handed
+            // to a new connection
+            this.connectionEvents.publish(
+                    ConnectionEvent.Type.DROPPED,
+                    connectionID,
+                    () -> this.slotAllocator.release(connectionID)
+            );
+        }
+    }
+
+    private ObjectName connectionMBeanName(final ConnectionID connectionID) {
+        if (this.mbeanName == null) {
+            return null;
         }
+        return MBeans.name("type=ServerConnection,port=" + this.serverPort
+                + ",connection=" + connectionID.getSlot() + "-" + connectionID.getGeneration());
+    }
+
+    private ObjectName laneMBeanName(final MessagePriority priority) {
+        if (this.mbeanName == null) {
+            return null;
+        }
+        return MBeans.name("type=ServerLane,port=" + this.serverPort
+                + ",lane=" + priority.name().toLowerCase());
+    }
+
+    @Override
+    public void addConnectionListener(Consumer<ConnectionEvent> l) {
+        this.connectionEvents.addListener(l);
     }
 
     @Override
     public void addConnectionDroppedListener(Consumer<ConnectionID> l) {
-        if (l != null) {
-            this.droppedConnectionListeners.add(l);
-        }
+        this.connectionEvents.addDroppedListener(l);
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.grizzly;
+
+import java.util.concurrent.ThreadFactory;
+import se.mejsla.camp.mazela.network.server.NetworkServer;
+import se.mejsla.camp.mazela.network.server.ServerConfiguration;
+import se.mejsla.camp.mazela.network.server.spi.NetworkServerProvider;
+
+/**
+ * Provides the "grizzly" transport, see {@link GrizzlyNetworkServer}.
+ */
+public class GrizzlyNetworkServerProvider implements NetworkServerProvider {
+
+    @Override
+    public String getName() {
+        return "grizzly";
+    }
+
+    @Override
+    public NetworkServer create(
+            final ServerConfiguration configuration,
+            final ThreadFactory threadFactory) {
+        return new GrizzlyNetworkServer(configuration, threadFactory);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.grizzly;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.server.RateLimitAction;
+
+/**
+ * Enforces the inbound rate limits of each connection. Sits after the frame
+ * filter so that whole messages are counted, and before the inflate and
+ * server filters so that messages over the limit are never inflated, queued
+ * or parsed. Compressed messages are counted by their size on the wire.
+ */
+class InboundRateLimitFilter extends BaseFilter {
+
+    /**
+     * The limiter of the connection, set when the connection is registered.
+     */
+    static final Attribute<InboundRateLimiter> LIMITER_ATTRIBUTE
+            = Grizzly.DEFAULT_ATTRIBUTE_BUILDER
+                    .createAttribute(InboundRateLimitFilter.class.getName() + ".limiter");
+
+    /**
+     * Shortest pause when throttling, so that the chain is always suspended
+     * before it is resumed.
+     */
+    private static final long MIN_THROTTLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final RateLimitAction action;
+    private final ScheduledExecutorService scheduler;
+    private final LongAdder limitedMessages = new LongAdder();
+
+    /**
+     * @param action What to do with messages over the limits.
+     * @param scheduler Resumes throttled connections.
+     */
+    InboundRateLimitFilter(
+            final RateLimitAction action,
+            final ScheduledExecutorService scheduler) {
+        this.action = Preconditions.checkNotNull(action);
+        this.scheduler = Preconditions.checkNotNull(scheduler);
+    }
+
+    @Override
+    public NextAction handleRead(final FilterChainContext ctx) throws IOException {
+        final Connection connection = ctx.getConnection();
+        final InboundRateLimiter limiter = LIMITER_ATTRIBUTE.get(connection);
+        if (limiter == null) {
+            return ctx.getInvokeAction();
+        }
+        final Buffer payload = ctx.getMessage();
+        final int payloadBytes = payload.remaining();
+        final long now = System.nanoTime();
+        switch (this.action) {
+            case THROTTLE: {
+                final long wait = limiter.acquire(payloadBytes, now);
+                if (wait == 0) {
+                    return ctx.getInvokeAction();
+                }
+                limiter.recordLimited(payloadBytes);
+                this.limitedMessages.increment();
+                // Nothing more is read from the connection while the chain is
+                // suspended, TCP flow control slows the client down
+                ctx.suspend();
+                try {
+                    this.scheduler.schedule(
+                            ctx::resumeNext,
+                            Math.max(wait, MIN_THROTTLE_NANOS),
+                            TimeUnit.NANOSECONDS
+                    );
+                } catch (RejectedExecutionException ex) {
+                    // Shutting down
+                    connection.closeSilently();
+                }
+                return ctx.getSuspendAction();
+            }
+            case DROP:
+                if (limiter.tryAcquire(payloadBytes, now)) {
+                    return ctx.getInvokeAction();
+                }
+                limiter.recordLimited(payloadBytes);
+                this.limitedMessages.increment();
+                log.trace("Dropping message over the rate limit from: {}", connection.getPeerAddress());
+                payload.tryDispose();
+                return ctx.getStopAction();
+            case DISCONNECT:
+            default:
+                if (limiter.tryAcquire(payloadBytes, now)) {
+                    return ctx.getInvokeAction();
+                }
+                limiter.recordLimited(payloadBytes);
+                this.limitedMessages.increment();
+                log.info("Disconnecting client over the rate limit: {}", connection.getPeerAddress());
+                payload.tryDispose();
+                connection.closeSilently();
+                return ctx.getStopAction();
+        }
+    }
+
+    /**
+     * @return The number of messages over the limits on all connections.
+     */
+    long getLimitedMessageCount() {
+        return this.limitedMessages.sum();
+    }
+}
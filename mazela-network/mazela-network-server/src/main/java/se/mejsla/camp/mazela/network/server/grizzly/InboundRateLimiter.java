@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.grizzly;
+
+import java.util.concurrent.atomic.LongAdder;
+import se.mejsla.camp.mazela.network.common.TokenBucket;
+import se.mejsla.camp.mazela.network.server.ServerConfiguration;
+
+/**
+ * The inbound rate limits of one connection, a token bucket for messages and
+ * one for payload bytes. Each bucket holds one second's worth of tokens.
+ */
+class InboundRateLimiter {
+
+    /**
+     * Null if messages are not limited.
+     */
+    private final TokenBucket messages;
+    /**
+     * Null if bytes are not limited.
+     */
+    private final TokenBucket bytes;
+    private final int bytesPerSecond;
+    private final LongAdder limitedMessages = new LongAdder();
+    private final LongAdder limitedBytes = new LongAdder();
+
+    InboundRateLimiter(
+            final int messagesPerSecond,
+            final int bytesPerSecond,
+            final long nowNanos) {
+        this.messages = messagesPerSecond == ServerConfiguration.UNLIMITED
+                ? null
+                : new TokenBucket(messagesPerSecond, messagesPerSecond, nowNanos);
+        this.bytes = bytesPerSecond == ServerConfiguration.UNLIMITED
+                ? null
+                : new TokenBucket(bytesPerSecond, bytesPerSecond, nowNanos);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Take the tokens for a message if the connection is within its limits.
+     *
+     * @param payloadBytes The size of the message.
+     * @param nowNanos The current {@link System#nanoTime()}.
+     * @return false if the message is over the limits, no tokens are taken.
+     */
+    synchronized boolean tryAcquire(final int payloadBytes, final long nowNanos) {
+        if (this.messages != null && !this.messages.has(1, nowNanos)) {
+            return false;
+        }
+        // A message larger than the burst passes when the bucket is full
+        if (this.bytes != null
+                && !this.bytes.has(Math.min(payloadBytes, this.bytesPerSecond), nowNanos)) {
+            return false;
+        }
+        take(payloadBytes, nowNanos);
+        return true;
+    }
+
+    /**
+     * Take the tokens for a message even if the connection is over its
+     * limits.
+     *
+     * @param payloadBytes The size of the message.
+     * @param nowNanos The current {@link System#nanoTime()}.
+     * @return The nanoseconds until the connection is within its limits
+     * again, 0 if it is within them now.
+     */
+    synchronized long acquire(final int payloadBytes, final long nowNanos) {
+        take(payloadBytes, nowNanos);
+        long wait = 0;
+        if (this.messages != null) {
+            wait = this.messages.nanosUntilOutOfDebt(nowNanos);
+        }
+        if (this.bytes != null) {
+            wait = Math.max(wait, this.bytes.nanosUntilOutOfDebt(nowNanos));
+        }
+        return wait;
+    }
+
+    private void take(final int payloadBytes, final long nowNanos) {
+        if (this.messages != null) {
+            this.messages.take(1, nowNanos);
+        }
+        if (this.bytes != null) {
+            this.bytes.take(payloadBytes, nowNanos);
+        }
+    }
+
+    /**
+     * Count a message that was over the limits.
+     */
+    void recordLimited(final int payloadBytes) {
+        this.limitedMessages.increment();
+        this.limitedBytes.add(payloadBytes);
+    }
+
+    /**
+     * @return The number of messages that were dropped or delayed.
+     */
+    long getLimitedMessageCount() {
+        return this.limitedMessages.sum();
+    }
+
+    /**
+     * @return The payload bytes of the messages that were dropped or delayed.
+     */
+    long getLimitedByteCount() {
+        return this.limitedBytes.sum();
+    }
+}
@@ -15,9 +15,16 @@
  */
 package se.mejsla.camp.mazela.network.server.grizzly;
 
+import java.util.List;
 import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.CompletionHandler;
 import org.glassfish.grizzly.Connection;
-import org.glassfish.grizzly.streams.AbstractStreamWriter;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.memory.CompositeBuffer;
+import org.glassfish.grizzly.memory.MemoryManager;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.grizzly.FrameCompression;
+import se.mejsla.camp.mazela.network.common.grizzly.ReleaseBufferCompletionHandler;
 
 /**
  *
@@ -27,17 +34,195 @@ public class OutgoingMessage {
 
     private final Connection connection;
     private final Buffer data;
+    private final CompletionHandler completionHandler;
+    /**
+     * True if the data is a view of a frame shared with other connections.
+     */
+    private final boolean shared;
 
     public OutgoingMessage(Connection connection, Buffer data) {
+        this(
+                connection,
+                data,
+                new ReleaseBufferCompletionHandler(data)
+        );
+    }
+
+    /**
+     * @param connection The connection to write to.
+     * @param data The data to write.
+     * @param completionHandler Notified when the write has completed or
+     * failed, or cancelled if the message is discarded without being sent.
+     */
+    OutgoingMessage(
+            final Connection connection,
+            final Buffer data,
+            final CompletionHandler completionHandler) {
+        this(connection, data, completionHandler, false);
+    }
+
+    /**
+     * @param shared true if the data is a view of a {@link SharedFrame}, such
+     * messages are not compressed per connection.
+     */
+    OutgoingMessage(
+            final Connection connection,
+            final Buffer data,
+            final CompletionHandler completionHandler,
+            final boolean shared) {
         this.connection = connection;
         this.data = data;
+        this.completionHandler = completionHandler;
+        this.shared = shared;
+    }
+
+    /**
+     * @return The number of bytes to write.
+     */
+    int getFrameBytes() {
+        return this.data.remaining();
     }
 
     void send() {
-        this.connection
-                .write(this.data)
-                .addCompletionHandler(
-                        new AbstractStreamWriter.DisposeBufferCompletionHandler(data)
-                );
+        this.connection.write(this.data, this.completionHandler);
+    }
+
+    /**
+     * Write several messages to the same connection with one gathering write.
+     * The messages' completion handlers are notified when the whole batch has
+     * been written.
+     *
+     * @param connection The connection all the messages are for.
+     * @param batch The messages in the order they should be written, not
+     * empty.
+     * @param memoryManager The memory manager for the composite buffer.
+     */
+    static void sendBatch(
+            final Connection connection,
+            final List<OutgoingMessage> batch,
+            final MemoryManager memoryManager) {
+        if (batch.size() == 1) {
+            batch.get(0).send();
+            return;
+        }
+        final CompositeBuffer gathered = CompositeBuffer.newBuffer(memoryManager);
+        // The messages own their buffers, they are disposed by their handlers
+        gathered.allowBufferDispose(false);
+        gathered.allowInternalBuffersDispose(false);
+        for (OutgoingMessage message : batch) {
+            gathered.append(message.data);
+        }
+        connection.write(gathered, new EmptyCompletionHandler() {
+            @Override
+            public void completed(Object result) {
+                for (OutgoingMessage message : batch) {
+                    message.completionHandler.completed(result);
+                }
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                for (OutgoingMessage message : batch) {
+                    message.completionHandler.failed(throwable);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                for (OutgoingMessage message : batch) {
+                    message.completionHandler.cancelled();
+                }
+            }
+        });
+    }
+
+    /**
+     * Get a message for the same data that also runs the callback when the
+     * write has completed, failed or been cancelled.
+     *
+     * @param callback Run after this message's own completion handler.
+     * @return The new message, this message should not be used after this
+     * call.
+     */
+    OutgoingMessage whenDone(final Runnable callback) {
+        final CompletionHandler handler = this.completionHandler;
+        return new OutgoingMessage(this.connection, this.data, new EmptyCompletionHandler() {
+            @Override
+            public void completed(Object result) {
+                handler.completed(result);
+                callback.run();
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                handler.failed(throwable);
+                callback.run();
+            }
+
+            @Override
+            public void cancelled() {
+                handler.cancelled();
+                callback.run();
+            }
+        }, this.shared);
+    }
+
+    /**
+     * Get a compressed message for the same payload, if the payload should be
+     * compressed. The compressed frame is released when it has been written,
+     * after which this message is completed.
+     * <p>
+     * Views of a shared frame are sent as they are. A broadcast is compressed
+     * once for all recipients when it is framed, see {@link SharedFrame},
+     * deflating it again in the stream of every recipient would cost once
+     * per connection.
+     *
+     * @param compression The compression state of the connection. The frame
+     * must be written before another is compressed.
+     * @param memoryManager The memory manager for the compressed frame.
+     * @return The compressed message, or this message if it should be sent
+     * as it is.
+     */
+    OutgoingMessage compress(
+            final FrameCompression compression,
+            final MemoryManager memoryManager) {
+        if (this.shared) {
+            return this;
+        }
+        final int payloadStart = this.data.position() + MessageUtilities.FRAME_HEADER_BYTES;
+        if (!compression.shouldCompress(this.data.limit() - payloadStart)) {
+            return this;
+        }
+        final Buffer compressed = compression.compress(
+                memoryManager,
+                this.data.toByteBuffer(payloadStart, this.data.limit())
+        );
+        final CompletionHandler handler = this.completionHandler;
+        return new OutgoingMessage(this.connection, compressed, new EmptyCompletionHandler() {
+            @Override
+            public void completed(Object result) {
+                compressed.dispose();
+                handler.completed(result);
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                compressed.dispose();
+                handler.failed(throwable);
+            }
+
+            @Override
+            public void cancelled() {
+                compressed.dispose();
+                handler.cancelled();
+            }
+        });
+    }
+
+    /**
+     * Give up on the message without sending it.
+     */
+    void discard() {
+        this.completionHandler.cancelled();
     }
 }
@@ -16,8 +16,6 @@
 package se.mejsla.camp.mazela.network.server.grizzly;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.UUID;
 import org.glassfish.grizzly.Buffer;
 import org.glassfish.grizzly.Connection;
 import org.glassfish.grizzly.Grizzly;
@@ -29,6 +27,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.mejsla.camp.mazela.network.common.ConnectionID;
 import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.grizzly.FrameFilter;
 import se.mejsla.camp.mazela.network.server.IncomingMessage;
 
 /**
@@ -52,34 +51,32 @@ public class ServerFilter extends BaseFilter {
     @Override
     public NextAction handleAccept(FilterChainContext ctx) throws IOException {
         log.debug("Socket accept");
-        assignUUIDToConnection(ctx);
+        if (!this.server.admitConnection()) {
+            // Refused before it gets an ID or any queues
+            log.debug("Server full, refusing: {}", ctx.getConnection().getPeerAddress());
+            FrameFilter.refuse(ctx.getConnection());
+            return ctx.getStopAction();
+        }
+        assignIDToConnection(ctx);
         return super.handleAccept(ctx);
     }
 
     @Override
     public NextAction handleRead(FilterChainContext ctx) throws IOException {
-        Buffer buffer = ctx.getMessage();
-        int magicMarker = buffer.getInt();
-        if (MessageUtilities.isMagicMarker(magicMarker)) {
-            int remaining = buffer.remaining();
-            final ByteBuffer messageData = ByteBuffer.allocate(remaining);
-            buffer.get(messageData);
-            messageData.flip();
-            final ConnectionID connectionID
-                    = CONNECTION_ATTRIBUTE.get(ctx.getConnection());
-            if (connectionID == null) {
-                log.error("Connection read but connection is not assigned an ID");
-                return ctx.getStopAction();
-            } else {
-                this.server.addIncomingMessage(
-                        new IncomingMessage(connectionID, messageData)
-                );
-            }
-        } else {
-            // Stop processing malformed message
-            log.info("Message is not prefixed with magic marker");
-
+        // The frame filter has stripped the frame header and split off the
+        // following frames, the buffer is handed over without copying
+        final Buffer buffer = ctx.getMessage();
+        final ConnectionID connectionID
+                = CONNECTION_ATTRIBUTE.get(ctx.getConnection());
+        if (connectionID == null) {
+            log.error("Connection read but connection is not assigned an ID");
             return ctx.getStopAction();
+        } else {
+            this.server.addIncomingMessage(new IncomingMessage(
+                    connectionID,
+                    buffer.toByteBuffer().slice(),
+                    buffer::tryDispose
+            ));
         }
         return super.handleRead(ctx);
     }
@@ -94,7 +91,7 @@ public class ServerFilter extends BaseFilter {
         return super.handleClose(ctx);
     }
 
-    private void assignUUIDToConnection(FilterChainContext ctx) {
+    private void assignIDToConnection(FilterChainContext ctx) {
         final Connection connection = ctx.getConnection();
 
         // Check if the connection is already assigned an ID
@@ -105,8 +102,7 @@ public class ServerFilter extends BaseFilter {
             // This opens for DOS if connectionID is known but for simplicity...
             this.server.dropConnection(existingID);
         }
-        final UUID newConnId = UUID.randomUUID();
-        ConnectionID connID = new ConnectionID(newConnId);
+        final ConnectionID connID = this.server.allocateConnectionID();
         CONNECTION_ATTRIBUTE.set(connection, connID);
         server.registerConnection(connID, connection);
     }
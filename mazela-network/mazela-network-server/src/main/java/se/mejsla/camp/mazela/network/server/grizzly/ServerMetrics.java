@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.grizzly;
+
+import se.mejsla.camp.mazela.network.common.TransportMetrics;
+import se.mejsla.camp.mazela.network.server.ServerMetricsMXBean;
+
+/**
+ * The traffic totals of a server, the connection metrics add to these.
+ */
+class ServerMetrics extends TransportMetrics implements ServerMetricsMXBean {
+
+    private final GrizzlyNetworkServer server;
+
+    ServerMetrics(final GrizzlyNetworkServer server) {
+        super(server::getTotalOutgoingQueueDepth, server::getIncomingQueueDepth);
+        this.server = server;
+    }
+
+    @Override
+    public int getConnections() {
+        return this.server.getConnectionCount();
+    }
+
+    @Override
+    public int getIncomingQueueCapacity() {
+        return this.server.getIncomingQueueCapacity();
+    }
+
+    @Override
+    public long getRateLimitedMessages() {
+        return this.server.getRateLimitedMessageCount();
+    }
+
+    @Override
+    public long getHeartbeatTimeouts() {
+        return this.server.getHeartbeatTimeoutCount();
+    }
+
+    @Override
+    public long getRefusedConnections() {
+        return this.server.getRefusedConnectionCount();
+    }
+
+    @Override
+    public long getAuthenticationTimeouts() {
+        return this.server.getAuthenticationTimeoutCount();
+    }
+
+    @Override
+    public long getStuckConnections() {
+        return this.server.getStuckConnectionCount();
+    }
+}
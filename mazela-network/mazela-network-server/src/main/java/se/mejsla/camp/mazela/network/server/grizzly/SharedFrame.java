@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.grizzly;
+
+import com.google.common.base.Preconditions;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import se.mejsla.camp.mazela.network.common.grizzly.FrameCompression;
+import se.mejsla.camp.mazela.network.common.grizzly.ReleaseBufferCompletionHandler;
+
+/**
+ * A frame that is written to several connections, or a datagram sent to
+ * several addresses. The frame is encoded once
+ * and every connection gets its own read only view of the same memory. Each
+ * view is disposed when its write has completed, failed or been discarded and
+ * the frame itself is disposed when the last view is gone.
+ * <p>
+ * The frame may also be compressed once for all connections, see
+ * {@link FrameCompression.Shared}. Connections whose peer accepts compressed
+ * frames get a view of the compressed frame, the others of the plain one.
+ * The views are not compressed again per connection, see
+ * {@link OutgoingMessage#compress}.
+ */
+class SharedFrame {
+
+    private final Buffer frame;
+    /**
+     * Null if the frame is not compressed.
+     */
+    private final Buffer compressedFrame;
+    /**
+     * Starts at one for the reference held by the creator, released by
+     * {@link #release()} when all messages have been created.
+     */
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+    SharedFrame(final Buffer frame) {
+        this(frame, null);
+    }
+
+    /**
+     * @param frame The frame.
+     * @param compressedFrame The same payload compressed for all connections,
+     * null if it is not compressed.
+     */
+    SharedFrame(final Buffer frame, final Buffer compressedFrame) {
+        this.frame = Preconditions.checkNotNull(frame);
+        this.compressedFrame = compressedFrame;
+    }
+
+    /**
+     * Create a message for one connection. The message holds a reference to
+     * the frame until it has been written or discarded.
+     *
+     * @param connection The connection to write to.
+     * @return A message with its own read only view of the frame.
+     */
+    OutgoingMessage newMessage(final Connection connection) {
+        final Buffer view = newView(
+                acceptsCompressed(connection) ? this.compressedFrame : this.frame
+        );
+        return new OutgoingMessage(
+                connection,
+                view,
+                new ReleaseBufferCompletionHandler(view, this::release),
+                true
+        );
+    }
+
+    /**
+     * Send the frame as a datagram.
+     *
+     * @param datagramConnection The datagram connection to send through.
+     * @param address The address to send to.
+     */
+    void sendDatagram(
+            final Connection datagramConnection,
+            final SocketAddress address) {
+        final Buffer view = newView(this.frame);
+        datagramConnection.write(
+                address,
+                view,
+                new ReleaseBufferCompletionHandler(view, this::release)
+        );
+    }
+
+    /**
+     * @return The size of the plain frame in bytes.
+     */
+    int getBytes() {
+        return this.frame.remaining();
+    }
+
+    private boolean acceptsCompressed(final Connection connection) {
+        if (this.compressedFrame == null) {
+            return false;
+        }
+        final FrameCompression compression = FrameCompression.get(connection);
+        return compression != null && compression.isPeerAccepting();
+    }
+
+    private Buffer newView(final Buffer source) {
+        this.referenceCount.incrementAndGet();
+        final Buffer view = source.asReadOnlyBuffer();
+        view.allowBufferDispose(false);
+        return view;
+    }
+
+    /**
+     * Release one reference, disposing the frame if it was the last one.
+     */
+    void release() {
+        if (this.referenceCount.decrementAndGet() == 0) {
+            this.frame.dispose();
+            if (this.compressedFrame != null) {
+                this.compressedFrame.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.loopback;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.loopback.LoopbackPeer;
+import se.mejsla.camp.mazela.network.server.BulkSender;
+import se.mejsla.camp.mazela.network.server.MessagePriority;
+import se.mejsla.camp.mazela.network.server.PriorityLanes;
+import se.mejsla.camp.mazela.network.server.QueueLatency;
+
+/**
+ * A client connected through the loopback network and the messages waiting
+ * to be handed to it. Works like the grizzly client connection: bounded
+ * priority lanes and a snapshot slot per client, delivered when the server is flushed.
+ * Delivery completes at once so a snapshot is never held back by the one
+ * before it. Bulk chunks are delivered up to a window per flush, as if the
+ * window drained between flushes.
+ */
+class LoopbackClientConnection {
+
+    private final ConnectionID connectionID;
+    private final LoopbackPeer client;
+    private final PriorityLanes<ByteBuffer> outgoingMessageQueue;
+    private final AtomicReference<ByteBuffer> latestSnapshot = new AtomicReference<>();
+
+    /**
+     * True while a thread is delivering the queue, the queue has a single
+     * consumer.
+     */
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean authenticated = new AtomicBoolean(false);
+    private final BulkSender bulkSender;
+
+    LoopbackClientConnection(
+            final ConnectionID connectionID,
+            final LoopbackPeer client,
+            final int maxOutgoingMessages,
+            final Map<MessagePriority, QueueLatency> queueLatencies,
+            final BulkSender bulkSender) {
+        this.connectionID = Preconditions.checkNotNull(connectionID);
+        this.client = Preconditions.checkNotNull(client);
+        this.outgoingMessageQueue
+                = new PriorityLanes<>(maxOutgoingMessages, queueLatencies);
+        this.bulkSender = Preconditions.checkNotNull(bulkSender);
+    }
+
+    ConnectionID getConnectionID() {
+        return connectionID;
+    }
+
+    BulkSender getBulkSender() {
+        return bulkSender;
+    }
+
+    /**
+     * @return true if the connection was not already authenticated.
+     */
+    boolean markAuthenticated() {
+        return this.authenticated.compareAndSet(false, true);
+    }
+
+    /**
+     * @param priority The lane to queue the message in.
+     * @param message The message to queue, owned by the queue from now on.
+     * @return false if the lane for this connection is full.
+     */
+    boolean offer(final MessagePriority priority, final ByteBuffer message) {
+        return this.outgoingMessageQueue.offer(priority, message);
+    }
+
+    /**
+     * @param snapshot The snapshot to deliver on the next flush.
+     * @return true if an undelivered snapshot was replaced.
+     */
+    boolean replaceSnapshot(final ByteBuffer snapshot) {
+        return this.latestSnapshot.getAndSet(snapshot) != null;
+    }
+
+    int getQueuedMessageCount() {
+        return this.outgoingMessageQueue.size()
+                + (this.latestSnapshot.get() != null ? 1 : 0);
+    }
+
+    boolean hasQueuedMessages() {
+        return !this.outgoingMessageQueue.isEmpty() || this.latestSnapshot.get() != null;
+    }
+
+    boolean hasSendableBulk() {
+        return this.bulkSender.hasSendableChunk();
+    }
+
+    /**
+     * Hand everything queued to the client, highest priority first, then the
+     * snapshot and a window of bulk chunks. If another
+     * thread is already delivering to this client that thread also delivers
+     * what the caller has queued.
+     *
+     * @return The number of messages delivered by this call.
+     */
+    int sendQueued() {
+        int sent = 0;
+        while (this.sending.compareAndSet(false, true)) {
+            try {
+                sent += this.outgoingMessageQueue.drain(this.client::receive);
+                final ByteBuffer snapshot = this.latestSnapshot.getAndSet(null);
+                if (snapshot != null) {
+                    this.client.receive(snapshot);
+                    sent++;
+                }
+                sent += deliverBulkChunks();
+            } finally {
+                this.sending.set(false);
+            }
+            if (!hasQueuedMessages()) {
+                break;
+            }
+        }
+        return sent;
+    }
+
+    private int deliverBulkChunks() {
+        int delivered = 0;
+        int deliveredBytes = 0;
+        ByteBuffer body;
+        while ((body = this.bulkSender.nextChunk()) != null) {
+            deliveredBytes += body.remaining();
+            this.client.bulkChunk(body);
+            delivered++;
+        }
+        // Delivery is done, but the window only opens for the next flush
+        this.bulkSender.written(deliveredBytes);
+        return delivered;
+    }
+
+    /**
+     * Close the connection from the server side, the client is told once.
+     */
+    void close() {
+        if (this.closed.compareAndSet(false, true)) {
+            this.client.disconnected();
+        }
+    }
+
+    /**
+     * Mark the connection as closed by the client.
+     *
+     * @return false if it was already closed.
+     */
+    boolean closedByClient() {
+        return this.closed.compareAndSet(false, true);
+    }
+
+    /**
+     * Throw away everything queued, used when the connection is dropped. A
+     * thread that is delivering at the same time keeps the queue, the client
+     * ignores what arrives after it was disconnected.
+     */
+    void discardQueued() {
+        if (this.sending.compareAndSet(false, true)) {
+            try {
+                this.outgoingMessageQueue.discard(message -> {
+                });
+            } finally {
+                this.sending.set(false);
+            }
+        }
+        this.latestSnapshot.set(null);
+        this.bulkSender.discard();
+    }
+
+    @Override
+    public String toString() {
+        return connectionID.toString();
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.loopback;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AbstractService;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.MpscRingBuffer;
+import se.mejsla.camp.mazela.network.common.NotConnectedException;
+import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.SlotAllocator;
+import se.mejsla.camp.mazela.network.common.SlotTable;
+import se.mejsla.camp.mazela.network.common.loopback.LoopbackNetwork;
+import se.mejsla.camp.mazela.network.common.loopback.LoopbackPeer;
+import se.mejsla.camp.mazela.network.server.AdmissionControl;
+import se.mejsla.camp.mazela.network.server.BulkSender;
+import se.mejsla.camp.mazela.network.server.ConnectionEvent;
+import se.mejsla.camp.mazela.network.server.ConnectionEventBus;
+import se.mejsla.camp.mazela.network.server.IncomingMessage;
+import se.mejsla.camp.mazela.network.server.IncomingOverflowPolicy;
+import se.mejsla.camp.mazela.network.server.MessagePriority;
+import se.mejsla.camp.mazela.network.server.NetworkServer;
+import se.mejsla.camp.mazela.network.server.QueueLatency;
+import se.mejsla.camp.mazela.network.server.QueueLatencyMXBean;
+import se.mejsla.camp.mazela.network.server.ServerConfiguration;
+
+/**
+ * A network server that lives inside the JVM, for tests, benchmarks and
+ * profiling the game loop with many simulated clients and no sockets.
+ * Clients connect with a
+ * {@code se.mejsla.camp.mazela.network.client.loopback.LoopbackNetworkClient}
+ * to the same port on the {@link LoopbackNetwork}.
+ * <p>
+ * Messages go through the same bounded, lock free queues and follow the same
+ * rules as with the grizzly server: payloads must fit in a frame, are copied
+ * when they are sent and are delivered when the server is flushed. Delivery
+ * is a hand over on the flushing thread. The connection limits apply, but
+ * there are no heartbeats, authentication timeouts, datagrams, rate limits or
+ * metrics, and {@link #broadcastUnreliable} behaves like
+ * {@link #broadcastLatest}.
+ */
+public class LoopbackNetworkServer extends AbstractService implements NetworkServer {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final int port;
+    private final int maxOutgoingMessages;
+    private final int bulkChunkBytes;
+    private final int bulkWindowBytes;
+    private final MpscRingBuffer<IncomingMessage> incomingMessageQueue;
+    private final IncomingOverflowPolicy incomingOverflowPolicy;
+    private final LongAdder droppedIncomingMessages = new LongAdder();
+    private final AdmissionControl admissionControl;
+    private final SlotTable<LoopbackClientConnection> knownConnections = new SlotTable<>();
+    private final SlotAllocator slotAllocator = new SlotAllocator();
+    /**
+     * Delivers on the thread that connected or dropped the client.
+     */
+    private final ConnectionEventBus connectionEvents = new ConnectionEventBus();
+    private final EnumMap<MessagePriority, QueueLatency> queueLatencies
+            = QueueLatency.forEachLane();
+    private final Function<LoopbackPeer, LoopbackPeer> acceptor = this::accept;
+
+    /**
+     * @param configuration The server settings, only the port, the outgoing
+     * queue size, the bulk transfer sizes, the incoming queue settings and
+     * the connection limits are used. May not be null.
+     */
+    public LoopbackNetworkServer(final ServerConfiguration configuration) {
+        Preconditions.checkNotNull(configuration);
+        this.port = configuration.getPort();
+        this.maxOutgoingMessages = configuration.getMaxOutgoingMessages();
+        this.bulkChunkBytes = configuration.getBulkChunkBytes();
+        this.bulkWindowBytes = configuration.getBulkWindowBytes();
+        this.incomingMessageQueue
+                = new MpscRingBuffer<>(configuration.getIncomingCapacity());
+        this.incomingOverflowPolicy = configuration.getIncomingOverflowPolicy();
+        this.admissionControl = new AdmissionControl(configuration);
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            LoopbackNetwork.listen(this.port, this.acceptor);
+            log.debug("Loopback server listening on port: {}", this.port);
+            notifyStarted();
+        } catch (IllegalStateException ex) {
+            notifyFailed(ex);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        LoopbackNetwork.close(this.port, this.acceptor);
+        this.knownConnections.forEach((id, clientConnection) -> {
+            clientConnection.close();
+            dropConnection(clientConnection);
+        });
+        notifyStopped();
+        log.debug("Loopback server stopped");
+    }
+
+    /**
+     * A client has connected through the loopback network.
+     *
+     * @return The server end of the connection.
+     */
+    private LoopbackPeer accept(final LoopbackPeer client) {
+        if (!isRunning()) {
+            return null;
+        }
+        if (!this.admissionControl.admit(System.nanoTime())) {
+            log.debug("Server full, refusing loopback client");
+            client.serverFull();
+            return null;
+        }
+        final ConnectionID connectionID = this.slotAllocator.allocate();
+        final LoopbackClientConnection clientConnection
+                = new LoopbackClientConnection(
+                        connectionID,
+                        client,
+                        this.maxOutgoingMessages,
+                        this.queueLatencies,
+                        new BulkSender(this.bulkChunkBytes, this.bulkWindowBytes)
+                );
+        this.knownConnections.put(connectionID, clientConnection);
+        log.debug("Loopback client connected: {}", connectionID);
+        this.connectionEvents.publish(ConnectionEvent.Type.CONNECTED, connectionID);
+        return new LoopbackPeer() {
+            @Override
+            public void receive(final ByteBuffer payload) {
+                addIncomingMessage(clientConnection, payload);
+            }
+
+            @Override
+            public void disconnected() {
+                if (clientConnection.closedByClient()) {
+                    dropConnection(clientConnection);
+                }
+            }
+
+            @Override
+            public void serverFull() {
+                // Only servers refuse connections
+            }
+
+            @Override
+            public void bulkChunk(final ByteBuffer body) {
+                // Only servers send bulk transfers
+            }
+        };
+    }
+
+    private void addIncomingMessage(
+            final LoopbackClientConnection clientConnection,
+            final ByteBuffer payload) {
+        final ConnectionID connectionID = clientConnection.getConnectionID();
+        if (this.incomingMessageQueue.offer(new IncomingMessage(connectionID, payload))) {
+            return;
+        }
+        this.droppedIncomingMessages.increment();
+        if (this.incomingOverflowPolicy == IncomingOverflowPolicy.DISCONNECT) {
+            log.info("Incoming queue full, disconnecting: {}", connectionID);
+            clientConnection.close();
+            dropConnection(clientConnection);
+        } else {
+            log.debug("Incoming queue full, dropping message from: {}", connectionID);
+        }
+    }
+
+    /**
+     * Remove the connection and tell the listeners, on the calling thread
+     * unless another thread is already delivering connection events.
+     */
+    private void dropConnection(final LoopbackClientConnection clientConnection) {
+        final ConnectionID connectionID = clientConnection.getConnectionID();
+        if (this.knownConnections.remove(connectionID) == null) {
+            return;
+        }
+        clientConnection.discardQueued();
+        this.admissionControl.release();
+        this.connectionEvents.publish(
+                ConnectionEvent.Type.DROPPED,
+                connectionID,
+                () -> this.slotAllocator.release(connectionID)
+        );
+    }
+
+    @Override
+    public void sendMessage(final ByteBuffer data, final ConnectionID recipient)
+            throws OutgoingQueueFullException, NotConnectedException {
+        sendMessage(data, recipient, MessagePriority.NORMAL);
+    }
+
+    @Override
+    public void sendMessage(
+            final ByteBuffer data,
+            final ConnectionID recipient,
+            final MessagePriority priority)
+            throws OutgoingQueueFullException, NotConnectedException {
+        Preconditions.checkNotNull(priority, "priority may not be null");
+        final LoopbackClientConnection clientConnection = getClientConnection(recipient);
+        if (!clientConnection.offer(priority, LoopbackNetwork.copy(data))) {
+            throw new OutgoingQueueFullException("Unable to queue outgoing message, " + priority + " queue full for: " + recipient);
+        }
+    }
+
+    @Override
+    public int broadcast(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        Preconditions.checkNotNull(recipients, "recipients may not be null");
+        // Copied once, every recipient owns a read only view of the copy
+        final ByteBuffer shared = LoopbackNetwork.copy(data);
+        int queued = 0;
+        for (ConnectionID recipient : recipients) {
+            final LoopbackClientConnection clientConnection
+                    = this.knownConnections.get(recipient);
+            if (clientConnection == null) {
+                log.debug("Broadcast recipient: {} is not connected", recipient);
+            } else if (clientConnection.offer(MessagePriority.NORMAL, shared.asReadOnlyBuffer())) {
+                queued++;
+            } else {
+                log.debug("Broadcast queue full for: {}", recipient);
+            }
+        }
+        return queued;
+    }
+
+    @Override
+    public int broadcastLatest(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        Preconditions.checkNotNull(recipients, "recipients may not be null");
+        final ByteBuffer shared = LoopbackNetwork.copy(data);
+        int stored = 0;
+        for (ConnectionID recipient : recipients) {
+            final LoopbackClientConnection clientConnection
+                    = this.knownConnections.get(recipient);
+            if (clientConnection == null) {
+                log.debug("Broadcast recipient: {} is not connected", recipient);
+                continue;
+            }
+            clientConnection.replaceSnapshot(shared.asReadOnlyBuffer());
+            stored++;
+        }
+        return stored;
+    }
+
+    @Override
+    public int broadcastUnreliable(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        return broadcastLatest(data, recipients);
+    }
+
+    @Override
+    public void flush() {
+        this.knownConnections.forEach((id, clientConnection) -> {
+            if (clientConnection.hasQueuedMessages() || clientConnection.hasSendableBulk()) {
+                clientConnection.sendQueued();
+            }
+        });
+    }
+
+    @Override
+    public void sendBulk(
+            final ByteBuffer data,
+            final ConnectionID recipient,
+            final long transferId,
+            final int fromOffset) throws NotConnectedException {
+        getClientConnection(recipient).getBulkSender().send(data, transferId, fromOffset);
+    }
+
+    @Override
+    public long getQueuedBulkBytes(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getBulkSender().getQueuedBytes();
+    }
+
+    @Override
+    public int getOutgoingQueueDepth(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getQueuedMessageCount();
+    }
+
+    /**
+     * @return Always zero, messages are delivered when they are flushed.
+     */
+    @Override
+    public long getPendingWriteBytes(final ConnectionID connectionID)
+            throws NotConnectedException {
+        getClientConnection(connectionID);
+        return 0;
+    }
+
+    /**
+     * @return Always zero, messages are delivered when they are flushed.
+     */
+    @Override
+    public int getPendingWrites(final ConnectionID connectionID)
+            throws NotConnectedException {
+        getClientConnection(connectionID);
+        return 0;
+    }
+
+    /**
+     * There is no authentication timeout, the connection is only checked
+     * and the event published.
+     */
+    @Override
+    public void markAuthenticated(final ConnectionID connectionID)
+            throws NotConnectedException {
+        if (getClientConnection(connectionID).markAuthenticated()) {
+            this.connectionEvents.publish(
+                    ConnectionEvent.Type.AUTHENTICATED,
+                    connectionID
+            );
+        }
+    }
+
+    /**
+     * @return The number of connections refused because the server was full
+     * or accepting too fast.
+     */
+    public long getRefusedConnectionCount() {
+        return this.admissionControl.getRefusedConnectionCount();
+    }
+
+    @Override
+    public QueueLatencyMXBean getQueueLatency(final MessagePriority priority) {
+        return this.queueLatencies.get(
+                Preconditions.checkNotNull(priority, "priority may not be null")
+        );
+    }
+
+    /**
+     * @return {@link RoundTripTime#UNKNOWN}, the loopback network has no
+     * heartbeats.
+     */
+    @Override
+    public RoundTripTime getRoundTripTime(final ConnectionID connectionID)
+            throws NotConnectedException {
+        getClientConnection(connectionID);
+        return RoundTripTime.UNKNOWN;
+    }
+
+    private LoopbackClientConnection getClientConnection(final ConnectionID connectionID)
+            throws NotConnectedException {
+        final LoopbackClientConnection clientConnection = this.knownConnections.get(
+                Preconditions.checkNotNull(connectionID, "recipients may not be null")
+        );
+        if (clientConnection == null) {
+            throw new NotConnectedException("Client with ID: " + connectionID + " is not connected");
+        }
+        return clientConnection;
+    }
+
+    @Override
+    public void addConnectionListener(final Consumer<ConnectionEvent> l) {
+        this.connectionEvents.addListener(l);
+    }
+
+    @Override
+    public void addConnectionDroppedListener(final Consumer<ConnectionID> l) {
+        this.connectionEvents.addDroppedListener(l);
+    }
+
+    @Override
+    public IncomingMessage getIncomingMessage() {
+        return this.incomingMessageQueue.poll();
+    }
+
+    @Override
+    public int drainIncoming(final Consumer<IncomingMessage> consumer, final int max) {
+        return this.incomingMessageQueue.drain(consumer, max);
+    }
+
+    @Override
+    public int getIncomingQueueDepth() {
+        return this.incomingMessageQueue.size();
+    }
+
+    @Override
+    public int getIncomingQueueCapacity() {
+        return this.incomingMessageQueue.capacity();
+    }
+
+    /**
+     * @return The number of incoming messages dropped because the incoming
+     * queue was full.
+     */
+    public long getDroppedIncomingMessageCount() {
+        return this.droppedIncomingMessages.sum();
+    }
+
+    /**
+     * @return The number of connected clients.
+     */
+    public int getConnectionCount() {
+        return this.knownConnections.size();
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.nio;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.nio.NioBufferPool;
+import se.mejsla.camp.mazela.network.common.nio.NioChannel;
+import se.mejsla.camp.mazela.network.common.nio.NioFrame;
+import se.mejsla.camp.mazela.network.server.BulkSender;
+import se.mejsla.camp.mazela.network.server.MessagePriority;
+import se.mejsla.camp.mazela.network.server.PriorityLanes;
+import se.mejsla.camp.mazela.network.server.QueueLatency;
+import se.mejsla.camp.mazela.network.server.WriteBacklog;
+
+/**
+ * A client connected to the plain NIO server and the frames waiting to be
+ * written to it. Works like the grizzly client connection: bounded priority
+ * lanes and a snapshot slot per client, written with one gathering write when the
+ * server is flushed, and a snapshot is held while the previous one is still
+ * being written. Each batch is counted in the write backlog until its last
+ * frame has left the channel.
+ */
+class NioClientConnection {
+
+    private final ConnectionID connectionID;
+    private final NioChannel channel;
+    private final PriorityLanes<NioFrame> outgoingMessageQueue;
+
+    /**
+     * True while a thread is writing the queue to the channel, the queue has
+     * a single consumer and frames must be written in order.
+     */
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+    /**
+     * Set when the connection is dropped. Nothing is queued after that, and
+     * the thread that stops sending throws away what was queued meanwhile.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The newest snapshot that has not been handed to the channel yet.
+     */
+    private final AtomicReference<NioFrame> latestSnapshot = new AtomicReference<>();
+    /**
+     * True from when a snapshot is handed to the channel until it has been
+     * written.
+     */
+    private final AtomicBoolean snapshotInFlight = new AtomicBoolean(false);
+
+    /**
+     * When the connection was accepted, for the authentication timeout.
+     */
+    private final long acceptedNanos = System.nanoTime();
+    private final AtomicBoolean authenticated = new AtomicBoolean(false);
+    private final BulkSender bulkSender;
+    /**
+     * Bulk chunks are framed in buffers from this pool.
+     */
+    private final NioBufferPool bufferPool;
+    private final WriteBacklog writeBacklog;
+
+    NioClientConnection(
+            final ConnectionID connectionID,
+            final NioChannel channel,
+            final int maxOutgoingMessages,
+            final Map<MessagePriority, QueueLatency> queueLatencies,
+            final BulkSender bulkSender,
+            final NioBufferPool bufferPool,
+            final WriteBacklog writeBacklog) {
+        this.connectionID = Preconditions.checkNotNull(connectionID);
+        this.channel = Preconditions.checkNotNull(channel);
+        this.outgoingMessageQueue
+                = new PriorityLanes<>(maxOutgoingMessages, queueLatencies);
+        this.bulkSender = Preconditions.checkNotNull(bulkSender);
+        this.bufferPool = Preconditions.checkNotNull(bufferPool);
+        this.writeBacklog = Preconditions.checkNotNull(writeBacklog);
+    }
+
+    ConnectionID getConnectionID() {
+        return connectionID;
+    }
+
+    NioChannel getChannel() {
+        return channel;
+    }
+
+    BulkSender getBulkSender() {
+        return bulkSender;
+    }
+
+    WriteBacklog getWriteBacklog() {
+        return writeBacklog;
+    }
+
+    long getAcceptedNanos() {
+        return acceptedNanos;
+    }
+
+    boolean isAuthenticated() {
+        return authenticated.get();
+    }
+
+    /**
+     * @return true if the connection was not already authenticated.
+     */
+    boolean markAuthenticated() {
+        return this.authenticated.compareAndSet(false, true);
+    }
+
+    /**
+     * @param priority The lane to queue the frame in.
+     * @param frame The frame to queue, owned by the queue from now on.
+     * @return false if the lane for this connection is full or the
+     * connection has been dropped.
+     */
+    boolean offer(final MessagePriority priority, final NioFrame frame) {
+        if (this.closed
+                || !this.outgoingMessageQueue.offer(priority, frame)) {
+            return false;
+        }
+        if (this.closed) {
+            // Dropped while queueing, the discard may have missed it
+            discardLanes();
+        }
+        return true;
+    }
+
+    /**
+     * @param snapshot The snapshot to write on the next flush.
+     * @return true if an unwritten snapshot was replaced.
+     */
+    boolean replaceSnapshot(final NioFrame snapshot) {
+        final NioFrame replaced = this.latestSnapshot.getAndSet(snapshot);
+        if (this.closed) {
+            discardSnapshot();
+        }
+        if (replaced != null) {
+            replaced.done();
+            return true;
+        }
+        return false;
+    }
+
+    int getQueuedMessageCount() {
+        return this.outgoingMessageQueue.size()
+                + (this.latestSnapshot.get() != null ? 1 : 0);
+    }
+
+    boolean hasQueuedMessages() {
+        return !this.outgoingMessageQueue.isEmpty() || isSnapshotSendable();
+    }
+
+    boolean hasSendableBulk() {
+        return this.bulkSender.hasSendableChunk();
+    }
+
+    private boolean isSnapshotSendable() {
+        return this.latestSnapshot.get() != null && !this.snapshotInFlight.get();
+    }
+
+    /**
+     * Write everything queued, highest priority first, then the snapshot and
+     * as many bulk chunks as the bulk window has room for, with one gathering
+     * write on the calling thread. If another thread is
+     * already writing to this connection that thread also writes what the
+     * caller has queued.
+     *
+     * @return The number of frames written by this call.
+     */
+    int sendQueued() {
+        int sent = 0;
+        while (!this.closed && this.sending.compareAndSet(false, true)) {
+            try {
+                final ArrayList<NioFrame> batch
+                        = new ArrayList<>(this.outgoingMessageQueue.size() + 1);
+                this.outgoingMessageQueue.drain(batch::add);
+                final NioFrame snapshot = takeSnapshot();
+                if (snapshot != null) {
+                    batch.add(snapshot);
+                }
+                addBulkChunks(batch);
+                if (!batch.isEmpty()) {
+                    long bytes = 0;
+                    for (NioFrame frame : batch) {
+                        bytes += frame.getBytes();
+                    }
+                    final long writeBytes = bytes;
+                    // The channel finishes frames in order, the batch is
+                    // written when the last frame is
+                    final int last = batch.size() - 1;
+                    batch.set(last, batch.get(last).whenDone(
+                            () -> this.writeBacklog.completed(writeBytes)
+                    ));
+                    this.writeBacklog.started(writeBytes);
+                    this.channel.write(batch);
+                }
+                sent += batch.size();
+            } finally {
+                stopSending();
+            }
+            if (!hasQueuedMessages()) {
+                break;
+            }
+        }
+        return sent;
+    }
+
+    private void addBulkChunks(final ArrayList<NioFrame> batch) {
+        ByteBuffer body;
+        while ((body = this.bulkSender.nextChunk()) != null) {
+            final int bodyBytes = body.remaining();
+            final NioFrame chunk = NioFrame.control(
+                    this.bufferPool,
+                    MessageUtilities.CONTROL_BULK_CHUNK,
+                    body
+            );
+            batch.add(chunk.whenDone(() -> this.bulkSender.written(bodyBytes)));
+        }
+    }
+
+    private NioFrame takeSnapshot() {
+        if (!this.snapshotInFlight.compareAndSet(false, true)) {
+            return null;
+        }
+        final NioFrame snapshot = this.latestSnapshot.getAndSet(null);
+        if (snapshot == null) {
+            this.snapshotInFlight.set(false);
+            return null;
+        }
+        return snapshot.whenDone(() -> this.snapshotInFlight.set(false));
+    }
+
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Throw away everything queued, used when the connection is dropped.
+     * Nothing can be queued afterwards. If a thread is writing at the same
+     * time, that thread throws away the lanes when it stops.
+     */
+    void discardQueued() {
+        this.closed = true;
+        discardLanes();
+        discardSnapshot();
+        this.bulkSender.discard();
+    }
+
+    private void stopSending() {
+        this.sending.set(false);
+        if (this.closed) {
+            discardLanes();
+        }
+    }
+
+    /**
+     * Only the thread that holds the sending flag takes from the lanes. A
+     * thread that finds the flag taken leaves the lanes to the holder, which
+     * comes back here when it stops sending.
+     */
+    private void discardLanes() {
+        while (this.sending.compareAndSet(false, true)) {
+            try {
+                this.outgoingMessageQueue.discard(NioFrame::done);
+            } finally {
+                this.sending.set(false);
+            }
+            if (this.outgoingMessageQueue.isEmpty()) {
+                break;
+            }
+        }
+    }
+
+    private void discardSnapshot() {
+        final NioFrame snapshot = this.latestSnapshot.getAndSet(null);
+        if (snapshot != null) {
+            snapshot.done();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return connectionID.toString();
+    }
+}
@@ -0,0 +1,641 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.nio;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AbstractService;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.HeartbeatSettings;
+import se.mejsla.camp.mazela.network.common.MpscRingBuffer;
+import se.mejsla.camp.mazela.network.common.NotConnectedException;
+import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.SlotAllocator;
+import se.mejsla.camp.mazela.network.common.SlotTable;
+import se.mejsla.camp.mazela.network.common.nio.NioBufferPool;
+import se.mejsla.camp.mazela.network.common.nio.NioChannel;
+import se.mejsla.camp.mazela.network.common.nio.NioFrame;
+import se.mejsla.camp.mazela.network.common.nio.NioSelectorLoop;
+import se.mejsla.camp.mazela.network.server.AdmissionControl;
+import se.mejsla.camp.mazela.network.server.BulkSender;
+import se.mejsla.camp.mazela.network.server.ConnectionEvent;
+import se.mejsla.camp.mazela.network.server.ConnectionEventBus;
+import se.mejsla.camp.mazela.network.server.IncomingMessage;
+import se.mejsla.camp.mazela.network.server.IncomingOverflowPolicy;
+import se.mejsla.camp.mazela.network.server.MessagePriority;
+import se.mejsla.camp.mazela.network.server.NetworkServer;
+import se.mejsla.camp.mazela.network.server.QueueLatency;
+import se.mejsla.camp.mazela.network.server.QueueLatencyMXBean;
+import se.mejsla.camp.mazela.network.server.ServerConfiguration;
+import se.mejsla.camp.mazela.network.server.WriteBacklog;
+
+/**
+ * A network server on plain {@code java.nio}: one selector thread that
+ * accepts and reads, frames written from the flushing thread, and buffers
+ * from a {@link NioBufferPool} instead of grizzly's memory manager. It speaks
+ * the same wire protocol as the grizzly server, so either client can connect,
+ * and exists to measure what the filter chain costs.
+ * <p>
+ * Heartbeats, the queues and the overflow policy work as with the grizzly
+ * server. There are no datagrams, compression, inbound rate limits or
+ * traffic metrics, and {@link #broadcastUnreliable} behaves like
+ * {@link #broadcastLatest}.
+ */
+public class NioNetworkServer extends AbstractService implements NetworkServer {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final ServerConfiguration configuration;
+    private final ThreadFactory threadFactory;
+    private final NioBufferPool bufferPool = new NioBufferPool();
+    private final MpscRingBuffer<IncomingMessage> incomingMessageQueue;
+    private final IncomingOverflowPolicy incomingOverflowPolicy;
+    private final LongAdder droppedIncomingMessages = new LongAdder();
+    private final LongAdder heartbeatTimeouts = new LongAdder();
+    private final LongAdder stuckConnections = new LongAdder();
+    private final AdmissionControl admissionControl;
+    private final SlotTable<NioClientConnection> knownConnections = new SlotTable<>();
+    private final SlotAllocator slotAllocator = new SlotAllocator();
+    private final ConnectionEventBus connectionEvents;
+    private final EnumMap<MessagePriority, QueueLatency> queueLatencies
+            = QueueLatency.forEachLane();
+    /**
+     * Sends the heartbeats and closes connections that do not authenticate
+     * in time.
+     */
+    private final ScheduledExecutorService scheduledExecutor;
+    private NioSelectorLoop loop;
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Initialise the server. The server is not usable until it has been
+     * started.
+     *
+     * @param configuration The server settings. May not be null.
+     * @param threadFactory Creates the selector, heartbeat and connection
+     * event threads. May not be null.
+     */
+    public NioNetworkServer(
+            final ServerConfiguration configuration,
+            final ThreadFactory threadFactory) {
+        this.configuration = Preconditions.checkNotNull(configuration);
+        this.threadFactory = Preconditions.checkNotNull(threadFactory);
+        this.incomingMessageQueue
+                = new MpscRingBuffer<>(configuration.getIncomingCapacity());
+        this.incomingOverflowPolicy = configuration.getIncomingOverflowPolicy();
+        this.admissionControl = new AdmissionControl(configuration);
+        this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.connectionEvents = new ConnectionEventBus(threadFactory);
+    }
+
+    @Override
+    protected void doStart() {
+        final int port = this.configuration.getPort();
+        try {
+            log.debug("Starting NIO network server");
+            this.loop = new NioSelectorLoop(this.threadFactory);
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.bind(
+                    new InetSocketAddress(port),
+                    this.configuration.getAcceptBacklog()
+            );
+            this.loop.register(this.serverChannel, SelectionKey.OP_ACCEPT, new Acceptor());
+            this.loop.start();
+
+            final HeartbeatSettings heartbeat = this.configuration.getHeartbeat();
+            if (heartbeat.isEnabled()) {
+                this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::heartbeat,
+                        heartbeat.getIntervalMillis(),
+                        heartbeat.getIntervalMillis(),
+                        TimeUnit.MILLISECONDS
+                );
+            }
+            final long authenticationTimeout
+                    = this.configuration.getAuthenticationTimeoutMillis();
+            if (authenticationTimeout != ServerConfiguration.UNLIMITED) {
+                final long sweepInterval = Math.max(1, authenticationTimeout / 4);
+                this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::closeUnauthenticated,
+                        sweepInterval,
+                        sweepInterval,
+                        TimeUnit.MILLISECONDS
+                );
+            }
+            final long writeStallTimeout
+                    = this.configuration.getWriteStallTimeoutMillis();
+            if (writeStallTimeout != ServerConfiguration.UNLIMITED) {
+                final long sweepInterval = Math.max(1, writeStallTimeout / 4);
+                this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::closeStuck,
+                        sweepInterval,
+                        sweepInterval,
+                        TimeUnit.MILLISECONDS
+                );
+            }
+            notifyStarted();
+        } catch (IOException ex) {
+            log.error("Unable to start the network server. Unable to bind to port: {}", port);
+            closeServerChannel();
+            this.scheduledExecutor.shutdownNow();
+            notifyFailed(ex);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        log.debug("Stopping NIO network server");
+        this.scheduledExecutor.shutdownNow();
+        closeServerChannel();
+        this.knownConnections.forEach((id, clientConnection) -> {
+            clientConnection.getChannel().close();
+        });
+        this.loop.stop();
+        this.connectionEvents.shutdown();
+        notifyStopped();
+        log.debug("NIO network server stopped");
+    }
+
+    private void closeServerChannel() {
+        if (this.serverChannel != null) {
+            try {
+                this.serverChannel.close();
+            } catch (IOException ex) {
+                log.debug("Failed to close server channel", ex);
+            }
+        }
+    }
+
+    /**
+     * Ping every client, closing the connections of clients that have been
+     * silent for longer than the heartbeat timeout.
+     */
+    private void heartbeat() {
+        try {
+            final long timeoutNanos = this.configuration.getHeartbeat().getTimeoutNanos();
+            final long now = System.nanoTime();
+            this.knownConnections.forEach((connectionID, clientConnection) -> {
+                final NioChannel channel = clientConnection.getChannel();
+                if (channel.getSilentNanos(now) > timeoutNanos) {
+                    log.info("No heartbeat from client {}, closing connection", connectionID);
+                    this.heartbeatTimeouts.increment();
+                    channel.close();
+                } else {
+                    channel.ping();
+                }
+            });
+        } catch (RuntimeException ex) {
+            // An exception would cancel all later heartbeats
+            log.error("Unable to send heartbeats", ex);
+        }
+    }
+
+    /**
+     * Close the connections that have waited longer than the authentication
+     * timeout without being marked as authenticated.
+     */
+    private void closeUnauthenticated() {
+        try {
+            final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                    this.configuration.getAuthenticationTimeoutMillis()
+            );
+            final long now = System.nanoTime();
+            this.knownConnections.forEach((connectionID, clientConnection) -> {
+                if (!clientConnection.isAuthenticated()
+                        && now - clientConnection.getAcceptedNanos() > timeoutNanos) {
+                    log.info("Client {} did not authenticate in time, closing connection", connectionID);
+                    this.admissionControl.authenticationTimedOut();
+                    clientConnection.getChannel().close();
+                }
+            });
+        } catch (RuntimeException ex) {
+            // An exception would cancel all later sweeps
+            log.error("Unable to close unauthenticated connections", ex);
+        }
+    }
+
+    /**
+     * Close the connections whose writes have stalled. The byte limit is
+     * also checked on every flush.
+     */
+    private void closeStuck() {
+        try {
+            final long now = System.nanoTime();
+            this.knownConnections.forEach((connectionID, clientConnection)
+                    -> closeIfStuck(clientConnection, now));
+        } catch (RuntimeException ex) {
+            // An exception would cancel all later sweeps
+            log.error("Unable to close stuck connections", ex);
+        }
+    }
+
+    private void closeIfStuck(final NioClientConnection clientConnection, final long now) {
+        final WriteBacklog backlog = clientConnection.getWriteBacklog();
+        if (backlog.isStuck(now) && clientConnection.getChannel().isOpen()) {
+            log.info("Client {} is not taking its writes, {} bytes in {} writes waiting, closing connection",
+                    clientConnection, backlog.getBytes(), backlog.getWrites());
+            this.stuckConnections.increment();
+            clientConnection.getChannel().close();
+        }
+    }
+
+    /**
+     * Accepts connections on the selector thread. Refused connections get
+     * a server full reply and are closed before they get a channel.
+     */
+    private class Acceptor implements NioSelectorLoop.Handler {
+
+        @Override
+        public void ready(final SelectionKey key) throws IOException {
+            SocketChannel accepted;
+            while ((accepted = serverChannel.accept()) != null) {
+                if (!admissionControl.admit(System.nanoTime())) {
+                    log.debug("Server full, refusing: {}", accepted.socket().getRemoteSocketAddress());
+                    NioChannel.refuse(accepted);
+                    continue;
+                }
+                try {
+                    configure(accepted);
+                    new NioChannel(loop, accepted, bufferPool, new Peer()).open();
+                } catch (IOException ex) {
+                    log.warn("Unable to accept connection", ex);
+                    admissionControl.release();
+                    accepted.close();
+                }
+            }
+        }
+
+        @Override
+        public void failed(final IOException ex) {
+            if (isRunning()) {
+                log.error("Server channel failed", ex);
+            }
+            closeServerChannel();
+        }
+    }
+
+    private void configure(final SocketChannel accepted) throws IOException {
+        accepted.socket().setTcpNoDelay(this.configuration.isTcpNoDelay());
+        if (this.configuration.getSendBufferSize() != ServerConfiguration.SYSTEM_DEFAULT) {
+            accepted.socket().setSendBufferSize(this.configuration.getSendBufferSize());
+        }
+        if (this.configuration.getReceiveBufferSize() != ServerConfiguration.SYSTEM_DEFAULT) {
+            accepted.socket().setReceiveBufferSize(this.configuration.getReceiveBufferSize());
+        }
+    }
+
+    /**
+     * The events of one client channel.
+     */
+    private class Peer implements NioChannel.Listener {
+
+        private NioClientConnection clientConnection;
+
+        @Override
+        public void connected(final NioChannel channel) {
+            final ConnectionID connectionID = slotAllocator.allocate();
+            this.clientConnection = new NioClientConnection(
+                    connectionID,
+                    channel,
+                    configuration.getMaxOutgoingMessages(),
+                    queueLatencies,
+                    BulkSender.of(configuration),
+                    bufferPool,
+                    WriteBacklog.of(configuration)
+            );
+            knownConnections.put(connectionID, this.clientConnection);
+            log.debug("Client connected: {} from {}", connectionID, channel.getPeerAddress());
+            connectionEvents.publish(ConnectionEvent.Type.CONNECTED, connectionID);
+        }
+
+        @Override
+        public void received(final NioChannel channel, final ByteBuffer payload) {
+            // The payload is a view of the read buffer, the consumer gets a
+            // pooled copy
+            final ByteBuffer data = bufferPool.acquire(payload.remaining());
+            data.put(payload);
+            data.flip();
+            addIncomingMessage(this.clientConnection, data);
+        }
+
+        @Override
+        public void closed(final NioChannel channel) {
+            if (this.clientConnection != null) {
+                dropConnection(this.clientConnection);
+            }
+            admissionControl.release();
+        }
+    }
+
+    private void addIncomingMessage(
+            final NioClientConnection clientConnection,
+            final ByteBuffer data) {
+        final ConnectionID connectionID = clientConnection.getConnectionID();
+        if (this.incomingMessageQueue.offer(new IncomingMessage(
+                connectionID,
+                data,
+                () -> this.bufferPool.release(data)))) {
+            return;
+        }
+        this.bufferPool.release(data);
+        this.droppedIncomingMessages.increment();
+        if (this.incomingOverflowPolicy == IncomingOverflowPolicy.DISCONNECT) {
+            log.info("Incoming queue full, disconnecting: {}", connectionID);
+            clientConnection.getChannel().close();
+        } else {
+            log.debug("Incoming queue full, dropping message from: {}", connectionID);
+        }
+    }
+
+    /**
+     * Remove the connection and queue the drop for the listeners.
+     */
+    private void dropConnection(final NioClientConnection clientConnection) {
+        final ConnectionID connectionID = clientConnection.getConnectionID();
+        if (this.knownConnections.remove(connectionID) == null) {
+            return;
+        }
+        log.debug("Dropping connection: {}", connectionID);
+        clientConnection.discardQueued();
+        // The listeners have seen the drop before the slot can be handed to
+        // a new connection
+        this.connectionEvents.publish(
+                ConnectionEvent.Type.DROPPED,
+                connectionID,
+                () -> this.slotAllocator.release(connectionID)
+        );
+    }
+
+    @Override
+    public void sendMessage(final ByteBuffer data, final ConnectionID recipient)
+            throws OutgoingQueueFullException, NotConnectedException {
+        sendMessage(data, recipient, MessagePriority.NORMAL);
+    }
+
+    @Override
+    public void sendMessage(
+            final ByteBuffer data,
+            final ConnectionID recipient,
+            final MessagePriority priority)
+            throws OutgoingQueueFullException, NotConnectedException {
+        Preconditions.checkNotNull(priority, "priority may not be null");
+        final NioClientConnection clientConnection = getClientConnection(recipient);
+        final NioFrame frame = NioFrame.encode(this.bufferPool, data);
+        if (!clientConnection.offer(priority, frame)) {
+            frame.done();
+            if (clientConnection.isClosed()) {
+                throw new NotConnectedException("Client with ID: " + recipient + " is not connected");
+            }
+            throw new OutgoingQueueFullException("Unable to queue outgoing message, " + priority + " queue full for: " + recipient);
+        }
+    }
+
+    @Override
+    public int broadcast(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        Preconditions.checkNotNull(recipients, "recipients may not be null");
+        // Framed once, every recipient writes its own view of the frame
+        final NioFrame.Shared shared
+                = new NioFrame.Shared(NioFrame.encode(this.bufferPool, data));
+        int queued = 0;
+        try {
+            for (ConnectionID recipient : recipients) {
+                final NioClientConnection clientConnection
+                        = this.knownConnections.get(recipient);
+                if (clientConnection == null) {
+                    log.debug("Broadcast recipient: {} is not connected", recipient);
+                    continue;
+                }
+                final NioFrame view = shared.newView();
+                if (clientConnection.offer(MessagePriority.NORMAL, view)) {
+                    queued++;
+                } else {
+                    view.done();
+                    log.debug("Broadcast queue {} for: {}",
+                            clientConnection.isClosed() ? "closed" : "full", recipient);
+                }
+            }
+        } finally {
+            shared.release();
+        }
+        return queued;
+    }
+
+    @Override
+    public int broadcastLatest(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        Preconditions.checkNotNull(recipients, "recipients may not be null");
+        final NioFrame.Shared shared
+                = new NioFrame.Shared(NioFrame.encode(this.bufferPool, data));
+        int stored = 0;
+        try {
+            for (ConnectionID recipient : recipients) {
+                final NioClientConnection clientConnection
+                        = this.knownConnections.get(recipient);
+                if (clientConnection == null) {
+                    log.debug("Broadcast recipient: {} is not connected", recipient);
+                    continue;
+                }
+                clientConnection.replaceSnapshot(shared.newView());
+                stored++;
+            }
+        } finally {
+            shared.release();
+        }
+        return stored;
+    }
+
+    @Override
+    public int broadcastUnreliable(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        return broadcastLatest(data, recipients);
+    }
+
+    @Override
+    public void flush() {
+        final long now = System.nanoTime();
+        this.knownConnections.forEach((id, clientConnection) -> {
+            if (clientConnection.hasQueuedMessages() || clientConnection.hasSendableBulk()) {
+                clientConnection.sendQueued();
+                closeIfStuck(clientConnection, now);
+            }
+        });
+    }
+
+    @Override
+    public void sendBulk(
+            final ByteBuffer data,
+            final ConnectionID recipient,
+            final long transferId,
+            final int fromOffset) throws NotConnectedException {
+        getClientConnection(recipient).getBulkSender().send(data, transferId, fromOffset);
+    }
+
+    @Override
+    public long getQueuedBulkBytes(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getBulkSender().getQueuedBytes();
+    }
+
+    @Override
+    public int getOutgoingQueueDepth(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getQueuedMessageCount();
+    }
+
+    @Override
+    public long getPendingWriteBytes(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getWriteBacklog().getBytes();
+    }
+
+    @Override
+    public int getPendingWrites(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getWriteBacklog().getWrites();
+    }
+
+    @Override
+    public QueueLatencyMXBean getQueueLatency(final MessagePriority priority) {
+        return this.queueLatencies.get(
+                Preconditions.checkNotNull(priority, "priority may not be null")
+        );
+    }
+
+    @Override
+    public RoundTripTime getRoundTripTime(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getChannel().getRoundTripTime();
+    }
+
+    private NioClientConnection getClientConnection(final ConnectionID connectionID)
+            throws NotConnectedException {
+        final NioClientConnection clientConnection = this.knownConnections.get(
+                Preconditions.checkNotNull(connectionID, "recipients may not be null")
+        );
+        if (clientConnection == null) {
+            throw new NotConnectedException("Client with ID: " + connectionID + " is not connected");
+        }
+        return clientConnection;
+    }
+
+    @Override
+    public void addConnectionListener(final Consumer<ConnectionEvent> l) {
+        this.connectionEvents.addListener(l);
+    }
+
+    @Override
+    public void addConnectionDroppedListener(final Consumer<ConnectionID> l) {
+        this.connectionEvents.addDroppedListener(l);
+    }
+
+    @Override
+    public IncomingMessage getIncomingMessage() {
+        return this.incomingMessageQueue.poll();
+    }
+
+    @Override
+    public int drainIncoming(final Consumer<IncomingMessage> consumer, final int max) {
+        return this.incomingMessageQueue.drain(consumer, max);
+    }
+
+    @Override
+    public int getIncomingQueueDepth() {
+        return this.incomingMessageQueue.size();
+    }
+
+    @Override
+    public int getIncomingQueueCapacity() {
+        return this.incomingMessageQueue.capacity();
+    }
+
+    /**
+     * @return The buffers frames are read into and written from.
+     */
+    public NioBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return The number of incoming messages dropped because the incoming
+     * queue was full.
+     */
+    public long getDroppedIncomingMessageCount() {
+        return this.droppedIncomingMessages.sum();
+    }
+
+    /**
+     * @return The number of connections closed because the client stopped
+     * answering heartbeats.
+     */
+    public long getHeartbeatTimeoutCount() {
+        return this.heartbeatTimeouts.sum();
+    }
+
+    /**
+     * @return The number of connections refused because the server was full
+     * or accepting too fast.
+     */
+    public long getRefusedConnectionCount() {
+        return this.admissionControl.getRefusedConnectionCount();
+    }
+
+    /**
+     * @return The number of connections closed because they did not
+     * authenticate in time.
+     */
+    public long getAuthenticationTimeoutCount() {
+        return this.admissionControl.getAuthenticationTimeoutCount();
+    }
+
+    /**
+     * @return The number of connections closed because their writes were
+     * stuck.
+     */
+    public long getStuckConnectionCount() {
+        return this.stuckConnections.sum();
+    }
+
+    @Override
+    public void markAuthenticated(final ConnectionID connectionID)
+            throws NotConnectedException {
+        if (getClientConnection(connectionID).markAuthenticated()) {
+            this.connectionEvents.publish(
+                    ConnectionEvent.Type.AUTHENTICATED,
+                    connectionID
+            );
+        }
+    }
+
+    /**
+     * @return The number of connected clients.
+     */
+    public int getConnectionCount() {
+        return this.knownConnections.size();
+    }
+}
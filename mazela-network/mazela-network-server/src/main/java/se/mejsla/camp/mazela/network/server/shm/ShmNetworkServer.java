@@ -0,0 +1,648 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.shm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AbstractService;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.HeartbeatSettings;
+import se.mejsla.camp.mazela.network.common.MpscRingBuffer;
+import se.mejsla.camp.mazela.network.common.NotConnectedException;
+import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.SlotAllocator;
+import se.mejsla.camp.mazela.network.common.SlotTable;
+import se.mejsla.camp.mazela.network.common.nio.NioBufferPool;
+import se.mejsla.camp.mazela.network.common.nio.NioFrame;
+import se.mejsla.camp.mazela.network.common.shm.ShmChannel;
+import se.mejsla.camp.mazela.network.common.shm.ShmPoller;
+import se.mejsla.camp.mazela.network.server.AdmissionControl;
+import se.mejsla.camp.mazela.network.server.BulkSender;
+import se.mejsla.camp.mazela.network.server.ConnectionEvent;
+import se.mejsla.camp.mazela.network.server.ConnectionEventBus;
+import se.mejsla.camp.mazela.network.server.IncomingMessage;
+import se.mejsla.camp.mazela.network.server.IncomingOverflowPolicy;
+import se.mejsla.camp.mazela.network.server.MessagePriority;
+import se.mejsla.camp.mazela.network.server.NetworkServer;
+import se.mejsla.camp.mazela.network.server.QueueLatency;
+import se.mejsla.camp.mazela.network.server.QueueLatencyMXBean;
+import se.mejsla.camp.mazela.network.server.ServerConfiguration;
+import se.mejsla.camp.mazela.network.server.WriteBacklog;
+
+/**
+ * A network server for clients on the same host that exchanges frames
+ * through shared memory instead of a socket, see {@link ShmChannel}. The
+ * server listens on the directory {@link ShmChannel#directory(int)} names for
+ * the configured port, one poller thread reads every channel and frames are
+ * copied into the rings from the flushing thread. The frames are those of the
+ * wire protocol, so messages, snapshots, heartbeats and bulk transfers behave
+ * as with the other servers, without the system calls and kernel copies of a
+ * socket.
+ * <p>
+ * New connections are found by scanning the directory, see
+ * {@link #ACCEPT_INTERVAL_MILLIS}. As with the NIO server there are no
+ * datagrams, compression, inbound rate limits or traffic metrics, and
+ * {@link #broadcastUnreliable} behaves like {@link #broadcastLatest}.
+ */
+public class ShmNetworkServer extends AbstractService implements NetworkServer {
+
+    /**
+     * How often the directory is scanned for new connections, a client waits
+     * at most this long to be accepted.
+     */
+    private static final long ACCEPT_INTERVAL_MILLIS = 10;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final ServerConfiguration configuration;
+    private final ThreadFactory threadFactory;
+    private final NioBufferPool bufferPool = new NioBufferPool();
+    private final MpscRingBuffer<IncomingMessage> incomingMessageQueue;
+    private final IncomingOverflowPolicy incomingOverflowPolicy;
+    private final LongAdder droppedIncomingMessages = new LongAdder();
+    private final LongAdder heartbeatTimeouts = new LongAdder();
+    private final LongAdder stuckConnections = new LongAdder();
+    private final AdmissionControl admissionControl;
+    private final SlotTable<ShmClientConnection> knownConnections = new SlotTable<>();
+    private final SlotAllocator slotAllocator = new SlotAllocator();
+    private final ConnectionEventBus connectionEvents;
+    private final EnumMap<MessagePriority, QueueLatency> queueLatencies
+            = QueueLatency.forEachLane();
+    /**
+     * Accepts connections, sends the heartbeats and closes connections that
+     * do not authenticate in time.
+     */
+    private final ScheduledExecutorService scheduledExecutor;
+    private ShmPoller poller;
+    private Path directory;
+    private FileLock listenLock;
+
+    /**
+     * Initialise the server. The server is not usable until it has been
+     * started.
+     *
+     * @param configuration The server settings. May not be null.
+     * @param threadFactory Creates the poller, heartbeat and connection
+     * event threads. May not be null.
+     */
+    public ShmNetworkServer(
+            final ServerConfiguration configuration,
+            final ThreadFactory threadFactory) {
+        this.configuration = Preconditions.checkNotNull(configuration);
+        this.threadFactory = Preconditions.checkNotNull(threadFactory);
+        this.incomingMessageQueue
+                = new MpscRingBuffer<>(configuration.getIncomingCapacity());
+        this.incomingOverflowPolicy = configuration.getIncomingOverflowPolicy();
+        this.admissionControl = new AdmissionControl(configuration);
+        this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.connectionEvents = new ConnectionEventBus(threadFactory);
+    }
+
+    @Override
+    protected void doStart() {
+        final int port = this.configuration.getPort();
+        try {
+            log.debug("Starting shared memory network server");
+            this.directory = ShmChannel.directory(port);
+            this.listenLock = ShmChannel.listen(this.directory);
+            this.poller = new ShmPoller(this.threadFactory);
+            this.poller.start();
+            this.scheduledExecutor.scheduleWithFixedDelay(
+                    this::accept,
+                    0,
+                    ACCEPT_INTERVAL_MILLIS,
+                    TimeUnit.MILLISECONDS
+            );
+
+            final HeartbeatSettings heartbeat = this.configuration.getHeartbeat();
+            if (heartbeat.isEnabled()) {
+                this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::heartbeat,
+                        heartbeat.getIntervalMillis(),
+                        heartbeat.getIntervalMillis(),
+                        TimeUnit.MILLISECONDS
+                );
+            }
+            final long authenticationTimeout
+                    = this.configuration.getAuthenticationTimeoutMillis();
+            if (authenticationTimeout != ServerConfiguration.UNLIMITED) {
+                final long sweepInterval = Math.max(1, authenticationTimeout / 4);
+                this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::closeUnauthenticated,
+                        sweepInterval,
+                        sweepInterval,
+                        TimeUnit.MILLISECONDS
+                );
+            }
+            final long writeStallTimeout
+                    = this.configuration.getWriteStallTimeoutMillis();
+            if (writeStallTimeout != ServerConfiguration.UNLIMITED) {
+                final long sweepInterval = Math.max(1, writeStallTimeout / 4);
+                this.scheduledExecutor.scheduleWithFixedDelay(
+                        this::closeStuck,
+                        sweepInterval,
+                        sweepInterval,
+                        TimeUnit.MILLISECONDS
+                );
+            }
+            notifyStarted();
+        } catch (IOException ex) {
+            log.error("Unable to start the network server. Unable to listen on: {}", this.directory, ex);
+            releaseListenLock();
+            this.scheduledExecutor.shutdownNow();
+            notifyFailed(ex);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        log.debug("Stopping shared memory network server");
+        this.scheduledExecutor.shutdownNow();
+        releaseListenLock();
+        this.knownConnections.forEach((id, clientConnection) -> {
+            clientConnection.getChannel().close();
+        });
+        this.poller.stop();
+        this.connectionEvents.shutdown();
+        notifyStopped();
+        log.debug("Shared memory network server stopped");
+    }
+
+    private void releaseListenLock() {
+        if (this.listenLock != null) {
+            try {
+                this.listenLock.channel().close();
+            } catch (IOException ex) {
+                log.debug("Failed to release listen lock", ex);
+            }
+        }
+    }
+
+    /**
+     * Ping every client, closing the connections of clients that have been
+     * silent for longer than the heartbeat timeout.
+     */
+    private void heartbeat() {
+        try {
+            final long timeoutNanos = this.configuration.getHeartbeat().getTimeoutNanos();
+            final long now = System.nanoTime();
+            this.knownConnections.forEach((connectionID, clientConnection) -> {
+                final ShmChannel channel = clientConnection.getChannel();
+                if (channel.getSilentNanos(now) > timeoutNanos) {
+                    log.info("No heartbeat from client {}, closing connection", connectionID);
+                    this.heartbeatTimeouts.increment();
+                    channel.close();
+                } else {
+                    channel.ping();
+                }
+            });
+        } catch (RuntimeException ex) {
+            // An exception would cancel all later heartbeats
+            log.error("Unable to send heartbeats", ex);
+        }
+    }
+
+    /**
+     * Close the connections that have waited longer than the authentication
+     * timeout without being marked as authenticated.
+     */
+    private void closeUnauthenticated() {
+        try {
+            final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                    this.configuration.getAuthenticationTimeoutMillis()
+            );
+            final long now = System.nanoTime();
+            this.knownConnections.forEach((connectionID, clientConnection) -> {
+                if (!clientConnection.isAuthenticated()
+                        && now - clientConnection.getAcceptedNanos() > timeoutNanos) {
+                    log.info("Client {} did not authenticate in time, closing connection", connectionID);
+                    this.admissionControl.authenticationTimedOut();
+                    clientConnection.getChannel().close();
+                }
+            });
+        } catch (RuntimeException ex) {
+            // An exception would cancel all later sweeps
+            log.error("Unable to close unauthenticated connections", ex);
+        }
+    }
+
+    /**
+     * Close the connections whose writes have stalled. The byte limit is
+     * also checked on every flush.
+     */
+    private void closeStuck() {
+        try {
+            final long now = System.nanoTime();
+            this.knownConnections.forEach((connectionID, clientConnection)
+                    -> closeIfStuck(clientConnection, now));
+        } catch (RuntimeException ex) {
+            // An exception would cancel all later sweeps
+            log.error("Unable to close stuck connections", ex);
+        }
+    }
+
+    private void closeIfStuck(final ShmClientConnection clientConnection, final long now) {
+        final WriteBacklog backlog = clientConnection.getWriteBacklog();
+        if (backlog.isStuck(now) && clientConnection.getChannel().isOpen()) {
+            log.info("Client {} is not taking its writes, {} bytes in {} writes waiting, closing connection",
+                    clientConnection, backlog.getBytes(), backlog.getWrites());
+            this.stuckConnections.increment();
+            clientConnection.getChannel().close();
+        }
+    }
+
+    /**
+     * Take the connections clients have offered since the last scan. Refused
+     * connections are told the server is full and never get a client
+     * connection.
+     */
+    private void accept() {
+        try (DirectoryStream<Path> offered = Files.newDirectoryStream(
+                this.directory,
+                "*" + ShmChannel.FILE_SUFFIX)) {
+            for (Path file : offered) {
+                accept(file);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // An exception would cancel all later scans
+            log.error("Unable to accept connections", ex);
+        }
+    }
+
+    private void accept(final Path file) {
+        final ShmChannel channel;
+        try {
+            channel = ShmChannel.open(file, this.bufferPool, new Peer());
+        } catch (IOException ex) {
+            log.warn("Unable to accept connection, removing {}", file, ex);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException deleteEx) {
+                log.debug("Failed to remove {}", file, deleteEx);
+            }
+            return;
+        }
+        if (!this.admissionControl.admit(System.nanoTime())) {
+            log.debug("Server full, refusing: {}", channel);
+            channel.refuse();
+            return;
+        }
+        channel.accept();
+        this.poller.register(channel);
+    }
+
+    /**
+     * The events of one client channel.
+     */
+    private class Peer implements ShmChannel.Listener {
+
+        private ShmClientConnection clientConnection;
+
+        @Override
+        public void connected(final ShmChannel channel) {
+            final ConnectionID connectionID = slotAllocator.allocate();
+            this.clientConnection = new ShmClientConnection(
+                    connectionID,
+                    channel,
+                    configuration.getMaxOutgoingMessages(),
+                    queueLatencies,
+                    BulkSender.of(configuration),
+                    bufferPool,
+                    WriteBacklog.of(configuration)
+            );
+            knownConnections.put(connectionID, this.clientConnection);
+            log.debug("Client connected: {} through {}", connectionID, channel);
+            connectionEvents.publish(ConnectionEvent.Type.CONNECTED, connectionID);
+        }
+
+        @Override
+        public void received(final ShmChannel channel, final ByteBuffer payload) {
+            // The payload is a view of the read buffer, the consumer gets a
+            // pooled copy
+            final ByteBuffer data = bufferPool.acquire(payload.remaining());
+            data.put(payload);
+            data.flip();
+            addIncomingMessage(this.clientConnection, data);
+        }
+
+        @Override
+        public void closed(final ShmChannel channel) {
+            if (this.clientConnection != null) {
+                dropConnection(this.clientConnection);
+            }
+            admissionControl.release();
+        }
+    }
+
+    private void addIncomingMessage(
+            final ShmClientConnection clientConnection,
+            final ByteBuffer data) {
+        final ConnectionID connectionID = clientConnection.getConnectionID();
+        if (this.incomingMessageQueue.offer(new IncomingMessage(
+                connectionID,
+                data,
+                () -> this.bufferPool.release(data)))) {
+            return;
+        }
+        this.bufferPool.release(data);
+        this.droppedIncomingMessages.increment();
+        if (this.incomingOverflowPolicy == IncomingOverflowPolicy.DISCONNECT) {
+            log.info("Incoming queue full, disconnecting: {}", connectionID);
+            clientConnection.getChannel().close();
+        } else {
+            log.debug("Incoming queue full, dropping message from: {}", connectionID);
+        }
+    }
+
+    /**
+     * Remove the connection and queue the drop for the listeners.
+     */
+    private void dropConnection(final ShmClientConnection clientConnection) {
+        final ConnectionID connectionID = clientConnection.getConnectionID();
+        if (this.knownConnections.remove(connectionID) == null) {
+            return;
+        }
+        log.debug("Dropping connection: {}", connectionID);
+        clientConnection.discardQueued();
+        // The listeners have seen the drop before the slot can be handed to
+        // a new connection
+        this.connectionEvents.publish(
+                ConnectionEvent.Type.DROPPED,
+                connectionID,
+                () -> this.slotAllocator.release(connectionID)
+        );
+    }
+
+    @Override
+    public void sendMessage(final ByteBuffer data, final ConnectionID recipient)
+            throws OutgoingQueueFullException, NotConnectedException {
+        sendMessage(data, recipient, MessagePriority.NORMAL);
+    }
+
+    @Override
+    public void sendMessage(
+            final ByteBuffer data,
+            final ConnectionID recipient,
+            final MessagePriority priority)
+            throws OutgoingQueueFullException, NotConnectedException {
+        Preconditions.checkNotNull(priority, "priority may not be null");
+        final ShmClientConnection clientConnection = getClientConnection(recipient);
+        final NioFrame frame = NioFrame.encode(this.bufferPool, data);
+        if (!clientConnection.offer(priority, frame)) {
+            frame.done();
+            if (clientConnection.isClosed()) {
+                throw new NotConnectedException("Client with ID: " + recipient + " is not connected");
+            }
+            throw new OutgoingQueueFullException("Unable to queue outgoing message, " + priority + " queue full for: " + recipient);
+        }
+    }
+
+    @Override
+    public int broadcast(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        Preconditions.checkNotNull(recipients, "recipients may not be null");
+        // Framed once, every recipient writes its own view of the frame
+        final NioFrame.Shared shared
+                = new NioFrame.Shared(NioFrame.encode(this.bufferPool, data));
+        int queued = 0;
+        try {
+            for (ConnectionID recipient : recipients) {
+                final ShmClientConnection clientConnection
+                        = this.knownConnections.get(recipient);
+                if (clientConnection == null) {
+                    log.debug("Broadcast recipient: {} is not connected", recipient);
+                    continue;
+                }
+                final NioFrame view = shared.newView();
+                if (clientConnection.offer(MessagePriority.NORMAL, view)) {
+                    queued++;
+                } else {
+                    view.done();
+                    log.debug("Broadcast queue {} for: {}",
+                            clientConnection.isClosed() ? "closed" : "full", recipient);
+                }
+            }
+        } finally {
+            shared.release();
+        }
+        return queued;
+    }
+
+    @Override
+    public int broadcastLatest(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        Preconditions.checkNotNull(recipients, "recipients may not be null");
+        final NioFrame.Shared shared
+                = new NioFrame.Shared(NioFrame.encode(this.bufferPool, data));
+        int stored = 0;
+        try {
+            for (ConnectionID recipient : recipients) {
+                final ShmClientConnection clientConnection
+                        = this.knownConnections.get(recipient);
+                if (clientConnection == null) {
+                    log.debug("Broadcast recipient: {} is not connected", recipient);
+                    continue;
+                }
+                clientConnection.replaceSnapshot(shared.newView());
+                stored++;
+            }
+        } finally {
+            shared.release();
+        }
+        return stored;
+    }
+
+    @Override
+    public int broadcastUnreliable(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        return broadcastLatest(data, recipients);
+    }
+
+    @Override
+    public void flush() {
+        final long now = System.nanoTime();
+        this.knownConnections.forEach((id, clientConnection) -> {
+            if (clientConnection.hasQueuedMessages() || clientConnection.hasSendableBulk()) {
+                clientConnection.sendQueued();
+                closeIfStuck(clientConnection, now);
+            }
+        });
+    }
+
+    @Override
+    public void sendBulk(
+            final ByteBuffer data,
+            final ConnectionID recipient,
+            final long transferId,
+            final int fromOffset) throws NotConnectedException {
+        getClientConnection(recipient).getBulkSender().send(data, transferId, fromOffset);
+    }
+
+    @Override
+    public long getQueuedBulkBytes(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getBulkSender().getQueuedBytes();
+    }
+
+    @Override
+    public int getOutgoingQueueDepth(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getQueuedMessageCount();
+    }
+
+    @Override
+    public long getPendingWriteBytes(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getWriteBacklog().getBytes();
+    }
+
+    @Override
+    public int getPendingWrites(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getWriteBacklog().getWrites();
+    }
+
+    @Override
+    public QueueLatencyMXBean getQueueLatency(final MessagePriority priority) {
+        return this.queueLatencies.get(
+                Preconditions.checkNotNull(priority, "priority may not be null")
+        );
+    }
+
+    @Override
+    public RoundTripTime getRoundTripTime(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return getClientConnection(connectionID).getChannel().getRoundTripTime();
+    }
+
+    private ShmClientConnection getClientConnection(final ConnectionID connectionID)
+            throws NotConnectedException {
+        final ShmClientConnection clientConnection = this.knownConnections.get(
+                Preconditions.checkNotNull(connectionID, "recipients may not be null")
+        );
+        if (clientConnection == null) {
+            throw new NotConnectedException("Client with ID: " + connectionID + " is not connected");
+        }
+        return clientConnection;
+    }
+
+    @Override
+    public void addConnectionListener(final Consumer<ConnectionEvent> l) {
+        this.connectionEvents.addListener(l);
+    }
+
+    @Override
+    public void addConnectionDroppedListener(final Consumer<ConnectionID> l) {
+        this.connectionEvents.addDroppedListener(l);
+    }
+
+    @Override
+    public IncomingMessage getIncomingMessage() {
+        return this.incomingMessageQueue.poll();
+    }
+
+    @Override
+    public int drainIncoming(final Consumer<IncomingMessage> consumer, final int max) {
+        return this.incomingMessageQueue.drain(consumer, max);
+    }
+
+    @Override
+    public int getIncomingQueueDepth() {
+        return this.incomingMessageQueue.size();
+    }
+
+    @Override
+    public int getIncomingQueueCapacity() {
+        return this.incomingMessageQueue.capacity();
+    }
+
+    /**
+     * @return The buffers frames are encoded and read into.
+     */
+    public NioBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return The number of incoming messages dropped because the incoming
+     * queue was full.
+     */
+    public long getDroppedIncomingMessageCount() {
+        return this.droppedIncomingMessages.sum();
+    }
+
+    /**
+     * @return The number of connections closed because the client stopped
+     * answering heartbeats.
+     */
+    public long getHeartbeatTimeoutCount() {
+        return this.heartbeatTimeouts.sum();
+    }
+
+    /**
+     * @return The number of connections refused because the server was full
+     * or accepting too fast.
+     */
+    public long getRefusedConnectionCount() {
+        return this.admissionControl.getRefusedConnectionCount();
+    }
+
+    /**
+     * @return The number of connections closed because they did not
+     * authenticate in time.
+     */
+    public long getAuthenticationTimeoutCount() {
+        return this.admissionControl.getAuthenticationTimeoutCount();
+    }
+
+    /**
+     * @return The number of connections closed because their writes were
+     * stuck.
+     */
+    public long getStuckConnectionCount() {
+        return this.stuckConnections.sum();
+    }
+
+    @Override
+    public void markAuthenticated(final ConnectionID connectionID)
+            throws NotConnectedException {
+        if (getClientConnection(connectionID).markAuthenticated()) {
+            this.connectionEvents.publish(
+                    ConnectionEvent.Type.AUTHENTICATED,
+                    connectionID
+            );
+        }
+    }
+
+    /**
+     * @return The number of connected clients.
+     */
+    public int getConnectionCount() {
+        return this.knownConnections.size();
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2017 Johan Maasing <johan@zoom.nu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.mejsla.camp.mazela.network.server.simulation;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AbstractService;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.mejsla.camp.mazela.network.common.ConnectionID;
+import se.mejsla.camp.mazela.network.common.MessageUtilities;
+import se.mejsla.camp.mazela.network.common.MpscRingBuffer;
+import se.mejsla.camp.mazela.network.common.NetworkingException;
+import se.mejsla.camp.mazela.network.common.NotConnectedException;
+import se.mejsla.camp.mazela.network.common.OutgoingQueueFullException;
+import se.mejsla.camp.mazela.network.common.RoundTripTime;
+import se.mejsla.camp.mazela.network.common.SlotTable;
+import se.mejsla.camp.mazela.network.common.loopback.LoopbackNetwork;
+import se.mejsla.camp.mazela.network.common.simulation.NetworkConditions;
+import se.mejsla.camp.mazela.network.common.simulation.SimulatedLink;
+import se.mejsla.camp.mazela.network.common.simulation.TimerWheel;
+import se.mejsla.camp.mazela.network.server.ConnectionEvent;
+import se.mejsla.camp.mazela.network.server.IncomingMessage;
+import se.mejsla.camp.mazela.network.server.MessagePriority;
+import se.mejsla.camp.mazela.network.server.NetworkServer;
+import se.mejsla.camp.mazela.network.server.QueueLatencyMXBean;
+
+/**
+ * Wraps a network server and makes the network worse: latency, jitter, loss,
+ * reordering and a bandwidth cap for each connection, in both directions,
+ * see {@link NetworkConditions}. Meant for soak tests of the game loop on a
+ * bad network without external tools.
+ * <p>
+ * Outgoing messages start their trip when the server is flushed and are
+ * handed to the wrapped server when they arrive. Incoming messages are taken
+ * from the wrapped server as they come in and can be taken from this server
+ * when they arrive. The delays run on a {@link TimerWheel} with one
+ * millisecond ticks, the wheel thread also flushes the wrapped server and is
+ * the only thread that takes its incoming messages.
+ * <p>
+ * Messages and snapshots are reliable, unreliable broadcasts may be lost or
+ * reordered, see {@link SimulatedLink}. Message priorities are passed on to
+ * the wrapped server, the simulated link itself does not reorder by
+ * priority. Heartbeats run below the simulation,
+ * so the round trip time adds the simulated delay to the measured one.
+ */
+public class ImpairedNetworkServer extends AbstractService implements NetworkServer {
+
+    private static final long TICK_MILLIS = 1;
+    private static final int WHEEL_SIZE = 4096;
+
+    private enum Kind {
+        MESSAGE, SNAPSHOT, UNRELIABLE
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final NetworkServer delegate;
+    private final NetworkConditions defaultConditions;
+    private final SlotTable<SimulatedConnection> connections = new SlotTable<>();
+    private final ConcurrentLinkedQueue<PendingSend> unflushed = new ConcurrentLinkedQueue<>();
+    private final MpscRingBuffer<IncomingMessage> incomingMessageQueue;
+    private final TimerWheel timerWheel;
+    /**
+     * Set when a message has been handed to the wrapped server, which is then
+     * flushed at the end of the tick.
+     */
+    private final AtomicBoolean flushNeeded = new AtomicBoolean(false);
+    private final LongAdder lostMessages = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+
+    /**
+     * @param delegate The server to wrap, started and stopped with this
+     * server. May not be null.
+     * @param conditions The conditions for every connection, unless changed
+     * with {@link #setConditions(ConnectionID, NetworkConditions)}. May not be
+     * null.
+     * @param threadFactory Creates the timer wheel thread. May not be null.
+     */
+    public ImpairedNetworkServer(
+            final NetworkServer delegate,
+            final NetworkConditions conditions,
+            final ThreadFactory threadFactory) {
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.defaultConditions = Preconditions.checkNotNull(conditions);
+        this.incomingMessageQueue
+                = new MpscRingBuffer<>(delegate.getIncomingQueueCapacity());
+        this.timerWheel = new TimerWheel(
+                Preconditions.checkNotNull(threadFactory),
+                TICK_MILLIS,
+                WHEEL_SIZE,
+                this::afterTick
+        );
+        this.delegate.addConnectionDroppedListener(this::connectionDropped);
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            if (!this.delegate.isRunning()) {
+                this.delegate.startAsync().awaitRunning();
+            }
+            this.timerWheel.start();
+            log.info("Simulating network conditions: {}", this.defaultConditions);
+            notifyStarted();
+        } catch (IllegalStateException ex) {
+            notifyFailed(ex);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        this.timerWheel.stop();
+        this.delegate.stopAsync().awaitTerminated();
+        notifyStopped();
+    }
+
+    /**
+     * Change the conditions of one connection, messages already in flight
+     * keep their arrival times.
+     *
+     * @param connectionID The connection. May not be null.
+     * @param conditions The new conditions. May not be null.
+     */
+    public void setConditions(
+            final ConnectionID connectionID,
+            final NetworkConditions conditions) {
+        Preconditions.checkNotNull(conditions);
+        final SimulatedConnection replaced = this.connections.put(
+                connectionID,
+                new SimulatedConnection(connectionID, conditions)
+        );
+        if (replaced != null && !replaced.connectionID.equals(connectionID)) {
+            // Left by a connection that had the slot before
+            replaced.dropped = true;
+        }
+    }
+
+    private SimulatedConnection connection(final ConnectionID connectionID) {
+        final SimulatedConnection existing = this.connections.get(connectionID);
+        if (existing != null) {
+            return existing;
+        }
+        final SimulatedConnection created = this.connections.computeIfAbsent(
+                connectionID,
+                id -> new SimulatedConnection(id, this.defaultConditions)
+        );
+        if (created != null) {
+            return created;
+        }
+        // The slot belongs to another connection, what is left of this one
+        // goes nowhere
+        final SimulatedConnection stale
+                = new SimulatedConnection(connectionID, this.defaultConditions);
+        stale.dropped = true;
+        return stale;
+    }
+
+    private void connectionDropped(final ConnectionID connectionID) {
+        final SimulatedConnection removed = this.connections.remove(connectionID);
+        if (removed != null) {
+            removed.dropped = true;
+        }
+    }
+
+    @Override
+    public void sendMessage(final ByteBuffer data, final ConnectionID recipient)
+            throws OutgoingQueueFullException, NotConnectedException {
+        sendMessage(data, recipient, MessagePriority.NORMAL);
+    }
+
+    @Override
+    public void sendMessage(
+            final ByteBuffer data,
+            final ConnectionID recipient,
+            final MessagePriority priority)
+            throws OutgoingQueueFullException, NotConnectedException {
+        Preconditions.checkNotNull(priority, "priority may not be null");
+        // Fails the same way as the wrapped server for unknown recipients
+        this.delegate.getOutgoingQueueDepth(recipient);
+        queue(connection(recipient), LoopbackNetwork.copy(data), Kind.MESSAGE, priority);
+    }
+
+    @Override
+    public int broadcast(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        return queueForAll(data, recipients, Kind.MESSAGE);
+    }
+
+    @Override
+    public int broadcastLatest(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        return queueForAll(data, recipients, Kind.SNAPSHOT);
+    }
+
+    @Override
+    public int broadcastUnreliable(final ByteBuffer data, final Collection<ConnectionID> recipients) {
+        return queueForAll(data, recipients, Kind.UNRELIABLE);
+    }
+
+    private int queueForAll(
+            final ByteBuffer data,
+            final Collection<ConnectionID> recipients,
+            final Kind kind) {
+        Preconditions.checkNotNull(recipients, "recipients may not be null");
+        final ByteBuffer shared = LoopbackNetwork.copy(data);
+        int queued = 0;
+        for (ConnectionID recipient : recipients) {
+            try {
+                this.delegate.getOutgoingQueueDepth(recipient);
+            } catch (NotConnectedException ex) {
+                log.debug("Broadcast recipient: {} is not connected", recipient);
+                continue;
+            }
+            queue(connection(recipient), shared.asReadOnlyBuffer(), kind, MessagePriority.NORMAL);
+            queued++;
+        }
+        return queued;
+    }
+
+    private void queue(
+            final SimulatedConnection connection,
+            final ByteBuffer data,
+            final Kind kind,
+            final MessagePriority priority) {
+        connection.inFlight.incrementAndGet();
+        this.unflushed.add(new PendingSend(connection, data, kind, priority));
+    }
+
+    /**
+     * Start the trip of everything queued since the last flush.
+     */
+    @Override
+    public void flush() {
+        final long now = System.nanoTime();
+        PendingSend send;
+        while ((send = this.unflushed.poll()) != null) {
+            final PendingSend current = send;
+            final long arrival = current.connection.outgoing.arrival(
+                    now,
+                    MessageUtilities.FRAME_HEADER_BYTES + current.data.remaining(),
+                    current.kind != Kind.UNRELIABLE
+            );
+            if (arrival == SimulatedLink.LOST) {
+                current.connection.inFlight.decrementAndGet();
+                this.lostMessages.increment();
+                continue;
+            }
+            this.timerWheel.schedule(arrival - now, () -> deliverOutgoing(current));
+        }
+    }
+
+    /**
+     * Runs on the wheel thread when an outgoing message arrives.
+     */
+    private void deliverOutgoing(final PendingSend send) {
+        send.connection.inFlight.decrementAndGet();
+        if (send.connection.dropped) {
+            return;
+        }
+        final ConnectionID recipient = send.connection.connectionID;
+        try {
+            switch (send.kind) {
+                case MESSAGE:
+                    this.delegate.sendMessage(send.data, recipient, send.priority);
+                    break;
+                case SNAPSHOT:
+                    this.delegate.broadcastLatest(send.data, Collections.singletonList(recipient));
+                    break;
+                case UNRELIABLE:
+                default:
+                    this.delegate.broadcastUnreliable(send.data, Collections.singletonList(recipient));
+                    break;
+            }
+            this.flushNeeded.set(true);
+        } catch (NetworkingException ex) {
+            this.droppedMessages.increment();
+            log.debug("Simulated message to {} dropped: {}", recipient, ex.getMessage());
+        }
+    }
+
+    /**
+     * Runs on the wheel thread after every tick. Starts the trip of the
+     * messages that came in since the last tick and flushes what has
+     * arrived.
+     */
+    private void afterTick() {
+        final long now = System.nanoTime();
+        this.delegate.drainIncoming(message -> {
+            final SimulatedConnection connection = connection(message.getConnectionID());
+            final long arrival = connection.incoming.arrival(
+                    now,
+                    MessageUtilities.FRAME_HEADER_BYTES + message.getData().remaining(),
+                    true
+            );
+            this.timerWheel.schedule(arrival - now, () -> deliverIncoming(connection, message));
+        }, Integer.MAX_VALUE);
+        if (this.flushNeeded.compareAndSet(true, false)) {
+            this.delegate.flush();
+        }
+    }
+
+    private void deliverIncoming(
+            final SimulatedConnection connection,
+            final IncomingMessage message) {
+        if (connection.dropped || !this.incomingMessageQueue.offer(message)) {
+            this.droppedMessages.increment();
+            message.release();
+        }
+    }
+
+    /**
+     * @return The number of unreliable messages the simulation lost.
+     */
+    public long getLostMessageCount() {
+        return this.lostMessages.sum();
+    }
+
+    /**
+     * @return The number of messages that arrived after their connection was
+     * dropped, or when a queue was full.
+     */
+    public long getDroppedMessageCount() {
+        return this.droppedMessages.sum();
+    }
+
+    /**
+     * Bulk transfers go straight to the wrapped server, they are not delayed
+     * or lost.
+     */
+    @Override
+    public void sendBulk(
+            final ByteBuffer data,
+            final ConnectionID recipient,
+            final long transferId,
+            final int fromOffset) throws NotConnectedException {
+        this.delegate.sendBulk(data, recipient, transferId, fromOffset);
+    }
+
+    @Override
+    public long getQueuedBulkBytes(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return this.delegate.getQueuedBulkBytes(connectionID);
+    }
+
+    /**
+     * @return The number of messages queued in the wrapped server and still
+     * in flight in the simulation.
+     */
+    @Override
+    public int getOutgoingQueueDepth(final ConnectionID connectionID)
+            throws NotConnectedException {
+        final int queued = this.delegate.getOutgoingQueueDepth(connectionID);
+        final SimulatedConnection connection = this.connections.get(connectionID);
+        return queued + (connection != null ? connection.inFlight.get() : 0);
+    }
+
+    /**
+     * @return The backlog of the wrapped server, messages held back by the
+     * simulation have not been written yet and are not counted.
+     */
+    @Override
+    public long getPendingWriteBytes(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return this.delegate.getPendingWriteBytes(connectionID);
+    }
+
+    @Override
+    public int getPendingWrites(final ConnectionID connectionID)
+            throws NotConnectedException {
+        return this.delegate.getPendingWrites(connectionID);
+    }
+
+    /**
+     * @return The measured round trip time plus the mean simulated delay
+     * both ways, {@link RoundTripTime#UNKNOWN} until the wrapped server has a
+     * measurement.
+     */
+    @Override
+    public RoundTripTime getRoundTripTime(final ConnectionID connectionID)
+            throws NotConnectedException {
+        final SimulatedConnection connection = this.connections.get(connectionID);
+        final NetworkConditions conditions = connection != null
+                ? connection.outgoing.getConditions()
+                : this.defaultConditions;
+        return conditions.addTo(this.delegate.getRoundTripTime(connectionID));
+    }
+
+    /**
+     * @return The queue latency of the wrapped server, which does not include
+     * the simulated delay.
+     */
+    @Override
+    public QueueLatencyMXBean getQueueLatency(final MessagePriority priority) {
+        return this.delegate.getQueueLatency(priority);
+    }
+
+    @Override
+    public void markAuthenticated(final ConnectionID connectionID)
+            throws NotConnectedException {
+        this.delegate.markAuthenticated(connectionID);
+    }
+
+    /**
+     * Connection events are not delayed, a connection may be reported as
+     * dropped while simulated messages to it are still on their way.
+     */
+    @Override
+    public void addConnectionListener(final Consumer<ConnectionEvent> l) {
+        this.delegate.addConnectionListener(l);
+    }
+
+    @Override
+    public void addConnectionDroppedListener(final Consumer<ConnectionID> l) {
+        this.delegate.addConnectionDroppedListener(l);
+    }
+
+    @Override
+    public IncomingMessage getIncomingMessage() {
+        return this.incomingMessageQueue.poll();
+    }
+
+    @Override
+    public int drainIncoming(final Consumer<IncomingMessage> consumer, final int max) {
+        return this.incomingMessageQueue.drain(consumer, max);
+    }
+
+    @Override
+    public int getIncomingQueueDepth() {
+        return this.incomingMessageQueue.size();
+    }
+
+    @Override
+    public int getIncomingQueueCapacity() {
+        return this.incomingMessageQueue.capacity();
+    }
+
+    /**
+     * The simulated links of one connection.
+     */
+    private static final class SimulatedConnection {
+
+        private final ConnectionID connectionID;
+        private final SimulatedLink outgoing;
+        private final SimulatedLink incoming;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile boolean dropped;
+
+        private SimulatedConnection(
+                final ConnectionID connectionID,
+                final NetworkConditions conditions) {
+            this.connectionID = connectionID;
+            this.outgoing = new SimulatedLink(conditions, 2L * connectionID.hashCode());
+            this.incoming = new SimulatedLink(conditions, 2L * connectionID.hashCode() + 1);
+        }
+    }
+
+    private static final class PendingSend {
+
+        private final SimulatedConnection connection;
+        private final ByteBuffer data;
+        private final Kind kind;
+        private final MessagePriority priority;
+
+        private PendingSend(
+                final SimulatedConnection connection,
+                final ByteBuffer data,
+                final Kind kind,
+                final MessagePriority priority) {
+            this.connection = connection;
+            this.data = data;
+            this.kind = kind;
+            this.priority = priority;
+        }
+    }
+}